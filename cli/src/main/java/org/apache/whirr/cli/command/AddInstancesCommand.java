@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.cli.command;
+
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterController;
+import org.apache.whirr.ClusterControllerFactory;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.command.AbstractClusterCommand;
+import org.apache.whirr.state.ClusterStateStoreFactory;
+
+import com.google.common.base.Splitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.collect.Sets.newLinkedHashSet;
+
+/**
+ * A command to add instances of an instance template to a running cluster,
+ * taking them from the warm pool of the template when it has some. The
+ * command returns once the warm pool is refilled.
+ */
+public class AddInstancesCommand extends AbstractClusterCommand {
+
+  private OptionSpec<String> rolesOption = parser
+    .accepts("roles", "Roles of the instance template, e.g. hadoop-datanode+hadoop-tasktracker")
+    .withRequiredArg()
+    .ofType(String.class);
+
+  private OptionSpec<Integer> countOption = parser
+    .accepts("count", "Number of instances to add")
+    .withRequiredArg()
+    .ofType(Integer.class)
+    .defaultsTo(1);
+
+  public AddInstancesCommand() throws IOException {
+    this(new ClusterControllerFactory());
+  }
+
+  public AddInstancesCommand(ClusterControllerFactory factory) {
+    this(factory, new ClusterStateStoreFactory());
+  }
+
+  public AddInstancesCommand(ClusterControllerFactory factory,
+                             ClusterStateStoreFactory stateStoreFactory) {
+    super("add-instances", "Add instances of an instance template " +
+      "to a running cluster.", factory, stateStoreFactory);
+  }
+
+  @Override
+  public int run(InputStream in, PrintStream out,
+                 PrintStream err, List<String> args) throws Exception {
+
+    OptionSet optionSet = parser.parse(args.toArray(new String[args.size()]));
+    if (!optionSet.nonOptionArguments().isEmpty()) {
+      printUsage(err);
+      return -1;
+    }
+    try {
+      if (!optionSet.hasArgument(rolesOption)) {
+        throw new IllegalArgumentException("--roles is a mandatory argument");
+      }
+      ClusterSpec clusterSpec = getClusterSpec(optionSet);
+      Set<String> roles = newLinkedHashSet(Splitter.on('+').split(optionSet.valueOf(rolesOption)));
+      printProviderInfo(out, err, clusterSpec, optionSet);
+      return run(in, out, err, clusterSpec, roles, optionSet.valueOf(countOption));
+
+    } catch (IllegalArgumentException e) {
+      printErrorAndHelpHint(err, e);
+      return -1;
+    }
+  }
+
+  public int run(InputStream in, PrintStream out, PrintStream err,
+                 ClusterSpec clusterSpec, Set<String> roles, int count) throws Exception {
+    ClusterController controller = createClusterController(clusterSpec.getServiceName());
+    Cluster before = createClusterStateStore(clusterSpec).tryLoadOrEmpty();
+    Set<String> existingIds = newHashSet();
+    if (before != null) {
+      for (Cluster.Instance instance : before.getInstances()) {
+        existingIds.add(instance.getId());
+      }
+    }
+    Cluster cluster = controller.addInstances(clusterSpec, roles, count);
+    int added = 0;
+    for (Cluster.Instance instance : cluster.getInstances()) {
+      if (!existingIds.contains(instance.getId())) {
+        added++;
+      }
+    }
+    out.printf("Added %d instances with roles %s, the cluster has %d instances\n",
+      added, roles, cluster.getInstances().size());
+
+    int standby = controller.refillWarmPool(clusterSpec);
+    if (standby > 0) {
+      out.printf("Added %d standby instances to the warm pool\n", standby);
+    }
+    return 0;
+  }
+
+  @Override
+  public void printUsage(PrintStream stream) throws IOException {
+    stream.println("Usage: whirr add-instances --roles <role+role> [--count <n>] [OPTIONS]");
+    stream.println();
+    parser.printHelpOn(stream);
+  }
+}
@@ -20,6 +20,7 @@ package org.apache.whirr.cli.command;
 
 import com.google.common.annotations.Beta;
 import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
 import org.apache.whirr.ClusterController;
 import org.apache.whirr.ClusterControllerFactory;
 import org.apache.whirr.ClusterSpec;
@@ -28,11 +29,16 @@ import org.apache.whirr.state.ClusterStateStoreFactory;
 import java.io.IOException;
 
 /**
- * A command to configure the cluster services
+ * A command to configure the cluster services. Only the instances whose
+ * configuration changed are configured again, unless --force is given.
  */
 @Beta
 public class ConfigureServicesCommand extends RoleLifecycleCommand {
 
+  private OptionSpec<Void> forceOption = parser
+      .accepts("force", "Run the configure scripts on all the targeted " +
+          "instances, even if their configuration did not change");
+
   public ConfigureServicesCommand() throws IOException {
     this(new ClusterControllerFactory());
   }
@@ -53,7 +59,8 @@ public class ConfigureServicesCommand extends RoleLifecycleCommand {
         clusterSpec,
         getCluster(clusterSpec, controller),
         getTargetRolesOrEmpty(optionSet),
-        getTargetInstanceIdsOrEmpty(optionSet)
+        getTargetInstanceIdsOrEmpty(optionSet),
+        optionSet.has(forceOption)
     );
     return 0;
   }
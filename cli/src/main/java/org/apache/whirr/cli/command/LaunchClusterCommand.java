@@ -22,6 +22,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import joptsimple.OptionSet;
 import org.apache.whirr.Cluster;
 import org.apache.whirr.ClusterController;
@@ -30,11 +35,16 @@ import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.command.AbstractClusterCommand;
 import org.apache.whirr.util.Utils;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
- * A command to launch a new cluster.
+ * A command to launch a new cluster. The command returns once the instances
+ * that started late have joined the cluster and the warm pool is refilled.
  */
 public class LaunchClusterCommand extends AbstractClusterCommand {
 
+  private static final long PROGRESS_INTERVAL_SECONDS = 30;
+
   public LaunchClusterCommand() throws IOException {
     this(new ClusterControllerFactory());
   }
@@ -73,6 +83,42 @@ public class LaunchClusterCommand extends AbstractClusterCommand {
 
     Utils.printSSHConnectionDetails(out, clusterSpec, cluster, 20);
 
+    if (!awaitLateJoin(out, err, controller.getLateJoin(clusterSpec))) {
+      return -1;
+    }
+
+    int standby = controller.refillWarmPool(clusterSpec);
+    if (standby > 0) {
+      out.printf("Added %d standby instances to the warm pool\n", standby);
+    }
+
     return 0;
   }
+
+  /**
+   * @return false if the late instances failed to join
+   */
+  private boolean awaitLateJoin(PrintStream out, PrintStream err,
+      ListenableFuture<Set<Cluster.Instance>> join) throws InterruptedException {
+    if (!join.isDone()) {
+      out.println("Waiting for the instances that are still starting to join the cluster");
+    }
+    long started = System.currentTimeMillis();
+    while (true) {
+      try {
+        Set<Cluster.Instance> joined = join.get(PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        if (!joined.isEmpty()) {
+          out.printf("%d late instances joined the cluster\n", joined.size());
+        }
+        return true;
+      } catch (TimeoutException e) {
+        out.printf("Still waiting for the late instances to join the cluster (%d s)\n",
+            (System.currentTimeMillis() - started) / 1000);
+      } catch (ExecutionException e) {
+        err.printf("Late instances failed to join the cluster, run resume-cluster " +
+            "to retry: %s\n", e.getCause().getMessage());
+        return false;
+      }
+    }
+  }
 }
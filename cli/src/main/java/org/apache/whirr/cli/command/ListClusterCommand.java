@@ -20,6 +20,7 @@ package org.apache.whirr.cli.command;
 
 import com.google.common.base.Joiner;
 import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
 import org.apache.whirr.Cluster;
 import org.apache.whirr.ClusterController;
 import org.apache.whirr.ClusterControllerFactory;
@@ -32,12 +33,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A command to list the nodes in a cluster.
  */
 public class ListClusterCommand extends AbstractClusterCommand {
 
+  private OptionSpec<Void> refreshOption = parser
+    .accepts("refresh", "Fetch the current state of the instances from the " +
+      "provider instead of using the saved cluster state");
+
   public ListClusterCommand() throws IOException {
     this(new ClusterControllerFactory());
   }
@@ -64,7 +70,7 @@ public class ListClusterCommand extends AbstractClusterCommand {
     try {
       ClusterSpec clusterSpec = getClusterSpec(optionSet);
       printProviderInfo(out, err, clusterSpec, optionSet);
-      return run(in, out, err, clusterSpec);
+      return run(in, out, err, clusterSpec, optionSet.has(refreshOption));
 
     } catch (IllegalArgumentException e) {
       printErrorAndHelpHint(err, e);
@@ -73,17 +79,25 @@ public class ListClusterCommand extends AbstractClusterCommand {
   }
 
   public int run(InputStream in, PrintStream out, PrintStream err, ClusterSpec clusterSpec) throws Exception {
+    return run(in, out, err, clusterSpec, false);
+  }
+
+  public int run(InputStream in, PrintStream out, PrintStream err, ClusterSpec clusterSpec,
+                 boolean refresh) throws Exception {
     ClusterStateStore stateStore = createClusterStateStore(clusterSpec);
     ClusterController controller = createClusterController(clusterSpec.getServiceName());
 
-    for (Cluster.Instance instance : controller.getInstances(clusterSpec, stateStore)) {
+    Set<Cluster.Instance> instances = refresh ?
+      controller.refreshInstances(clusterSpec, stateStore) :
+      controller.getInstances(clusterSpec, stateStore);
+    for (Cluster.Instance instance : instances) {
       out.println(Joiner.on('\t').useForNull("-").join(
         instance.getId(),
         instance.getNodeMetadata().getImageId(),
         instance.getPublicIp(),
         instance.getPrivateIp(),
         instance.getNodeMetadata().getState(),
-        instance.getNodeMetadata().getLocation().getId(),
+        instance.getLocationId(),
         Joiner.on(",").join(instance.getRoles())
       )
       );
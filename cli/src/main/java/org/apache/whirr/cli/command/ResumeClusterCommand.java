@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.cli.command;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import joptsimple.OptionSet;
+import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterController;
+import org.apache.whirr.ClusterControllerFactory;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.command.AbstractClusterCommand;
+import org.apache.whirr.util.Utils;
+
+/**
+ * A command to continue the launch of a cluster that did not complete.
+ */
+public class ResumeClusterCommand extends AbstractClusterCommand {
+
+  public ResumeClusterCommand() throws IOException {
+    this(new ClusterControllerFactory());
+  }
+
+  public ResumeClusterCommand(ClusterControllerFactory factory) {
+    super("resume-cluster", "Continue the launch of a cluster from the last " +
+        "completed step.", factory);
+  }
+
+  @Override
+  public int run(InputStream in, PrintStream out, PrintStream err,
+                 List<String> args) throws Exception {
+    OptionSet optionSet = parser.parse(args.toArray(new String[args.size()]));
+
+    if (!optionSet.nonOptionArguments().isEmpty()) {
+      printUsage(err);
+      return -1;
+    }
+
+    try {
+      ClusterSpec clusterSpec = getClusterSpec(optionSet);
+      printProviderInfo(out, err, clusterSpec, optionSet);
+      return run(in, out, err, clusterSpec);
+
+    } catch (IllegalArgumentException e) {
+      printErrorAndHelpHint(err, e);
+      return -1;
+
+    } catch (IllegalStateException e) {
+      err.println(e.getMessage());
+      return -1;
+    }
+  }
+
+  public int run(InputStream in, PrintStream out, PrintStream err, ClusterSpec clusterSpec) throws Exception {
+    ClusterController controller = createClusterController(clusterSpec.getServiceName());
+    Cluster cluster = controller.resumeCluster(clusterSpec);
+    out.printf("Resumed cluster of %s instances\n",
+      cluster.getInstances().size());
+    out.println(cluster);
+
+    Utils.printSSHConnectionDetails(out, clusterSpec, cluster, 20);
+
+    return 0;
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.cli.command;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterController;
+import org.apache.whirr.ClusterControllerFactory;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.state.ClusterStateStore;
+import org.apache.whirr.state.ClusterStateStoreFactory;
+import org.apache.whirr.state.MemoryClusterStateStore;
+import org.apache.whirr.util.KeyPair;
+import org.jclouds.domain.Credentials;
+import org.junit.Test;
+
+public class AddInstancesCommandTest extends BaseCommandTest {
+
+  @Test
+  public void testRolesMandatory() throws Exception {
+    AddInstancesCommand command = new AddInstancesCommand();
+    int rc = command.run(null, out, err, Collections.<String>emptyList());
+    assertThat(rc, is(-1));
+
+    assertThat(errBytes.toString(), containsString("--roles is a mandatory argument"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testPrintsTheInstancesActuallyAddedAndRefillsTheWarmPool() throws Exception {
+    ClusterControllerFactory factory = mock(ClusterControllerFactory.class);
+    ClusterController controller = mock(ClusterController.class);
+    when(factory.create((String) any())).thenReturn(controller);
+
+    ClusterStateStore memStore = new MemoryClusterStateStore();
+    memStore.save(new Cluster(ImmutableSet.of(instance("id1", "nn"))));
+    ClusterStateStoreFactory stateStoreFactory = mock(ClusterStateStoreFactory.class);
+    when(stateStoreFactory.create((ClusterSpec) any())).thenReturn(memStore);
+
+    when(controller.addInstances((ClusterSpec) any(), (Set<String>) any(), eq(3)))
+        .thenReturn(new Cluster(ImmutableSet.of(instance("id1", "nn"), instance("id2", "dn"))));
+    when(controller.refillWarmPool((ClusterSpec) any())).thenReturn(2);
+
+    AddInstancesCommand command = new AddInstancesCommand(factory, stateStoreFactory);
+    Map<String, File> keys = KeyPair.generateTemporaryFiles();
+    int rc = command.run(null, out, err, Lists.newArrayList(
+        "--instance-templates", "1 nn,1 dn",
+        "--roles", "dn",
+        "--count", "3",
+        "--service-name", "test-service",
+        "--cluster-name", "test-cluster",
+        "--identity", "myusername",
+        "--quiet",
+        "--private-key-file", keys.get("private").getAbsolutePath())
+    );
+    assertThat(rc, is(0));
+
+    verify(controller).addInstances((ClusterSpec) any(),
+        eq((Set<String>) ImmutableSet.of("dn")), eq(3));
+    verify(controller).refillWarmPool((ClusterSpec) any());
+    assertThat(outBytes.toString(), containsString(
+        "Added 1 instances with roles [dn], the cluster has 2 instances\n"));
+    assertThat(outBytes.toString(), containsString(
+        "Added 2 standby instances to the warm pool\n"));
+  }
+
+  private static Cluster.Instance instance(String id, String role) {
+    return new Cluster.Instance(new Credentials("dummy", "dummy"),
+        ImmutableSet.of(role), "127.0.0.1", "127.0.0.1", id, null);
+  }
+}
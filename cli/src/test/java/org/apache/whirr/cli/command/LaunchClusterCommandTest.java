@@ -18,7 +18,10 @@
 
 package org.apache.whirr.cli.command;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
@@ -33,7 +36,10 @@ import org.hamcrest.MatcherAssert;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 import joptsimple.OptionSet;
 
@@ -66,6 +72,7 @@ public class LaunchClusterCommandTest extends BaseCommandTest{
     Cluster cluster = mock(Cluster.class);
     when(factory.create((String) any())).thenReturn(controller);
     when(controller.launchCluster((ClusterSpec) any())).thenReturn(cluster);
+    when(controller.getLateJoin((ClusterSpec) any())).thenReturn(noLateJoin());
     
     LaunchClusterCommand command = new LaunchClusterCommand(factory);
     Map<String, File> keys = KeyPair.generateTemporaryFiles();
@@ -118,6 +125,7 @@ public class LaunchClusterCommandTest extends BaseCommandTest{
     Cluster cluster = mock(Cluster.class);
     when(factory.create((String) any())).thenReturn(controller);
     when(controller.launchCluster((ClusterSpec) any())).thenReturn(cluster);
+    when(controller.getLateJoin((ClusterSpec) any())).thenReturn(noLateJoin());
     
     LaunchClusterCommand command = new LaunchClusterCommand(factory);
     Map<String, File> keys = KeyPair.generateTemporaryFiles();
@@ -161,6 +169,43 @@ public class LaunchClusterCommandTest extends BaseCommandTest{
     assertThat(outBytes.toString(), containsString("Started cluster of 0 instances")); 
   }
 
+  @Test
+  public void testTheCommandWaitsForTheLateInstancesToJoin() throws Exception {
+    ClusterControllerFactory factory = mock(ClusterControllerFactory.class);
+    ClusterController controller = mock(ClusterController.class);
+    when(factory.create((String) any())).thenReturn(controller);
+    when(controller.launchCluster((ClusterSpec) any())).thenReturn(mock(Cluster.class));
+    Set<Cluster.Instance> late = ImmutableSet.of(mock(Cluster.Instance.class),
+        mock(Cluster.Instance.class));
+    when(controller.getLateJoin((ClusterSpec) any())).thenReturn(Futures.immediateFuture(late));
+
+    int rc = new LaunchClusterCommand(factory).run(null, out, err,
+        ClusterSpec.withTemporaryKeys());
+
+    assertThat(rc, is(0));
+    assertThat(outBytes.toString(), containsString("2 late instances joined the cluster"));
+  }
+
+  @Test
+  public void testAFailedLateJoinFailsTheCommand() throws Exception {
+    ClusterControllerFactory factory = mock(ClusterControllerFactory.class);
+    ClusterController controller = mock(ClusterController.class);
+    when(factory.create((String) any())).thenReturn(controller);
+    when(controller.launchCluster((ClusterSpec) any())).thenReturn(mock(Cluster.class));
+    when(controller.getLateJoin((ClusterSpec) any())).thenReturn(
+        Futures.<Set<Cluster.Instance>>immediateFailedFuture(new IOException("configure failed")));
+
+    int rc = new LaunchClusterCommand(factory).run(null, out, err,
+        ClusterSpec.withTemporaryKeys());
+
+    assertThat(rc, is(-1));
+    assertThat(errBytes.toString(), containsString("run resume-cluster to retry: configure failed"));
+  }
+
+  private static ListenableFuture<Set<Cluster.Instance>> noLateJoin() {
+    return Futures.immediateFuture(Collections.<Cluster.Instance>emptySet());
+  }
+
   static class TestLaunchClusterCommand extends LaunchClusterCommand {
     private ClusterSpec clusterSpec;
     private DryRun dryRun;
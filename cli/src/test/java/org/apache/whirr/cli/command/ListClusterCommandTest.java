@@ -23,6 +23,7 @@ import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anySetOf;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -84,7 +85,7 @@ public class ListClusterCommandTest extends BaseCommandTest {
         .publicAddresses(Lists.newArrayList("127.0.0.2"))
         .privateAddresses(Lists.newArrayList("127.0.0.2")).build();
 
-    when(controller.getNodes((ClusterSpec) any())).thenReturn(
+    when(controller.getNodesById((ClusterSpec) any(), anySetOf(String.class))).thenReturn(
         (Set) Sets.newLinkedHashSet(Lists.newArrayList(node1, node2)));
     when(controller.getInstances((ClusterSpec)any(), (ClusterStateStore)any()))
         .thenCallRealMethod();
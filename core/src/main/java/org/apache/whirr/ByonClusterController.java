@@ -79,6 +79,15 @@ public class ByonClusterController extends ClusterController {
     destroyer.execute(clusterSpec, null);
   }
   
+  /**
+   * BYON nodes are allocated as a whole, the launch phases always run
+   * with a global barrier.
+   */
+  @Override
+  protected boolean isPhasePipeliningSupported() {
+    return false;
+  }
+
   /**
    * Provisions the hardware for a BYON cluster.
    */
@@ -99,13 +108,17 @@ public class ByonClusterController extends ClusterController {
    */
   @Override
   public Cluster configureServices(ClusterSpec clusterSpec, Cluster cluster,
-      Set<String> targetRoles, Set<String> targetInstanceIds)
+      Set<String> targetRoles, Set<String> targetInstanceIds, boolean force)
       throws IOException, InterruptedException {
     LoadingCache<String, ClusterActionHandler> handlerMap = handlerMapFactory
         .create();
-    ClusterAction configurer = new ByonClusterAction(CONFIGURE_ACTION,
+    ByonClusterAction configurer = new ByonClusterAction(CONFIGURE_ACTION,
         getCompute(), handlerMap);
-    cluster = configurer.execute(clusterSpec, cluster);
+    try {
+      cluster = configurer.execute(clusterSpec, cluster);
+    } finally {
+      recordScriptResults(configurer);
+    }
     getClusterStateStore(clusterSpec).save(cluster);
     return cluster;
   }
@@ -23,21 +23,31 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
+import org.apache.whirr.net.CachingDnsResolver;
 import org.apache.whirr.net.DnsResolver;
-import org.apache.whirr.net.FastDnsResolver;
 import org.jclouds.compute.domain.NodeMetadata;
 import org.jclouds.domain.Credentials;
 import org.jclouds.domain.internal.ResourceMetadataImpl;
+import org.jclouds.javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.net.InetAddresses;
 
@@ -65,14 +75,23 @@ public class Cluster {
     private final String id;
     private final NodeMetadata nodeMetadata;
     private final DnsResolver dnsResolver;
+    private final String locationId;
 
     public Instance(Credentials loginCredentials, Set<String> roles, String publicIp,
         String privateIp, String id, NodeMetadata nodeMetadata) {
-      this(loginCredentials, roles, publicIp, privateIp, id, nodeMetadata, new FastDnsResolver());
+      this(loginCredentials, roles, publicIp, privateIp, id, nodeMetadata, CachingDnsResolver.getDefault());
     }
 
     public Instance(Credentials loginCredentials, Set<String> roles, String publicIp,
         String privateIp, String id, NodeMetadata nodeMetadata, DnsResolver dnsResolver) {
+      this(loginCredentials, roles, publicIp, privateIp, id, nodeMetadata, dnsResolver,
+          nodeMetadata != null && nodeMetadata.getLocation() != null ?
+              nodeMetadata.getLocation().getId() : null);
+    }
+
+    public Instance(Credentials loginCredentials, Set<String> roles, String publicIp,
+        String privateIp, String id, NodeMetadata nodeMetadata, DnsResolver dnsResolver,
+        @Nullable String locationId) {
       this.loginCredentials = checkNotNull(loginCredentials, "loginCredentials");
       this.roles = checkNotNull(roles, "roles");
       this.publicIp = checkNotNull(publicIp, "publicIp");
@@ -86,6 +105,7 @@ public class Cluster {
       this.id = checkNotNull(id, "id");
       this.nodeMetadata = nodeMetadata;
       this.dnsResolver = dnsResolver;
+      this.locationId = locationId;
 
       LOG.debug("constructed instance {} with IP public {}, private {}, and DNS resolver {}",
               new Object[] { this, publicIp, privateIp, dnsResolver });
@@ -118,10 +138,7 @@ public class Cluster {
 
     public synchronized String getPublicHostName() throws IOException {
       if (publicHostName == null) {
-        if ((nodeMetadata instanceof ResourceMetadataImpl)
-          && ((ResourceMetadataImpl) nodeMetadata).getLocation() != null
-          && "stub".equals(((ResourceMetadataImpl) nodeMetadata).getLocation().getId())
-          && nodeMetadata.getName() != null && !nodeMetadata.getName().isEmpty()) {
+        if (isStub()) {
           LOG.debug("assuming stub public hostname of {} to {}", new Object[] { this, nodeMetadata.getName() });
           publicHostName = nodeMetadata.getName();
         } else {
@@ -140,6 +157,23 @@ public class Cluster {
       return publicHostName;
     }
 
+    private boolean isStub() {
+      return (nodeMetadata instanceof ResourceMetadataImpl)
+        && ((ResourceMetadataImpl) nodeMetadata).getLocation() != null
+        && "stub".equals(((ResourceMetadataImpl) nodeMetadata).getLocation().getId())
+        && nodeMetadata.getName() != null && !nodeMetadata.getName().isEmpty();
+    }
+
+    /**
+     * Start resolving the public host name in the background, if the DNS
+     * resolver caches the names and the name is not known yet.
+     */
+    synchronized void prefetchPublicHostName() {
+      if (publicHostName == null && dnsResolver instanceof CachingDnsResolver && !isStub()) {
+        ((CachingDnsResolver) dnsResolver).prefetch(ImmutableList.of(publicIp));
+      }
+    }
+
     public String getPrivateIp() {
       return privateIp;
     }
@@ -160,12 +194,22 @@ public class Cluster {
       return nodeMetadata;
     }
 
+    /**
+     * @return the id of the location the instance runs in, e.g. its
+     *         availability zone, or null if it is not known
+     */
+    @Nullable
+    public String getLocationId() {
+      return locationId;
+    }
+
     public String toString() {
       return Objects.toStringHelper(this)
         .add("roles", roles)
         .add("publicIp", publicIp)
         .add("privateIp", privateIp)
         .add("id", id)
+        .add("locationId", locationId)
         .add("nodeMetadata", nodeMetadata)
         .toString();
     }
@@ -177,16 +221,31 @@ public class Cluster {
 
   private Set<Instance> instances;
   private Properties configuration;
+  private Index index;
 
   public Cluster(Set<Instance> instances) {
     this(instances, new Properties());
   }
 
   public Cluster(Set<Instance> instances, Properties configuration) {
-    this.instances = instances;
+    this.instances = ImmutableSet.copyOf(instances);
     this.configuration = configuration;
   }
 
+  /**
+   * Start resolving the public host names of the instances in the background,
+   * so that they are usually cached by the time they are needed. Called where
+   * a cluster is built from the nodes reported by the provider.
+   *
+   * @return this cluster
+   */
+  public Cluster prefetchPublicHostNames() {
+    for (Instance instance : instances) {
+      instance.prefetchPublicHostName();
+    }
+    return this;
+  }
+
   public Set<Instance> getInstances() {
     return instances;
   }
@@ -195,15 +254,52 @@ public class Cluster {
   }
 
   public Instance getInstanceMatching(Predicate<Instance> predicate) {
-    return Iterables.getOnlyElement(Sets.filter(instances, predicate));
+    return Iterables.getOnlyElement(getInstancesMatching(predicate));
   }
 
+  /**
+   * The predicates of {@link RolePredicates} are resolved through the role and
+   * ID indexes of the cluster, other predicates are tested on each instance.
+   *
+   * @return the matching instances, in the order of {@link #getInstances()}
+   */
   public Set<Instance> getInstancesMatching(Predicate<Instance> predicate) {
-    return Sets.filter(instances, predicate);
+    if (predicate instanceof RolePredicates.RolesPredicate
+        || predicate instanceof RolePredicates.WithIds) {
+      return getIndex().lookup(predicate);
+    }
+    return ImmutableSet.copyOf(Sets.filter(instances, predicate));
   }
 
-  public void removeInstancesMatching(Predicate<Instance> predicate) {
-    instances = Sets.filter(instances, Predicates.not(predicate));
+  /**
+   * @return the instance with the given public IP, or null if there is none
+   */
+  @Nullable
+  public Instance getInstanceWithPublicIp(String publicIp) {
+    return getIndex().byPublicIp.get(publicIp);
+  }
+
+  /**
+   * @return the instance with the given private IP, or null if there is none
+   */
+  @Nullable
+  public Instance getInstanceWithPrivateIp(String privateIp) {
+    return getIndex().byPrivateIp.get(privateIp);
+  }
+
+  public synchronized void removeInstancesMatching(Predicate<Instance> predicate) {
+    Set<Instance> removed = getInstancesMatching(predicate);
+    if (!removed.isEmpty()) {
+      instances = ImmutableSet.copyOf(Sets.difference(instances, removed));
+      index = null;
+    }
+  }
+
+  private synchronized Index getIndex() {
+    if (index == null) {
+      index = new Index(instances);
+    }
+    return index;
   }
 
   public String toString() {
@@ -212,4 +308,98 @@ public class Cluster {
       .toString();
   }
 
+  /**
+   * Lookup tables of the instances by role, ID and IP. The instances of a
+   * cluster do not change once it is built, so the tables are built once, on
+   * the first lookup.
+   */
+  private static class Index {
+
+    private final Set<Instance> all;
+    private final Map<Instance, Integer> positions = Maps.newIdentityHashMap();
+    private final ImmutableSetMultimap<String, Instance> byRole;
+    private final Map<String, Instance> byId = Maps.newHashMap();
+    private final Map<String, Instance> byPublicIp = Maps.newHashMap();
+    private final Map<String, Instance> byPrivateIp = Maps.newHashMap();
+    private final Set<Instance> withoutRoles;
+
+    Index(Set<Instance> instances) {
+      all = instances;
+      ImmutableSetMultimap.Builder<String, Instance> roles = ImmutableSetMultimap.builder();
+      ImmutableSet.Builder<Instance> noRoles = ImmutableSet.builder();
+      for (Instance instance : instances) {
+        positions.put(instance, positions.size());
+        for (String role : instance.getRoles()) {
+          roles.put(role, instance);
+        }
+        if (instance.getRoles().isEmpty()) {
+          noRoles.add(instance);
+        }
+        putFirst(byId, instance.getId(), instance);
+        putFirst(byPublicIp, instance.getPublicIp(), instance);
+        if (instance.getPrivateIp() != null) {
+          putFirst(byPrivateIp, instance.getPrivateIp(), instance);
+        }
+      }
+      byRole = roles.build();
+      withoutRoles = noRoles.build();
+    }
+
+    private static void putFirst(Map<String, Instance> map, String key, Instance instance) {
+      if (!map.containsKey(key)) {
+        map.put(key, instance);
+      }
+    }
+
+    Set<Instance> lookup(Predicate<Instance> predicate) {
+      if (predicate instanceof RolePredicates.WithIds) {
+        List<Instance> found = Lists.newArrayList();
+        for (String id : ((RolePredicates.WithIds) predicate).getIds()) {
+          Instance instance = byId.get(id);
+          if (instance != null) {
+            found.add(instance);
+          }
+        }
+        return inClusterOrder(found);
+      }
+
+      Set<String> roles = ((RolePredicates.RolesPredicate) predicate).getRoles();
+      if (predicate instanceof RolePredicates.AnyRoleIn) {
+        Set<Instance> found = Sets.newIdentityHashSet();
+        for (String role : roles) {
+          found.addAll(byRole.get(role));
+        }
+        return inClusterOrder(found);
+      }
+
+      // instances with all the roles, or with exactly the roles, are among the
+      // instances of the least common role
+      Set<Instance> candidates = null;
+      for (String role : roles) {
+        Set<Instance> withRole = byRole.get(role);
+        if (candidates == null || withRole.size() < candidates.size()) {
+          candidates = withRole;
+        }
+      }
+      if (candidates == null) {
+        // every instance has all of no roles, only the ones without roles
+        // have exactly no roles
+        return predicate instanceof RolePredicates.OnlyRolesIn ? withoutRoles : all;
+      }
+      return ImmutableSet.copyOf(Sets.filter(candidates, predicate));
+    }
+
+    private Set<Instance> inClusterOrder(Collection<Instance> found) {
+      Instance[] sorted = new Instance[found.size()];
+      found.toArray(sorted);
+      Arrays.sort(sorted, new Comparator<Instance>() {
+        @Override
+        public int compare(Instance a, Instance b) {
+          return positions.get(a) - positions.get(b);
+        }
+      });
+      return ImmutableSet.copyOf(sorted);
+    }
+  }
+
 }
@@ -18,30 +18,61 @@
 
 package org.apache.whirr;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.apache.whirr.RolePredicates.withIds;
+import static org.apache.whirr.service.ClusterActionHandler.BOOTSTRAP_ACTION;
+import static org.apache.whirr.service.ClusterActionHandler.CONFIGURE_ACTION;
+import static org.apache.whirr.service.ClusterActionHandler.START_ACTION;
 import static org.jclouds.compute.options.RunScriptOptions.Builder.overrideLoginCredentials;
+import static org.jclouds.compute.predicates.NodePredicates.inGroup;
 
 import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.commons.configuration.ConfigurationException;
 import org.apache.whirr.actions.BootstrapClusterAction;
 import org.apache.whirr.actions.CleanupClusterAction;
 import org.apache.whirr.actions.ConfigureServicesAction;
 import org.apache.whirr.actions.DestroyClusterAction;
+import org.apache.whirr.actions.NodeScriptResult;
+import org.apache.whirr.actions.PhaseDependencyGraph;
+import org.apache.whirr.actions.PhasePipeline;
+import org.apache.whirr.actions.ScriptBasedClusterAction;
 import org.apache.whirr.actions.StartServicesAction;
 import org.apache.whirr.actions.StopServicesAction;
+import org.apache.whirr.compute.BakedImages;
+import org.apache.whirr.compute.BootstrapTemplate;
+import org.apache.whirr.compute.NodeMetadataCache;
+import org.apache.whirr.compute.ProviderExecutors;
 import org.apache.whirr.state.ClusterStateStore;
 import org.apache.whirr.state.ClusterStateStoreFactory;
+import org.apache.whirr.state.PhaseJournal;
+import org.apache.whirr.state.ScriptHashes;
+import org.apache.whirr.state.WarmPool;
 import org.apache.whirr.service.ComputeCache;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.ComputeServiceContext;
 import org.jclouds.compute.RunScriptOnNodesException;
+import org.jclouds.compute.extensions.ImageExtension;
 import org.jclouds.compute.domain.ComputeMetadata;
 import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.Image;
 import org.jclouds.compute.domain.NodeMetadata;
 import org.jclouds.compute.options.RunScriptOptions;
 import org.jclouds.domain.Credentials;
@@ -51,9 +82,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 
 /**
@@ -70,6 +106,13 @@ public class ClusterController {
 
   protected HandlerMapFactory handlerMapFactory = new HandlerMapFactory();
 
+  private final Map<String, List<NodeScriptResult>> scriptResults = Maps.newConcurrentMap();
+  private final Map<String, ListenableFuture<Set<Cluster.Instance>>> lateInstances =
+    Maps.newConcurrentMap();
+  private final Map<String, ListenableFuture<Set<Cluster.Instance>>> lateJoins =
+    Maps.newConcurrentMap();
+  private final Object warmPoolLock = new Object();
+
 
   public ClusterController() {
     this(ComputeCache.INSTANCE, new ClusterStateStoreFactory());
@@ -100,6 +143,20 @@ public class ClusterController {
    * cluster is
    * available. It is not guaranteed that the service running on the cluster
    * has started when this method returns.
+   * <p>
+   * If the roles of the cluster declare their dependencies (see
+   * {@link org.apache.whirr.service.RoleDependencies}) each instance template
+   * moves to the configure and start phases as soon as the templates it
+   * depends on are ready, instead of waiting for the whole cluster.
+   * <p>
+   * The phases completed by each instance are recorded in a
+   * {@link PhaseJournal} so that a failed launch can be continued with
+   * {@link #resumeCluster(ClusterSpec)}.
+   * <p>
+   * If {@link ClusterSpec#isBootstrapProceedAtMinimum()} is set the launch
+   * moves on as soon as the minimum number of instances of each template is
+   * up, and the instances that start later join the cluster in the
+   * background, see {@link #getLateJoin(ClusterSpec)}.
    *
    * @param clusterSpec
    * @return an object representing the running cluster
@@ -109,12 +166,43 @@ public class ClusterController {
    */
   public Cluster launchCluster(ClusterSpec clusterSpec)
     throws IOException, InterruptedException {
+    lateJoins.remove(clusterSpec.getClusterName());
     try {
+      ClusterStateStore stateStore = getClusterStateStore(clusterSpec);
+      PhaseJournal.begin(stateStore);
+      if (isPhasePipeliningSupported()) {
+        PhaseDependencyGraph graph = PhaseDependencyGraph.build(clusterSpec,
+            handlerMapFactory.create());
+        if (!graph.isBarrier()) {
+          LOG.info("Pipelining launch phases by instance template: {}", graph);
+          PhasePipeline pipeline = new PhasePipeline(getCompute(), handlerMapFactory,
+              stateStore);
+          Cluster cluster;
+          try {
+            cluster = pipeline.execute(clusterSpec, graph);
+          } finally {
+            scriptResults.putAll(pipeline.getScriptResults());
+          }
+          joinLateInstances(clusterSpec, cluster, pipeline.getLateInstances());
+          refillWarmPoolInBackground(clusterSpec);
+          return cluster;
+        }
+      }
       Cluster cluster = bootstrapCluster(clusterSpec);
-      cluster = configureServices(clusterSpec, cluster);
-      return startServices(clusterSpec, cluster);
+      Set<String> instanceIds = ids(cluster);
+      PhaseJournal.record(stateStore, BOOTSTRAP_ACTION, instanceIds);
+      cluster = runJournaledPhase(CONFIGURE_ACTION, clusterSpec, cluster, instanceIds, stateStore);
+      cluster = runJournaledPhase(START_ACTION, clusterSpec, cluster, instanceIds, stateStore);
+      ListenableFuture<Set<Cluster.Instance>> late =
+        lateInstances.remove(clusterSpec.getClusterName());
+      if (late != null) {
+        joinLateInstances(clusterSpec, cluster, late);
+      }
+      refillWarmPoolInBackground(clusterSpec);
+      return cluster;
 
     } catch (Throwable e) {
+      lateInstances.remove(clusterSpec.getClusterName());
 
       if (clusterSpec.isTerminateAllOnLaunchFailure()) {
         LOG.error("Unable to start the cluster. Terminating all nodes.", e);
@@ -129,13 +217,531 @@ public class ClusterController {
     }
   }
 
+  /**
+   * Continue a launch that did not complete, e.g. because the controller died
+   * or a phase failed. The instances saved in the cluster state, and the
+   * unsaved nodes running in the group of the cluster, are re-attached. The
+   * instance templates that are short of instances are topped up, and each
+   * instance runs only the configure and start phases it did not complete
+   * according to the {@link PhaseJournal}. If instances were topped up the
+   * whole cluster is configured again, so that the instances configured
+   * before see the new members.
+   *
+   * @return an object representing the running cluster
+   * @throws IllegalStateException if no launch was recorded for the cluster
+   * @throws IOException          if a phase failed again. The launch can be
+   *                              resumed once more.
+   */
+  public Cluster resumeCluster(ClusterSpec clusterSpec)
+    throws IOException, InterruptedException {
+    ClusterStateStore stateStore = getClusterStateStore(clusterSpec);
+    if (!PhaseJournal.exists(stateStore)) {
+      throw new IllegalStateException("No launch was recorded for cluster "
+          + clusterSpec.getClusterName() + ", there is nothing to resume");
+    }
+    SetMultimap<String, String> journal = PhaseJournal.load(stateStore);
+    Cluster cluster = reattach(clusterSpec, stateStore);
+    boolean toppedUp = false;
+
+    if (cluster.getInstances().isEmpty()) {
+      LOG.info("No instance of cluster {} was bootstrapped, bootstrapping all of them",
+          clusterSpec.getClusterName());
+      cluster = bootstrapCluster(clusterSpec);
+      PhaseJournal.record(stateStore, BOOTSTRAP_ACTION, ids(cluster));
+    } else {
+      List<InstanceTemplate> missing = getMissingInstances(clusterSpec, cluster);
+      if (!missing.isEmpty()) {
+        LOG.info("Bootstrapping the instances missing from the instance templates: {}", missing);
+        Cluster bootstrapped = bootstrapInstances(clusterSpec, missing, stateStore);
+        toppedUp = true;
+        Set<Cluster.Instance> instances = Sets.newLinkedHashSet(cluster.getInstances());
+        instances.addAll(bootstrapped.getInstances());
+        Properties configuration = new Properties();
+        configuration.putAll(cluster.getConfiguration());
+        configuration.putAll(bootstrapped.getConfiguration());
+        cluster = new Cluster(instances, configuration);
+        stateStore.save(cluster);
+        PhaseJournal.record(stateStore, BOOTSTRAP_ACTION, ids(bootstrapped));
+      }
+    }
+
+    Set<String> instanceIds = ids(cluster);
+    Set<String> pending = toppedUp ? instanceIds : Sets.newLinkedHashSet(
+        Sets.difference(instanceIds, journal.get(CONFIGURE_ACTION)));
+    if (!pending.isEmpty()) {
+      LOG.info("Resuming the configure phase on instances {}", pending);
+      cluster = runJournaledPhase(CONFIGURE_ACTION, clusterSpec, cluster, pending, stateStore);
+    }
+    pending = Sets.newLinkedHashSet(Sets.difference(instanceIds, journal.get(START_ACTION)));
+    if (!pending.isEmpty()) {
+      LOG.info("Resuming the start phase on instances {}", pending);
+      cluster = runJournaledPhase(START_ACTION, clusterSpec, cluster, pending, stateStore);
+    }
+    return cluster;
+  }
+
+  /**
+   * Bake the install statements of each instance template into a provider
+   * image. One instance per template is bootstrapped in a separate
+   * <code>&lt;cluster-name&gt;-bake</code> cluster, snapshotted and then
+   * destroyed. Before the snapshot the node specific state is removed from the
+   * instance, see {@link BakedImages#cleanNode()}. The images are recorded in
+   * {@link BakedImages} by region and hash of the install script, so that the
+   * next launches with the same install script start from them and skip the
+   * install statements.
+   *
+   * @return the id of the image baked for each instance template that has
+   *         install statements
+   * @throws IllegalStateException if the provider cannot create images
+   */
+  public Map<InstanceTemplate, String> bakeImages(ClusterSpec clusterSpec)
+    throws IOException, InterruptedException {
+    ComputeService computeService = getCompute().apply(clusterSpec).getComputeService();
+    Optional<ImageExtension> imageExtension = computeService.getImageExtension();
+    if (!imageExtension.isPresent()) {
+      throw new IllegalStateException("Unable to bake images: provider "
+          + clusterSpec.getProvider() + " does not support creating images");
+    }
+
+    ClusterSpec bakeSpec = specForBaking(clusterSpec);
+    BootstrapClusterAction bootstrapper = new BootstrapClusterAction(getCompute(),
+        handlerMapFactory.create());
+    Cluster cluster = null;
+    Map<InstanceTemplate, String> images = Maps.newLinkedHashMap();
+    try {
+      cluster = bootstrapper.execute(bakeSpec, null);
+      for (Map.Entry<InstanceTemplate, String> entry : bootstrapper.getInstallHashes().entrySet()) {
+        Set<String> roles = entry.getKey().getRoles();
+        String hash = entry.getValue();
+        Cluster.Instance instance = Iterables.find(cluster.getInstances(), withRoles(roles));
+        String name = clusterSpec.getClusterName() + "-" + Joiner.on('_').join(roles)
+            + "-" + hash.substring(0, 8);
+        NodeMetadata node = instance.getNodeMetadata() != null ?
+            instance.getNodeMetadata() : computeService.getNodeMetadata(instance.getId());
+
+        LOG.info("Cleaning instance {} before baking it", instance.getId());
+        ExecResponse response = computeService.runScriptOnNode(instance.getId(),
+            BakedImages.cleanNode(), defaultRunScriptOptionsForSpec(bakeSpec).runAsRoot(true));
+        if (response.getExitStatus() != 0) {
+          throw new IOException("Unable to clean instance " + instance.getId()
+              + " before baking it: " + response.getError());
+        }
+
+        LOG.info("Baking image {} from instance {}", name, instance.getId());
+        Image image = imageExtension.get().createImage(
+            imageExtension.get().buildImageTemplateFromNode(name, instance.getId())).get();
+        BakedImages.getDefault().put(clusterSpec.getProvider(),
+            BakedImages.regionOf(node != null ? node.getLocation() : null), hash, image.getId());
+        images.put(clusterSpec.getInstanceTemplate(roles), image.getId());
+      }
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to bake the images of cluster "
+          + clusterSpec.getClusterName(), e.getCause());
+    } finally {
+      if (cluster != null) {
+        destroyCluster(bakeSpec, cluster);
+      } else {
+        // the bootstrap failed, the nodes it started are only known by group
+        LOG.warn("Destroying the nodes started to bake the images of cluster {}",
+            clusterSpec.getClusterName());
+        ProviderExecutors.INSTANCE.apply(bakeSpec).acquireApiPermit();
+        computeService.destroyNodesMatching(inGroup(bakeSpec.getClusterName()));
+      }
+    }
+    return images;
+  }
+
+  /**
+   * @return a copy of the spec that bootstraps one instance of each template,
+   *         with all the install statements
+   */
+  private ClusterSpec specForBaking(ClusterSpec clusterSpec) throws IOException {
+    List<InstanceTemplate> templates = Lists.newArrayList();
+    for (InstanceTemplate template : clusterSpec.getInstanceTemplates()) {
+      templates.add(resized(template, 1, 1));
+    }
+    ClusterSpec spec = specWithTemplates(clusterSpec, templates);
+    spec.setClusterName(clusterSpec.getClusterName() + "-bake");
+    spec.setUseBakedImages(false);
+    spec.setBootstrapProceedAtMinimum(false);
+    return spec;
+  }
+
+  private static Predicate<Cluster.Instance> withRoles(final Set<String> roles) {
+    return new Predicate<Cluster.Instance>() {
+      @Override
+      public boolean apply(Cluster.Instance instance) {
+        return instance.getRoles().equals(roles);
+      }
+    };
+  }
+
+  /**
+   * Add instances with the given roles to a running cluster. The instances
+   * are claimed from the warm pool of the instance template first, so that
+   * they only run the configure and start phases; the ones the pool is short
+   * of are bootstrapped. The configure phase runs again on the whole cluster,
+   * skipping the instances whose configure script did not change, and the
+   * start phase only runs on the added instances.
+   *
+   * @return the cluster with the added instances
+   * @throws IllegalArgumentException if no instance template has the roles
+   */
+  public Cluster addInstances(ClusterSpec clusterSpec, Set<String> roles, int count)
+    throws IOException, InterruptedException {
+    InstanceTemplate template = clusterSpec.getInstanceTemplate(roles);
+    checkArgument(template != null, "No instance template has the roles %s", roles);
+    checkArgument(count > 0, "The number of instances to add must be positive");
+
+    ClusterStateStore stateStore = getClusterStateStore(clusterSpec);
+    Cluster cluster = stateStore.load();
+    WarmPool.retain(stateStore, clusterSpec,
+        getRunningNodesById(clusterSpec, ids(new Cluster(WarmPool.load(stateStore, clusterSpec)))).keySet());
+    Set<Cluster.Instance> joining = WarmPool.claim(stateStore, clusterSpec, roles, count);
+    if (!joining.isEmpty()) {
+      LOG.info("Claimed {} standby instances with roles {} from the warm pool",
+          joining.size(), roles);
+    }
+
+    int missing = count - joining.size();
+    if (missing > 0) {
+      LOG.info("Bootstrapping {} instances with roles {}", missing, roles);
+      Cluster bootstrapped = bootstrapInstances(clusterSpec, ImmutableList.of(
+          resized(template, missing, missing)), stateStore);
+      joining = Sets.newLinkedHashSet(joining);
+      joining.addAll(bootstrapped.getInstances());
+    }
+
+    try {
+      return joinInstances(clusterSpec, cluster, joining);
+    } finally {
+      refillWarmPoolInBackground(clusterSpec);
+    }
+  }
+
+  /**
+   * Bootstrap standby instances until the warm pool of each instance
+   * template is at its {@link InstanceTemplate#getWarmPoolSize()}. The
+   * standby instances that are no longer running are dropped from the pool.
+   * <p>
+   * {@link #launchCluster(ClusterSpec)} and {@link #addInstances} start a
+   * refill in the background. A process that exits once they return, e.g.
+   * the command line, calls this method to wait for the pool to be full
+   * instead, since the instances bootstrapped by an interrupted refill are
+   * not recorded in the pool.
+   *
+   * @return the number of instances added to the pool by this call
+   */
+  public int refillWarmPool(ClusterSpec clusterSpec)
+    throws IOException, InterruptedException {
+    if (!hasWarmPool(clusterSpec)) {
+      return 0;
+    }
+    synchronized (warmPoolLock) {
+      ClusterStateStore stateStore = getClusterStateStore(clusterSpec);
+      WarmPool.retain(stateStore, clusterSpec, getRunningNodesById(clusterSpec,
+          ids(new Cluster(WarmPool.load(stateStore, clusterSpec)))).keySet());
+      Set<Cluster.Instance> pool = WarmPool.load(stateStore, clusterSpec);
+
+      List<InstanceTemplate> templates = Lists.newArrayList();
+      for (InstanceTemplate template : clusterSpec.getInstanceTemplates()) {
+        int missing = template.getWarmPoolSize()
+            - Iterables.size(Iterables.filter(pool, withRoles(template.getRoles())));
+        if (missing > 0) {
+          templates.add(resized(template, missing, 0));
+        }
+      }
+      if (templates.isEmpty()) {
+        return 0;
+      }
+
+      LOG.info("Refilling the warm pool of cluster {} with {}", clusterSpec.getClusterName(),
+          templates);
+      ClusterSpec poolSpec = specWithTemplates(clusterSpec, templates);
+      poolSpec.setBootstrapProceedAtMinimum(false);
+      Cluster bootstrapped = new BootstrapClusterAction(getCompute(), handlerMapFactory.create())
+          .execute(poolSpec, null);
+      WarmPool.add(stateStore, clusterSpec, bootstrapped.getInstances());
+      return bootstrapped.getInstances().size();
+    }
+  }
+
+  private static boolean hasWarmPool(ClusterSpec clusterSpec) {
+    for (InstanceTemplate template : clusterSpec.getInstanceTemplates()) {
+      if (template.getWarmPoolSize() > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void refillWarmPoolInBackground(final ClusterSpec clusterSpec) {
+    if (!hasWarmPool(clusterSpec)) {
+      return;
+    }
+    ProviderExecutors.INSTANCE.apply(clusterSpec).submitBackground(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refillWarmPool(clusterSpec);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (Exception e) {
+          LOG.error("Unable to refill the warm pool of cluster "
+              + clusterSpec.getClusterName(), e);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return a copy of the template for the given number of instances, without
+   *         speculative instances
+   */
+  private static InstanceTemplate resized(InstanceTemplate template, int numberOfInstances,
+      int minNumberOfInstances) {
+    return InstanceTemplate.builder()
+        .numberOfInstance(numberOfInstances)
+        .minNumberOfInstances(minNumberOfInstances)
+        .roles(template.getRoles())
+        .template(template.getTemplate())
+        .awsEc2SpotPrice(template.getAwsEc2SpotPrice())
+        .locationIds(template.getLocationIds())
+        .build();
+  }
+
+  /**
+   * Add the late instances to the cluster once their startup is over, without
+   * blocking the caller. The compute service contexts are not closed before
+   * the join is over when the JVM exits, see
+   * {@link ProviderExecutors#awaitBackgroundTasks()}. The configure phase runs again on the whole cluster
+   * so that the roles that depend on the new instances are updated; the
+   * instances whose configure script did not change are skipped. The start
+   * phase only runs on the new instances.
+   */
+  /**
+   * @return the join of the instances of the last launch of the cluster that
+   *         started after the minimum was reached, which completes with the
+   *         joined instances. Empty if there are none. Nothing waits for the
+   *         join once the launch returned, the caller has to, e.g. before the
+   *         JVM exits.
+   */
+  public ListenableFuture<Set<Cluster.Instance>> getLateJoin(ClusterSpec clusterSpec) {
+    ListenableFuture<Set<Cluster.Instance>> join = lateJoins.get(clusterSpec.getClusterName());
+    return join != null ? join
+        : Futures.immediateFuture(Collections.<Cluster.Instance>emptySet());
+  }
+
+  private void joinLateInstances(final ClusterSpec clusterSpec, final Cluster cluster,
+      final ListenableFuture<Set<Cluster.Instance>> late) {
+    if (late.isDone() && Futures.getUnchecked(late).isEmpty()) {
+      return;
+    }
+    LOG.info("Instances of cluster {} are still starting, they will join the cluster " +
+        "in the background", clusterSpec.getClusterName());
+    ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+        ProviderExecutors.INSTANCE.apply(clusterSpec).getLaunchExecutor());
+    lateJoins.put(clusterSpec.getClusterName(), executor.submit(
+        new Callable<Set<Cluster.Instance>>() {
+          @Override
+          public Set<Cluster.Instance> call() throws Exception {
+            try {
+              Set<Cluster.Instance> joining = late.get();
+              if (!joining.isEmpty()) {
+                joinInstances(clusterSpec, cluster, joining);
+              }
+              return joining;
+            } catch (Exception e) {
+              LOG.error("Late instances of cluster " + clusterSpec.getClusterName()
+                  + " failed to join, run resume-cluster to retry", e);
+              throw e;
+            }
+          }
+        }));
+  }
+
+  /**
+   * Add the instances to the saved cluster state and record them as
+   * bootstrapped before running any phase, so that resume-cluster completes
+   * the join if this process dies or the phases fail. The saved instances are
+   * used rather than the ones of <code>cluster</code> if there are any, so
+   * that the changes made since it was loaded, e.g. by another join, are
+   * kept.
+   */
+  @VisibleForTesting
+  synchronized Cluster joinInstances(ClusterSpec clusterSpec, Cluster cluster,
+      Set<Cluster.Instance> joining) throws IOException, InterruptedException {
+    ClusterStateStore stateStore = getClusterStateStore(clusterSpec);
+    Cluster saved = stateStore.tryLoadOrEmpty();
+    Map<String, Cluster.Instance> instances = Maps.newLinkedHashMap();
+    for (Cluster.Instance instance : Iterables.concat(
+        saved == null || saved.getInstances().isEmpty() ? cluster.getInstances()
+            : saved.getInstances(), joining)) {
+      instances.put(instance.getId(), instance);
+    }
+    Cluster joined = new Cluster(Sets.newLinkedHashSet(instances.values()),
+        cluster.getConfiguration()).prefetchPublicHostNames();
+    stateStore.save(joined);
+
+    Set<String> joiningIds = ids(new Cluster(joining));
+    LOG.info("Instances {} are joining cluster {}", joiningIds, clusterSpec.getClusterName());
+    PhaseJournal.record(stateStore, BOOTSTRAP_ACTION, joiningIds);
+    joined = runJournaledPhase(CONFIGURE_ACTION, clusterSpec, joined, ids(joined), stateStore);
+    joined = runJournaledPhase(START_ACTION, clusterSpec, joined, joiningIds, stateStore);
+    LOG.info("Instances {} joined cluster {}", joiningIds, clusterSpec.getClusterName());
+    return joined;
+  }
+
+  /**
+   * Run the configure or start phase on the given instances and journal the
+   * instances that completed it, even if the phase fails.
+   */
+  private Cluster runJournaledPhase(String phase, ClusterSpec clusterSpec, Cluster cluster,
+      Set<String> instanceIds, ClusterStateStore stateStore)
+    throws IOException, InterruptedException {
+    scriptResults.remove(phase);
+    boolean finished = false;
+    try {
+      if (CONFIGURE_ACTION.equals(phase)) {
+        cluster = configureServices(clusterSpec, cluster, EMPTYSET, instanceIds);
+      } else {
+        cluster = startServices(clusterSpec, cluster, EMPTYSET, instanceIds);
+      }
+      finished = true;
+      return cluster;
+    } finally {
+      PhaseJournal.record(stateStore, phase, NodeScriptResult.completedInstanceIds(
+          instanceIds, getScriptResults(phase), finished));
+    }
+  }
+
+  /**
+   * @return the saved instances of the cluster that are still running, and
+   *         the running nodes of the cluster group that are not saved, e.g.
+   *         because the controller died while their template was starting.
+   *         The unsaved nodes are only re-attached if their user metadata
+   *         holds their roles, see {@link BootstrapTemplate#ROLES_METADATA}.
+   */
+  private Cluster reattach(ClusterSpec clusterSpec, ClusterStateStore stateStore)
+    throws IOException, InterruptedException {
+    Cluster saved = stateStore.tryLoadOrEmpty();
+    if (saved == null) {
+      saved = Cluster.empty();
+    }
+    Set<String> savedIds = ids(saved);
+    Set<Cluster.Instance> instances = Sets.newLinkedHashSet();
+    if (!savedIds.isEmpty()) {
+      instances.addAll(refreshInstances(clusterSpec, stateStore));
+      if (instances.size() < savedIds.size()) {
+        LOG.warn("{} of the {} saved instances of cluster {} are no longer running, " +
+            "resuming without them", new Object[] {savedIds.size() - instances.size(),
+            savedIds.size(), clusterSpec.getClusterName()});
+      }
+    }
+
+    Set<String> knownIds = Sets.newHashSet(savedIds);
+    knownIds.addAll(ids(new Cluster(WarmPool.load(stateStore, clusterSpec))));
+    Set<Cluster.Instance> unsaved = Sets.newLinkedHashSet();
+    Set<String> unknownIds = Sets.newLinkedHashSet();
+    for (NodeMetadata node : listRunningNodesInGroup(clusterSpec)) {
+      if (knownIds.contains(node.getId())) {
+        continue;
+      }
+      String roles = node.getUserMetadata().get(BootstrapTemplate.ROLES_METADATA);
+      if (roles == null) {
+        unknownIds.add(node.getId());
+      } else {
+        unsaved.add(toInstance(node, Sets.newLinkedHashSet(Splitter.on('+').split(roles)),
+            clusterSpec));
+      }
+    }
+    if (!unknownIds.isEmpty()) {
+      LOG.warn("Nodes {} run in the group of cluster {} but their roles are unknown, " +
+          "they are not re-attached", unknownIds, clusterSpec.getClusterName());
+    }
+    if (!unsaved.isEmpty()) {
+      LOG.info("Re-attaching the unsaved instances {} of cluster {}",
+          ids(new Cluster(unsaved)), clusterSpec.getClusterName());
+      instances.addAll(unsaved);
+      stateStore.save(new Cluster(instances, saved.getConfiguration()));
+    }
+    return new Cluster(instances, saved.getConfiguration()).prefetchPublicHostNames();
+  }
+
+  /**
+   * Bootstrap the instances of the templates in the cluster, recording them
+   * in the cluster state as they start.
+   */
+  @VisibleForTesting
+  Cluster bootstrapInstances(ClusterSpec clusterSpec, List<InstanceTemplate> templates,
+      ClusterStateStore stateStore) throws IOException, InterruptedException {
+    return new BootstrapClusterAction(getCompute(), handlerMapFactory.create(), stateStore)
+        .execute(specWithTemplates(clusterSpec, templates), null);
+  }
+
+  @VisibleForTesting
+  Set<? extends NodeMetadata> listRunningNodesInGroup(ClusterSpec clusterSpec) {
+    ComputeService computeService = getCompute().apply(clusterSpec).getComputeService();
+    ProviderExecutors.INSTANCE.apply(clusterSpec).acquireApiPermit();
+    return computeService.listNodesDetailsMatching(runningInGroup(clusterSpec.getClusterName()));
+  }
+
+  /**
+   * @return a template for the instances each instance template is short
+   *         of, e.g. because the launch stopped before all of them were
+   *         started, with the minimum number of instances it is short of
+   */
+  private List<InstanceTemplate> getMissingInstances(ClusterSpec clusterSpec, Cluster cluster) {
+    List<InstanceTemplate> missing = Lists.newArrayList();
+    for (InstanceTemplate template : clusterSpec.getInstanceTemplates()) {
+      int running = Iterables.size(Iterables.filter(cluster.getInstances(),
+          withRoles(template.getRoles())));
+      if (running < template.getNumberOfInstances()) {
+        missing.add(resized(template, template.getNumberOfInstances() - running,
+            Math.max(0, template.getMinNumberOfInstances() - running)));
+      }
+    }
+    return missing;
+  }
+
+  private ClusterSpec specWithTemplates(ClusterSpec clusterSpec, List<InstanceTemplate> templates)
+    throws IOException {
+    try {
+      ClusterSpec spec = clusterSpec.copy();
+      spec.setInstanceTemplates(templates);
+      return spec;
+    } catch (ConfigurationException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static Set<String> ids(Cluster cluster) {
+    Set<String> ids = Sets.newLinkedHashSet();
+    for (Cluster.Instance instance : cluster.getInstances()) {
+      ids.add(instance.getId());
+    }
+    return ids;
+  }
+
+  /**
+   * @return true if the launch phases can be run independently for each
+   *         instance template when the role dependencies allow it
+   */
+  protected boolean isPhasePipeliningSupported() {
+    return true;
+  }
+
   /**
    * Provision the hardware resources needed for running services
    */
   public Cluster bootstrapCluster(ClusterSpec clusterSpec) throws IOException, InterruptedException {
-    BootstrapClusterAction bootstrapper = new BootstrapClusterAction(getCompute(), handlerMapFactory.create());
+    BootstrapClusterAction bootstrapper = new BootstrapClusterAction(getCompute(), handlerMapFactory.create(),
+        getClusterStateStore(clusterSpec));
     Cluster cluster = bootstrapper.execute(clusterSpec, null);
     getClusterStateStore(clusterSpec).save(cluster);
+    if (clusterSpec.isBootstrapProceedAtMinimum()) {
+      lateInstances.put(clusterSpec.getClusterName(), bootstrapper.getLateInstances());
+    }
     return cluster;
   }
 
@@ -156,9 +762,24 @@ public class ClusterController {
   @Beta
   public Cluster configureServices(ClusterSpec clusterSpec, Cluster cluster, Set<String> targetRoles,
         Set<String> targetInstanceIds) throws IOException, InterruptedException {
+    return configureServices(clusterSpec, cluster, targetRoles, targetInstanceIds, false);
+  }
+
+  /**
+   * Configure cluster services. The instances whose configure script did not
+   * change since it last ran successfully are skipped, unless
+   * <code>force</code> is true.
+   */
+  @Beta
+  public Cluster configureServices(ClusterSpec clusterSpec, Cluster cluster, Set<String> targetRoles,
+        Set<String> targetInstanceIds, boolean force) throws IOException, InterruptedException {
     ConfigureServicesAction configurer = new ConfigureServicesAction(getCompute(), handlerMapFactory.create(),
-        targetRoles, targetInstanceIds);
-    return configurer.execute(clusterSpec, cluster);
+        targetRoles, targetInstanceIds, getClusterStateStore(clusterSpec), force);
+    try {
+      return configurer.execute(clusterSpec, cluster);
+    } finally {
+      recordScriptResults(configurer);
+    }
   }
 
   /**
@@ -176,7 +797,11 @@ public class ClusterController {
   public Cluster startServices(ClusterSpec clusterSpec, Cluster cluster,
       Set<String> targetRoles, Set<String> targetInstanceIds) throws IOException, InterruptedException {
     StartServicesAction starter = new StartServicesAction(getCompute(), handlerMapFactory.create(), targetRoles, targetInstanceIds);
-    return starter.execute(clusterSpec, cluster);
+    try {
+      return starter.execute(clusterSpec, cluster);
+    } finally {
+      recordScriptResults(starter);
+    }
   }
 
   /**
@@ -195,7 +820,11 @@ public class ClusterController {
   public Cluster stopServices(ClusterSpec clusterSpec, Cluster cluster, Set<String> targetRoles,
     Set<String> targetInstanceIds) throws IOException, InterruptedException {
     StopServicesAction stopper = new StopServicesAction(getCompute(), handlerMapFactory.create(), targetRoles, targetInstanceIds);
-    return stopper.execute(clusterSpec, cluster);
+    try {
+      return stopper.execute(clusterSpec, cluster);
+    } finally {
+      recordScriptResults(stopper);
+    }
   }
 
   /**
@@ -210,7 +839,11 @@ public class ClusterController {
   public Cluster cleanupCluster(ClusterSpec clusterSpec, Cluster cluster)
     throws IOException, InterruptedException {
     CleanupClusterAction cleanner = new CleanupClusterAction(getCompute(), handlerMapFactory.create());
-    return cleanner.execute(clusterSpec, cluster);
+    try {
+      return cleanner.execute(clusterSpec, cluster);
+    } finally {
+      recordScriptResults(cleanner);
+    }
   }
   
   /**
@@ -230,7 +863,11 @@ public class ClusterController {
   public void destroyCluster(ClusterSpec clusterSpec, Cluster cluster)
     throws IOException, InterruptedException {
     DestroyClusterAction destroyer = new DestroyClusterAction(getCompute(), handlerMapFactory.create());
-    destroyer.execute(clusterSpec, cluster);
+    try {
+      destroyer.execute(clusterSpec, cluster);
+    } finally {
+      recordScriptResults(destroyer);
+    }
   }
 
   public void destroyInstance(ClusterSpec clusterSpec, String instanceId) throws IOException {
@@ -238,17 +875,38 @@ public class ClusterController {
 
     /* Destroy the instance */
     ComputeService computeService = getCompute().apply(clusterSpec).getComputeService();
+    ProviderExecutors.INSTANCE.apply(clusterSpec).acquireApiPermit();
     computeService.destroyNode(instanceId);
+    getNodeMetadataCache(clusterSpec).invalidate(instanceId);
 
     /* .. and update the cluster state storage */
     ClusterStateStore store = getClusterStateStore(clusterSpec);
     Cluster cluster = store.load();
     cluster.removeInstancesMatching(withIds(instanceId));
     store.save(cluster);
+    ScriptHashes.remove(store, ImmutableList.of(instanceId));
 
     LOG.info("Instance {} destroyed", instanceId);
   }
 
+  /**
+   * @param phase the name of the phase, e.g. {@link
+   *          org.apache.whirr.service.ClusterActionHandler#CONFIGURE_ACTION}
+   * @return the per-instance script results of the last execution of the
+   *         phase by this controller, in completion order
+   */
+  public List<NodeScriptResult> getScriptResults(String phase) {
+    List<NodeScriptResult> results = scriptResults.get(phase);
+    return results == null ? ImmutableList.<NodeScriptResult>of() : results;
+  }
+
+  protected void recordScriptResults(ScriptBasedClusterAction action) {
+    List<NodeScriptResult> results = action.getScriptResults();
+    if (!results.isEmpty()) {
+      scriptResults.put(results.get(0).getPhase(), results);
+    }
+  }
+
   public ClusterStateStore getClusterStateStore(ClusterSpec clusterSpec) {
     return stateStoreFactory.create(clusterSpec);
   }
@@ -298,19 +956,106 @@ public class ClusterController {
     return getInstances(spec, null);
   }
 
+  /**
+   * @return the instances saved in the cluster state, if it has the node
+   *         details of all of them. Otherwise, e.g. for the state saved by
+   *         a previous version, the saved instances that are running, whose
+   *         details are fetched by id. Without a cluster state, the instances
+   *         running in the group of the cluster, which are listed from the
+   *         provider.
+   * @see #refreshInstances(ClusterSpec, ClusterStateStore)
+   */
   public Set<Cluster.Instance> getInstances(ClusterSpec spec, ClusterStateStore stateStore)
     throws IOException, InterruptedException {
 
     Set<Cluster.Instance> instances = Sets.newLinkedHashSet();
     Cluster cluster = (stateStore != null) ? stateStore.load() : null;
+    if (cluster != null && hasNodeMetadata(cluster)) {
+      return cluster.getInstances();
+    }
 
-    for (NodeMetadata node : getNodes(spec)) {
+    Set<? extends NodeMetadata> nodes = (cluster != null) ?
+        getNodesById(spec, ids(cluster)) : getNodes(spec);
+    for (NodeMetadata node : nodes) {
       instances.add(toInstance(node, cluster, spec));
     }
 
     return instances;
   }
 
+  /**
+   * @return the running nodes with the given ids. The details of the nodes
+   *         are fetched in parallel batches, and cached for a short time by
+   *         the {@link NodeMetadataCache} of the provider.
+   */
+  public Set<? extends NodeMetadata> getNodesById(ClusterSpec clusterSpec, Set<String> ids)
+    throws IOException, InterruptedException {
+    return ImmutableSet.copyOf(getRunningNodesById(clusterSpec, ids).values());
+  }
+
+  private Map<String, NodeMetadata> getRunningNodesById(ClusterSpec clusterSpec,
+      Set<String> ids) throws InterruptedException {
+    return running(getNodeMetadataCache(clusterSpec).getNodes(ids));
+  }
+
+  private NodeMetadataCache getNodeMetadataCache(ClusterSpec clusterSpec) {
+    ComputeService computeService = getCompute().apply(clusterSpec).getComputeService();
+    return ProviderExecutors.INSTANCE.apply(clusterSpec).getNodeMetadataCache(computeService);
+  }
+
+  private static Map<String, NodeMetadata> running(Map<String, NodeMetadata> nodes) {
+    return Maps.filterValues(nodes, new Predicate<NodeMetadata>() {
+      @Override
+      public boolean apply(NodeMetadata node) {
+        return node.getStatus() == NodeMetadata.Status.RUNNING;
+      }
+    });
+  }
+
+  /**
+   * Fetch the current node details of the instances saved in the cluster
+   * state by id, in parallel batches, rather than by listing all the nodes
+   * of the provider. The instances that are no longer running are dropped,
+   * and the refreshed cluster is saved.
+   *
+   * @return the saved instances that are still running, empty if no cluster
+   *         state is saved
+   */
+  public Set<Cluster.Instance> refreshInstances(ClusterSpec spec, ClusterStateStore stateStore)
+    throws IOException, InterruptedException {
+    Cluster cluster = stateStore.load();
+    if (cluster == null) {
+      LOG.info("No state is saved for cluster {}, there are no instances to refresh",
+          spec.getClusterName());
+      return Sets.newLinkedHashSet();
+    }
+    Map<String, NodeMetadata> nodes = running(getNodeMetadataCache(spec).refresh(ids(cluster)));
+
+    Set<Cluster.Instance> instances = Sets.newLinkedHashSet();
+    for (Cluster.Instance instance : cluster.getInstances()) {
+      NodeMetadata node = nodes.get(instance.getId());
+      if (node != null) {
+        // the addresses may have changed, e.g. if the node was stopped
+        String publicIp = Iterables.getFirst(node.getPublicAddresses(),
+            Iterables.getFirst(node.getPrivateAddresses(), instance.getPublicIp()));
+        String privateIp = Iterables.getFirst(node.getPrivateAddresses(), instance.getPrivateIp());
+        instances.add(new Cluster.Instance(instance.getLoginCredentials(), instance.getRoles(),
+            publicIp, privateIp, instance.getId(), node));
+      }
+    }
+    stateStore.save(new Cluster(instances, cluster.getConfiguration()));
+    return instances;
+  }
+
+  private static boolean hasNodeMetadata(Cluster cluster) {
+    for (Cluster.Instance instance : cluster.getInstances()) {
+      if (instance.getNodeMetadata() == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public HandlerMapFactory getHandlerMapFactory() {
     return handlerMapFactory;
   }
@@ -320,8 +1065,6 @@ public class ClusterController {
   }
 
   private Cluster.Instance toInstance(NodeMetadata metadata, Cluster cluster, ClusterSpec spec) {
-    Credentials credentials = new Credentials(spec.getClusterUser(), spec.getPrivateKey());
-
     Set<String> roles = Sets.newHashSet();
     try {
       if (cluster != null) {
@@ -329,7 +1072,11 @@ public class ClusterController {
       }
     } catch (NoSuchElementException e) {
     }
+    return toInstance(metadata, roles, spec);
+  }
 
+  private Cluster.Instance toInstance(NodeMetadata metadata, Set<String> roles, ClusterSpec spec) {
+    Credentials credentials = new Credentials(spec.getClusterUser(), spec.getPrivateKey());
     return new Cluster.Instance(credentials, roles,
       Iterables.getFirst(metadata.getPublicAddresses().size() > 0 ? metadata.getPublicAddresses() : metadata.getPrivateAddresses(), null),
       Iterables.getFirst(metadata.getPrivateAddresses(), null),
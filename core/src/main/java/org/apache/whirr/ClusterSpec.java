@@ -39,6 +39,7 @@ import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.ConfigurationUtils;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.io.IOUtils;
+import org.apache.whirr.actions.ScriptFailurePolicy;
 import org.apache.whirr.internal.ConfigToTemplateBuilderSpec;
 import org.jclouds.compute.domain.TemplateBuilderSpec;
 import org.jclouds.javax.annotation.Nullable;
@@ -92,8 +93,42 @@ public class ClusterSpec {
       "1 instance with the roles hadoop-namenode and hadoop-jobtracker has to be successfully started," +
       " and 6 instances has to be successfully started each with the roles hadoop-datanode and hadoop-tasktracker."),
 
+    INSTANCE_TEMPLATES_SPECULATIVE(String.class, false, "The number of extra " +
+      "instances to start for each set of roles, given as a count or as a " +
+      "percentage. The first instances to start are kept and the others are " +
+      "destroyed. E.g. 10% applies to all the sets of roles, while " +
+      "10%,2 hadoop-datanode+hadoop-tasktracker starts exactly two extra " +
+      "instances with the roles hadoop-datanode and hadoop-tasktracker."),
+
     MAX_STARTUP_RETRIES(Integer.class, false, "The number of retries in case of insufficient " + 
         "successfully started instances. Default value is 1."),
+
+    MAX_CONCURRENT_SSH_SESSIONS(Integer.class, false, "The maximum number of " +
+        "scripts running at the same time over SSH on the nodes of the cluster. " +
+        "Default value is 50."),
+
+    PROVIDER_API_REQUESTS_PER_SECOND(Float.class, false, "The maximum rate of " +
+        "requests to the provider API for one provider account, e.g. 5. The lowest " +
+        "rate of the clusters of the account applies. Default value is 0, which " +
+        "means no limit."),
+
+    MAX_SCRIPT_FAILURES(String.class, false, "The number (e.g. 2) or the percentage " +
+        "(e.g. 10%) of instances on which the scripts of a phase can fail before the " +
+        "phase is aborted. Default value is 0, which aborts on the first failure."),
+
+    BOOTSTRAP_PROCEED_AT_MINIMUM(Boolean.class, false, "Whether or not to " +
+        "configure and start the cluster as soon as the minimum number of " +
+        "instances of each template is up. The instances that start later join " +
+        "the running cluster in the background. Default value is false."),
+
+    LAUNCH_BATCH_SIZE(Integer.class, false, "The maximum number of instances " +
+        "requested from the provider in a single call, e.g. 25. The batches of an " +
+        "instance template are launched concurrently and only the failed ones are " +
+        "retried. Default value is 0, which launches each template in one call."),
+
+    USE_BAKED_IMAGES(Boolean.class, false, "Whether or not to start the " +
+        "instances from the images created by bake-images when their install " +
+        "scripts did not change, skipping the install statements. Default value is false."),
     
     PROVIDER(String.class, false, "The name of the cloud provider. " + 
       "E.g. aws-ec2, cloudservers-uk"),
@@ -272,6 +307,12 @@ public class ClusterSpec {
 
   private List<InstanceTemplate> instanceTemplates;
   private int maxStartupRetries;
+  private int maxConcurrentSshSessions;
+  private float providerApiRequestsPerSecond;
+  private String maxScriptFailures;
+  private boolean bootstrapProceedAtMinimum;
+  private int launchBatchSize;
+  private boolean useBakedImages;
 
   private String provider;
   private String endpoint;
@@ -346,6 +387,14 @@ public class ClusterSpec {
 
     setInstanceTemplates(InstanceTemplate.parse(config));
     setMaxStartupRetries(getInt(Property.MAX_STARTUP_RETRIES, 1));
+    setMaxConcurrentSshSessions(getInt(Property.MAX_CONCURRENT_SSH_SESSIONS, 50));
+    setProviderApiRequestsPerSecond(getFloat(Property.PROVIDER_API_REQUESTS_PER_SECOND, 0f));
+    setMaxScriptFailures(getString(Property.MAX_SCRIPT_FAILURES));
+    setBootstrapProceedAtMinimum(config.getBoolean(
+        Property.BOOTSTRAP_PROCEED_AT_MINIMUM.getConfigName(), Boolean.FALSE));
+    setLaunchBatchSize(getInt(Property.LAUNCH_BATCH_SIZE, 0));
+    setUseBakedImages(config.getBoolean(
+        Property.USE_BAKED_IMAGES.getConfigName(), Boolean.FALSE));
 
     setAutoHostnamePrefix(getString(Property.AUTO_HOSTNAME_PREFIX));
     setAutoHostnameSuffix(getString(Property.AUTO_HOSTNAME_SUFFIX));
@@ -417,6 +466,12 @@ public class ClusterSpec {
 
     r.setInstanceTemplates(Lists.newLinkedList(getInstanceTemplates()));
     r.setMaxStartupRetries(getMaxStartupRetries());
+    r.setMaxConcurrentSshSessions(getMaxConcurrentSshSessions());
+    r.setProviderApiRequestsPerSecond(getProviderApiRequestsPerSecond());
+    r.setMaxScriptFailures(getMaxScriptFailures());
+    r.setBootstrapProceedAtMinimum(isBootstrapProceedAtMinimum());
+    r.setLaunchBatchSize(getLaunchBatchSize());
+    r.setUseBakedImages(isUseBakedImages());
 
     r.setProvider(getProvider());
     r.setIdentity(getIdentity());
@@ -544,6 +599,30 @@ public class ClusterSpec {
     return maxStartupRetries;
   }
 
+  public int getMaxConcurrentSshSessions() {
+    return maxConcurrentSshSessions;
+  }
+
+  public float getProviderApiRequestsPerSecond() {
+    return providerApiRequestsPerSecond;
+  }
+
+  public String getMaxScriptFailures() {
+    return maxScriptFailures;
+  }
+
+  public boolean isBootstrapProceedAtMinimum() {
+    return bootstrapProceedAtMinimum;
+  }
+
+  public int getLaunchBatchSize() {
+    return launchBatchSize;
+  }
+
+  public boolean isUseBakedImages() {
+    return useBakedImages;
+  }
+
   public String getProvider() {
     return provider;
   }
@@ -705,6 +784,42 @@ public class ClusterSpec {
     this.maxStartupRetries = maxStartupRetries;
   }
 
+  public void setMaxConcurrentSshSessions(int maxConcurrentSshSessions) {
+    this.maxConcurrentSshSessions = maxConcurrentSshSessions;
+  }
+
+  public void setProviderApiRequestsPerSecond(float providerApiRequestsPerSecond) {
+    this.providerApiRequestsPerSecond = providerApiRequestsPerSecond;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the value is not a number or a
+   *           percentage of failures, checked here so that a typo fails
+   *           before any instance is started
+   */
+  public void setMaxScriptFailures(String maxScriptFailures) {
+    try {
+      ScriptFailurePolicy.parse(maxScriptFailures);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(String.format("Invalid value '%s' of %s. " +
+          "Expected a number of instances or a percentage, e.g. '10%%'.",
+          maxScriptFailures, Property.MAX_SCRIPT_FAILURES.getConfigName()), e);
+    }
+    this.maxScriptFailures = maxScriptFailures;
+  }
+
+  public void setBootstrapProceedAtMinimum(boolean bootstrapProceedAtMinimum) {
+    this.bootstrapProceedAtMinimum = bootstrapProceedAtMinimum;
+  }
+
+  public void setLaunchBatchSize(int launchBatchSize) {
+    this.launchBatchSize = launchBatchSize;
+  }
+
+  public void setUseBakedImages(boolean useBakedImages) {
+    this.useBakedImages = useBakedImages;
+  }
+
   public void setProvider(String provider) {
     if ("ec2".equals(provider)) {
       LOG.warn("Please use provider \"aws-ec2\" instead of \"ec2\"");
@@ -981,6 +1096,12 @@ public class ClusterSpec {
       ClusterSpec that = (ClusterSpec) o;
       return Objects.equal(getInstanceTemplates(), that.getInstanceTemplates())
         && Objects.equal(getMaxStartupRetries(), that.getMaxStartupRetries())
+        && Objects.equal(getMaxConcurrentSshSessions(), that.getMaxConcurrentSshSessions())
+        && Objects.equal(getProviderApiRequestsPerSecond(), that.getProviderApiRequestsPerSecond())
+        && Objects.equal(getMaxScriptFailures(), that.getMaxScriptFailures())
+        && Objects.equal(isBootstrapProceedAtMinimum(), that.isBootstrapProceedAtMinimum())
+        && Objects.equal(getLaunchBatchSize(), that.getLaunchBatchSize())
+        && Objects.equal(isUseBakedImages(), that.isUseBakedImages())
         && Objects.equal(getProvider(), that.getProvider())
         && Objects.equal(getEndpoint(), that.getEndpoint())
         && Objects.equal(getIdentity(), that.getIdentity())
@@ -1018,6 +1139,12 @@ public class ClusterSpec {
     return Objects.hashCode(
         getInstanceTemplates(),
         getMaxStartupRetries(),
+        getMaxConcurrentSshSessions(),
+        getProviderApiRequestsPerSecond(),
+        getMaxScriptFailures(),
+        isBootstrapProceedAtMinimum(),
+        getLaunchBatchSize(),
+        isUseBakedImages(),
         getProvider(),
         getEndpoint(),
         getIdentity(),
@@ -1053,6 +1180,12 @@ public class ClusterSpec {
     return Objects.toStringHelper(this).omitNullValues()
       .add("instanceTemplates", getInstanceTemplates())
       .add("maxStartupRetries", getMaxStartupRetries())
+      .add("maxConcurrentSshSessions", getMaxConcurrentSshSessions())
+      .add("providerApiRequestsPerSecond", getProviderApiRequestsPerSecond())
+      .add("maxScriptFailures", getMaxScriptFailures())
+      .add("bootstrapProceedAtMinimum", isBootstrapProceedAtMinimum())
+      .add("launchBatchSize", getLaunchBatchSize())
+      .add("useBakedImages", isUseBakedImages())
       .add("provider", getProvider())
       .add("endpoint", getEndpoint())
       .add("identity", getIdentity())
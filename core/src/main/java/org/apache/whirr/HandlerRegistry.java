@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.whirr.service.ClusterActionHandler;
+import org.apache.whirr.service.ClusterActionHandlerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * The {@link ClusterActionHandler}s and {@link ClusterActionHandlerFactory}s
+ * available to resolve roles.
+ * <p>
+ * The default registry is discovered with {@link ServiceLoader} on first use
+ * and shared by the whole process until {@link #refresh()} is called, and so
+ * are the handlers it creates. Roles
+ * are resolved by the factory with the longest matching role prefix (e.g.
+ * <code>puppet:</code>), looked up in a trie, or else by the handler of the
+ * role. Handlers are instantiated lazily: the service providers are only
+ * loaded until the requested role is found, and the handlers of a factory
+ * are created on first use of their role.
+ */
+public class HandlerRegistry {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HandlerRegistry.class);
+
+  private static final AtomicReference<HandlerRegistry> DEFAULT =
+    new AtomicReference<HandlerRegistry>();
+
+  /**
+   * @return the registry of the service providers on the class path
+   */
+  public static HandlerRegistry getDefault() {
+    HandlerRegistry registry = DEFAULT.get();
+    if (registry == null) {
+      DEFAULT.compareAndSet(null, new HandlerRegistry(
+          ServiceLoader.load(ClusterActionHandlerFactory.class),
+          ServiceLoader.load(ClusterActionHandler.class)));
+      registry = DEFAULT.get();
+    }
+    return registry;
+  }
+
+  /**
+   * Discard the default registry, e.g. after service jars were added. The
+   * next call to {@link #getDefault()} discovers the providers again.
+   */
+  public static void refresh() {
+    DEFAULT.set(null);
+  }
+
+  private final RolePrefixTrie<ClusterActionHandlerFactory> factories =
+    new RolePrefixTrie<ClusterActionHandlerFactory>();
+  private final ImmutableSet<String> prefixes;
+
+  // guarded by this
+  private final Iterator<ClusterActionHandler> pendingHandlers;
+  private final Map<String, ClusterActionHandler> handlers = Maps.newLinkedHashMap();
+
+  private final LoadingCache<String, ClusterActionHandler> handlerMap;
+
+  public HandlerRegistry(Iterable<ClusterActionHandlerFactory> factories,
+      Iterable<ClusterActionHandler> handlers) {
+    ImmutableSet.Builder<String> prefixes = ImmutableSet.builder();
+    for (ClusterActionHandlerFactory factory : checkNotNull(factories, "factories")) {
+      String prefix = factory.getRolePrefix();
+      checkArgument(this.factories.put(prefix, factory) == null,
+          "duplicate action handler factories for role prefix %s", prefix);
+      prefixes.add(prefix);
+    }
+    this.prefixes = prefixes.build();
+    this.pendingHandlers = checkNotNull(handlers, "handlers").iterator();
+    this.handlerMap = CacheBuilder.newBuilder().build(
+      new CacheLoader<String, ClusterActionHandler>() {
+        @Override
+        public ClusterActionHandler load(String role) {
+          return resolve(role);
+        }
+      });
+  }
+
+  /**
+   * @return the handlers by role. Handlers are created on first use and then
+   *         reused.
+   */
+  public LoadingCache<String, ClusterActionHandler> getHandlerMap() {
+    return handlerMap;
+  }
+
+  private ClusterActionHandler resolve(String role) {
+    checkNotNull(role, "role");
+    Map.Entry<String, ClusterActionHandlerFactory> match = factories.longestPrefixOf(role);
+    if (match != null) {
+      String prefix = match.getKey();
+      LOG.debug("role {} starts with a configured prefix {}", role, prefix);
+      String subrole = role.substring(prefix.length());
+      ClusterActionHandler handler = match.getValue().create(subrole);
+      checkArgument(handler != null, "action handler factory %s could not create action handler for role %s",
+          prefix, subrole);
+      return handler;
+    }
+    LOG.debug("role {} didn't start with any of the configured prefixes {}", role, prefixes);
+    ClusterActionHandler handler = findHandler(role);
+    checkArgument(handler != null, "Action handler not found for role: %s; configured roles %s", role,
+        getLoadedRoles());
+    return handler;
+  }
+
+  private synchronized ClusterActionHandler findHandler(String role) {
+    ClusterActionHandler handler = handlers.get(role);
+    while (handler == null && pendingHandlers.hasNext()) {
+      ClusterActionHandler next = pendingHandlers.next();
+      checkArgument(!handlers.containsKey(next.getRole()),
+          "duplicate action handlers for role %s", next.getRole());
+      handlers.put(next.getRole(), next);
+      if (role.equals(next.getRole())) {
+        handler = next;
+      }
+    }
+    return handler;
+  }
+
+  private synchronized Iterable<String> getLoadedRoles() {
+    return ImmutableSet.copyOf(handlers.keySet());
+  }
+
+}
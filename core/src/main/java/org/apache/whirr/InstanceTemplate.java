@@ -37,6 +37,7 @@ import org.jclouds.javax.annotation.Nullable;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
@@ -56,8 +57,11 @@ public class InstanceTemplate {
   public static class Builder {
     private int numberOfInstances = -1;
     private int minNumberOfInstances = -1;
+    private int numberOfSpeculativeInstances;
     private TemplateBuilderSpec template;
     private Float awsEc2SpotPrice;
+    private List<String> locationIds = ImmutableList.of();
+    private int warmPoolSize;
     private Set<String> roles;
 
     public Builder numberOfInstance(int numberOfInstances) {
@@ -70,6 +74,11 @@ public class InstanceTemplate {
       return this;
     }
 
+    public Builder numberOfSpeculativeInstances(int numberOfSpeculativeInstances) {
+      this.numberOfSpeculativeInstances = numberOfSpeculativeInstances;
+      return this;
+    }
+
     public Builder template(@Nullable TemplateBuilderSpec template) {
       this.template = template;
       return this;
@@ -80,6 +89,16 @@ public class InstanceTemplate {
       return this;
     }
 
+    public Builder locationIds(List<String> locationIds) {
+      this.locationIds = ImmutableList.copyOf(locationIds);
+      return this;
+    }
+
+    public Builder warmPoolSize(int warmPoolSize) {
+      this.warmPoolSize = warmPoolSize;
+      return this;
+    }
+
     public Builder roles(String... roles) {
       this.roles = newLinkedHashSet(newArrayList(roles));
       return this;
@@ -94,20 +113,24 @@ public class InstanceTemplate {
       if (minNumberOfInstances == -1) {
         minNumberOfInstances = numberOfInstances;
       }
-      return new InstanceTemplate(numberOfInstances, minNumberOfInstances, roles,
-        template, awsEc2SpotPrice);
+      return new InstanceTemplate(numberOfInstances, minNumberOfInstances,
+        numberOfSpeculativeInstances, roles, template, awsEc2SpotPrice, locationIds, warmPoolSize);
     }
   }
 
   private int numberOfInstances;
   private int minNumberOfInstances;  // some instances may fail, at least a minimum number is required
+  private int numberOfSpeculativeInstances;  // extra instances started to cut the wait for stragglers
   private TemplateBuilderSpec template;
   private Float awsEc2SpotPrice;
+  private List<String> locationIds;
+  private int warmPoolSize;  // bootstrapped standby instances kept to grow the cluster
   private Set<String> roles;
 
 
   private InstanceTemplate(int numberOfInstances, int minNumberOfInstances,
-      Set<String> roles, TemplateBuilderSpec template, Float awsEc2SpotPrice) {
+      int numberOfSpeculativeInstances, Set<String> roles, TemplateBuilderSpec template, Float awsEc2SpotPrice,
+      List<String> locationIds, int warmPoolSize) {
     for (String role : roles) {
       checkArgument(!StringUtils.contains(role, " "),
         "Role '%s' may not contain space characters.", role);
@@ -115,8 +138,11 @@ public class InstanceTemplate {
 
     this.numberOfInstances = numberOfInstances;
     this.minNumberOfInstances = minNumberOfInstances;
+    this.numberOfSpeculativeInstances = numberOfSpeculativeInstances;
     this.template = template;
     this.awsEc2SpotPrice = awsEc2SpotPrice;
+    this.locationIds = locationIds;
+    this.warmPoolSize = warmPoolSize;
     this.roles = roles;
   }
 
@@ -132,6 +158,15 @@ public class InstanceTemplate {
     return minNumberOfInstances;
   }
 
+  /**
+   * @return the number of instances started on top of
+   *         {@link #getNumberOfInstances()}, of which only the first to start
+   *         are kept
+   */
+  public int getNumberOfSpeculativeInstances() {
+    return numberOfSpeculativeInstances;
+  }
+
   @Nullable
   public TemplateBuilderSpec getTemplate() {
     return template;
@@ -142,13 +177,32 @@ public class InstanceTemplate {
     return awsEc2SpotPrice;
   }
 
+  /**
+   * @return the locations (e.g. availability zones) the instances are spread
+   *         across, empty to use the location of the template
+   */
+  public List<String> getLocationIds() {
+    return locationIds;
+  }
+
+  /**
+   * @return the number of bootstrapped instances kept on standby, outside of
+   *         the cluster, to add instances without waiting for them to start
+   */
+  public int getWarmPoolSize() {
+    return warmPoolSize;
+  }
+
   public boolean equals(Object o) {
     if (o instanceof InstanceTemplate) {
       InstanceTemplate that = (InstanceTemplate) o;
       return numberOfInstances == that.numberOfInstances
         && minNumberOfInstances == that.minNumberOfInstances
+        && numberOfSpeculativeInstances == that.numberOfSpeculativeInstances
         && Objects.equal(template, that.template)
         && awsEc2SpotPrice == that.awsEc2SpotPrice
+        && Objects.equal(locationIds, that.locationIds)
+        && warmPoolSize == that.warmPoolSize
         && Objects.equal(roles, that.roles);
     }
     return false;
@@ -156,15 +210,18 @@ public class InstanceTemplate {
 
   public int hashCode() {
     return Objects.hashCode(numberOfInstances, minNumberOfInstances,
-             template, awsEc2SpotPrice, roles);
+             numberOfSpeculativeInstances, template, awsEc2SpotPrice, locationIds, warmPoolSize, roles);
   }
 
   public String toString() {
     return Objects.toStringHelper(this).omitNullValues()
       .add("numberOfInstances", numberOfInstances)
       .add("minNumberOfInstances", minNumberOfInstances)
+      .add("numberOfSpeculativeInstances", numberOfSpeculativeInstances)
       .add("template", template)
       .add("awsEc2SpotPrice", awsEc2SpotPrice)
+      .add("locationIds", locationIds.isEmpty() ? null : locationIds)
+      .add("warmPoolSize", warmPoolSize == 0 ? null : warmPoolSize)
       .add("roles", roles)
       .toString();
   }
@@ -202,6 +259,9 @@ public class InstanceTemplate {
         .roles(templateGroup.split("\\+"))
         .minNumberOfInstances(
           parseMinNumberOfInstances(configuration, templateGroup, numberOfInstances)
+        )
+        .numberOfSpeculativeInstances(
+          parseNumberOfSpeculativeInstances(configuration, templateGroup, numberOfInstances)
         );
       parseInstanceTemplateGroupOverrides(configuration, templateGroup, templateBuilder);
 
@@ -231,6 +291,8 @@ public class InstanceTemplate {
               .join(templateParams)));
     }
     templateBuilder.awsEc2SpotPrice(configuration.getFloat("whirr.templates." + templateGroup + ".aws-ec2-spot-price", null));
+    templateBuilder.locationIds(newArrayList(configuration.getStringArray("whirr.templates." + templateGroup + ".location-ids")));
+    templateBuilder.warmPoolSize(configuration.getInt("whirr.templates." + templateGroup + ".warm-pool-size", 0));
   }
 
   private static int parseMinNumberOfInstances(
@@ -268,6 +330,55 @@ public class InstanceTemplate {
     return minNumberOfInstances;
   }
 
+  /**
+   * Entries are either '&lt;extra&gt;[%]', which applies to all the template
+   * groups, or '&lt;extra&gt;[%] &lt;role1&gt;+&lt;role2&gt;' for a single
+   * group. A percentage is rounded up to a whole number of instances.
+   */
+  private static int parseNumberOfSpeculativeInstances(
+    Configuration configuration, String templateGroup, int numberOfInstances
+  ) {
+    String speculative = null;
+    for (String s : configuration.getStringArray(
+        ClusterSpec.Property.INSTANCE_TEMPLATES_SPECULATIVE.getConfigName())) {
+      String[] parts = s.trim().split(" ");
+      checkArgument(parts.length == 1 || parts.length == 2,
+        "Invalid speculative instances syntax for '%s'. Does not match " +
+          "'<number>[%%] [<role1>+<role2>+<role3>...]', e.g. '10%%'.", s);
+      if (parts.length == 2 && parts[1].equals(templateGroup)) {
+        speculative = parts[0];
+        break; // a group specific value takes precedence
+      } else if (parts.length == 1) {
+        speculative = parts[0];
+      }
+    }
+    if (speculative == null) {
+      return 0;
+    }
+
+    String property = ClusterSpec.Property.INSTANCE_TEMPLATES_SPECULATIVE.getConfigName();
+    boolean isPercentage = speculative.endsWith("%");
+    int value;
+    try {
+      value = Integer.parseInt(isPercentage ?
+          speculative.substring(0, speculative.length() - 1) : speculative);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(String.format("Invalid value '%s' of %s " +
+          "for '%s'. Expected a number of instances or a percentage, e.g. '10%%'.",
+          speculative, property, templateGroup), e);
+    }
+    if (isPercentage) {
+      checkArgument(value >= 0 && value <= 100, "The percentage of speculative " +
+          "instances in %s for '%s' must be between 0 and 100, was %s",
+          property, templateGroup, speculative);
+      // round up integer division (a + b -1) / b
+      return (value * numberOfInstances + 99) / 100;
+    }
+    checkArgument(value >= 0, "The number of speculative instances in %s " +
+        "for '%s' must not be negative, was %s", property, templateGroup, speculative);
+    return value;
+  }
+
   private static void validateThatWeHaveNoOtherOverrides(
     List<InstanceTemplate> templates, Configuration configuration
   ) throws ConfigurationException {
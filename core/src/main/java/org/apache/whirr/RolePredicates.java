@@ -29,6 +29,10 @@ import com.google.common.collect.Sets;
 
 /**
  * {@link Predicate}s for matching {@link Instance}s with certain cluster roles.
+ * <p>
+ * The predicates are instances of the nested classes, which expose the roles
+ * or IDs they match so that {@link Cluster} can resolve them through its
+ * indexes instead of testing every instance.
  */
 public class RolePredicates {
 
@@ -47,12 +51,7 @@ public class RolePredicates {
    * are exactly the same as those in <code>roles</code>.
    */
   public static Predicate<Instance> onlyRolesIn(final Set<String> roles) {
-    return new Predicate<Instance>() {
-      @Override
-      public boolean apply(Instance instance) {
-        return instance.getRoles().equals(roles);
-      }
-    };
+    return new OnlyRolesIn(roles);
   }
   
   /**
@@ -61,12 +60,7 @@ public class RolePredicates {
    * contain all of <code>roles</code>.
    */
   public static Predicate<Instance> allRolesIn(final Set<String> roles) {
-    return new Predicate<Instance>() {
-      @Override
-      public boolean apply(Instance instance) {
-        return instance.getRoles().containsAll(roles);
-      }
-    };
+    return new AllRolesIn(roles);
   }
 
   /**
@@ -75,14 +69,7 @@ public class RolePredicates {
    * contain at least one of <code>roles</code>.
    */
   public static Predicate<Instance> anyRoleIn(final Set<String> roles) {
-    return new Predicate<Instance>() {
-      @Override
-      public boolean apply(Instance instance) {
-        Set<String> copy = Sets.newLinkedHashSet(instance.getRoles());
-        copy.retainAll(roles);
-        return !copy.isEmpty();
-      }
-    };
+    return new AnyRoleIn(roles);
   }
 
   /**
@@ -102,13 +89,87 @@ public class RolePredicates {
    * found in the IDs list
    */
   public static Predicate<Instance> withIds(final Set<String> ids) {
-    return new Predicate<Instance>() {
-      @Override
-      public boolean apply(@Nullable Instance input) {
-        return (input != null) ? ids.contains(input.getId()) : false;
+    return new WithIds(ids);
+  }
+
+  /**
+   * Base class of the predicates on the roles of an instance.
+   */
+  public abstract static class RolesPredicate implements Predicate<Instance> {
+    private final Set<String> roles;
+
+    RolesPredicate(Set<String> roles) {
+      this.roles = roles;
+    }
+
+    public Set<String> getRoles() {
+      return roles;
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getSimpleName() + roles;
+    }
+  }
+
+  public static final class OnlyRolesIn extends RolesPredicate {
+    OnlyRolesIn(Set<String> roles) {
+      super(roles);
+    }
+
+    @Override
+    public boolean apply(Instance instance) {
+      return instance.getRoles().equals(getRoles());
+    }
+  }
+
+  public static final class AllRolesIn extends RolesPredicate {
+    AllRolesIn(Set<String> roles) {
+      super(roles);
+    }
+
+    @Override
+    public boolean apply(Instance instance) {
+      return instance.getRoles().containsAll(getRoles());
+    }
+  }
+
+  public static final class AnyRoleIn extends RolesPredicate {
+    AnyRoleIn(Set<String> roles) {
+      super(roles);
+    }
+
+    @Override
+    public boolean apply(Instance instance) {
+      for (String role : instance.getRoles()) {
+        if (getRoles().contains(role)) {
+          return true;
+        }
       }
-    };
+      return false;
+    }
   }
 
+  public static final class WithIds implements Predicate<Instance> {
+    private final Set<String> ids;
+
+    WithIds(Set<String> ids) {
+      this.ids = ids;
+    }
+
+    public Set<String> getIds() {
+      return ids;
+    }
+
+    @Override
+    public boolean apply(@Nullable Instance input) {
+      return (input != null) ? ids.contains(input.getId()) : false;
+    }
+
+    @Override
+    public String toString() {
+      return "WithIds" + ids;
+    }
+  }
 
 }
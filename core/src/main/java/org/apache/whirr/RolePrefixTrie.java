@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A character trie of role prefixes, used to find the longest prefix of a
+ * role in time proportional to the length of the role.
+ */
+class RolePrefixTrie<V> {
+
+  private static class Node<V> {
+    private final Map<Character, Node<V>> children = Maps.newHashMap();
+    private String prefix;
+    private V value;
+  }
+
+  private final Node<V> root = new Node<V>();
+
+  /**
+   * @return the value previously associated with the prefix, or null
+   */
+  V put(String prefix, V value) {
+    Node<V> node = root;
+    for (int i = 0; i < prefix.length(); i++) {
+      Character c = prefix.charAt(i);
+      Node<V> child = node.children.get(c);
+      if (child == null) {
+        child = new Node<V>();
+        node.children.put(c, child);
+      }
+      node = child;
+    }
+    V previous = node.value;
+    node.prefix = prefix;
+    node.value = value;
+    return previous;
+  }
+
+  /**
+   * @return the longest prefix of the role and its value, or null if no
+   *         prefix matches
+   */
+  Map.Entry<String, V> longestPrefixOf(String role) {
+    Node<V> node = root;
+    Node<V> match = root.value != null ? root : null;
+    for (int i = 0; i < role.length() && node != null; i++) {
+      node = node.children.get(role.charAt(i));
+      if (node != null && node.value != null) {
+        match = node;
+      }
+    }
+    return match == null ? null : Maps.immutableEntry(match.prefix, match.value);
+  }
+
+}
@@ -19,24 +19,30 @@
 package org.apache.whirr.actions;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.whirr.Cluster;
 import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.InstanceTemplate;
+import org.apache.whirr.compute.BakedImages;
 import org.apache.whirr.compute.BootstrapTemplate;
 import org.apache.whirr.compute.NodeStarterFactory;
+import org.apache.whirr.compute.ProviderExecutor;
+import org.apache.whirr.compute.ProviderExecutors;
 import org.apache.whirr.compute.StartupProcess;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandler;
 import org.apache.whirr.service.jclouds.StatementBuilder;
+import org.apache.whirr.state.ClusterStateStore;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.ComputeServiceContext;
 import org.jclouds.compute.domain.NodeMetadata;
@@ -48,8 +54,12 @@ import com.google.common.base.Function;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 /**
  * A {@link org.apache.whirr.ClusterAction} that starts instances in a cluster in parallel and
@@ -61,16 +71,37 @@ public class BootstrapClusterAction extends ScriptBasedClusterAction {
     LoggerFactory.getLogger(BootstrapClusterAction.class);
   
   private final NodeStarterFactory nodeStarterFactory;
+  private final ClusterStateStore stateStore;
+  private final List<ListenableFuture<Set<Instance>>> lateInstances = Lists.newArrayList();
+  private final Map<InstanceTemplate, String> installHashes = Maps.newHashMap();
   
   public BootstrapClusterAction(final Function<ClusterSpec, ComputeServiceContext> getCompute,
       final LoadingCache<String, ClusterActionHandler> handlerMap) {
-    this(getCompute, handlerMap, new NodeStarterFactory());
+    this(getCompute, handlerMap, (ClusterStateStore) null);
+  }
+
+  /**
+   * @param stateStore the cluster state the instances of each template are
+   *          added to as soon as they are started, so that they can be
+   *          re-attached if the launch does not complete; or null
+   */
+  public BootstrapClusterAction(final Function<ClusterSpec, ComputeServiceContext> getCompute,
+      final LoadingCache<String, ClusterActionHandler> handlerMap,
+      final ClusterStateStore stateStore) {
+    this(getCompute, handlerMap, new NodeStarterFactory(), stateStore);
   }
   
   BootstrapClusterAction(final Function<ClusterSpec, ComputeServiceContext> getCompute,
       final LoadingCache<String, ClusterActionHandler> handlerMap, final NodeStarterFactory nodeStarterFactory) {
+    this(getCompute, handlerMap, nodeStarterFactory, null);
+  }
+
+  BootstrapClusterAction(final Function<ClusterSpec, ComputeServiceContext> getCompute,
+      final LoadingCache<String, ClusterActionHandler> handlerMap,
+      final NodeStarterFactory nodeStarterFactory, final ClusterStateStore stateStore) {
     super(getCompute, handlerMap);
     this.nodeStarterFactory = nodeStarterFactory;
+    this.stateStore = stateStore;
   }
   
   @Override
@@ -83,8 +114,9 @@ public class BootstrapClusterAction extends ScriptBasedClusterAction {
       throws IOException, InterruptedException {
     LOG.info("Bootstrapping cluster");
     
-    ExecutorService executorService = Executors.newCachedThreadPool();    
     Map<InstanceTemplate, Future<Set<? extends NodeMetadata>>> futures = Maps.newHashMap();
+    Map<InstanceTemplate, StartupProcess> processes = Maps.newHashMap();
+    final BlockingQueue<InstanceTemplate> completed = new LinkedBlockingQueue<InstanceTemplate>();
     
     // initialize startup processes per InstanceTemplates
     for (Entry<InstanceTemplate, ClusterActionEvent> entry : eventMap.entrySet()) {
@@ -98,41 +130,118 @@ public class BootstrapClusterAction extends ScriptBasedClusterAction {
       final ComputeService computeService =
         computeServiceContext.getComputeService();
 
-      final Template template = BootstrapTemplate.build(clusterSpec, computeService,
-        statementBuilder, entry.getKey());
-
-      Future<Set<? extends NodeMetadata>> nodesFuture = executorService.submit(
-          new StartupProcess(
-              clusterSpec.getClusterName(),
-              instanceTemplate.getNumberOfInstances(),
-              instanceTemplate.getMinNumberOfInstances(),
-              maxNumberOfRetries,
-              instanceTemplate.getRoles(),
-              computeService, template, executorService, nodeStarterFactory));
-      futures.put(instanceTemplate, nodesFuture);
+      String installHash = BakedImages.hash(clusterSpec, statementBuilder, instanceTemplate);
+      if (installHash != null) {
+        installHashes.put(instanceTemplate, installHash);
+      }
+      final List<Template> templates = BootstrapTemplate.build(clusterSpec, computeService,
+        statementBuilder, entry.getKey(), entry.getKey().getLocationIds());
+
+      final ProviderExecutor providerExecutor = ProviderExecutors.INSTANCE.apply(clusterSpec);
+      StartupProcess process = new StartupProcess(
+          clusterSpec.getClusterName(),
+          instanceTemplate.getNumberOfInstances(),
+          instanceTemplate.getMinNumberOfInstances(),
+          instanceTemplate.getNumberOfSpeculativeInstances(),
+          clusterSpec.isBootstrapProceedAtMinimum(),
+          clusterSpec.getLaunchBatchSize(),
+          maxNumberOfRetries,
+          instanceTemplate.getRoles(),
+          computeService, templates, providerExecutor, nodeStarterFactory);
+      ListenableFuture<Set<? extends NodeMetadata>> future = MoreExecutors
+          .listeningDecorator(providerExecutor.getLaunchExecutor()).submit(process);
+      future.addListener(new Runnable() {
+        @Override
+        public void run() {
+          completed.add(instanceTemplate);
+        }
+      }, MoreExecutors.sameThreadExecutor());
+      futures.put(instanceTemplate, future);
+      processes.put(instanceTemplate, process);
     }
     
+    // collect the startup processes as they complete
     Set<Instance> instances = Sets.newLinkedHashSet();
-    for (Entry<InstanceTemplate, Future<Set<? extends NodeMetadata>>> entry :
-        futures.entrySet()) {
+    for (int i = 0; i < futures.size(); i++) {
+      InstanceTemplate instanceTemplate = completed.take();
       Set<? extends NodeMetadata> nodes;
       try {
-        nodes = entry.getValue().get();
+        nodes = futures.get(instanceTemplate).get();
       } catch (ExecutionException e) {
         // Some of the StartupProcess decided to throw IOException, 
         // to fail the cluster because of insufficient successfully started
         // nodes after retries
         throw new IOException(e);
       }
-      Set<String> roles = entry.getKey().getRoles();
-      instances.addAll(getInstances(roles, nodes));
+      final Set<String> roles = instanceTemplate.getRoles();
+      Set<Instance> started = getInstances(roles, nodes);
+      instances.addAll(started);
+      if (stateStore != null) {
+        save(started);
+      }
+      lateInstances.add(Futures.transform(processes.get(instanceTemplate).getLateNodes(),
+          new Function<Set<NodeMetadata>, Set<Instance>>() {
+        @Override
+        public Set<Instance> apply(Set<NodeMetadata> lateNodes) {
+          return getInstances(roles, lateNodes);
+        }
+      }));
     }
-    Cluster cluster = new Cluster(instances);
+    Cluster cluster = new Cluster(instances).prefetchPublicHostNames();
     for (ClusterActionEvent event : eventMap.values()) {
       event.setCluster(cluster);
     }
   }
 
+  /**
+   * @return the hash of the install statements of each instance template
+   *         that has some, as used to look up baked images
+   * @see BakedImages#hash
+   */
+  public Map<InstanceTemplate, String> getInstallHashes() {
+    return installHashes;
+  }
+
+  /**
+   * @return the instances that started after the bootstrap phase was over,
+   *         when the cluster proceeds at minimum. The future completes once
+   *         the startup of every instance is over.
+   */
+  public ListenableFuture<Set<Instance>> getLateInstances() {
+    return Futures.transform(Futures.allAsList(lateInstances),
+        new Function<List<Set<Instance>>, Set<Instance>>() {
+      @Override
+      public Set<Instance> apply(List<Set<Instance>> instances) {
+        return Sets.newLinkedHashSet(Iterables.concat(instances));
+      }
+    });
+  }
+
+  /**
+   * Add the instances of a template to the saved cluster state, without
+   * waiting for the startup of the other templates to be over.
+   */
+  private void save(Set<Instance> started) {
+    try {
+      synchronized (stateStore) {
+        Cluster saved = stateStore.tryLoadOrEmpty();
+        Map<String, Instance> instances = Maps.newLinkedHashMap();
+        if (saved != null) {
+          for (Instance instance : saved.getInstances()) {
+            instances.put(instance.getId(), instance);
+          }
+        }
+        for (Instance instance : started) {
+          instances.put(instance.getId(), instance);
+        }
+        stateStore.save(new Cluster(Sets.newLinkedHashSet(instances.values()),
+            saved != null ? saved.getConfiguration() : new Properties()));
+      }
+    } catch (IOException e) {
+      LOG.warn("Unable to save the started instances " + started, e);
+    }
+  }
+
   private Set<Instance> getInstances(final Set<String> roles,
       Set<? extends NodeMetadata> nodes) {
     return Sets.newLinkedHashSet(Collections2.transform(Sets.newLinkedHashSet(nodes),
@@ -28,13 +28,10 @@ import static org.jclouds.compute.options.RunScriptOptions.Builder.overrideLogin
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.whirr.Cluster;
@@ -61,7 +58,9 @@ import com.google.common.base.Predicates;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class ByonClusterAction extends ScriptBasedClusterAction {
 
@@ -85,7 +84,8 @@ public class ByonClusterAction extends ScriptBasedClusterAction {
   protected void doAction(Map<InstanceTemplate, ClusterActionEvent> eventMap)
       throws IOException, InterruptedException {
         
-    final Collection<Future<ExecResponse>> futures = Sets.newHashSet();
+    final Map<Instance, ListenableFuture<ExecResponse>> futures = Maps.newLinkedHashMap();
+    ClusterSpec spec = null;
 
     List<NodeMetadata> nodes = Lists.newArrayList();
     List<NodeMetadata> usedNodes = Lists.newArrayList();
@@ -95,6 +95,7 @@ public class ByonClusterAction extends ScriptBasedClusterAction {
     for (Entry<InstanceTemplate, ClusterActionEvent> entry : eventMap.entrySet()) {
 
       final ClusterSpec clusterSpec = entry.getValue().getClusterSpec();
+      spec = clusterSpec;
       final StatementBuilder statementBuilder = entry.getValue().getStatementBuilder();
       if (statementBuilder.isEmpty()) {
         continue; // skip
@@ -142,20 +143,16 @@ public class ByonClusterAction extends ScriptBasedClusterAction {
       allInstances.addAll(templateInstances);
       
       for (final Instance instance : templateInstances) {
-         futures.add(runStatementOnInstanceInCluster(statementBuilder, instance, clusterSpec, options));
+         futures.put(instance, runStatementOnInstanceInCluster(statementBuilder, instance, clusterSpec, options));
       }
     }
     
-    for (Future<ExecResponse> future : futures) {
-      try {
-        future.get();
-      } catch (ExecutionException e) {
-        throw new IOException(e.getCause());
-      }
+    if (spec != null) {
+      waitForScripts(spec, futures);
     }
       
     if (action.equals(ClusterActionHandler.BOOTSTRAP_ACTION)) {
-      Cluster cluster = new Cluster(allInstances);
+      Cluster cluster = new Cluster(allInstances).prefetchPublicHostNames();
       for (ClusterActionEvent event : eventMap.values()) {
         event.setCluster(cluster);
       }
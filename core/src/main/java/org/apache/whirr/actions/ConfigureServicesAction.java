@@ -23,26 +23,50 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.InstanceTemplate;
 import org.apache.whirr.RolePredicates;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandler;
 import org.apache.whirr.service.FirewallManager.Rule;
+import org.apache.whirr.state.ClusterStateStore;
+import org.apache.whirr.state.ScriptHashes;
 import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
 
 
 /**
  * A {@link org.apache.whirr.ClusterAction} for running a configuration script on instances
  * in the cluster after it has been bootstrapped.
+ * <p>
+ * When created with a {@link ClusterStateStore} the action is incremental: the
+ * hash of the script rendered for each instance is stored after it runs
+ * successfully, and the instances whose script has not changed since are
+ * skipped unless <code>force</code> is set.
  */
 public class ConfigureServicesAction extends ScriptBasedClusterAction {
 
+  private static final Logger LOG =
+    LoggerFactory.getLogger(ConfigureServicesAction.class);
+
+  private final ClusterStateStore stateStore;
+  private final boolean force;
+
+  private Map<String, String> storedHashes;
+  private final Map<String, String> currentHashes = Maps.newConcurrentMap();
+
   public ConfigureServicesAction(
       Function<ClusterSpec, ComputeServiceContext> getCompute,
       LoadingCache<String, ClusterActionHandler> handlerMap
@@ -55,8 +79,26 @@ public class ConfigureServicesAction extends ScriptBasedClusterAction {
       LoadingCache<String, ClusterActionHandler> handlerMap,
       Set<String> targetRoles,
       Set<String> targetInstanceIds
+  ) {
+    this(getCompute, handlerMap, targetRoles, targetInstanceIds, null, true);
+  }
+
+  /**
+   * @param stateStore where the script hashes are kept, or null to always run
+   *          the scripts
+   * @param force run the scripts even if they did not change
+   */
+  public ConfigureServicesAction(
+      Function<ClusterSpec, ComputeServiceContext> getCompute,
+      LoadingCache<String, ClusterActionHandler> handlerMap,
+      Set<String> targetRoles,
+      Set<String> targetInstanceIds,
+      ClusterStateStore stateStore,
+      boolean force
   ) {
     super(getCompute, handlerMap, targetRoles, targetInstanceIds);
+    this.stateStore = stateStore;
+    this.force = force;
   }
 
   @Override
@@ -96,4 +138,51 @@ public class ConfigureServicesAction extends ScriptBasedClusterAction {
     }
   }
 
+  @Override
+  protected boolean shouldRunStatement(Instance instance, Statement statement) {
+    if (stateStore == null) {
+      return true;
+    }
+    String hash = Hashing.sha1().hashString(statement.render(OsFamily.UNIX), Charsets.UTF_8).toString();
+    currentHashes.put(instance.getId(), hash);
+    if (!force && hash.equals(getStoredHashes().get(instance.getId()))) {
+      LOG.info("Configuration unchanged for instance {}, skipping it", instance.getId());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Store the hashes of the scripts that ran successfully.
+   */
+  @Override
+  protected void postRunScriptsActions(
+      Map<InstanceTemplate, ClusterActionEvent> eventMap) throws IOException {
+    if (stateStore == null) {
+      return;
+    }
+    Map<String, String> succeeded = Maps.newHashMap();
+    for (NodeScriptResult result : getScriptResults()) {
+      String hash = currentHashes.get(result.getInstanceId());
+      if (hash != null && result.isSuccess() && result.getExitStatus() == 0) {
+        succeeded.put(result.getInstanceId(), hash);
+      }
+    }
+    if (!succeeded.isEmpty()) {
+      ScriptHashes.update(stateStore, succeeded);
+    }
+  }
+
+  private synchronized Map<String, String> getStoredHashes() {
+    if (storedHashes == null) {
+      try {
+        storedHashes = ScriptHashes.load(stateStore);
+      } catch (IOException e) {
+        LOG.warn("Unable to load the configure script hashes, running all scripts", e);
+        storedHashes = Maps.newHashMap();
+      }
+    }
+    return storedHashes;
+  }
+
 }
@@ -25,6 +25,7 @@ import java.util.Map;
 
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.InstanceTemplate;
+import org.apache.whirr.compute.ProviderExecutors;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandler;
 import org.jclouds.compute.ComputeService;
@@ -63,6 +64,7 @@ public class DestroyClusterAction extends ScriptBasedClusterAction {
     LOG.info("Destroying " + clusterSpec.getClusterName() + " cluster");
     ComputeService computeService = getCompute().apply(clusterSpec)
         .getComputeService();
+    ProviderExecutors.INSTANCE.apply(clusterSpec).acquireApiPermit();
     computeService.destroyNodesMatching(inGroup(clusterSpec.getClusterName()));
     LOG.info("Cluster {} destroyed", clusterSpec.getClusterName());
   }
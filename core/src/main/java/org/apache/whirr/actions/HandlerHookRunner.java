@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.actions;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.whirr.Cluster;
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.service.ClusterActionEvent;
+import org.apache.whirr.service.ClusterActionHandler;
+import org.apache.whirr.service.ConcurrentClusterActionHandler;
+import org.apache.whirr.service.jclouds.StatementBuilder;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Runs the before or the after hooks of the handlers of a cluster action, in
+ * the order they are added. Consecutive {@link ConcurrentClusterActionHandler}s
+ * run in parallel, each with an event and a firewall manager of its own; their
+ * statements, firewall rules and cluster changes are merged back in order
+ * once they have all completed.
+ */
+class HandlerHookRunner {
+
+  private final ExecutorService executor;
+  private final boolean before;
+  private final List<Hook> hooks = Lists.newArrayList();
+
+  /**
+   * @param before true to run {@link ClusterActionHandler#beforeAction},
+   *          false to run {@link ClusterActionHandler#afterAction}
+   */
+  HandlerHookRunner(ExecutorService executor, boolean before) {
+    this.executor = executor;
+    this.before = before;
+  }
+
+  void add(ClusterActionHandler handler, ClusterActionEvent event) {
+    hooks.add(new Hook(handler, event));
+  }
+
+  /**
+   * Run the hooks, passing the cluster updated by each of them to the next.
+   *
+   * @return the cluster updated by all the hooks
+   */
+  Cluster run(Cluster cluster) throws IOException, InterruptedException {
+    int start = 0;
+    while (start < hooks.size()) {
+      int end = start + 1;
+      if (hooks.get(start).isConcurrent()) {
+        while (end < hooks.size() && hooks.get(end).isConcurrent()) {
+          end++;
+        }
+      }
+      if (end - start == 1) {
+        Hook hook = hooks.get(start);
+        hook.event.setCluster(cluster);
+        hook.run(hook.event);
+        cluster = hook.event.getCluster();
+      } else {
+        cluster = runConcurrently(hooks.subList(start, end), cluster);
+      }
+      start = end;
+    }
+    return cluster;
+  }
+
+  private Cluster runConcurrently(List<Hook> batch, Cluster cluster)
+      throws IOException, InterruptedException {
+    List<ClusterActionEvent> events = Lists.newArrayListWithCapacity(batch.size());
+    List<Future<Void>> futures = Lists.newArrayListWithCapacity(batch.size());
+    for (final Hook hook : batch) {
+      final ClusterActionEvent event = hook.newEvent(cluster);
+      events.add(event);
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          hook.run(event);
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+          Throwables.propagateIfInstanceOf(e.getCause(), InterruptedException.class);
+          throw Throwables.propagate(e.getCause());
+        }
+      }
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true); // no-op for the completed ones
+      }
+    }
+
+    Cluster merged = cluster;
+    for (int i = 0; i < batch.size(); i++) {
+      ClusterActionEvent target = batch.get(i).event;
+      ClusterActionEvent event = events.get(i);
+      if (target.getStatementBuilder() != null) {
+        target.getStatementBuilder().addAll(event.getStatementBuilder());
+      }
+      if (target.getFirewallManager() != null) {
+        target.getFirewallManager().addRulesOf(event.getFirewallManager());
+      }
+      if (event.getCluster() != cluster && event.getCluster() != null) {
+        merged = (merged == null) ? event.getCluster() : merge(cluster, merged, event.getCluster());
+      }
+    }
+    for (Hook hook : batch) {
+      hook.event.setCluster(merged);
+    }
+    return merged;
+  }
+
+  /**
+   * Apply the changes a hook made to the instances of <code>base</code>, by
+   * instance id, to the cluster merged so far: the instances it added or
+   * replaced are put and the ones it dropped are removed. The configuration
+   * properties are combined, the changed ones taking precedence.
+   */
+  private static Cluster merge(Cluster base, Cluster merged, Cluster changed) {
+    Map<String, Instance> baseInstances = byId(base);
+    Map<String, Instance> instances = byId(merged);
+    Map<String, Instance> changedInstances = byId(changed);
+    for (String id : baseInstances.keySet()) {
+      if (!changedInstances.containsKey(id)) {
+        instances.remove(id);
+      }
+    }
+    for (Map.Entry<String, Instance> entry : changedInstances.entrySet()) {
+      if (entry.getValue() != baseInstances.get(entry.getKey())) {
+        instances.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    Properties configuration = new Properties();
+    if (merged.getConfiguration() != null) {
+      configuration.putAll(merged.getConfiguration());
+    }
+    if (changed.getConfiguration() != null) {
+      configuration.putAll(changed.getConfiguration());
+    }
+    return new Cluster(Sets.newLinkedHashSet(instances.values()), configuration);
+  }
+
+  private static Map<String, Instance> byId(Cluster cluster) {
+    Map<String, Instance> instances = Maps.newLinkedHashMap();
+    if (cluster != null) {
+      for (Instance instance : cluster.getInstances()) {
+        instances.put(instance.getId(), instance);
+      }
+    }
+    return instances;
+  }
+
+  private class Hook {
+
+    private final ClusterActionHandler handler;
+    private final ClusterActionEvent event;
+
+    Hook(ClusterActionHandler handler, ClusterActionEvent event) {
+      this.handler = handler;
+      this.event = event;
+    }
+
+    boolean isConcurrent() {
+      return handler instanceof ConcurrentClusterActionHandler;
+    }
+
+    /**
+     * @return an event like the one of the hook, with a statement builder
+     *         and a firewall manager of its own
+     */
+    ClusterActionEvent newEvent(Cluster cluster) {
+      return new ClusterActionEvent(event.getAction(), event.getClusterSpec(),
+          event.getInstanceTemplate(), cluster,
+          event.getStatementBuilder() == null ? null : new StatementBuilder(),
+          event.getCompute(),
+          event.getFirewallManager() == null ? null : event.getFirewallManager().copy(cluster),
+          event.getTemplateEngine());
+    }
+
+    void run(ClusterActionEvent event) throws IOException, InterruptedException {
+      if (before) {
+        handler.beforeAction(event);
+      } else {
+        handler.afterAction(event);
+      }
+    }
+  }
+
+}
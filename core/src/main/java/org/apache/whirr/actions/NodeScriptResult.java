@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.actions;
+
+import java.util.List;
+import java.util.Set;
+
+import org.jclouds.compute.domain.ExecResponse;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * The outcome of running the scripts of a phase on one instance.
+ */
+public class NodeScriptResult {
+
+  private final String phase;
+  private final String instanceId;
+  private final Set<String> roles;
+  private final ExecResponse response;
+  private final Throwable failure;
+  private final long durationMillis;
+
+  public NodeScriptResult(String phase, String instanceId, Set<String> roles,
+      ExecResponse response, Throwable failure, long durationMillis) {
+    this.phase = phase;
+    this.instanceId = instanceId;
+    this.roles = ImmutableSet.copyOf(roles);
+    this.response = response;
+    this.failure = failure;
+    this.durationMillis = durationMillis;
+  }
+
+  public String getPhase() {
+    return phase;
+  }
+
+  public String getInstanceId() {
+    return instanceId;
+  }
+
+  public Set<String> getRoles() {
+    return roles;
+  }
+
+  /**
+   * @return the response of the script or null if it could not be run
+   */
+  public ExecResponse getResponse() {
+    return response;
+  }
+
+  /**
+   * @return the exit code of the script or -1 if it could not be run
+   */
+  public int getExitStatus() {
+    return response == null ? -1 : response.getExitStatus();
+  }
+
+  /**
+   * @return the reason the script could not be run, or null
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  public boolean isSuccess() {
+    return failure == null;
+  }
+
+  /**
+   * @return the time between the submission and the completion of the
+   *         script, including any time spent waiting for an SSH session
+   */
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /**
+   * @param targetInstanceIds the instances the phase was run on
+   * @param results the script results of the phase
+   * @param phaseFinished true if the phase completed without error
+   * @return the IDs of the targeted instances that completed the phase: the
+   *         ones whose script succeeded and, if the phase finished, the ones
+   *         that had no script to run
+   */
+  public static Set<String> completedInstanceIds(Set<String> targetInstanceIds,
+      List<NodeScriptResult> results, boolean phaseFinished) {
+    Set<String> completed = phaseFinished ? Sets.newLinkedHashSet(targetInstanceIds)
+        : Sets.<String>newLinkedHashSet();
+    for (NodeScriptResult result : results) {
+      if (result.isSuccess()) {
+        completed.add(result.getInstanceId());
+      } else {
+        completed.remove(result.getInstanceId());
+      }
+    }
+    completed.retainAll(targetInstanceIds);
+    return completed;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this).omitNullValues()
+      .add("phase", phase)
+      .add("instanceId", instanceId)
+      .add("roles", roles)
+      .add("exitStatus", getExitStatus())
+      .add("durationMillis", durationMillis)
+      .add("failure", failure)
+      .toString();
+  }
+
+}
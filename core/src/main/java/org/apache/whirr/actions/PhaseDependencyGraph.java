@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.actions;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.InstanceTemplate;
+import org.apache.whirr.service.ClusterActionHandler;
+import org.apache.whirr.service.RoleDependencies;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Dependencies between the {@link InstanceTemplate}s of a cluster, derived
+ * from the dependencies declared by the roles they contain.
+ * <p>
+ * Template <i>A</i> depends on template <i>B</i> if any role of <i>A</i>
+ * depends on any role of <i>B</i>. <i>A</i> can then be started as soon as
+ * <i>B</i> is started, without waiting for the rest of the cluster.
+ */
+public class PhaseDependencyGraph {
+
+  public static final String DEPENDS_ON_SUFFIX = ".depends-on";
+  public static final String ALL_ROLES = "*";
+
+  private final List<InstanceTemplate> templates;
+  private final List<Set<Integer>> dependencies;
+
+  /**
+   * Build the graph for a cluster using the dependencies declared by the
+   * role handlers or overridden in the cluster configuration.
+   */
+  public static PhaseDependencyGraph build(final ClusterSpec clusterSpec,
+      final Function<String, ClusterActionHandler> handlers) {
+    return new PhaseDependencyGraph(clusterSpec.getInstanceTemplates(),
+        new Function<String, Set<String>>() {
+          @Override
+          public Set<String> apply(String role) {
+            return getRoleDependencies(clusterSpec, handlers, role);
+          }
+        });
+  }
+
+  /**
+   * @param roleDependencies returns the roles a role depends on, or
+   *          <code>null</code> if it depends on all roles
+   */
+  public PhaseDependencyGraph(List<InstanceTemplate> templates,
+      Function<String, Set<String>> roleDependencies) {
+    this.templates = ImmutableList.copyOf(checkNotNull(templates, "templates"));
+    this.dependencies = Lists.newArrayListWithCapacity(templates.size());
+    for (InstanceTemplate template : this.templates) {
+      dependencies.add(computeDependencies(template, roleDependencies));
+    }
+  }
+
+  private Set<Integer> computeDependencies(InstanceTemplate template,
+      Function<String, Set<String>> roleDependencies) {
+    Set<String> roles = Sets.newHashSet();
+    boolean dependsOnAll = false;
+    for (String role : template.getRoles()) {
+      Set<String> declared = roleDependencies.apply(role);
+      if (declared == null || declared.contains(ALL_ROLES)) {
+        dependsOnAll = true;
+        break;
+      }
+      roles.addAll(declared);
+    }
+
+    Set<Integer> result = Sets.newTreeSet();
+    for (int i = 0; i < templates.size(); i++) {
+      InstanceTemplate other = templates.get(i);
+      if (other == template) {
+        continue;
+      }
+      if (dependsOnAll || !Sets.intersection(roles, other.getRoles()).isEmpty()) {
+        result.add(i);
+      }
+    }
+    return ImmutableSet.copyOf(result);
+  }
+
+  public List<InstanceTemplate> getInstanceTemplates() {
+    return templates;
+  }
+
+  /**
+   * @return the templates that must finish a phase before the given template
+   *         can start the next one, in declaration order
+   */
+  public List<InstanceTemplate> getDependencies(InstanceTemplate template) {
+    int index = indexOf(template);
+    List<InstanceTemplate> result = Lists.newArrayList();
+    for (Integer i : dependencies.get(index)) {
+      result.add(templates.get(i));
+    }
+    return result;
+  }
+
+  Set<Integer> getDependencies(int index) {
+    return dependencies.get(index);
+  }
+
+  /**
+   * @return true if the phases must run as global barriers: either every
+   *         template depends on all others, so there is nothing to overlap,
+   *         or the dependencies are cyclic and could not be scheduled
+   */
+  public boolean isBarrier() {
+    if (templates.size() <= 1) {
+      return true;
+    }
+    boolean allDependOnAll = true;
+    for (Set<Integer> deps : dependencies) {
+      if (deps.size() != templates.size() - 1) {
+        allDependOnAll = false;
+        break;
+      }
+    }
+    return allDependOnAll || hasCycle();
+  }
+
+  public boolean hasCycle() {
+    // 0 = unvisited, 1 = on the current path, 2 = done
+    int[] state = new int[templates.size()];
+    for (int i = 0; i < templates.size(); i++) {
+      if (state[i] == 0 && visit(i, state)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean visit(int index, int[] state) {
+    state[index] = 1;
+    for (Integer dep : dependencies.get(index)) {
+      if (state[dep] == 1 || (state[dep] == 0 && visit(dep, state))) {
+        return true;
+      }
+    }
+    state[index] = 2;
+    return false;
+  }
+
+  private int indexOf(InstanceTemplate template) {
+    for (int i = 0; i < templates.size(); i++) {
+      if (templates.get(i) == template) {
+        return i;
+      }
+    }
+    int index = templates.indexOf(template);
+    if (index < 0) {
+      throw new IllegalArgumentException("Unknown instance template " + template);
+    }
+    return index;
+  }
+
+  static Set<String> getRoleDependencies(ClusterSpec clusterSpec,
+      Function<String, ClusterActionHandler> handlers, String role) {
+    Configuration config = clusterSpec.getConfiguration();
+    String key = "whirr." + role + DEPENDS_ON_SUFFIX;
+    if (config.containsKey(key)) {
+      Set<String> roles = Sets.newHashSet();
+      for (String value : config.getStringArray(key)) {
+        if (value.trim().length() > 0) {
+          roles.add(value.trim());
+        }
+      }
+      return roles.contains(ALL_ROLES) ? null : roles;
+    }
+    ClusterActionHandler handler = handlers.apply(role);
+    if (handler instanceof RoleDependencies) {
+      return ((RoleDependencies) handler).getRoleDependencies(clusterSpec);
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < templates.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(templates.get(i).getRoles()).append(" <- ");
+      List<Set<String>> deps = Lists.newArrayList();
+      for (Integer dep : dependencies.get(i)) {
+        deps.add(templates.get(dep).getRoles());
+      }
+      sb.append(deps);
+    }
+    return sb.toString();
+  }
+
+}
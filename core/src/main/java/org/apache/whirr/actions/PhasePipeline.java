@@ -0,0 +1,339 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.actions;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.apache.whirr.service.ClusterActionHandler.BOOTSTRAP_ACTION;
+import static org.apache.whirr.service.ClusterActionHandler.CONFIGURE_ACTION;
+import static org.apache.whirr.service.ClusterActionHandler.START_ACTION;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.whirr.Cluster;
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.HandlerMapFactory;
+import org.apache.whirr.InstanceTemplate;
+import org.apache.whirr.state.ClusterStateStore;
+import org.apache.whirr.state.PhaseJournal;
+import org.jclouds.compute.ComputeServiceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Launches a cluster by running the bootstrap, configure and start phases
+ * independently for each {@link InstanceTemplate}, as described by a
+ * {@link PhaseDependencyGraph}.
+ * <p>
+ * The templates are bootstrapped concurrently. A template is configured once
+ * every template is bootstrapped, so that the /etc/hosts block and the
+ * firewall rules of the configure scripts cover all the cluster members, and
+ * started as soon as it is configured and the templates it depends on are
+ * started. The resulting cluster is the same as the one
+ * produced by running the phases one after the other: instances and
+ * configuration are merged in template declaration order.
+ * <p>
+ * The phases completed by each instance are recorded in the
+ * {@link PhaseJournal} of the state store.
+ */
+public class PhasePipeline {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PhasePipeline.class);
+
+  private final Function<ClusterSpec, ComputeServiceContext> getCompute;
+  private final HandlerMapFactory handlerMapFactory;
+  private final ClusterStateStore stateStore;
+
+  private List<InstanceTemplate> templates;
+  private List<Cluster> results;
+  private List<Set<String>> instanceIds;
+
+  private CountDownLatch[] bootstrapped;
+  private CountDownLatch[] started;
+  private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+  private final Map<String, List<NodeScriptResult>> scriptResults = Maps.newHashMap();
+  private final List<ListenableFuture<Set<Instance>>> lateInstances = Lists.newArrayList();
+
+  public PhasePipeline(Function<ClusterSpec, ComputeServiceContext> getCompute,
+      HandlerMapFactory handlerMapFactory, ClusterStateStore stateStore) {
+    this.getCompute = checkNotNull(getCompute, "getCompute");
+    this.handlerMapFactory = checkNotNull(handlerMapFactory, "handlerMapFactory");
+    this.stateStore = checkNotNull(stateStore, "stateStore");
+  }
+
+  public Cluster execute(ClusterSpec clusterSpec, PhaseDependencyGraph graph)
+      throws IOException, InterruptedException {
+    templates = graph.getInstanceTemplates();
+    int size = templates.size();
+
+    results = Lists.newArrayListWithCapacity(size);
+    instanceIds = Lists.newArrayListWithCapacity(size);
+    bootstrapped = new CountDownLatch[size];
+    started = new CountDownLatch[size];
+    List<ClusterSpec> specs = Lists.newArrayListWithCapacity(size);
+    for (int i = 0; i < size; i++) {
+      results.add(null);
+      instanceIds.add(ImmutableSet.<String>of());
+      bootstrapped[i] = new CountDownLatch(1);
+      started[i] = new CountDownLatch(1);
+      specs.add(specForTemplate(clusterSpec, templates.get(i)));
+    }
+
+    ExecutorService executorService = Executors.newFixedThreadPool(size);
+    try {
+      List<Future<Void>> futures = Lists.newArrayList();
+      for (int i = 0; i < size; i++) {
+        futures.add(executorService.submit(
+            new TemplatePipeline(i, specs.get(i), graph.getDependencies(i))));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          // the first failure is the one that aborted the other templates
+        }
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+
+    Throwable cause = failure.get();
+    if (cause != null) {
+      Throwables.propagateIfInstanceOf(cause, IOException.class);
+      Throwables.propagateIfInstanceOf(cause, InterruptedException.class);
+      throw new IOException(cause);
+    }
+    return merge();
+  }
+
+  private ClusterSpec specForTemplate(ClusterSpec clusterSpec, InstanceTemplate template)
+      throws IOException {
+    try {
+      ClusterSpec spec = clusterSpec.copy();
+      spec.setInstanceTemplates(Lists.newArrayList(template));
+      return spec;
+    } catch (ConfigurationException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Merge the instances and the configuration produced so far for each
+   * template, in template declaration order.
+   */
+  private synchronized Cluster merge() {
+    Set<Instance> instances = Sets.newLinkedHashSet();
+    Properties configuration = new Properties();
+    for (int i = 0; i < templates.size(); i++) {
+      Cluster cluster = results.get(i);
+      if (cluster == null) {
+        continue;
+      }
+      for (Instance instance : cluster.getInstances()) {
+        if (instanceIds.get(i).contains(instance.getId())) {
+          instances.add(instance);
+        }
+      }
+      configuration.putAll(cluster.getConfiguration());
+    }
+    return new Cluster(instances, configuration);
+  }
+
+  private synchronized void update(int index, Cluster cluster) {
+    results.set(index, cluster);
+  }
+
+  private synchronized void record(ScriptBasedClusterAction action) {
+    for (NodeScriptResult result : action.getScriptResults()) {
+      List<NodeScriptResult> phaseResults = scriptResults.get(result.getPhase());
+      if (phaseResults == null) {
+        phaseResults = Lists.newArrayList();
+        scriptResults.put(result.getPhase(), phaseResults);
+      }
+      phaseResults.add(result);
+    }
+  }
+
+  /**
+   * @return the per-instance script results of all the templates, by phase
+   */
+  public synchronized Map<String, List<NodeScriptResult>> getScriptResults() {
+    ImmutableMap.Builder<String, List<NodeScriptResult>> builder = ImmutableMap.builder();
+    for (Map.Entry<String, List<NodeScriptResult>> entry : scriptResults.entrySet()) {
+      builder.put(entry.getKey(), ImmutableList.copyOf(entry.getValue()));
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return the instances of all the templates that started after their
+   *         bootstrap phase was over
+   * @see BootstrapClusterAction#getLateInstances()
+   */
+  public synchronized ListenableFuture<Set<Instance>> getLateInstances() {
+    return Futures.transform(Futures.allAsList(lateInstances),
+        new Function<List<Set<Instance>>, Set<Instance>>() {
+      @Override
+      public Set<Instance> apply(List<Set<Instance>> instances) {
+        Set<Instance> merged = Sets.newLinkedHashSet();
+        for (Set<Instance> templateInstances : instances) {
+          merged.addAll(templateInstances);
+        }
+        return merged;
+      }
+    });
+  }
+
+  private void await(CountDownLatch[] latches, Set<Integer> dependencies)
+      throws InterruptedException, IOException {
+    for (Integer dependency : dependencies) {
+      latches[dependency].await();
+    }
+    if (failure.get() != null) {
+      throw new IOException("Aborted because another instance template failed",
+          failure.get());
+    }
+  }
+
+  private Set<Integer> allTemplates() {
+    Set<Integer> all = Sets.newTreeSet();
+    for (int i = 0; i < templates.size(); i++) {
+      all.add(i);
+    }
+    return all;
+  }
+
+  private void abort(Throwable cause) {
+    if (failure.compareAndSet(null, cause)) {
+      LOG.error("Launch pipeline failed, aborting all instance templates", cause);
+    }
+    for (int i = 0; i < templates.size(); i++) {
+      bootstrapped[i].countDown();
+      started[i].countDown();
+    }
+  }
+
+  private class TemplatePipeline implements Callable<Void> {
+
+    private final int index;
+    private final ClusterSpec spec;
+    private final Set<Integer> dependencies;
+
+    TemplatePipeline(int index, ClusterSpec spec, Set<Integer> dependencies) {
+      this.index = index;
+      this.spec = spec;
+      this.dependencies = dependencies;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      Set<String> roles = templates.get(index).getRoles();
+      try {
+        BootstrapClusterAction bootstrapper = new BootstrapClusterAction(getCompute,
+            handlerMapFactory.create());
+        Cluster cluster = bootstrapper.execute(spec, null);
+        synchronized (PhasePipeline.this) {
+          lateInstances.add(bootstrapper.getLateInstances());
+          instanceIds.set(index, ids(cluster));
+          update(index, cluster);
+          stateStore.save(merge());
+        }
+        PhaseJournal.record(stateStore, BOOTSTRAP_ACTION, instanceIds.get(index));
+        bootstrapped[index].countDown();
+        LOG.info("Instance template {} bootstrapped", roles);
+
+        // the membership statements of the configure scripts need every node
+        await(bootstrapped, allTemplates());
+        ConfigureServicesAction configurer = new ConfigureServicesAction(getCompute,
+            handlerMapFactory.create(), ImmutableSet.<String>of(), instanceIds.get(index),
+            stateStore, false);
+        boolean finished = false;
+        try {
+          cluster = configurer.execute(spec, merge());
+          finished = true;
+        } finally {
+          record(configurer, CONFIGURE_ACTION, finished);
+        }
+        update(index, cluster);
+        LOG.info("Instance template {} configured", roles);
+
+        await(started, dependencies);
+        StartServicesAction starter = new StartServicesAction(getCompute,
+            handlerMapFactory.create(), ImmutableSet.<String>of(), instanceIds.get(index));
+        finished = false;
+        try {
+          cluster = starter.execute(spec, merge());
+          finished = true;
+        } finally {
+          record(starter, START_ACTION, finished);
+        }
+        update(index, cluster);
+        started[index].countDown();
+        LOG.info("Instance template {} started", roles);
+
+        return null;
+
+      } catch (Throwable t) {
+        abort(t);
+        Throwables.propagateIfPossible(t, Exception.class);
+        throw new RuntimeException(t);
+      }
+    }
+
+    private void record(ScriptBasedClusterAction action, String phase,
+        boolean finished) throws IOException {
+      PhasePipeline.this.record(action);
+      PhaseJournal.record(stateStore, phase,
+          NodeScriptResult.completedInstanceIds(instanceIds.get(index),
+              action.getScriptResults(), finished));
+    }
+  }
+
+  private static Set<String> ids(Cluster cluster) {
+    ImmutableSet.Builder<String> ids = ImmutableSet.builder();
+    for (Instance instance : cluster.getInstances()) {
+      ids.add(instance.getId());
+    }
+    return ids.build();
+  }
+
+}
@@ -22,22 +22,28 @@ import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
 import static com.google.common.base.Predicates.not;
 import com.google.common.base.Throwables;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import org.apache.velocity.app.VelocityEngine;
 import org.apache.whirr.Cluster;
 import static org.apache.whirr.Cluster.Instance;
@@ -45,11 +51,12 @@ import org.apache.whirr.ClusterAction;
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.InstanceTemplate;
 import static org.apache.whirr.RolePredicates.onlyRolesIn;
+import org.apache.whirr.compute.ProviderExecutors;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandler;
 import org.apache.whirr.service.FirewallManager;
 import org.apache.whirr.service.jclouds.StatementBuilder;
-import org.apache.whirr.template.TemplateUtils;
+import org.apache.whirr.template.TemplateCache;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.ComputeServiceContext;
 import org.jclouds.compute.domain.ExecResponse;
@@ -73,6 +80,8 @@ public abstract class ScriptBasedClusterAction extends ClusterAction {
   private final ImmutableSet<String> targetRoles;
   private final ImmutableSet<String> targetInstanceIds;
 
+  private volatile List<NodeScriptResult> scriptResults = ImmutableList.of();
+
   protected ScriptBasedClusterAction(
       Function<ClusterSpec, ComputeServiceContext> getCompute,
       LoadingCache<String, ClusterActionHandler> handlerMap
@@ -92,11 +101,18 @@ public abstract class ScriptBasedClusterAction extends ClusterAction {
     this.targetInstanceIds = ImmutableSet.copyOf(checkNotNull(targetInstanceIds, "targetInstanceIds"));
   }
 
+  /**
+   * Run the action. The hooks of the handlers run in instance template and
+   * role order, except for the consecutive
+   * {@link org.apache.whirr.service.ConcurrentClusterActionHandler}s, which
+   * run in parallel.
+   */
   public Cluster execute(ClusterSpec clusterSpec, Cluster cluster)
       throws IOException, InterruptedException {
 
+    ExecutorService hookExecutor = ProviderExecutors.INSTANCE.apply(clusterSpec).getHookExecutor();
     Map<InstanceTemplate, ClusterActionEvent> eventMap = Maps.newHashMap();
-    Cluster newCluster = cluster;
+    HandlerHookRunner beforeHooks = new HandlerHookRunner(hookExecutor, true);
     for (InstanceTemplate instanceTemplate : clusterSpec.getInstanceTemplates()) {
       if (shouldIgnoreInstanceTemplate(instanceTemplate)) {
         continue; // skip execution if this group of instances is not in target
@@ -105,23 +121,26 @@ public abstract class ScriptBasedClusterAction extends ClusterAction {
 
       ComputeServiceContext computeServiceContext = getCompute().apply(clusterSpec);
       FirewallManager firewallManager = new FirewallManager(
-          computeServiceContext, clusterSpec, newCluster);
+          computeServiceContext, clusterSpec, cluster);
 
-      VelocityEngine velocityEngine = TemplateUtils.newVelocityEngine();
+      VelocityEngine velocityEngine = TemplateCache.INSTANCE.getEngine();
 
       ClusterActionEvent event = new ClusterActionEvent(getAction(), clusterSpec,
-          instanceTemplate, newCluster, statementBuilder, getCompute(), firewallManager, velocityEngine);
+          instanceTemplate, cluster, statementBuilder, getCompute(), firewallManager, velocityEngine);
 
       eventMap.put(instanceTemplate, event);
       eventSpecificActions(instanceTemplate, event);
       for (String role : instanceTemplate.getRoles()) {
         if (roleIsInTarget(role)) {
-          safeGetActionHandler(role).beforeAction(event);
+          beforeHooks.add(safeGetActionHandler(role), event);
         }
       }
-
-      // cluster may have been updated by handler
-      newCluster = event.getCluster();
+    }
+    // cluster may have been updated by handlers, the events and their
+    // firewall managers use the updated one from now on
+    Cluster newCluster = beforeHooks.run(cluster);
+    for (ClusterActionEvent event : eventMap.values()) {
+      event.setCluster(newCluster);
     }
 
     doAction(eventMap);
@@ -129,6 +148,7 @@ public abstract class ScriptBasedClusterAction extends ClusterAction {
     // cluster may have been updated by action
     newCluster = Iterables.get(eventMap.values(), 0).getCluster();
 
+    HandlerHookRunner afterHooks = new HandlerHookRunner(hookExecutor, false);
     for (InstanceTemplate instanceTemplate : clusterSpec.getInstanceTemplates()) {
       if (shouldIgnoreInstanceTemplate(instanceTemplate)) {
         continue;
@@ -136,16 +156,12 @@ public abstract class ScriptBasedClusterAction extends ClusterAction {
       ClusterActionEvent event = eventMap.get(instanceTemplate);
       for (String role : instanceTemplate.getRoles()) {
         if (roleIsInTarget(role)) {
-          event.setCluster(newCluster);
-          safeGetActionHandler(role).afterAction(event);
-
-          // cluster may have been updated by handler
-          newCluster = event.getCluster();
+          afterHooks.add(safeGetActionHandler(role), event);
         }
       }
     }
-
-    return newCluster;
+    // cluster may have been updated by handlers
+    return afterHooks.run(newCluster);
   }
 
   protected void doAction(Map<InstanceTemplate, ClusterActionEvent> eventMap)
@@ -158,7 +174,7 @@ public abstract class ScriptBasedClusterAction extends ClusterAction {
       throws InterruptedException, IOException {
 
     final String phaseName = getAction();
-    final Collection<Future<ExecResponse>> futures = Sets.newHashSet();
+    final Map<Instance, ListenableFuture<ExecResponse>> futures = Maps.newLinkedHashMap();
 
     final ClusterSpec clusterSpec = eventMap.values().iterator().next().getClusterSpec();
 
@@ -177,31 +193,127 @@ public abstract class ScriptBasedClusterAction extends ClusterAction {
         continue; // skip execution if we have an empty list
       }
 
-      Set<Instance> instances = cluster.getInstancesMatching(Predicates.<Instance> and(onlyRolesIn(entry.getKey()
-          .getRoles()), not(instanceIsNotInTarget())));
+      Set<Instance> instances = Sets.filter(cluster.getInstancesMatching(onlyRolesIn(entry.getKey()
+          .getRoles())), not(instanceIsNotInTarget()));
       LOG.info("Starting to run scripts on cluster for phase {} " + "on instances: {}", phaseName,
           asString(instances));
 
       for (Instance instance : instances) {
-        futures.add(runStatementOnInstanceInCluster(statementBuilder, instance, clusterSpec, options));
+        Statement statement = buildStatement(statementBuilder, instance, clusterSpec);
+        if (shouldRunStatement(instance, statement)) {
+          futures.put(instance, runStatementOnInstance(statement, instance, clusterSpec, options));
+        }
       }
     }
-    for (Future<ExecResponse> future : futures) {
-      try {
-        future.get();
-      } catch (ExecutionException e) {
-        throw new IOException(e.getCause());
+    waitForScripts(clusterSpec, futures);
+    LOG.info("Finished running {} phase scripts on all cluster instances", phaseName);
+  }
+
+  /**
+   * Wait for the scripts submitted to the instances, handling them in the
+   * order they complete. A failed script is reported as soon as it completes
+   * and, once the failures are above the limit set by
+   * {@link ClusterSpec#getMaxScriptFailures()}, the scripts that are still
+   * running are cancelled and an {@link IOException} is thrown.
+   */
+  protected void waitForScripts(ClusterSpec clusterSpec,
+      Map<Instance, ListenableFuture<ExecResponse>> futures)
+      throws InterruptedException, IOException {
+    final ScriptFailurePolicy policy = ScriptFailurePolicy.parse(clusterSpec.getMaxScriptFailures());
+    final long start = System.currentTimeMillis();
+    final BlockingQueue<NodeScriptResult> completed = new LinkedBlockingQueue<NodeScriptResult>();
+
+    for (final Map.Entry<Instance, ListenableFuture<ExecResponse>> entry : futures.entrySet()) {
+      entry.getValue().addListener(new Runnable() {
+        @Override
+        public void run() {
+          completed.add(toResult(entry.getKey(), entry.getValue(), start));
+        }
+      }, MoreExecutors.sameThreadExecutor());
+    }
+
+    List<NodeScriptResult> results = Lists.newArrayListWithCapacity(futures.size());
+    int failures = 0;
+    try {
+      while (results.size() < futures.size()) {
+        NodeScriptResult result = completed.take();
+        results.add(result);
+        if (result.isSuccess()) {
+          continue;
+        }
+        failures++;
+        LOG.error(String.format("%s scripts failed on instance %s (%d of %d instances failed so far)",
+            getAction(), result.getInstanceId(), failures, futures.size()), result.getFailure());
+        if (policy.isTripped(failures, futures.size())) {
+          throw new IOException(String.format("Aborting the %s phase: scripts failed on %d of %d " +
+              "instances, at most %s failures are tolerated", getAction(), failures, futures.size(),
+              policy), result.getFailure());
+        }
+      }
+      if (failures > 0) {
+        LOG.warn("{} scripts failed on {} of {} instances, within the tolerated {} failures",
+            new Object[] {getAction(), failures, futures.size(), policy});
+      }
+    } finally {
+      scriptResults = ImmutableList.copyOf(results);
+      for (Future<ExecResponse> future : futures.values()) {
+        future.cancel(true); // no-op for the completed ones
       }
     }
-    LOG.info("Finished running {} phase scripts on all cluster instances", phaseName);
+  }
+
+  private NodeScriptResult toResult(Instance instance, Future<ExecResponse> future, long start) {
+    long duration = System.currentTimeMillis() - start;
+    ExecResponse response = null;
+    Throwable failure = null;
+    try {
+      response = future.get();
+    } catch (ExecutionException e) {
+      failure = e.getCause();
+    } catch (CancellationException e) {
+      failure = e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure = e;
+    }
+    return new NodeScriptResult(getAction(), instance.getId(), instance.getRoles(),
+        response, failure, duration);
+  }
+
+  /**
+   * @return the results of the scripts run on each instance by the last
+   *         execution of this action, in completion order
+   */
+  public List<NodeScriptResult> getScriptResults() {
+    return scriptResults;
   }
   
   public ListenableFuture<ExecResponse> runStatementOnInstanceInCluster(StatementBuilder statementBuilder,
       Instance instance, ClusterSpec clusterSpec, RunScriptOptions options) {
-    Statement statement = statementBuilder.name(getAction() + "-"
+    return runStatementOnInstance(buildStatement(statementBuilder, instance, clusterSpec),
+        instance, clusterSpec, options);
+  }
+
+  protected Statement buildStatement(StatementBuilder statementBuilder, Instance instance,
+      ClusterSpec clusterSpec) {
+    return statementBuilder.name(getAction() + "-"
           + Joiner.on('_').join(instance.getRoles())).build(clusterSpec, instance);
+  }
+
+  /**
+   * Hook to skip instances whose script does not need to run.
+   *
+   * @return true if the statement should be run on the instance
+   */
+  protected boolean shouldRunStatement(Instance instance, Statement statement) {
+    return true;
+  }
+
+  protected ListenableFuture<ExecResponse> runStatementOnInstance(Statement statement,
+      Instance instance, ClusterSpec clusterSpec, RunScriptOptions options) {
     ComputeService compute = getCompute().apply(clusterSpec).getComputeService();
-    return compute.submitScriptOnNode(
+    return ProviderExecutors.INSTANCE.apply(clusterSpec).submitScriptOnNode(
+              compute,
               instance.getId(),
               statement,
               options);
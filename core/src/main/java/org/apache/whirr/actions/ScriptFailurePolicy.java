@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.actions;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Objects;
+
+/**
+ * Decides when the script failures of a phase should abort the whole action.
+ * <p>
+ * A policy is either an absolute number of tolerated failures, e.g.
+ * <code>2</code>, or a percentage of the instances the scripts run on, e.g.
+ * <code>10%</code>. The default, <code>0</code>, aborts on the first failure.
+ */
+public class ScriptFailurePolicy {
+
+  public static final ScriptFailurePolicy ABORT_ON_FIRST_FAILURE = new ScriptFailurePolicy(0, false);
+
+  private final int tolerated;
+  private final boolean percentage;
+
+  private ScriptFailurePolicy(int tolerated, boolean percentage) {
+    checkArgument(tolerated >= 0, "The number of tolerated failures must not be negative");
+    checkArgument(!percentage || tolerated <= 100, "A percentage must not be over 100");
+    this.tolerated = tolerated;
+    this.percentage = percentage;
+  }
+
+  public static ScriptFailurePolicy tolerate(int failures) {
+    return new ScriptFailurePolicy(failures, false);
+  }
+
+  public static ScriptFailurePolicy toleratePercentage(int percent) {
+    return new ScriptFailurePolicy(percent, true);
+  }
+
+  /**
+   * @param value a number of failures, a percentage ending with '%' or null
+   *          for the default policy
+   */
+  public static ScriptFailurePolicy parse(String value) {
+    if (value == null || value.trim().length() == 0) {
+      return ABORT_ON_FIRST_FAILURE;
+    }
+    String trimmed = value.trim();
+    try {
+      if (trimmed.endsWith("%")) {
+        return toleratePercentage(Integer.parseInt(trimmed.substring(0, trimmed.length() - 1).trim()));
+      }
+      return tolerate(Integer.parseInt(trimmed));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid script failure policy: " + value, e);
+    }
+  }
+
+  /**
+   * @return true if the action must be aborted after <code>failures</code>
+   *         failed scripts out of <code>total</code>
+   */
+  public boolean isTripped(int failures, int total) {
+    if (percentage) {
+      return failures * 100L > (long) tolerated * total;
+    }
+    return failures > tolerated;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof ScriptFailurePolicy) {
+      ScriptFailurePolicy that = (ScriptFailurePolicy) o;
+      return tolerated == that.tolerated && percentage == that.percentage;
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(tolerated, percentage);
+  }
+
+  @Override
+  public String toString() {
+    return percentage ? tolerated + "%" : Integer.toString(tolerated);
+  }
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import static org.jclouds.scriptbuilder.domain.Statements.newStatementList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.InstanceTemplate;
+import org.apache.whirr.service.jclouds.StatementBuilder;
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationScope;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * The images created by baking the install statements of an instance
+ * template into a node, by provider, region and hash of the install script.
+ * <p>
+ * The hash covers the rendered install statements, including the functions
+ * they call and the variables they see, and the template spec the node was
+ * started from. A launch whose install script has the same hash starts from
+ * the baked image and skips the install statements. The images are looked
+ * up by region, as that is where the providers make them available.
+ * <p>
+ * The images are recorded in <code>~/.whirr/baked-images</code> so that all
+ * the clusters launched from this machine share them.
+ */
+public class BakedImages {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BakedImages.class);
+
+  private static final BakedImages DEFAULT = new BakedImages(new File(
+      new File(System.getProperty("user.home"), ".whirr"), "baked-images"));
+
+  public static BakedImages getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @return the hash of the install statements of the builder for the
+   *         instance template, or null if there are no install statements
+   */
+  public static String hash(ClusterSpec clusterSpec, StatementBuilder statementBuilder,
+      InstanceTemplate instanceTemplate) {
+    Statement install = statementBuilder.buildInstallScript();
+    if (install == null) {
+      return null;
+    }
+    Hasher hasher = Hashing.sha1().newHasher()
+      .putString(install.render(OsFamily.UNIX), Charsets.UTF_8)
+      .putString(String.valueOf(instanceTemplate.getTemplate() != null ?
+          instanceTemplate.getTemplate() : clusterSpec.getTemplate()), Charsets.UTF_8);
+    return hasher.hash().toString();
+  }
+
+  /**
+   * @return the id of the region of the location, or of the location itself
+   *         if it is not in a region, or null if there is no location
+   */
+  public static String regionOf(Location location) {
+    for (Location current = location; current != null; current = current.getParent()) {
+      if (current.getScope() == LocationScope.REGION) {
+        return current.getId();
+      }
+    }
+    return location != null ? location.getId() : null;
+  }
+
+  /**
+   * @return the statement that removes the node specific state from a node
+   *         before it is snapshotted: the SSH host keys, which are generated
+   *         again on the first boot, the authorized keys of all the users and
+   *         the cluster hosts in /etc/hosts
+   */
+  public static Statement cleanNode() {
+    return newStatementList(
+        exec("rm -f /etc/ssh/ssh_host_*"),
+        exec("rm -f /root/.ssh/authorized_keys /home/*/.ssh/authorized_keys " +
+            "/home/users/*/.ssh/authorized_keys"),
+        exec("sed -i -e '/^# BEGIN whirr cluster hosts$/,/^# END whirr cluster hosts$/d' " +
+            "/etc/hosts"));
+  }
+
+  private final File file;
+
+  @VisibleForTesting
+  BakedImages(File file) {
+    this.file = file;
+  }
+
+  /**
+   * @return the id of the image baked for the hash in the region, or null if
+   *         there is none
+   */
+  public synchronized String get(String provider, String region, String hash)
+      throws IOException {
+    return load().get(key(provider, region, hash));
+  }
+
+  public synchronized void put(String provider, String region, String hash, String imageId)
+      throws IOException {
+    Map<String, String> images = load();
+    images.put(key(provider, region, hash), imageId);
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> entry : images.entrySet()) {
+      sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+    }
+    Files.createParentDirs(file);
+    Files.write(sb.toString(), file, Charsets.UTF_8);
+    LOG.info("Recorded baked image {} for provider {} in {} and install script {}",
+        new Object[] { imageId, provider, region, hash });
+  }
+
+  private static String key(String provider, String region, String hash) {
+    return provider + '\t' + Strings.nullToEmpty(region) + '\t' + hash;
+  }
+
+  private Map<String, String> load() throws IOException {
+    Map<String, String> images = Maps.newLinkedHashMap();
+    if (!file.exists()) {
+      return images;
+    }
+    for (String line : Splitter.on('\n').omitEmptyStrings().trimResults()
+        .split(Files.toString(file, Charsets.UTF_8))) {
+      Iterator<String> fields = Splitter.on('\t').split(line).iterator();
+      String provider = fields.next();
+      String region = fields.hasNext() ? fields.next() : null;
+      String hash = fields.hasNext() ? fields.next() : null;
+      String imageId = fields.hasNext() ? fields.next() : null;
+      // the lines recorded without a region are dropped, the images have to be baked again
+      if (hash != null && imageId != null) {
+        images.put(key(provider, region, hash), imageId);
+      }
+    }
+    return images;
+  }
+
+}
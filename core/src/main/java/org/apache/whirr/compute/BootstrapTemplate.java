@@ -25,6 +25,10 @@ import static org.jclouds.scriptbuilder.domain.Statements.interpret;
 import static org.jclouds.scriptbuilder.domain.Statements.newStatementList;
 import static org.jclouds.scriptbuilder.statements.ssh.SshStatements.sshdConfig;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.InstanceTemplate;
 import org.apache.whirr.service.jclouds.StatementBuilder;
@@ -46,23 +50,71 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
 public class BootstrapTemplate {
 
   private static final Logger LOG =
     LoggerFactory.getLogger(BootstrapTemplate.class);
 
+  /**
+   * The node user metadata that holds the roles of the instance template,
+   * joined by '+', so that a node can be re-attached to its cluster from
+   * the provider listing.
+   */
+  public static final String ROLES_METADATA = "whirr-roles";
+
   public static Template build(
     final ClusterSpec clusterSpec,
     ComputeService computeService,
     StatementBuilder statementBuilder,
     InstanceTemplate instanceTemplate
+  ) {
+    return build(clusterSpec, computeService, statementBuilder, instanceTemplate,
+        Collections.<String>emptyList()).get(0);
+  }
+
+  /**
+   * Build one template for each of the given locations, all running the same
+   * bootstrap script. If no location is given a single template is built, in
+   * the location selected by the template spec.
+   */
+  public static List<Template> build(
+    final ClusterSpec clusterSpec,
+    ComputeService computeService,
+    StatementBuilder statementBuilder,
+    InstanceTemplate instanceTemplate,
+    List<String> locationIds
   ) {
     String name = "bootstrap-" + Joiner.on('_').join(instanceTemplate.getRoles());
 
     LOG.info("Configuring template for {}", name);
 
     statementBuilder.name(name);
+    List<TemplateBuilder> templateBuilders = Lists.newArrayList();
+    List<Template> templates = Lists.newArrayList();
+    for (String locationId : locationIds.isEmpty() ?
+        Collections.<String>singletonList(null) : locationIds) {
+      TemplateBuilder templateBuilder = computeService.templateBuilder().from(
+          instanceTemplate.getTemplate() != null ? instanceTemplate.getTemplate() :
+          clusterSpec.getTemplate());
+      if (locationId != null) {
+        templateBuilder.locationId(locationId);
+      }
+      templateBuilders.add(templateBuilder);
+      templates.add(templateBuilder.build());
+    }
+
+    List<String> bakedImageIds = clusterSpec.isUseBakedImages() ?
+        findBakedImages(clusterSpec, statementBuilder, instanceTemplate, templates) : null;
+    if (bakedImageIds != null) {
+      LOG.info("Starting {} from baked images {}, skipping the install statements",
+          name, bakedImageIds);
+      statementBuilder.removeInstallStatements();
+      for (int i = 0; i < templates.size(); i++) {
+        templates.set(i, templateBuilders.get(i).imageId(bakedImageIds.get(i)).build());
+      }
+    }
     ensureUserExistsAndAuthorizeSudo(statementBuilder, clusterSpec.getClusterUser(),
         clusterSpec.getPublicKey(), clusterSpec.getPrivateKey());
     Statement bootstrap = statementBuilder.build(clusterSpec);
@@ -71,14 +123,47 @@ public class BootstrapTemplate {
       LOG.debug("Running script {}:\n{}", name, bootstrap.render(OsFamily.UNIX));
     }
 
-    TemplateBuilder templateBuilder = computeService.templateBuilder().from(
-        instanceTemplate.getTemplate() != null ? instanceTemplate.getTemplate() :
-        clusterSpec.getTemplate());
-    Template template = templateBuilder.build();
-    template.getOptions().runScript(bootstrap);
-    return setSpotInstancePriceIfSpecified(
-      computeService.getContext(), clusterSpec, template, instanceTemplate
-    );
+    List<Template> result = Lists.newArrayList();
+    for (Template template : templates) {
+      template.getOptions().runScript(bootstrap);
+      template.getOptions().userMetadata(ROLES_METADATA,
+          Joiner.on('+').join(instanceTemplate.getRoles()));
+      result.add(setSpotInstancePriceIfSpecified(
+        computeService.getContext(), clusterSpec, template, instanceTemplate
+      ));
+    }
+    return result;
+  }
+
+  /**
+   * @return the ids of the images baked for the install script in the region
+   *         of each template, or null if one of the regions has none, as all
+   *         the templates share the same bootstrap script
+   */
+  private static List<String> findBakedImages(ClusterSpec clusterSpec,
+      StatementBuilder statementBuilder, InstanceTemplate instanceTemplate,
+      List<Template> templates) {
+    String hash = BakedImages.hash(clusterSpec, statementBuilder, instanceTemplate);
+    if (hash == null) {
+      return null;
+    }
+    List<String> imageIds = Lists.newArrayList();
+    try {
+      for (Template template : templates) {
+        String region = BakedImages.regionOf(template.getLocation());
+        String imageId = BakedImages.getDefault().get(clusterSpec.getProvider(), region, hash);
+        if (imageId == null) {
+          LOG.info("No image baked for {} in {}, installing from scratch",
+              instanceTemplate.getRoles(), region);
+          return null;
+        }
+        imageIds.add(imageId);
+      }
+    } catch (IOException e) {
+      LOG.warn("Unable to read the baked images, installing from scratch", e);
+      return null;
+    }
+    return imageIds;
   }
 
   private static void ensureUserExistsAndAuthorizeSudo(
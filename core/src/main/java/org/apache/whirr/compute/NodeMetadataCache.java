@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The details of nodes fetched by id, kept for a short time so that the
+ * commands run one after the other in the same JVM do not fetch them again.
+ * <p>
+ * The nodes that are not cached are fetched in parallel, in batches of
+ * {@link #BATCH_SIZE} requests, instead of listing all the nodes of the
+ * provider account. Each request goes through the API rate limit of the
+ * {@link ProviderExecutor}.
+ *
+ * @see ProviderExecutor#getNodeMetadataCache(ComputeService)
+ */
+public class NodeMetadataCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NodeMetadataCache.class);
+
+  static final int BATCH_SIZE = 20;
+  private static final long TTL_SECONDS = 30;
+
+  private final ComputeService computeService;
+  private final ProviderExecutor providerExecutor;
+  private final Cache<String, Optional<NodeMetadata>> nodes;
+
+  public NodeMetadataCache(ComputeService computeService, ProviderExecutor providerExecutor) {
+    this(computeService, providerExecutor, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  NodeMetadataCache(ComputeService computeService, ProviderExecutor providerExecutor,
+      Ticker ticker) {
+    this.computeService = computeService;
+    this.providerExecutor = providerExecutor;
+    this.nodes = CacheBuilder.newBuilder().ticker(ticker)
+        .expireAfterWrite(TTL_SECONDS, TimeUnit.SECONDS).build();
+  }
+
+  /**
+   * @return the details of the nodes with the given ids, by id. The nodes
+   *         that do not exist are left out.
+   */
+  public Map<String, NodeMetadata> getNodes(Iterable<String> ids) throws InterruptedException {
+    Map<String, NodeMetadata> found = Maps.newLinkedHashMap();
+    List<String> missing = Lists.newArrayList();
+    for (String id : ids) {
+      Optional<NodeMetadata> node = nodes.getIfPresent(id);
+      if (node == null) {
+        missing.add(id);
+      } else if (node.isPresent()) {
+        found.put(id, node.get());
+      }
+    }
+    if (!missing.isEmpty()) {
+      found.putAll(fetch(missing));
+    }
+    return found;
+  }
+
+  /**
+   * Fetch the details of the nodes again, even if they are cached.
+   *
+   * @return the details of the nodes that exist, by id
+   */
+  public Map<String, NodeMetadata> refresh(Iterable<String> ids) throws InterruptedException {
+    return fetch(ImmutableList.copyOf(ids));
+  }
+
+  /**
+   * Drop the cached details of a node, e.g. once it is destroyed.
+   */
+  public void invalidate(String id) {
+    nodes.invalidate(id);
+  }
+
+  private Map<String, NodeMetadata> fetch(List<String> ids) throws InterruptedException {
+    LOG.debug("Fetching the details of nodes {}", ids);
+    Map<String, NodeMetadata> found = Maps.newLinkedHashMap();
+    for (List<String> batch : Iterables.partition(ids, BATCH_SIZE)) {
+      List<Callable<Optional<NodeMetadata>>> requests = Lists.newArrayList();
+      for (final String id : batch) {
+        requests.add(new Callable<Optional<NodeMetadata>>() {
+          @Override
+          public Optional<NodeMetadata> call() {
+            providerExecutor.acquireApiPermit();
+            return Optional.fromNullable(computeService.getNodeMetadata(id));
+          }
+        });
+      }
+      List<Future<Optional<NodeMetadata>>> responses =
+          providerExecutor.getLaunchExecutor().invokeAll(requests);
+      for (int i = 0; i < batch.size(); i++) {
+        Optional<NodeMetadata> node;
+        try {
+          node = responses.get(i).get();
+        } catch (ExecutionException e) {
+          throw Throwables.propagate(e.getCause());
+        }
+        nodes.put(batch.get(i), node);
+        if (node.isPresent()) {
+          found.put(batch.get(i), node.get());
+        }
+      }
+    }
+    return found;
+  }
+
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import static org.jclouds.compute.predicates.NodePredicates.withIds;
+
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Destroys unneeded nodes, e.g. the nodes that failed to start, in the
+ * background so that the launch does not wait for their termination.
+ * <p>
+ * The nodes handed to the reaper while a termination request is running are
+ * destroyed together by the next request. Failed requests are retried with
+ * an exponential backoff. The reaper runs as a background task of its
+ * {@link ProviderExecutor}, so the JVM waits for it before exiting, and
+ * the compute service contexts are not closed before it is over.
+ *
+ * @see ProviderExecutor#getNodeReaper(ComputeService)
+ */
+public class NodeReaper {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NodeReaper.class);
+
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF_MILLIS = 2000;
+
+  private final ComputeService computeService;
+  private final ProviderExecutor providerExecutor;
+  private final long initialBackoffMillis;
+
+  private final Set<String> pending = Sets.newLinkedHashSet();
+  private boolean draining;
+
+  public NodeReaper(ComputeService computeService, ProviderExecutor providerExecutor) {
+    this(computeService, providerExecutor, INITIAL_BACKOFF_MILLIS);
+  }
+
+  @VisibleForTesting
+  NodeReaper(ComputeService computeService, ProviderExecutor providerExecutor,
+      long initialBackoffMillis) {
+    this.computeService = computeService;
+    this.providerExecutor = providerExecutor;
+    this.initialBackoffMillis = initialBackoffMillis;
+  }
+
+  /**
+   * Queue the nodes for destruction and return immediately. If the executor
+   * is already shut down, e.g. because the JVM is exiting, the nodes are
+   * destroyed before returning instead.
+   */
+  public void reap(Iterable<? extends NodeMetadata> nodes) {
+    synchronized (this) {
+      for (NodeMetadata node : nodes) {
+        pending.add(node.getId());
+      }
+      if (draining || pending.isEmpty()) {
+        return;
+      }
+      draining = true;
+    }
+    try {
+      providerExecutor.submitBackground(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.info("{} is shut down, destroying the nodes before returning", providerExecutor);
+      drain();
+    }
+  }
+
+  /**
+   * @return the ids of the nodes that are not destroyed yet
+   */
+  public synchronized Set<String> getPending() {
+    return ImmutableSet.copyOf(pending);
+  }
+
+  private void drain() {
+    int attempt = 0;
+    while (true) {
+      Set<String> batch;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          draining = false;
+          return;
+        }
+        batch = ImmutableSet.copyOf(pending);
+      }
+      try {
+        LOG.info("Destroying failed nodes {}", batch);
+        providerExecutor.acquireApiPermit();
+        Set<String> destroyedIds = Sets.newLinkedHashSet();
+        for (NodeMetadata destroyed : computeService.destroyNodesMatching(
+            withIds(batch.toArray(new String[batch.size()])))) {
+          destroyedIds.add(destroyed.getId());
+        }
+        LOG.info("Destroyed failed nodes {}", destroyedIds);
+        done(batch);
+        attempt = 0;
+
+      } catch (RuntimeException e) {
+        if (++attempt >= MAX_ATTEMPTS) {
+          LOG.error("Unable to destroy nodes " + batch + " after " + attempt
+              + " attempts, they need to be destroyed by hand", e);
+          done(batch);
+          attempt = 0;
+          continue;
+        }
+        long backoff = initialBackoffMillis << (attempt - 1);
+        LOG.warn("Unable to destroy nodes {}, retrying in {} ms", batch, backoff);
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          synchronized (this) {
+            LOG.warn("Interrupted, nodes {} need to be destroyed by hand", pending);
+            draining = false;
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  private synchronized void done(Set<String> batch) {
+    pending.removeAll(batch);
+  }
+
+}
@@ -0,0 +1,372 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.options.RunScriptOptions;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Executes the per-node work of the actions of a cluster.
+ * <p>
+ * Two limits are applied: calls to the provider API are throttled by a token
+ * bucket so that large clusters do not trigger request limits, and the number
+ * of concurrent SSH sessions used to run scripts on nodes is capped by a
+ * fixed size pool. Node launches and handler hooks run on separate pools so
+ * that they never wait behind script executions. The token bucket may be
+ * shared with the executors of the other clusters of the provider account,
+ * see {@link ApiRateLimit}.
+ *
+ * @see ProviderExecutors
+ */
+public class ProviderExecutor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ProviderExecutor.class);
+
+  private final String name;
+  private volatile int maxConcurrentSshSessions;
+  private final ApiRateLimit apiRateLimit;
+
+  private final ThreadPoolExecutor sshPool;
+  private final ListeningExecutorService sshExecutor;
+  private final ListeningExecutorService launchExecutor;
+  private final ListeningExecutorService hookExecutor;
+
+  private final Set<Future<?>> backgroundTasks =
+      Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+
+  private final LoadingCache<ComputeService, NodeReaper> nodeReapers = CacheBuilder.newBuilder()
+      .weakKeys().build(new CacheLoader<ComputeService, NodeReaper>() {
+        @Override
+        public NodeReaper load(ComputeService computeService) {
+          return new NodeReaper(computeService, ProviderExecutor.this);
+        }
+      });
+
+  private final LoadingCache<ComputeService, NodeMetadataCache> nodeMetadataCaches =
+      CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<ComputeService, NodeMetadataCache>() {
+        @Override
+        public NodeMetadataCache load(ComputeService computeService) {
+          return new NodeMetadataCache(computeService, ProviderExecutor.this);
+        }
+      });
+
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger apiRequests = new AtomicInteger();
+
+  /**
+   * @param maxConcurrentSshSessions the maximum number of scripts running at
+   *          the same time
+   * @param apiRequestsPerSecond the maximum rate of provider API requests, or
+   *          zero for no limit
+   */
+  public ProviderExecutor(String name, int maxConcurrentSshSessions, float apiRequestsPerSecond) {
+    this(name, maxConcurrentSshSessions, new ApiRateLimit(apiRequestsPerSecond));
+  }
+
+  ProviderExecutor(String name, int maxConcurrentSshSessions, ApiRateLimit apiRateLimit) {
+    checkArgument(maxConcurrentSshSessions > 0,
+        "The maximum number of concurrent SSH sessions must be positive");
+    this.name = name;
+    this.maxConcurrentSshSessions = maxConcurrentSshSessions;
+    this.apiRateLimit = apiRateLimit;
+    this.sshPool = new ThreadPoolExecutor(maxConcurrentSshSessions, maxConcurrentSshSessions,
+        0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        daemonThreads(name + "-ssh"));
+    this.sshExecutor = MoreExecutors.listeningDecorator(sshPool);
+    this.launchExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+        daemonThreads(name + "-launch")));
+    this.hookExecutor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+        daemonThreads(name + "-hook")));
+  }
+
+  /**
+   * Change the maximum number of concurrent SSH sessions, e.g. because the
+   * cluster spec changed since the executor was created. The scripts that
+   * are already running are not interrupted.
+   */
+  public synchronized void setMaxConcurrentSshSessions(int maxConcurrentSshSessions) {
+    checkArgument(maxConcurrentSshSessions > 0,
+        "The maximum number of concurrent SSH sessions must be positive");
+    if (maxConcurrentSshSessions == this.maxConcurrentSshSessions) {
+      return;
+    }
+    LOG.info("Changing the maximum number of concurrent SSH sessions of {} to {}",
+        name, maxConcurrentSshSessions);
+    // the core size may not be above the maximum size
+    if (maxConcurrentSshSessions > this.maxConcurrentSshSessions) {
+      sshPool.setMaximumPoolSize(maxConcurrentSshSessions);
+      sshPool.setCorePoolSize(maxConcurrentSshSessions);
+    } else {
+      sshPool.setCorePoolSize(maxConcurrentSshSessions);
+      sshPool.setMaximumPoolSize(maxConcurrentSshSessions);
+    }
+    this.maxConcurrentSshSessions = maxConcurrentSshSessions;
+  }
+
+  /**
+   * Block until the provider API rate limit allows one more request.
+   */
+  public void acquireApiPermit() {
+    apiRequests.incrementAndGet();
+    apiRateLimit.acquire();
+  }
+
+  /**
+   * @return the executor used for node startup processes
+   */
+  public ExecutorService getLaunchExecutor() {
+    return launchExecutor;
+  }
+
+  /**
+   * @return the executor used to run the hooks of concurrent handlers
+   */
+  public ExecutorService getHookExecutor() {
+    return hookExecutor;
+  }
+
+  /**
+   * @return the reaper that destroys the unneeded nodes of the compute service
+   *         in the background
+   */
+  public NodeReaper getNodeReaper(ComputeService computeService) {
+    return nodeReapers.getUnchecked(computeService);
+  }
+
+  /**
+   * @return the short lived cache of the details of the nodes of the compute
+   *         service, shared by the commands run in this JVM
+   */
+  public NodeMetadataCache getNodeMetadataCache(ComputeService computeService) {
+    return nodeMetadataCaches.getUnchecked(computeService);
+  }
+
+  /**
+   * Submit a clean up task that nobody waits for, such as destroying
+   * unneeded nodes. The JVM waits for these tasks before exiting, see
+   * {@link #awaitBackgroundTasks(long, TimeUnit)}.
+   */
+  public ListenableFuture<?> submitBackground(Runnable task) {
+    final ListenableFuture<?> future = launchExecutor.submit(task);
+    backgroundTasks.add(future);
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        backgroundTasks.remove(future);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return future;
+  }
+
+  /**
+   * Wait for the background tasks to complete, including the ones they submit
+   * while waiting.
+   *
+   * @return false if some tasks were still running when the timeout expired
+   */
+  public boolean awaitBackgroundTasks(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!backgroundTasks.isEmpty()) {
+      for (Future<?> task : ImmutableList.copyOf(backgroundTasks)) {
+        try {
+          task.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+          LOG.warn("Background task failed", e.getCause());
+        } catch (TimeoutException e) {
+          return false;
+        }
+        // the listener may not have removed the task yet
+        backgroundTasks.remove(task);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Submit a task that holds an SSH session to a node. The task waits in a
+   * queue if the maximum number of concurrent sessions is reached.
+   */
+  public <T> ListenableFuture<T> submitSsh(final Callable<T> task) {
+    queued.incrementAndGet();
+    return sshExecutor.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        queued.decrementAndGet();
+        inFlight.incrementAndGet();
+        try {
+          return task.call();
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+    });
+  }
+
+  /**
+   * Run a script on a node through {@link ComputeService#runScriptOnNode} in
+   * one of the SSH sessions, so that no other thread waits for it.
+   */
+  public ListenableFuture<ExecResponse> submitScriptOnNode(final ComputeService computeService,
+      final String nodeId, final Statement statement, final RunScriptOptions options) {
+    ListenableFuture<ExecResponse> future = submitSsh(new Callable<ExecResponse>() {
+      @Override
+      public ExecResponse call() throws Exception {
+        acquireApiPermit();
+        return computeService.runScriptOnNode(nodeId, statement, options);
+      }
+    });
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Submitted script on node {}: {}", nodeId, this);
+    }
+    return future;
+  }
+
+  /**
+   * @return the number of SSH tasks waiting for a free session
+   */
+  public int getQueueDepth() {
+    return queued.get();
+  }
+
+  /**
+   * @return the number of SSH tasks currently running
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * @return the number of provider API requests made so far
+   */
+  public int getApiRequests() {
+    return apiRequests.get();
+  }
+
+  public int getMaxConcurrentSshSessions() {
+    return maxConcurrentSshSessions;
+  }
+
+  /**
+   * @return the maximum rate of provider API requests, or zero for no limit
+   */
+  public float getApiRequestsPerSecond() {
+    return apiRateLimit.getRate();
+  }
+
+  public void shutdown() {
+    LOG.debug("Shutting down {}", this);
+    sshExecutor.shutdownNow();
+    launchExecutor.shutdownNow();
+    hookExecutor.shutdownNow();
+  }
+
+  public boolean isShutdown() {
+    return sshExecutor.isShutdown();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("name", name)
+      .add("queued", getQueueDepth())
+      .add("inFlight", getInFlight())
+      .add("maxConcurrentSshSessions", maxConcurrentSshSessions)
+      .add("apiRequests", getApiRequests())
+      .add("apiRequestsPerSecond", getApiRequestsPerSecond() == 0 ? "unlimited" : getApiRequestsPerSecond())
+      .toString();
+  }
+
+  /**
+   * The token bucket of the provider API requests, which can be shared by
+   * several executors so that the rate applies to all of them.
+   */
+  static class ApiRateLimit {
+    private volatile RateLimiter rateLimiter;
+
+    /**
+     * @param apiRequestsPerSecond the maximum rate of provider API requests,
+     *          or zero for no limit
+     */
+    ApiRateLimit(float apiRequestsPerSecond) {
+      setRate(apiRequestsPerSecond);
+    }
+
+    synchronized void setRate(float apiRequestsPerSecond) {
+      checkArgument(apiRequestsPerSecond >= 0,
+          "The provider API request rate must not be negative");
+      if (apiRequestsPerSecond == 0) {
+        rateLimiter = null;
+      } else if (rateLimiter == null) {
+        rateLimiter = RateLimiter.create(apiRequestsPerSecond);
+      } else if (rateLimiter.getRate() != apiRequestsPerSecond) {
+        rateLimiter.setRate(apiRequestsPerSecond);
+      }
+    }
+
+    void acquire() {
+      RateLimiter current = rateLimiter;
+      if (current != null) {
+        current.acquire();
+      }
+    }
+
+    float getRate() {
+      RateLimiter current = rateLimiter;
+      return current == null ? 0 : (float) current.getRate();
+    }
+  }
+
+  private static ThreadFactory daemonThreads(String prefix) {
+    return new ThreadFactoryBuilder().setDaemon(true).setNameFormat(prefix + "-%d").build();
+  }
+
+}
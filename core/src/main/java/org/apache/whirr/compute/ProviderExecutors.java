@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.whirr.ClusterSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps one {@link ProviderExecutor} per cluster, with the maximum number of
+ * concurrent SSH sessions of the last spec seen for the cluster. The
+ * executors of the clusters that use the same provider account share the
+ * provider API rate limit, so that it applies to the account as a whole. When
+ * these clusters set different rates the lowest one applies, recomputed each
+ * time the rate of one of them changes.
+ * The executors are shut down when the JVM exits, once their background
+ * tasks are complete. The compute service contexts are only closed after
+ * that, see {@link #awaitBackgroundTasks()}.
+ */
+// singleton enum pattern
+public enum ProviderExecutors implements Function<ClusterSpec, ProviderExecutor> {
+
+  INSTANCE;
+
+  private static final Logger LOG = LoggerFactory.getLogger(ProviderExecutors.class);
+
+  private static final long BACKGROUND_TASKS_TIMEOUT_MINUTES = 10;
+
+  @Override
+  public ProviderExecutor apply(ClusterSpec spec) {
+    Key key = new Key(spec);
+    ProviderExecutor executor = cache.getUnchecked(key);
+    executor.setMaxConcurrentSshSessions(spec.getMaxConcurrentSshSessions());
+    Float previous = apiRequestsPerSecond.put(key, spec.getProviderApiRequestsPerSecond());
+    if (previous == null || previous != spec.getProviderApiRequestsPerSecond()) {
+      updateApiRateLimit(key.account);
+    }
+    return executor;
+  }
+
+  /**
+   * Apply the lowest rate set by the clusters of the account.
+   */
+  private synchronized void updateApiRateLimit(Account account) {
+    float lowest = 0;
+    for (Map.Entry<Key, Float> entry : apiRequestsPerSecond.entrySet()) {
+      float rate = entry.getValue();
+      if (entry.getKey().account.equals(account) && rate > 0 && (lowest == 0 || rate < lowest)) {
+        lowest = rate;
+      }
+    }
+    ProviderExecutor.ApiRateLimit apiRateLimit = apiRateLimits.getUnchecked(account);
+    if (apiRateLimit.getRate() != lowest) {
+      LOG.info("Limiting the provider API request rate of {} to {} per second (0 is unlimited)",
+          account, lowest);
+      apiRateLimit.setRate(lowest);
+    }
+  }
+
+  /**
+   * Wait for the background tasks of all the executors created so far, e.g.
+   * before closing the compute service contexts they use.
+   *
+   * @return false if some tasks were still running when the timeout expired
+   */
+  public boolean awaitBackgroundTasks() throws InterruptedException {
+    boolean done = true;
+    for (ProviderExecutor executor : cache.asMap().values()) {
+      done &= awaitBackgroundTasks(executor);
+    }
+    return done;
+  }
+
+  private static boolean awaitBackgroundTasks(ProviderExecutor executor)
+    throws InterruptedException {
+    if (executor.awaitBackgroundTasks(BACKGROUND_TASKS_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+      return true;
+    }
+    LOG.warn("Background tasks of {} did not complete, some nodes may need " +
+        "to be destroyed by hand", executor);
+    return false;
+  }
+
+  /**
+   * Shut down all the executors created so far.
+   */
+  public void shutdown() {
+    ConcurrentMap<Key, ProviderExecutor> executors = cache.asMap();
+    for (ProviderExecutor executor : executors.values()) {
+      executor.shutdown();
+    }
+    cache.invalidateAll();
+    apiRequestsPerSecond.clear();
+    apiRateLimits.invalidateAll();
+  }
+
+  /* the rate set by the last spec seen for each cluster */
+  private final ConcurrentMap<Key, Float> apiRequestsPerSecond = Maps.newConcurrentMap();
+
+  private final LoadingCache<Account, ProviderExecutor.ApiRateLimit> apiRateLimits =
+      CacheBuilder.newBuilder().build(new CacheLoader<Account, ProviderExecutor.ApiRateLimit>() {
+        @Override
+        public ProviderExecutor.ApiRateLimit load(Account account) {
+          return new ProviderExecutor.ApiRateLimit(0);
+        }
+      });
+
+  @VisibleForTesting
+  final LoadingCache<Key, ProviderExecutor> cache = CacheBuilder.newBuilder().build(
+      new CacheLoader<Key, ProviderExecutor>() {
+        @Override
+        public ProviderExecutor load(Key key) {
+          final ProviderExecutor executor = new ProviderExecutor(
+              key.account.provider + "-" + key.clusterName, key.maxConcurrentSshSessions,
+              apiRateLimits.getUnchecked(key.account));
+          LOG.debug("created new {} for {}", executor, key);
+          Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+              try {
+                awaitBackgroundTasks(executor);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              executor.shutdown();
+            }
+          });
+          return executor;
+        }
+      });
+
+  /**
+   * Identifies the provider account.
+   */
+  private static class Account {
+    private final String provider;
+    private final String endpoint;
+    private final String identity;
+
+    Account(ClusterSpec spec) {
+      provider = spec.getProvider();
+      endpoint = spec.getEndpoint();
+      identity = spec.getIdentity();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that instanceof Account) {
+        Account other = (Account) that;
+        return Objects.equal(provider, other.provider)
+          && Objects.equal(endpoint, other.endpoint)
+          && Objects.equal(identity, other.identity);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(provider, endpoint, identity);
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toStringHelper(this)
+        .add("provider", provider)
+        .add("endpoint", endpoint)
+        .add("identity", identity)
+        .toString();
+    }
+  }
+
+  /**
+   * Identifies the cluster of a provider account. The limit is the one of
+   * the first spec seen for the cluster and is not part of the identity.
+   */
+  private static class Key {
+    private final Account account;
+    private final String clusterName;
+    private final int maxConcurrentSshSessions;
+
+    Key(ClusterSpec spec) {
+      account = new Account(spec);
+      clusterName = spec.getClusterName();
+      maxConcurrentSshSessions = spec.getMaxConcurrentSshSessions();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that instanceof Key) {
+        Key other = (Key) that;
+        return account.equals(other.account)
+          && Objects.equal(clusterName, other.clusterName);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(account, clusterName);
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toStringHelper(this)
+        .add("account", account)
+        .add("clusterName", clusterName)
+        .add("maxConcurrentSshSessions", maxConcurrentSshSessions)
+        .toString();
+    }
+  }
+
+}
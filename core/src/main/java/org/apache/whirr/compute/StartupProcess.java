@@ -18,13 +18,18 @@
 
 package org.apache.whirr.compute;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
 
 import org.jclouds.compute.ComputeService;
@@ -34,10 +39,37 @@ import org.jclouds.compute.domain.Template;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
+/**
+ * Starts the nodes of one instance template, retrying when too many of them
+ * fail.
+ * <p>
+ * When speculative nodes are requested the first attempt starts the nodes in
+ * small batches, along with the extra ones, and keeps the first nodes to
+ * start. The others are destroyed in the background once their own startup
+ * is over, so the cluster does not wait for the slowest nodes.
+ * <p>
+ * When the process proceeds at minimum it returns as soon as the minimum
+ * number of nodes started. The nodes that start later are available from
+ * {@link #getLateNodes()}.
+ * <p>
+ * Otherwise the nodes are requested in batches of at most
+ * <code>launchBatchSize</code> nodes, launched concurrently. A failed batch
+ * only loses its own nodes, and the retries only ask for the missing ones.
+ * The small batches of the first attempt above are not larger than
+ * <code>launchBatchSize</code> either.
+ * <p>
+ * When one template is given per location the nodes are spread across the
+ * locations. The nodes of a batch that fails in one location overflow to a
+ * location that did not fail during the current attempt.
+ */
 public class StartupProcess implements Callable<Set<? extends NodeMetadata>> {
 
   private static final Logger LOG =
@@ -46,30 +78,51 @@ public class StartupProcess implements Callable<Set<? extends NodeMetadata>> {
   final private String clusterName;
   final private int numberOfNodes;
   final private int minNumberOfNodes;
+  final private int numberOfSpeculativeNodes;
+  final private boolean proceedAtMinimum;
+  final private int launchBatchSize;
   final private int maxStartupRetries;
   final private Set<String> roles;
   final private ComputeService computeService;
-  final private Template template;
-  final private ExecutorService executorService;
+  final private List<Template> templates;
+  final private ProviderExecutor providerExecutor;
   final private NodeStarterFactory starterFactory;
 
   private Set<NodeMetadata> successfulNodes = Sets.newLinkedHashSet();
   private Map<NodeMetadata, Throwable> lostNodes = Maps.newHashMap();
 
-  private Future<Set<NodeMetadata>> nodesFuture;
+  private CompletionService<Set<NodeMetadata>> batches;
+  private Map<Future<Set<NodeMetadata>>, Batch> pendingBatches = Maps.newHashMap();
+  private Set<Template> failedTemplates = Sets.newIdentityHashSet();
+  private ListenableFuture<Set<NodeMetadata>> lateNodes =
+    Futures.immediateFuture(Collections.<NodeMetadata>emptySet());
 
   public StartupProcess(final String clusterName, final int numberOfNodes,
                         final int minNumberOfNodes, final int maxStartupRetries, final Set<String> roles,
                         final ComputeService computeService, final Template template,
-                        final ExecutorService executorService, final NodeStarterFactory starterFactory) {
+                        final ProviderExecutor providerExecutor, final NodeStarterFactory starterFactory) {
+    this(clusterName, numberOfNodes, minNumberOfNodes, 0, false, 0, maxStartupRetries, roles,
+        computeService, ImmutableList.of(template), providerExecutor, starterFactory);
+  }
+
+  public StartupProcess(final String clusterName, final int numberOfNodes,
+                        final int minNumberOfNodes, final int numberOfSpeculativeNodes,
+                        final boolean proceedAtMinimum, final int launchBatchSize,
+                        final int maxStartupRetries, final Set<String> roles,
+                        final ComputeService computeService, final List<Template> templates,
+                        final ProviderExecutor providerExecutor, final NodeStarterFactory starterFactory) {
+    checkArgument(!templates.isEmpty(), "At least one template is required");
     this.clusterName = clusterName;
     this.numberOfNodes = numberOfNodes;
     this.minNumberOfNodes = minNumberOfNodes;
+    this.numberOfSpeculativeNodes = numberOfSpeculativeNodes;
+    this.proceedAtMinimum = proceedAtMinimum;
+    this.launchBatchSize = launchBatchSize;
     this.maxStartupRetries = maxStartupRetries;
     this.roles = roles;
     this.computeService = computeService;
-    this.template = template;
-    this.executorService = executorService;
+    this.templates = ImmutableList.copyOf(templates);
+    this.providerExecutor = providerExecutor;
     this.starterFactory = starterFactory;
   }
 
@@ -79,8 +132,13 @@ public class StartupProcess implements Callable<Set<? extends NodeMetadata>> {
     boolean retryRequired;
     try {
     do {
-        runNodesWithTag();
-        waitForOutcomes();
+        if (retryCount == 0 && (numberOfSpeculativeNodes > 0
+            || (proceedAtMinimum && minNumberOfNodes < numberOfNodes))) {
+          runNodesInSmallBatches();
+        } else {
+          runNodesWithTag();
+          waitForOutcomes();
+        }
         retryRequired = !isDone();
 
         if (++retryCount > maxStartupRetries) {
@@ -104,7 +162,7 @@ public class StartupProcess implements Callable<Set<? extends NodeMetadata>> {
   }
 
   Template getTemplate() {
-    return template;
+    return templates.get(0);
   }
 
   Set<NodeMetadata> getSuccessfulNodes() {
@@ -115,33 +173,240 @@ public class StartupProcess implements Callable<Set<? extends NodeMetadata>> {
     return lostNodes;
   }
 
+  /**
+   * @return the nodes that started after the process returned, up to the
+   *         requested number of nodes. Empty unless the process proceeds at
+   *         minimum.
+   */
+  public ListenableFuture<Set<NodeMetadata>> getLateNodes() {
+    return lateNodes;
+  }
+
   boolean isDone() {
     return successfulNodes.size() >= minNumberOfNodes;
   }
 
   void runNodesWithTag() {
     final int num = numberOfNodes - successfulNodes.size();
-    this.nodesFuture = executorService.submit(starterFactory.create(
-        computeService, clusterName, roles, num, template));
+    batches = new ExecutorCompletionService<Set<NodeMetadata>>(
+        providerExecutor.getLaunchExecutor());
+    pendingBatches.clear();
+
+    List<Template> healthy = getHealthyTemplates();
+    failedTemplates.clear();
+    for (int i = 0; i < healthy.size(); i++) {
+      // spread the nodes evenly, the first locations get the remainder
+      int share = num / healthy.size() + (i < num % healthy.size() ? 1 : 0);
+      submitBatches(healthy.get(i), share);
+    }
+    if (pendingBatches.size() > 1) {
+      LOG.info("Starting {} node(s) with roles {} in {} batches",
+          new Object[] { num, roles, pendingBatches.size() });
+    }
+  }
+
+  private List<Template> getHealthyTemplates() {
+    List<Template> healthy = Lists.newArrayList();
+    for (Template template : templates) {
+      if (!failedTemplates.contains(template)) {
+        healthy.add(template);
+      }
+    }
+    return healthy.isEmpty() ? templates : healthy;
+  }
+
+  private void submitBatches(Template template, int num) {
+    final int batchSize = launchBatchSize > 0 ? launchBatchSize : num;
+    for (int offset = 0; offset < num; offset += batchSize) {
+      int size = Math.min(batchSize, num - offset);
+      providerExecutor.acquireApiPermit();
+      pendingBatches.put(batches.submit(starterFactory.create(computeService, clusterName,
+          roles, size, template)), new Batch(template, size));
+    }
   }
 
   void waitForOutcomes() throws InterruptedException {
-    try {
-      Set<? extends NodeMetadata> nodes = nodesFuture.get();
-      successfulNodes.addAll(nodes);
-    } catch (ExecutionException e) {
-      // checking RunNodesException and collect the outcome
-      Throwable th = e.getCause();
-      if (th instanceof RunNodesException) {
-        RunNodesException rnex = (RunNodesException) th;
-        addSuccessAndLostNodes(rnex);
+    int over = 0;
+    while (!pendingBatches.isEmpty()) {
+      Future<Set<NodeMetadata>> future = batches.take();
+      Batch batch = pendingBatches.remove(future);
+      int started = successfulNodes.size();
+      try {
+        Set<? extends NodeMetadata> nodes = future.get();
+        successfulNodes.addAll(nodes);
+      } catch (ExecutionException e) {
+        // checking RunNodesException and collect the outcome
+        Throwable th = e.getCause();
+        if (th instanceof RunNodesException) {
+          RunNodesException rnex = (RunNodesException) th;
+          addSuccessAndLostNodes(rnex);
+        } else {
+          LOG.error("Unexpected error while starting " + numberOfNodes + " nodes, minimum "
+              + minNumberOfNodes + " nodes for " + roles + " of cluster " + clusterName, e);
+        }
+        overflow(batch, batch.size - (successfulNodes.size() - started));
+      }
+      over++;
+      if (over + pendingBatches.size() > 1) {
+        LOG.info("{} of {} batches with roles {} over, {} node(s) started so far",
+            new Object[] { over, over + pendingBatches.size(), roles, successfulNodes.size() });
+      }
+    }
+  }
+
+  /**
+   * Move the nodes that a failed batch did not start to a location that did
+   * not fail yet, if any.
+   */
+  private void overflow(Batch batch, int missing) {
+    failedTemplates.add(batch.template);
+    if (missing <= 0 || templates.size() < 2) {
+      return;
+    }
+    for (Template template : templates) {
+      if (!failedTemplates.contains(template)) {
+        LOG.info("Overflowing {} node(s) with roles {} from location {} to {}",
+            new Object[] { missing, roles, locationOf(batch.template), locationOf(template) });
+        submitBatches(template, missing);
+        return;
+      }
+    }
+  }
+
+  private static String locationOf(Template template) {
+    return template.getLocation() != null ? template.getLocation().getId() : null;
+  }
+
+  private static class Batch {
+    private final Template template;
+    private final int size;
+
+    Batch(Template template, int size) {
+      this.template = template;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Start the nodes and the speculative nodes in small batches, and return as
+   * soon as the required number of nodes started or all of them are over. The
+   * required number is the minimum number of nodes when proceeding at
+   * minimum. The batches hold as many nodes as the process can do without,
+   * so that it does not wait for the slowest batch, and at most
+   * <code>launchBatchSize</code> nodes.
+   */
+  void runNodesInSmallBatches() throws InterruptedException {
+    final long startTime = System.currentTimeMillis();
+    final int total = numberOfNodes + numberOfSpeculativeNodes;
+    final int required = proceedAtMinimum ? minNumberOfNodes : numberOfNodes;
+    final int batchSize = launchBatchSize > 0 ?
+        Math.min(launchBatchSize, Math.max(1, total - required)) : Math.max(1, total - required);
+
+    CompletionService<Set<NodeMetadata>> completionService =
+      new ExecutorCompletionService<Set<NodeMetadata>>(providerExecutor.getLaunchExecutor());
+    int pending = 0;
+    for (int offset = 0; offset < total; offset += batchSize) {
+      providerExecutor.acquireApiPermit();
+      completionService.submit(starterFactory.create(computeService, clusterName, roles,
+          Math.min(batchSize, total - offset), templates.get(pending % templates.size())));
+      pending++;
+    }
+    LOG.info("Starting {} node(s) with roles {} in {} batches, {} of them speculatively",
+        new Object[] { total, roles, pending, numberOfSpeculativeNodes });
+
+    Set<NodeMetadata> surplusNodes = Sets.newLinkedHashSet();
+    while (successfulNodes.size() < required && pending > 0) {
+      Future<Set<NodeMetadata>> future = completionService.take();
+      pending--;
+      try {
+        keep(future.get(), numberOfNodes, successfulNodes, surplusNodes);
+      } catch (ExecutionException e) {
+        Throwable th = e.getCause();
+        if (th instanceof RunNodesException) {
+          RunNodesException rnex = (RunNodesException) th;
+          keep(Sets.difference(rnex.getSuccessfulNodes(), rnex.getNodeErrors().keySet()),
+              numberOfNodes, successfulNodes, surplusNodes);
+          lostNodes.putAll(rnex.getNodeErrors());
+        } else {
+          LOG.error("Unexpected error while starting a node for " + roles
+              + " of cluster " + clusterName, e);
+        }
+      }
+    }
+
+    long keptAfter = System.currentTimeMillis() - startTime;
+    if (pending > 0 || !surplusNodes.isEmpty()) {
+      int wanted = proceedAtMinimum ? numberOfNodes - successfulNodes.size() : 0;
+      LOG.info("Proceeding with the first {} node(s) with roles {} after {} s, " +
+          "{} node(s) still starting", new Object[] { successfulNodes.size(), roles,
+            keptAfter / 1000, pending });
+      lateNodes = collectLateNodes(completionService, pending, surplusNodes, wanted,
+          startTime, keptAfter);
+    }
+  }
+
+  private static void keep(Set<? extends NodeMetadata> nodes, int max,
+      Set<NodeMetadata> kept, Set<NodeMetadata> surplusNodes) {
+    for (NodeMetadata node : nodes) {
+      if (kept.size() < max) {
+        kept.add(node);
       } else {
-        LOG.error("Unexpected error while starting " + numberOfNodes + " nodes, minimum "
-            + minNumberOfNodes + " nodes for " + roles + " of cluster " + clusterName, e);
+        surplusNodes.add(node);
       }
     }
   }
-  
+
+  /**
+   * Wait in the background for the startup of the pending nodes to be over,
+   * keep up to <code>wanted</code> of them and destroy the others, along with
+   * the surplus nodes and the nodes that failed.
+   */
+  private ListenableFuture<Set<NodeMetadata>> collectLateNodes(
+      final CompletionService<Set<NodeMetadata>> completionService, final int pending,
+      final Set<NodeMetadata> surplusNodes, final int wanted, final long startTime,
+      final long keptAfter) {
+    final SettableFuture<Set<NodeMetadata>> result = SettableFuture.create();
+    providerExecutor.submitBackground(new Runnable() {
+      @Override
+      public void run() {
+        Set<NodeMetadata> late = Sets.newLinkedHashSet();
+        Set<NodeMetadata> unneeded = Sets.newLinkedHashSet(surplusNodes);
+        try {
+          for (int i = 0; i < pending; i++) {
+            try {
+              keep(completionService.take().get(), wanted, late, unneeded);
+            } catch (ExecutionException e) {
+              Throwable th = e.getCause();
+              if (th instanceof RunNodesException) {
+                RunNodesException rnex = (RunNodesException) th;
+                keep(Sets.difference(rnex.getSuccessfulNodes(), rnex.getNodeErrors().keySet()),
+                    wanted, late, unneeded);
+                unneeded.addAll(rnex.getNodeErrors().keySet());
+              } else {
+                LOG.warn("Late node with roles " + roles + " failed to start", th);
+              }
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          LOG.warn("Interrupted while waiting for the late nodes with roles {}", roles);
+          result.setException(e);
+          return;
+        }
+        long slowest = System.currentTimeMillis() - startTime;
+        LOG.info("Not waiting for the slowest nodes with roles {} saved about {} s "
+            + "(proceeded after {} s, slowest node over after {} s)",
+            new Object[] { roles, (slowest - keptAfter) / 1000, keptAfter / 1000, slowest / 1000 });
+        result.set(late);
+        if (!unneeded.isEmpty()) {
+          LOG.info("Destroying {} unneeded node(s) with roles {}", unneeded.size(), roles);
+          providerExecutor.getNodeReaper(computeService).reap(unneeded);
+        }
+      }
+    });
+    return result;
+  }
+
   void addSuccessAndLostNodes(RunNodesException rnex) {
       // workaround https://code.google.com/p/jclouds/issues/detail?id=923
       // by ensuring that any nodes in the "NodeErrors" do not get considered
@@ -158,21 +423,16 @@ public class StartupProcess implements Callable<Set<? extends NodeMetadata>> {
       lostNodes.putAll(errorNodesMap);
   }
   
-  void cleanupFailedNodes() throws InterruptedException {
+  /**
+   * Hand the failed nodes to the {@link NodeReaper}, the launch does not wait
+   * for their termination.
+   */
+  void cleanupFailedNodes() {
     if (lostNodes.size() > 0) {
-      Set<String> lostIds = Sets.newLinkedHashSet();
       for (Entry<NodeMetadata, Throwable> lostNode : lostNodes.entrySet()) {
         LOG.debug("Will destroy failed node {}", lostNode.getKey(), lostNode.getValue());
-        lostIds.add(lostNode.getKey().getId());
-      }
-      LOG.info("Destroying failed nodes {}", lostIds);
-      Set<? extends NodeMetadata> destroyedNodes = computeService.destroyNodesMatching(
-        Predicates.in(lostNodes.keySet()));
-      lostIds.clear();
-      for (NodeMetadata destroyed : destroyedNodes) {
-        lostIds.add(destroyed.getId());
       }
-      LOG.info("Destroyed failed nodes {}", lostIds);
+      providerExecutor.getNodeReaper(computeService).reap(lostNodes.keySet());
     }
   }
 }
@@ -0,0 +1,253 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.net;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reverse DNS resolver that caches the names resolved by another resolver
+ * and runs the lookups of many addresses in parallel.
+ * <p>
+ * A lookup that returns the address itself, i.e. that did not resolve, is
+ * kept for a shorter time than a resolved name. Concurrent lookups of the
+ * same address share one query. The expired entries are purged when new
+ * ones are added, at most once per negative TTL. The
+ * {@link #getDefault() default} instance is shared by all the instances of
+ * all the clusters of the process.
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+  private static final CachingDnsResolver DEFAULT = new CachingDnsResolver(
+      new FastDnsResolver(), 1, TimeUnit.HOURS, 1, TimeUnit.MINUTES,
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(16,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dns-resolver-%d").build())),
+      Ticker.systemTicker());
+
+  public static CachingDnsResolver getDefault() {
+    return DEFAULT;
+  }
+
+  private final DnsResolver delegate;
+  private final long positiveTtlNanos;
+  private final long negativeTtlNanos;
+  private final ListeningExecutorService executor;
+  private final Ticker ticker;
+  private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+  private final AtomicLong nextPurge;
+
+  public CachingDnsResolver(DnsResolver delegate, long positiveTtl, TimeUnit positiveUnit,
+      long negativeTtl, TimeUnit negativeUnit, ListeningExecutorService executor) {
+    this(delegate, positiveTtl, positiveUnit, negativeTtl, negativeUnit, executor,
+        Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CachingDnsResolver(DnsResolver delegate, long positiveTtl, TimeUnit positiveUnit,
+      long negativeTtl, TimeUnit negativeUnit, ListeningExecutorService executor,
+      Ticker ticker) {
+    this.delegate = delegate;
+    this.positiveTtlNanos = positiveUnit.toNanos(positiveTtl);
+    this.negativeTtlNanos = negativeUnit.toNanos(negativeTtl);
+    this.executor = executor;
+    this.ticker = ticker;
+    this.nextPurge = new AtomicLong(ticker.read() + negativeTtlNanos);
+  }
+
+  /**
+   * Resolve the reverse DNS name of the address, waiting for the lookup if
+   * the name is not cached.
+   */
+  @Override
+  public String apply(String hostIp) {
+    try {
+      return resolve(hostIp).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return hostIp;
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * @return the cached name of the address or a future for its lookup,
+   *         which is started if there is none in progress
+   */
+  public ListenableFuture<String> resolve(final String hostIp) {
+    while (true) {
+      Entry entry = entries.get(hostIp);
+      if (entry != null && !entry.isExpired(ticker.read())) {
+        return entry.future;
+      }
+      final ListenableFutureTask<String> task = ListenableFutureTask.create(
+          new Callable<String>() {
+            @Override
+            public String call() {
+              return delegate.apply(hostIp);
+            }
+          });
+      final Entry fresh = new Entry(task);
+      boolean won = (entry == null) ? entries.putIfAbsent(hostIp, fresh) == null
+          : entries.replace(hostIp, entry, fresh);
+      if (!won) {
+        continue;
+      }
+      purgeExpired();
+      task.addListener(new Runnable() {
+        @Override
+        public void run() {
+          long ttl = negativeTtlNanos;
+          try {
+            if (!hostIp.equals(task.get())) {
+              ttl = positiveTtlNanos;
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } catch (ExecutionException e) {
+            // a failed lookup is retried as an unresolved one
+          }
+          fresh.expireAfter(ticker.read(), ttl);
+        }
+      }, MoreExecutors.sameThreadExecutor());
+      executor.execute(task);
+      return task;
+    }
+  }
+
+  /**
+   * Start the lookups of the addresses that are not cached, without waiting
+   * for them.
+   */
+  public void prefetch(Iterable<String> hostIps) {
+    for (String hostIp : hostIps) {
+      resolve(hostIp);
+    }
+  }
+
+  /**
+   * Resolve the addresses in parallel.
+   *
+   * @return the name of each address
+   */
+  public Map<String, String> resolveAll(Iterable<String> hostIps) {
+    Map<String, ListenableFuture<String>> futures = Maps.newLinkedHashMap();
+    for (String hostIp : hostIps) {
+      if (!futures.containsKey(hostIp)) {
+        futures.put(hostIp, resolve(hostIp));
+      }
+    }
+    Map<String, String> names = Maps.newLinkedHashMap();
+    for (String hostIp : futures.keySet()) {
+      names.put(hostIp, apply(hostIp));
+    }
+    return names;
+  }
+
+  /**
+   * Record a name resolved elsewhere, e.g. loaded from the cluster state.
+   */
+  public void put(String hostIp, String hostName) {
+    Entry entry = new Entry(Futures.immediateFuture(hostName));
+    entry.expireAfter(ticker.read(), positiveTtlNanos);
+    entries.put(hostIp, entry);
+    purgeExpired();
+  }
+
+  /**
+   * @return the resolved name of the address if it is cached, without
+   *         starting a lookup, or null
+   */
+  @Nullable
+  public String getIfPresent(String hostIp) {
+    Entry entry = entries.get(hostIp);
+    if (entry == null || !entry.future.isDone() || entry.isExpired(ticker.read())) {
+      return null;
+    }
+    try {
+      String name = Futures.getUnchecked(entry.future);
+      return hostIp.equals(name) ? null : name;
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the number of cached entries, including the expired ones that
+   *         are not purged yet
+   */
+  @VisibleForTesting
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Remove the expired entries, unless another thread did it recently.
+   */
+  private void purgeExpired() {
+    long now = ticker.read();
+    long next = nextPurge.get();
+    if (now - next < 0 || !nextPurge.compareAndSet(next, now + negativeTtlNanos)) {
+      return;
+    }
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (entry.getValue().isExpired(now)) {
+        entries.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private static class Entry {
+    private final ListenableFuture<String> future;
+    private volatile long expiresAt;
+    private volatile boolean expiring;  // false until the lookup completes
+
+    Entry(ListenableFuture<String> future) {
+      this.future = future;
+    }
+
+    void expireAfter(long now, long ttlNanos) {
+      expiresAt = now + ttlNanos;
+      expiring = true;
+    }
+
+    boolean isExpired(long now) {
+      return expiring && now - expiresAt >= 0;
+    }
+  }
+
+}
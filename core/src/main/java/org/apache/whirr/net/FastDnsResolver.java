@@ -34,8 +34,11 @@ import org.xbill.DNS.Record;
 import org.xbill.DNS.Resolver;
 import org.xbill.DNS.ReverseMap;
 import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
 import org.xbill.DNS.Type;
 
+import com.google.common.annotations.VisibleForTesting;
+
 /**
  * Fast DNS resolver
  */
@@ -45,13 +48,44 @@ public class FastDnsResolver implements DnsResolver {
       .getLogger(FastDnsResolver.class);
 
   private int timeoutInSeconds;
+  private final InetSocketAddress server;
+  private Resolver resolver;
 
   public FastDnsResolver() {
     this(5);  // default to 5 seconds
   }
 
   public FastDnsResolver(int timeoutInSeconds) {
+    this(timeoutInSeconds, null);
+  }
+
+  /**
+   * @param server the DNS server to query, or null for the servers of the
+   *          system configuration
+   */
+  @VisibleForTesting
+  FastDnsResolver(int timeoutInSeconds, InetSocketAddress server) {
     this.timeoutInSeconds = timeoutInSeconds;
+    this.server = server;
+  }
+
+  /**
+   * The resolver is built once and shared by the lookups, which may run
+   * concurrently.
+   */
+  private synchronized Resolver getResolver() throws IOException {
+    if (resolver == null) {
+      if (server == null) {
+        resolver = new ExtendedResolver();
+      } else {
+        SimpleResolver simple = new SimpleResolver(server.getAddress().getHostAddress());
+        simple.setPort(server.getPort());
+        resolver = simple;
+      }
+      resolver.setTimeout(timeoutInSeconds);
+      resolver.setTCP(true);
+    }
+    return resolver;
   }
 
   /**
@@ -65,13 +99,9 @@ public class FastDnsResolver implements DnsResolver {
   @Override
   public String apply(String hostIp) {
     try {
-      Resolver resolver = new ExtendedResolver();
-      resolver.setTimeout(timeoutInSeconds);
-      resolver.setTCP(true);
-
       Name name = ReverseMap.fromAddress(hostIp);
       Record record = Record.newRecord(name, Type.PTR, DClass.IN);
-      Message response = resolver.send(newQuery(record));
+      Message response = getResolver().send(newQuery(record));
 
       Record[] answers = response.getSectionArray(Section.ANSWER);
       if (answers.length == 0) {
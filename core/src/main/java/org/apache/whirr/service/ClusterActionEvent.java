@@ -67,8 +67,15 @@ public class ClusterActionEvent {
     return cluster;
   }
 
+  /**
+   * Set the cluster, also for the rules added to the firewall manager from
+   * now on.
+   */
   public void setCluster(Cluster cluster) {
     this.cluster = cluster;
+    if (firewallManager != null && cluster != null) {
+      firewallManager.setCluster(cluster);
+    }
   }
 
   public String getAction() {
@@ -26,7 +26,10 @@ import java.io.IOException;
  * <p>
  * <i>Implementation note.</i> {@link ClusterActionHandler} implementations are
  * discovered using a Service Provider Interface (SPI), described in
- * {@link java.util.ServiceLoader}.
+ * {@link java.util.ServiceLoader}. A handler instance is shared by all the
+ * clusters of the JVM, see {@link org.apache.whirr.HandlerRegistry}, so it
+ * must not keep per-cluster state in its fields: read it from the
+ * {@link ClusterActionEvent} of each callback instead.
  */
 public interface ClusterActionHandler {
   
@@ -18,12 +18,17 @@
 
 package org.apache.whirr.service;
 
+import static org.jclouds.scriptbuilder.domain.Statements.call;
+import static org.jclouds.scriptbuilder.domain.Statements.createOrOverwriteFile;
 import static org.jclouds.scriptbuilder.domain.Statements.exec;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.commons.configuration.Configuration;
@@ -38,6 +43,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 /**
  * This is a utility class to make it easier to implement
@@ -52,6 +63,7 @@ public abstract class ClusterActionHandlerSupport implements ClusterActionHandle
   public void beforeAction(ClusterActionEvent event)
     throws IOException, InterruptedException{
     if (event.getAction().equals(BOOTSTRAP_ACTION)) {
+      addHostFirewallInstall(event);
       beforeBootstrap(event);
     } else if (event.getAction().equals(CONFIGURE_ACTION)) {
       addClusterToEtcHostsAndFirewall(event);
@@ -172,41 +184,63 @@ public abstract class ClusterActionHandlerSupport implements ClusterActionHandle
     event.getStatementBuilder().addStatement(statement);
   }
 
+  private static final String CLUSTER_HOSTS_FILE = "/tmp/whirr-cluster-hosts";
+
+  /*
+   * The hosts and firewall statements only depend on the cluster instances,
+   * they are built once per phase for all the handlers and templates
+   */
+  private static final LoadingCache<Set<Instance>, List<Statement>> CLUSTER_STATEMENTS =
+    CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Set<Instance>, List<Statement>>() {
+      @Override
+      public List<Statement> load(Set<Instance> instances) throws IOException {
+        List<String> hosts = Lists.newArrayList();
+        for (Instance instance : instances) {
+          hosts.add(instance.getPublicIp() + " " + instance.getPublicHostName());
+        }
+        return ImmutableList.<Statement>builder()
+          .add(createOrOverwriteFile(CLUSTER_HOSTS_FILE, hosts))
+          .add(call("configure_etc_hosts", CLUSTER_HOSTS_FILE))
+          .addAll(FirewallManager.getClusterRulesAsStatements(instances))
+          .build();
+      }
+    });
+
+  /**
+   * Adds the cluster hosts to /etc/hosts as one block, replaced as a whole
+   * by <code>functions/configure_etc_hosts.sh</code>, and opens the host
+   * firewall to the cluster members.
+   */
   public static void addClusterToEtcHostsAndFirewall(ClusterActionEvent event) throws IOException {
     if (event.getClusterSpec().isStoreClusterInEtcHosts()) {
-      addStatement(event, exec("echo -e '\\n' >> /etc/hosts"));
-    
-      for (Instance instance : event.getCluster().getInstances()) {
-        
-        // Remove any existing references to this IP from /etc/hosts
-        addStatement(event, exec(String.format("sed -i -e '/%s/d' /etc/hosts",
-                                               instance.getPublicIp())));
-        // Add this IP to /etc/hosts
-        addStatement(event, exec(String.format("echo -e '\\n%s %s' >> /etc/hosts",
-                                               instance.getPublicIp(),
-                                               instance.getPublicHostName())));
-
-        // Allow access to this host on all ports from this public IP
-        addStatement(event, exec(String.format("iptables -I INPUT 1 -p tcp --source %s -j ACCEPT || true",
-                                               instance.getPublicIp())));
-        
-        if (instance.getPrivateIp() != null) {
-          // Allow access to this host on all ports from this private IP
-          addStatement(event, exec(String.format("iptables -I INPUT 1 -p tcp --source %s -j ACCEPT || true",
-                                                 instance.getPrivateIp())));
-        }
-        
+      List<Statement> statements;
+      try {
+        statements = CLUSTER_STATEMENTS.get(event.getCluster().getInstances());
+      } catch (ExecutionException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+        throw Throwables.propagate(e.getCause());
+      }
+      for (Statement statement : statements) {
+        addStatement(event, statement);
       }
 
       addStatement(event, exec("test -f /etc/hostname && echo $PUBLIC_HOST_NAME > /etc/hostname || true"));
       addStatement(event, exec("test -f /etc/sysconfig/network && sed -i -e \"s/HOSTNAME=.*/HOSTNAME=$PUBLIC_HOST_NAME/\" /etc/sysconfig/network || true"));
       addStatement(event, exec("test -f /etc/init.d/hostname && /etc/init.d/hostname restart || hostname $PUBLIC_HOST_NAME"));
       addStatement(event, exec("sleep 2"));
-      
-      addStatement(event, exec("iptables-save || true"));
     }
   }
     
+  /**
+   * Installs ipset during the bootstrap, so that the host firewall rules added
+   * in the configure phase are loaded in ipsets, see
+   * <code>functions/configure_host_firewall.sh</code>.
+   */
+  public static void addHostFirewallInstall(ClusterActionEvent event) {
+    addStatement(event, call("retry_helpers"));
+    addStatement(event, call("install_ipset"));
+  }
+
   /**
    * Handles firewall rules for a given event.
    */
@@ -31,6 +31,7 @@ import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationConverter;
 import org.apache.commons.lang.StringUtils;
 import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.compute.ProviderExecutors;
 import org.jclouds.Context;
 import org.jclouds.ContextBuilder;
 import org.jclouds.apis.ApiMetadata;
@@ -148,6 +149,12 @@ public enum ComputeCache implements Function<ClusterSpec, ComputeServiceContext>
       Runtime.getRuntime().addShutdownHook(new Thread() {
          @Override
          public void run() {
+           // the background tasks, e.g. late joins and node reaping, still use the context
+           try {
+             ProviderExecutors.INSTANCE.awaitBackgroundTasks();
+           } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+           }
            LOG.debug("closing ComputeServiceContext {}", context);
            context.close();
          }
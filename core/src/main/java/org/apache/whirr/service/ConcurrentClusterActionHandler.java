@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service;
+
+/**
+ * A {@link ClusterActionHandler} whose hooks can run at the same time as the
+ * hooks of the other concurrent handlers of a cluster action, for the same or
+ * for other instance templates.
+ * <p>
+ * Each hook gets an event and a {@link FirewallManager} of its own. Once the
+ * hooks that ran together have all completed, the statements and the firewall
+ * rules they added are appended to the ones of their instance template in
+ * instance template and role order, and the clusters they set with
+ * {@link ClusterActionEvent#setCluster} are merged in the same order: the
+ * instances each of them added, replaced or dropped are applied by instance
+ * id, and the configuration properties of all of them are combined. The
+ * result does not depend on the order in which the hooks complete.
+ * <p>
+ * Implementations must be thread safe and their hooks must not depend on the
+ * statements or the cluster changes of the other handlers of the same action.
+ * Handlers that do not implement this interface run alone, in order.
+ */
+public interface ConcurrentClusterActionHandler extends ClusterActionHandler {
+
+}
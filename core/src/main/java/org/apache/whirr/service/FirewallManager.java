@@ -18,34 +18,52 @@
 
 package org.apache.whirr.service;
 
-import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import static org.jclouds.scriptbuilder.domain.Statements.call;
+import static org.jclouds.scriptbuilder.domain.Statements.createOrOverwriteFile;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.whirr.Cluster;
 import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.compute.ProviderExecutor;
+import org.apache.whirr.compute.ProviderExecutors;
+import org.jclouds.aws.ec2.AWSEC2ApiMetadata;
 import org.jclouds.aws.util.AWSUtils;
 import org.jclouds.compute.ComputeServiceContext;
 import org.jclouds.ec2.EC2ApiMetadata;
 import org.jclouds.ec2.EC2Client;
+import org.jclouds.ec2.domain.IpPermission;
 import org.jclouds.ec2.domain.IpProtocol;
+import org.jclouds.ec2.domain.SecurityGroup;
 import org.jclouds.javax.annotation.Nullable;
+import org.jclouds.rest.ResourceNotFoundException;
 import org.jclouds.scriptbuilder.domain.Statement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.collect.Ranges;
+import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 
 public class FirewallManager {
 
@@ -154,17 +172,55 @@ public class FirewallManager {
   private static final Logger LOG = LoggerFactory
     .getLogger(FirewallManager.class);
 
+  private static final String CLUSTER_MEMBERS_FILE = "/tmp/whirr-cluster-members";
+  private static final String CLIENT_RULES_FILE = "/tmp/whirr-client-rules";
+
+  /* looked up once, every firewall manager of the JVM opens the same IP */
+  private static String originatingIp;
+
   private ComputeServiceContext computeServiceContext;
   private ClusterSpec clusterSpec;
-  private Cluster cluster;
+  private volatile Cluster cluster;
   private Set<StoredRule> storedRules;
+  private Set<StoredRule> authorizedRules;
     
   public FirewallManager(ComputeServiceContext computeServiceContext,
                          ClusterSpec clusterSpec, Cluster cluster) {
     this.computeServiceContext = computeServiceContext;
     this.clusterSpec = clusterSpec;
     this.cluster = cluster;
-    this.storedRules = Sets.newHashSet();
+    this.storedRules = Collections.synchronizedSet(Sets.<StoredRule>newLinkedHashSet());
+    this.authorizedRules = Collections.synchronizedSet(Sets.<StoredRule>newHashSet());
+  }
+
+  /**
+   * @return a firewall manager of its own with the rules of this one, e.g.
+   *         for a handler that runs concurrently with others
+   * @see #addRulesOf(FirewallManager)
+   */
+  public FirewallManager copy(Cluster cluster) {
+    FirewallManager copy = new FirewallManager(computeServiceContext, clusterSpec, cluster);
+    copy.addRulesOf(this);
+    return copy;
+  }
+
+  /**
+   * Add the rules stored by another manager. The rules it authorized are not
+   * authorized again.
+   */
+  public void addRulesOf(FirewallManager other) {
+    storedRules.addAll(other.getStoredRules());
+    synchronized (other.authorizedRules) {
+      authorizedRules.addAll(other.authorizedRules);
+    }
+  }
+
+  /**
+   * Set the cluster the destination predicates of the rules added from now
+   * on are matched against, e.g. once a handler changed it.
+   */
+  public void setCluster(Cluster cluster) {
+    this.cluster = cluster;
   }
 
   public void addRules(Rule... rules) throws IOException {
@@ -229,36 +285,94 @@ public class FirewallManager {
   }
 
   /**
-   * Authorizes all rules via jclouds security groups interface.
+   * Authorizes all rules via jclouds security groups interface. The rules
+   * authorized by a previous call are skipped.
    */
   public void authorizeAllRules() {
-    for (StoredRule storedRule : storedRules) { 
-      logInstanceRules(storedRule);
-      authorizeIngress(computeServiceContext, storedRule.instances(),
-                       clusterSpec, storedRule.cidrs(), storedRule.rule().ports);
+    List<StoredRule> rules = Lists.newArrayList();
+    for (StoredRule storedRule : getStoredRules()) {
+      if (!authorizedRules.contains(storedRule)) {
+        logInstanceRules(storedRule);
+        rules.add(storedRule);
+      }
+    }
+    if (!rules.isEmpty()) {
+      authorizeIngress(computeServiceContext, clusterSpec, rules);
+      authorizedRules.addAll(rules);
     }
   }
 
   /**
-   * Returns a list of Statements for executing iptables for the stored rules.
-   * @return List of iptables Statements.
+   * Returns the Statements that open the host firewall for the stored rules.
+   * The sources and ports are loaded in an ipset matched by a single
+   * iptables rule, see <code>functions/configure_host_firewall.sh</code>.
+   * @return List of firewall Statements.
    */
   public List<Statement> getRulesAsStatements() {
-    List<Statement> ruleStatements = Lists.newArrayList();
-
-    for (StoredRule storedRule : storedRules) {
+    Set<String> entries = Sets.newLinkedHashSet();
+    for (StoredRule storedRule : getStoredRules()) {
       logInstanceRules(storedRule);
-      for (String cidr : storedRule.cidrs()) {
-        for (int port : storedRule.rule().ports) {
-          ruleStatements.add(exec(String.format("iptables -I INPUT 1 -p tcp --dport %d --source %s -j ACCEPT || true",
-                                                port, cidr)));
+      if (storedRule.rule().ports == null) {
+        continue;
+      }
+      SortedSet<Integer> ports = Sets.newTreeSet(Ints.asList(storedRule.rule().ports));
+      for (String cidr : toIpsetCidrs(storedRule.cidrs())) {
+        for (Range<Integer> range : toRanges(ports)) {
+          entries.add(range.lowerEndpoint().equals(range.upperEndpoint())
+              ? String.format("%s,tcp:%d", cidr, range.lowerEndpoint())
+              : String.format("%s,tcp:%d-%d", cidr, range.lowerEndpoint(), range.upperEndpoint()));
         }
       }
     }
+    if (entries.isEmpty()) {
+      return ImmutableList.of();
+    }
+    return ImmutableList.of(
+        createOrOverwriteFile(CLIENT_RULES_FILE, entries),
+        call("configure_host_firewall", "clients", CLIENT_RULES_FILE));
+  }
 
-    ruleStatements.add(exec("iptables-save || true"));
+  /**
+   * hash:net ipsets reject a /0 prefix, so the whole address space is given
+   * as its two halves.
+   */
+  @VisibleForTesting
+  static Set<String> toIpsetCidrs(Iterable<String> cidrs) {
+    Set<String> result = Sets.newLinkedHashSet();
+    for (String cidr : cidrs) {
+      if (cidr.endsWith("/0")) {
+        result.add("0.0.0.0/1");
+        result.add("128.0.0.0/1");
+      } else {
+        result.add(cidr);
+      }
+    }
+    return result;
+  }
 
-    return ruleStatements;
+  /**
+   * Returns the Statements that open the host firewall on all ports to the
+   * public and private addresses of the cluster members. Only the members
+   * that joined or left since the last run are added or removed on the
+   * host.
+   */
+  public static List<Statement> getClusterRulesAsStatements(Set<Instance> instances) {
+    Set<String> addresses = Sets.newTreeSet();
+    for (Instance instance : instances) {
+      addresses.add(instance.getPublicIp());
+      if (instance.getPrivateIp() != null) {
+        addresses.add(instance.getPrivateIp());
+      }
+    }
+    return ImmutableList.of(
+        createOrOverwriteFile(CLUSTER_MEMBERS_FILE, addresses),
+        call("configure_host_firewall", "cluster", CLUSTER_MEMBERS_FILE));
+  }
+
+  private List<StoredRule> getStoredRules() {
+    synchronized (storedRules) {
+      return ImmutableList.copyOf(storedRules);
+    }
   }
 
   /**
@@ -270,28 +384,100 @@ public class FirewallManager {
       return "62.217.232.123";
     }
 
-    URL url = new URL("http://checkip.amazonaws.com/");
-    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-    connection.connect();
-    return IOUtils.toString(connection.getInputStream()).trim() + "/32";
+    synchronized (FirewallManager.class) {
+      if (originatingIp == null) {
+        URL url = new URL("http://checkip.amazonaws.com/");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.connect();
+        originatingIp = IOUtils.toString(connection.getInputStream()).trim() + "/32";
+      }
+      return originatingIp;
+    }
   }
 
   public static void authorizeIngress(ComputeServiceContext computeServiceContext,
                                       Set<Instance> instances, ClusterSpec clusterSpec, List<String> cidrs, int... ports) {
+    authorizeIngress(computeServiceContext, clusterSpec,
+        ImmutableList.of(new StoredRule(Rule.create().ports(ports), cidrs, instances)));
+  }
+
+  /**
+   * Reads the permissions of the security group of the cluster once per
+   * region and grants only the missing ones, with adjacent ports merged in
+   * ranges, in a single request per group where the provider allows it.
+   */
+  private static void authorizeIngress(ComputeServiceContext computeServiceContext,
+                                       ClusterSpec clusterSpec, Iterable<StoredRule> rules) {
+
+    if (!EC2ApiMetadata.CONTEXT_TOKEN.isAssignableFrom(computeServiceContext.getBackendType())) {
+      return;
+    }
+    // This code (or something like it) may be added to jclouds (see
+    // http://code.google.com/p/jclouds/issues/detail?id=336).
+    // Until then we need this temporary workaround.
+    Map<String, SetMultimap<String, Integer>> wanted = Maps.newLinkedHashMap();
+    for (StoredRule storedRule : rules) {
+      if (storedRule.rule().ports == null) {
+        continue;
+      }
+      for (Instance instance : storedRule.instances()) {
+        String region = AWSUtils.parseHandle(instance.getId())[0];
+        if (!wanted.containsKey(region)) {
+          wanted.put(region, LinkedHashMultimap.<String, Integer>create());
+        }
+        for (String cidr : storedRule.cidrs()) {
+          for (int port : storedRule.rule().ports) {
+            wanted.get(region).put(cidr, port);
+          }
+        }
+      }
+    }
 
-    if (EC2ApiMetadata.CONTEXT_TOKEN.isAssignableFrom(computeServiceContext.getBackendType())) {
-      // This code (or something like it) may be added to jclouds (see
-      // http://code.google.com/p/jclouds/issues/detail?id=336).
-      // Until then we need this temporary workaround.
-      String region = AWSUtils.parseHandle(Iterables.get(instances, 0).getId())[0];
-      EC2Client ec2Client = computeServiceContext.unwrap(EC2ApiMetadata.CONTEXT_TOKEN).getApi();
-      String groupName = "jclouds#" + clusterSpec.getClusterName();
-      for (String cidr : cidrs) {
-        for (int port : ports) {
+    EC2Client ec2Client = computeServiceContext.unwrap(EC2ApiMetadata.CONTEXT_TOKEN).getApi();
+    ProviderExecutor executor = ProviderExecutors.INSTANCE.apply(clusterSpec);
+    String groupName = "jclouds#" + clusterSpec.getClusterName();
+    for (Map.Entry<String, SetMultimap<String, Integer>> entry : wanted.entrySet()) {
+      String region = entry.getKey();
+      SecurityGroup group = null;
+      try {
+        executor.acquireApiPermit();
+        group = Iterables.getFirst(ec2Client.getSecurityGroupServices()
+          .describeSecurityGroupsInRegion(region, groupName), null);
+      } catch (ResourceNotFoundException e) {
+        LOG.warn("Security group {} not found in {}", groupName, region);
+      }
+
+      Iterable<IpPermission> existing = ImmutableSet.of();
+      if (group != null) {
+        existing = group;
+      }
+      Set<IpPermission> missing = getMissingPermissions(existing, entry.getValue());
+      if (missing.isEmpty()) {
+        LOG.debug("Security group {} already grants all the rules", groupName);
+        continue;
+      }
+      LOG.info("Granting {} in security group {}", missing, groupName);
+
+      if (group != null
+          && AWSEC2ApiMetadata.CONTEXT_TOKEN.isAssignableFrom(computeServiceContext.getBackendType())) {
+        try {
+          executor.acquireApiPermit();
+          computeServiceContext.unwrap(AWSEC2ApiMetadata.CONTEXT_TOKEN).getApi()
+            .getSecurityGroupServices()
+            .authorizeSecurityGroupIngressInRegion(region, group.getId(), missing);
+          continue;
+        } catch(IllegalStateException e) {
+          LOG.warn(e.getMessage());
+          /* granted concurrently in part, grant the rest one by one */
+        }
+      }
+      for (IpPermission permission : missing) {
+        for (String cidr : permission.getIpRanges()) {
           try {
+            executor.acquireApiPermit();
             ec2Client.getSecurityGroupServices()
-              .authorizeSecurityGroupIngressInRegion(region, groupName,
-                                                     IpProtocol.TCP, port, port, cidr);
+              .authorizeSecurityGroupIngressInRegion(region, groupName, IpProtocol.TCP,
+                                                     permission.getFromPort(), permission.getToPort(), cidr);
           } catch(IllegalStateException e) {
             LOG.warn(e.getMessage());
             /* ignore, it means that this permission was already granted */
@@ -300,4 +486,77 @@ public class FirewallManager {
       }
     }
   }
+
+  /**
+   * @param existing the permissions the security group grants already
+   * @param wanted the ports to open, by CIDR
+   * @return the TCP permissions to grant, one per port range with all the
+   *         CIDRs the range is missing for
+   */
+  @VisibleForTesting
+  static Set<IpPermission> getMissingPermissions(Iterable<IpPermission> existing,
+                                                 SetMultimap<String, Integer> wanted) {
+    SetMultimap<Range<Integer>, String> missing = LinkedHashMultimap.create();
+    for (String cidr : wanted.keySet()) {
+      SortedSet<Integer> ports = Sets.newTreeSet();
+      for (int port : wanted.get(cidr)) {
+        if (!isGranted(existing, cidr, port)) {
+          ports.add(port);
+        }
+      }
+      for (Range<Integer> range : toRanges(ports)) {
+        missing.put(range, cidr);
+      }
+    }
+
+    Set<IpPermission> permissions = Sets.newLinkedHashSet();
+    for (Range<Integer> range : missing.keySet()) {
+      permissions.add(IpPermission.builder()
+          .ipProtocol(IpProtocol.TCP)
+          .fromPort(range.lowerEndpoint())
+          .toPort(range.upperEndpoint())
+          .ipRanges(missing.get(range))
+          .build());
+    }
+    return permissions;
+  }
+
+  private static boolean isGranted(Iterable<IpPermission> existing, String cidr, int port) {
+    for (IpPermission permission : existing) {
+      if (!permission.getIpRanges().contains(cidr)) {
+        continue;
+      }
+      if (permission.getIpProtocol() == IpProtocol.ALL
+          || (permission.getIpProtocol() == IpProtocol.TCP
+              && permission.getFromPort() <= port && port <= permission.getToPort())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the ports merged in ranges of adjacent ports
+   */
+  @VisibleForTesting
+  static List<Range<Integer>> toRanges(SortedSet<Integer> ports) {
+    List<Range<Integer>> ranges = Lists.newArrayList();
+    Integer from = null;
+    Integer to = null;
+    for (int port : ports) {
+      if (to != null && port == to + 1) {
+        to = port;
+        continue;
+      }
+      if (from != null) {
+        ranges.add(Ranges.closed(from, to));
+      }
+      from = port;
+      to = port;
+    }
+    if (from != null) {
+      ranges.add(Ranges.closed(from, to));
+    }
+    return ranges;
+  }
 }
@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service;
+
+import java.util.Set;
+
+import org.apache.whirr.ClusterSpec;
+
+/**
+ * Optional interface for a {@link ClusterActionHandler} that declares which
+ * other roles must have completed a phase before its own instances can enter
+ * the next one.
+ * <p>
+ * Handlers that do not implement this interface are assumed to depend on
+ * every other role in the cluster, which preserves the historical behaviour
+ * of a global barrier between bootstrap, configure and start. The
+ * dependencies can be overridden for any role with the
+ * <code>whirr.&lt;role&gt;.depends-on</code> property: a comma separated list
+ * of roles, or <code>*</code> for all roles.
+ *
+ * @see org.apache.whirr.actions.PhaseDependencyGraph
+ */
+public interface RoleDependencies {
+
+  /**
+   * @return the roles that must be bootstrapped before this role is configured
+   * and started before this role is started; an empty set if the role has no
+   * dependencies or <code>null</code> if it depends on all roles
+   */
+  Set<String> getRoleDependencies(ClusterSpec clusterSpec);
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.jclouds;
+
+import java.util.Map;
+
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.StatementList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link StatementList} that renders its statements only once per
+ * {@link OsFamily}. Used to share the body of an init script between all the
+ * instances of a template, which only differ by the variables they export.
+ * <p>
+ * Rendering happens lazily on first use, after any
+ * {@link org.jclouds.scriptbuilder.domain.StatementVisitor} has been applied.
+ */
+class CachedStatementList extends StatementList {
+
+  private final Map<OsFamily, String> rendered = Maps.newEnumMap(OsFamily.class);
+  private final Map<OsFamily, Iterable<String>> functions = Maps.newEnumMap(OsFamily.class);
+
+  CachedStatementList(Iterable<Statement> statements) {
+    super(ImmutableList.copyOf(statements));
+  }
+
+  @Override
+  public synchronized String render(OsFamily family) {
+    String result = rendered.get(family);
+    if (result == null) {
+      result = super.render(family);
+      rendered.put(family, result);
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized Iterable<String> functionDependencies(OsFamily family) {
+    Iterable<String> result = functions.get(family);
+    if (result == null) {
+      result = ImmutableList.copyOf(super.functionDependencies(family));
+      functions.put(family, result);
+    }
+    return result;
+  }
+
+}
@@ -18,18 +18,32 @@
 
 package org.apache.whirr.service.jclouds;
 
+import static org.jclouds.scriptbuilder.domain.Statements.newStatementList;
+
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
 import org.jclouds.scriptbuilder.InitScript;
+import org.jclouds.scriptbuilder.domain.OsFamily;
 import org.jclouds.scriptbuilder.domain.Statement;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
+/**
+ * Collects the statements and the exported variables of a phase for the
+ * instances of a template, and builds one init script per instance.
+ * <p>
+ * The statements are the same for all the instances, so they are rendered
+ * once and shared by all the scripts built until another statement is added.
+ * Only the exported variables are computed for each instance.
+ */
 public class StatementBuilder {
   protected String name;
   protected List<Statement> initStatements = Lists.newArrayList();
@@ -37,16 +51,23 @@ public class StatementBuilder {
   protected Map<String, String> exports = Maps.newLinkedHashMap();
   protected Map<String, Map<String, String>> exportsByInstanceId = Maps.newHashMap();
 
+  private final Set<Statement> statementSet = Sets.newHashSet();
+  private CachedStatementList body;
+  private ClusterSpec clusterVariablesSpec;
+  private Map<String, String> clusterVariables;
+
   public StatementBuilder addStatement(Statement statement) {
-    if (!statements.contains(statement)) {
+    if (statementSet.add(statement)) {
       statements.add(statement);
+      body = null;
     }
     return this;
   }
   
   public StatementBuilder addStatement(int pos, Statement statement) {
-    if (!statements.contains(statement)) {
+    if (statementSet.add(statement)) {
       statements.add(pos, statement);
+      body = null;
     }
     return this;
   }
@@ -57,6 +78,23 @@ public class StatementBuilder {
     return this;
   }
   
+  /**
+   * Append the statements and the exports of another builder, e.g. one used
+   * by a handler that ran concurrently with others.
+   */
+  public StatementBuilder addAll(StatementBuilder other) {
+    for (Statement statement : other.statements) {
+      addStatement(statement);
+    }
+    exports.putAll(other.exports);
+    for (Map.Entry<String, Map<String, String>> entry : other.exportsByInstanceId.entrySet()) {
+      for (Map.Entry<String, String> export : entry.getValue().entrySet()) {
+        addExportPerInstance(entry.getKey(), export.getKey(), export.getValue());
+      }
+    }
+    return this;
+  }
+
   public StatementBuilder name(String name) {
     this.name = name;
     return this;
@@ -78,6 +116,54 @@ public class StatementBuilder {
     return this;
   }
 
+  /**
+   * @return true if the statement calls a function that installs software,
+   *         i.e. one named <code>install_*</code>
+   */
+  public static boolean isInstallStatement(Statement statement) {
+    for (String function : statement.functionDependencies(OsFamily.UNIX)) {
+      if (function.startsWith("install_")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the script that runs the install statements only, with the
+   *         exports of this builder but none of the cluster variables, or
+   *         null if there are no install statements
+   */
+  public Statement buildInstallScript() {
+    List<Statement> install = Lists.newArrayList();
+    for (Statement statement : statements) {
+      if (isInstallStatement(statement)) {
+        install.add(statement);
+      }
+    }
+    if (install.isEmpty()) {
+      return null;
+    }
+    return InitScript.builder().name("install").exportVariables(exports)
+        .run(newStatementList(install.toArray(new Statement[install.size()]))).build();
+  }
+
+  /**
+   * Remove the install statements, e.g. because the image already contains
+   * the software they install.
+   */
+  public StatementBuilder removeInstallStatements() {
+    for (Iterator<Statement> it = statements.iterator(); it.hasNext(); ) {
+      Statement statement = it.next();
+      if (isInstallStatement(statement)) {
+        it.remove();
+        statementSet.remove(statement);
+        body = null;
+      }
+    }
+    return this;
+  }
+
   public boolean isEmpty() {
     return statements.size() == 0;
   }
@@ -98,10 +184,26 @@ public class StatementBuilder {
     } else {
       InitScript.Builder builder = InitScript.builder();
       builder.name(name);
-      builder.exportVariables(new VariablesToExport(exports, exportsByInstanceId, clusterSpec, instance).get());
-      builder.run(statements);
+      builder.exportVariables(new VariablesToExport(exports, exportsByInstanceId, clusterSpec, instance,
+          getClusterVariables(clusterSpec)).get());
+      builder.run(getBody());
       return builder.build();
     }
   }
 
+  private synchronized Statement getBody() {
+    if (body == null) {
+      body = new CachedStatementList(statements);
+    }
+    return body;
+  }
+
+  private synchronized Map<String, String> getClusterVariables(ClusterSpec clusterSpec) {
+    if (clusterVariables == null || clusterVariablesSpec != clusterSpec) {
+      clusterVariables = VariablesToExport.forCluster(clusterSpec);
+      clusterVariablesSpec = clusterSpec;
+    }
+    return clusterVariables;
+  }
+
 }
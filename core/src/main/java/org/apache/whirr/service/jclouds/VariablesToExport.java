@@ -42,20 +42,42 @@ class VariablesToExport implements Supplier<Map<String, String>> {
   private final Map<String, Map<String, String>> exportsByInstanceId;
   private final ClusterSpec clusterSpec;
   private final Instance instance;
+  private final Map<String, String> clusterVariables;
 
   public VariablesToExport(Map<String, String> exports, Map<String, Map<String, String>> exportsByInstanceId,
       ClusterSpec clusterSpec, Instance instance) {
-    this.exports = ImmutableMap.copyOf(exports);
-    this.exportsByInstanceId = ImmutableMap.copyOf(exportsByInstanceId);
+    this(ImmutableMap.copyOf(exports), ImmutableMap.copyOf(exportsByInstanceId), clusterSpec, instance,
+        forCluster(clusterSpec));
+  }
+
+  /**
+   * @param clusterVariables the variables shared by all instances, as
+   *          returned by {@link #forCluster(ClusterSpec)}
+   */
+  VariablesToExport(Map<String, String> exports, Map<String, Map<String, String>> exportsByInstanceId,
+      ClusterSpec clusterSpec, Instance instance, Map<String, String> clusterVariables) {
+    this.exports = exports;
+    this.exportsByInstanceId = exportsByInstanceId;
     this.clusterSpec = clusterSpec;
     this.instance = instance;
+    this.clusterVariables = clusterVariables;
+  }
+
+  /**
+   * @return the variables that do not depend on the instance: the ones
+   *         defined in the cluster spec and the cluster wide defaults
+   */
+  static Map<String, String> forCluster(ClusterSpec clusterSpec) {
+    Map<String, String> metadataMap = Maps.newLinkedHashMap();
+    addEnvironmentVariablesFromClusterSpec(metadataMap, clusterSpec);
+    addDefaultEnvironmentVariablesForCluster(metadataMap, clusterSpec);
+    return ImmutableMap.copyOf(metadataMap);
   }
 
   @Override
   public Map<String, String> get() {
-    Map<String, String> metadataMap = Maps.newLinkedHashMap();
+    Map<String, String> metadataMap = Maps.newLinkedHashMap(clusterVariables);
 
-    addEnvironmentVariablesFromClusterSpec(metadataMap);
     addDefaultEnvironmentVariablesForInstance(metadataMap, instance);
     metadataMap.putAll(exports);
     addPerInstanceCustomEnvironmentVariables(metadataMap, instance);
@@ -69,7 +91,8 @@ class VariablesToExport implements Supplier<Map<String, String>> {
     }
   }
 
-  private void addDefaultEnvironmentVariablesForInstance(Map<String, String> metadataMap, Instance instance) {
+  private static void addDefaultEnvironmentVariablesForCluster(Map<String, String> metadataMap,
+      ClusterSpec clusterSpec) {
     if (clusterSpec.getClusterName() != null)
       metadataMap.put("CLUSTER_NAME", clusterSpec.getClusterName());
     if (clusterSpec.getClusterUser() != null)
@@ -89,6 +112,9 @@ class VariablesToExport implements Supplier<Map<String, String>> {
     }
     metadataMap.put("KERBEROS_REALM",
       clusterSpec.getKerberosRealm() == null ? "HADOOPCLUSTER.COM" : clusterSpec.getKerberosRealm());
+  }
+
+  private void addDefaultEnvironmentVariablesForInstance(Map<String, String> metadataMap, Instance instance) {
     if (instance != null) {
       metadataMap.put("ROLES", Joiner.on(",").join(instance.getRoles()));
       if (instance.getPublicIp() != null)
@@ -108,7 +134,8 @@ class VariablesToExport implements Supplier<Map<String, String>> {
     }
   }
 
-  private void addEnvironmentVariablesFromClusterSpec(Map<String, String> metadataMap) {
+  private static void addEnvironmentVariablesFromClusterSpec(Map<String, String> metadataMap,
+      ClusterSpec clusterSpec) {
     for (Iterator<?> it = clusterSpec.getConfiguration().getKeys("whirr.env"); it.hasNext(); ) {
       String key = (String) it.next();
       String value = clusterSpec.getConfiguration().getString(key);
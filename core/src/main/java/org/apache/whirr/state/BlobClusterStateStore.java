@@ -19,8 +19,13 @@
 package org.apache.whirr.state;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.inDirectory;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.whirr.Cluster;
@@ -29,13 +34,48 @@ import org.apache.whirr.service.BlobStoreContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Stores the cluster state in a blob store container.
+ * <p>
+ * The state blob is a snapshot of the cluster. Each save after that only
+ * appends a delta with the instances added, changed and removed since the
+ * state known by this store, in a log next to the snapshot. Once
+ * {@link #COMPACT_AFTER} deltas are logged they are folded into a new
+ * snapshot.
+ * <p>
+ * Blob stores have no conditional writes in common, so concurrent updates
+ * from two controllers are detected by the names of the deltas: each one is
+ * named after its sequence number and a writer id. A writer that finds a
+ * delta it has not seen before writing, or another delta with the same
+ * sequence number after writing, loads the state again and writes its own
+ * changes on top of it, instead of overwriting the other changes. The ETag
+ * of the snapshot tells whether another writer compacted the log.
+ */
 public class BlobClusterStateStore extends ClusterStateStore {
 
   private static final Logger LOG = LoggerFactory
-    .getLogger(FileClusterStateStore.class);
+    .getLogger(BlobClusterStateStore.class);
+
+  @VisibleForTesting
+  static final int COMPACT_AFTER = 20;
+
+  private static final int MAX_ATTEMPTS = 5;
+  private static final String SEQUENCE = "whirr-state-sequence";
 
   private ClusterSpec spec;
   private BlobStoreContext context;
@@ -43,6 +83,14 @@ public class BlobClusterStateStore extends ClusterStateStore {
   private String container;
   private String blobName;
 
+  private final String writerId = UUID.randomUUID().toString().replace("-", "");
+
+  /* the state as last loaded or saved, by instance id, or null if unknown */
+  private Map<String, String> instances;
+  private long sequence;
+  private String snapshotETag;
+  private int deltas;
+
   public BlobClusterStateStore(ClusterSpec spec) {
     this.spec = spec;
     this.context = BlobStoreContextBuilder.build(spec);
@@ -57,28 +105,277 @@ public class BlobClusterStateStore extends ClusterStateStore {
   }
 
   @Override
-  public Cluster load() throws IOException {
-    Blob blob = context.getBlobStore().getBlob(container, blobName);
-    if (blob != null) {
-      return unserialize(spec,
-        IOUtils.toString(blob.getPayload().getInput(), "utf-8"));
+  public synchronized Cluster load() throws IOException {
+    refresh();
+    if (instances == null) {
+      return null;
     }
-    return null;
+    return unserialize(spec, ClusterStateFormat.write(instances.values(),
+      ImmutableSet.<String>of()));
   }
 
   @Override
-  public void save(Cluster cluster) throws IOException {
+  public synchronized void save(Cluster cluster) throws IOException {
+    Map<String, String> target = ClusterStateFormat.instanceLines(cluster,
+      getResolvedHostNames(cluster));
+    if (instances == null) {
+      refresh();
+    }
+    if (instances == null) {
+      saveSnapshot(target, 0);
+      return;
+    }
+
+    Map<String, String> changed = Maps.newLinkedHashMap();
+    for (Map.Entry<String, String> entry : target.entrySet()) {
+      if (!entry.getValue().equals(instances.get(entry.getKey()))) {
+        changed.put(entry.getKey(), entry.getValue());
+      }
+    }
+    Set<String> removed = Sets.newLinkedHashSet(
+      Sets.difference(instances.keySet(), target.keySet()));
+    if (changed.isEmpty() && removed.isEmpty()) {
+      LOG.debug("Cluster state is unchanged, nothing to save");
+      return;
+    }
+
+    saveDelta(changed, removed);
+    if (deltas >= COMPACT_AFTER) {
+      compact();
+    }
+  }
+
+  /**
+   * Append a delta to the log, loading the state again and retrying when
+   * another writer logged a delta that was not known yet.
+   */
+  private void saveDelta(Map<String, String> changed, Set<String> removed) throws IOException {
+    BlobStore store = context.getBlobStore();
+    String content = ClusterStateFormat.write(changed.values(), removed);
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      if (!listDeltas(sequence + 1).isEmpty()) {
+        LOG.info("Cluster state was updated by another controller, loading it again");
+        refresh();
+      }
+      if (instances == null) {
+        /* destroyed meanwhile, the changes are saved on top of an empty state */
+        instances = Maps.newLinkedHashMap();
+      }
+      long next = sequence + 1;
+      String name = getDeltaBlobName(next);
+      store.putBlob(container, store.blobBuilder(name).payload(content).build());
+
+      SortedMap<String, Long> concurrent = listDeltas(next);
+      if (concurrent.isEmpty() || concurrent.firstKey().equals(name)) {
+        apply(instances, changed, removed);
+        sequence = next;
+        deltas++;
+        if (concurrent.size() > 1) {
+          /* others wrote after us and will be applied after our delta */
+          refresh();
+        }
+        LOG.debug("Saved cluster state delta {}", name);
+        return;
+      }
+      LOG.info("Conflicting cluster state update {}, retrying on top of {}",
+        name, concurrent.firstKey());
+      store.removeBlob(container, name);
+      refresh();
+    }
+    throw new IOException("Unable to save the cluster state after " + MAX_ATTEMPTS
+      + " attempts, it is updated concurrently too often");
+  }
+
+  /**
+   * Fold the logged deltas into a new snapshot, unless another writer did it
+   * already, and remove them.
+   */
+  private void compact() throws IOException {
+    BlobMetadata current = context.getBlobStore().blobMetadata(container, blobName);
+    if (current != null && !Objects.equal(current.getETag(), snapshotETag)) {
+      LOG.debug("Cluster state snapshot was replaced by another controller");
+      refresh();
+      return;
+    }
+    saveSnapshot(instances, sequence);
+  }
+
+  private void saveSnapshot(Map<String, String> state, long snapshotSequence) throws IOException {
     BlobStore store = context.getBlobStore();
+    Blob blob = store.blobBuilder(blobName)
+      .payload(ClusterStateFormat.write(state.values(), ImmutableSet.<String>of()))
+      .userMetadata(ImmutableMap.of(SEQUENCE, Long.toString(snapshotSequence)))
+      .build();
+    snapshotETag = store.putBlob(container, blob);
+    instances = Maps.newLinkedHashMap(state);
+    sequence = snapshotSequence;
+    deltas = 0;
 
-    Blob blob = store.blobBuilder(blobName).payload(serialize(cluster)).build();
-    store.putBlob(container, blob);
+    /* the deltas folded into the snapshot are skipped by the readers */
+    for (Map.Entry<String, Long> delta : listDeltas(0).entrySet()) {
+      if (delta.getValue() <= snapshotSequence) {
+        store.removeBlob(container, delta.getKey());
+      }
+    }
 
     LOG.info("Saved cluster state to '{}' ", context.getSigner()
       .signGetBlob(container, blobName).getEndpoint().toString());
   }
 
+  /**
+   * Load the snapshot and apply the deltas logged after it. Loads again if
+   * the snapshot is replaced meanwhile, as the deltas it folds in may be
+   * removed already.
+   */
+  private void refresh() throws IOException {
+    BlobStore store = context.getBlobStore();
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      Map<String, String> state = null;
+      long snapshotSequence = 0;
+      String etag = null;
+
+      Blob snapshot = store.getBlob(container, blobName);
+      if (snapshot != null) {
+        String content = IOUtils.toString(snapshot.getPayload().getInput(), "utf-8");
+        if (ClusterStateFormat.isJson(content)) {
+          state = ClusterStateFormat.readInstanceLines(content);
+        } else {
+          Cluster cluster = unserialize(spec, content);
+          state = ClusterStateFormat.instanceLines(cluster, getResolvedHostNames(cluster));
+        }
+        String stored = snapshot.getMetadata().getUserMetadata().get(SEQUENCE);
+        snapshotSequence = stored == null ? 0 : Long.parseLong(stored);
+        etag = snapshot.getMetadata().getETag();
+      }
+
+      long last = snapshotSequence;
+      int applied = 0;
+      boolean complete = true;
+      for (Map.Entry<String, Long> delta : listDeltas(snapshotSequence + 1).entrySet()) {
+        Blob blob = store.getBlob(container, delta.getKey());
+        if (blob == null) {
+          complete = false;
+          break;
+        }
+        String content = IOUtils.toString(blob.getPayload().getInput(), "utf-8");
+        if (state == null) {
+          state = Maps.newLinkedHashMap();
+        }
+        apply(state, ClusterStateFormat.readInstanceLines(content),
+          ClusterStateFormat.readRemovedIds(content));
+        last = Math.max(last, delta.getValue());
+        applied++;
+      }
+
+      BlobMetadata current = store.blobMetadata(container, blobName);
+      if (complete && Objects.equal(etag, current == null ? null : current.getETag())) {
+        instances = state;
+        sequence = last;
+        snapshotETag = etag;
+        deltas = applied;
+        return;
+      }
+      LOG.debug("Cluster state snapshot was replaced while loading it, loading it again");
+    }
+    throw new IOException("Unable to load the cluster state after " + MAX_ATTEMPTS
+      + " attempts, it is compacted concurrently too often");
+  }
+
+  private static void apply(Map<String, String> state, Map<String, String> changed,
+      Set<String> removed) {
+    state.keySet().removeAll(removed);
+    state.putAll(changed);
+  }
+
+  /**
+   * @return the deltas in the log from the given sequence number on, by
+   *         blob name, in the order they are applied
+   */
+  private SortedMap<String, Long> listDeltas(long fromSequence) {
+    BlobStore store = context.getBlobStore();
+    SortedMap<String, Long> found = Maps.newTreeMap();
+    if (!store.directoryExists(container, getLogDirectory())) {
+      return found;
+    }
+    ListContainerOptions options = inDirectory(getLogDirectory());
+    while (true) {
+      PageSet<? extends StorageMetadata> page = store.list(container, options);
+      for (StorageMetadata metadata : page) {
+        if (metadata.getType() != StorageType.BLOB) {
+          continue;
+        }
+        String name = metadata.getName().substring(metadata.getName().lastIndexOf('/') + 1);
+        int separator = name.indexOf('-');
+        if (separator <= 0) {
+          continue;
+        }
+        long deltaSequence = Long.parseLong(name.substring(0, separator));
+        if (deltaSequence >= fromSequence) {
+          found.put(getLogDirectory() + "/" + name, deltaSequence);
+        }
+      }
+      if (page.getNextMarker() == null) {
+        return found;
+      }
+      options = inDirectory(getLogDirectory()).afterMarker(page.getNextMarker());
+    }
+  }
+
   @Override
-  public void destroy() throws IOException {
+  public synchronized void destroy() throws IOException {
     context.getBlobStore().removeBlob(container, blobName);
+    if (context.getBlobStore().directoryExists(container, getLogDirectory())) {
+      context.getBlobStore().deleteDirectory(container, getLogDirectory());
+    }
+    if (context.getBlobStore().directoryExists(container, getEntriesDirectory())) {
+      context.getBlobStore().deleteDirectory(container, getEntriesDirectory());
+    }
+    instances = null;
+    sequence = 0;
+    snapshotETag = null;
+    deltas = 0;
+  }
+
+  @Override
+  public String loadEntry(String name) throws IOException {
+    Blob blob = context.getBlobStore().getBlob(container, getEntryBlobName(name));
+    if (blob != null) {
+      return IOUtils.toString(blob.getPayload().getInput(), "utf-8");
+    }
+    return null;
+  }
+
+  @Override
+  public void saveEntry(String name, String content) throws IOException {
+    BlobStore store = context.getBlobStore();
+    store.putBlob(container, store.blobBuilder(getEntryBlobName(name)).payload(content).build());
+  }
+
+  @Override
+  public void removeEntry(String name) throws IOException {
+    context.getBlobStore().removeBlob(container, getEntryBlobName(name));
+  }
+
+  /**
+   * The deltas are logged in a directory next to the state blob. The
+   * sequence number is zero padded so that the names sort in order.
+   */
+  private String getLogDirectory() {
+    return blobName + ".log";
+  }
+
+  private String getDeltaBlobName(long deltaSequence) {
+    return String.format("%s/%019d-%s", getLogDirectory(), deltaSequence, writerId);
+  }
+
+  /**
+   * Named entries are stored in a directory next to the state blob
+   */
+  private String getEntriesDirectory() {
+    return blobName + ".d";
+  }
+
+  private String getEntryBlobName(String name) {
+    return getEntriesDirectory() + "/" + name;
   }
 }
@@ -0,0 +1,346 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.whirr.Cluster;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.HardwareBuilder;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.compute.domain.Processor;
+import org.jclouds.compute.domain.Volume;
+import org.jclouds.compute.domain.VolumeBuilder;
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationBuilder;
+import org.jclouds.domain.LocationScope;
+import org.jclouds.javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The versioned JSON format of the cluster state. On top of the roles and
+ * addresses of each instance it keeps the host name and the node details
+ * (group, image, hardware, location and status), so that the instances can
+ * be rebuilt without listing the nodes of the provider.
+ * <p>
+ * The format is a JSON object with a <code>version</code> field and one line
+ * per instance. {@link #isJson(String)} tells it from the TSV format of the
+ * previous versions, which {@link ClusterStateStore} still reads. A delta
+ * of the state has the same format, with the ids of the removed instances in
+ * an additional <code>removed</code> field.
+ */
+final class ClusterStateFormat {
+
+  static final int VERSION = 2;
+
+  private ClusterStateFormat() {
+  }
+
+  static boolean isJson(String content) {
+    return content.trim().startsWith("{");
+  }
+
+  /**
+   * @param hostNames the resolved public host name of the instances, by
+   *          public IP
+   */
+  static String write(Cluster cluster, Map<String, String> hostNames) {
+    return write(instanceLines(cluster, hostNames).values(), ImmutableSet.<String>of());
+  }
+
+  /**
+   * @param instanceLines the JSON lines of the instances, as returned by
+   *          {@link #instanceLines(Cluster, Map)}
+   * @param removedIds the ids of the instances removed since the previous
+   *          state, for a delta of the state. Left out when empty.
+   */
+  static String write(Iterable<String> instanceLines, Set<String> removedIds) {
+    return write(instanceLines, removedIds, 0);
+  }
+
+  /**
+   * @param sequence the sequence number of the last delta included in the
+   *          state, or of the delta itself. Left out when 0.
+   */
+  static String write(Iterable<String> instanceLines, Set<String> removedIds, long sequence) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"version\":").append(VERSION);
+    if (sequence > 0) {
+      sb.append(",\"sequence\":").append(sequence);
+    }
+    if (!removedIds.isEmpty()) {
+      sb.append(",\"removed\":").append(new Gson().toJson(removedIds));
+    }
+    sb.append(",\"instances\":[\n");
+    boolean first = true;
+    for (String line : instanceLines) {
+      if (!first) {
+        sb.append(",\n");
+      }
+      first = false;
+      sb.append(line);
+    }
+    sb.append("\n]}\n");
+    return sb.toString();
+  }
+
+  /**
+   * @return the JSON line of each instance, by instance id, in cluster order.
+   *         Two lines are equal if the stored details of the instance are.
+   */
+  static Map<String, String> instanceLines(Cluster cluster, Map<String, String> hostNames) {
+    Gson gson = new Gson();
+    Map<String, String> lines = Maps.newLinkedHashMap();
+    for (Cluster.Instance instance : cluster.getInstances()) {
+      lines.put(instance.getId(),
+          gson.toJson(toJson(instance, hostNames.get(instance.getPublicIp()))));
+    }
+    return lines;
+  }
+
+  /**
+   * @return the JSON line of each instance of a JSON state, by instance id
+   */
+  static Map<String, String> readInstanceLines(String content) {
+    Gson gson = new Gson();
+    Map<String, String> lines = Maps.newLinkedHashMap();
+    for (JsonElement element : parse(content).getAsJsonArray("instances")) {
+      lines.put(element.getAsJsonObject().get("id").getAsString(), gson.toJson(element));
+    }
+    return lines;
+  }
+
+  /**
+   * @return the sequence number of a state or a delta, 0 if it has none
+   */
+  static long readSequence(String content) {
+    JsonObject root = parse(content);
+    return has(root, "sequence") ? root.get("sequence").getAsLong() : 0;
+  }
+
+  /**
+   * @return the ids of the removed instances of a delta, empty for a full
+   *         state
+   */
+  static Set<String> readRemovedIds(String content) {
+    JsonObject root = parse(content);
+    Set<String> ids = Sets.newLinkedHashSet();
+    if (has(root, "removed")) {
+      for (JsonElement id : root.getAsJsonArray("removed")) {
+        ids.add(id.getAsString());
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * A parsed instance, before it is bound to the credentials of the cluster.
+   */
+  static class StoredInstance {
+    String id;
+    Set<String> roles;
+    String publicIp;
+    String privateIp;
+    String locationId;
+    String publicHostName;
+    NodeMetadata nodeMetadata;
+  }
+
+  static List<StoredInstance> read(String content) {
+    List<StoredInstance> instances = Lists.newArrayList();
+    for (JsonElement element : parse(content).getAsJsonArray("instances")) {
+      JsonObject json = element.getAsJsonObject();
+      StoredInstance instance = new StoredInstance();
+      instance.id = json.get("id").getAsString();
+      instance.roles = Sets.newLinkedHashSet();
+      for (JsonElement role : json.getAsJsonArray("roles")) {
+        instance.roles.add(role.getAsString());
+      }
+      instance.publicIp = string(json, "publicIp");
+      instance.privateIp = string(json, "privateIp");
+      instance.locationId = string(json, "locationId");
+      instance.publicHostName = string(json, "publicHostName");
+      if (has(json, "node")) {
+        instance.nodeMetadata = toNodeMetadata(instance, json.getAsJsonObject("node"));
+      }
+      instances.add(instance);
+    }
+    return instances;
+  }
+
+  private static JsonObject parse(String content) {
+    JsonObject root = new JsonParser().parse(content).getAsJsonObject();
+    int version = root.get("version").getAsInt();
+    if (version > VERSION) {
+      throw new IllegalArgumentException("Cluster state version " + version
+          + " is newer than the supported version " + VERSION);
+    }
+    return root;
+  }
+
+  private static JsonObject toJson(Cluster.Instance instance, @Nullable String publicHostName) {
+    JsonObject json = new JsonObject();
+    json.addProperty("id", instance.getId());
+    JsonArray roles = new JsonArray();
+    for (String role : instance.getRoles()) {
+      roles.add(new JsonPrimitive(role));
+    }
+    json.add("roles", roles);
+    json.addProperty("publicIp", instance.getPublicIp());
+    json.addProperty("privateIp", instance.getPrivateIp());
+    json.addProperty("locationId", instance.getLocationId());
+    json.addProperty("publicHostName", publicHostName);
+
+    NodeMetadata node = instance.getNodeMetadata();
+    if (node != null) {
+      JsonObject nodeJson = new JsonObject();
+      nodeJson.addProperty("providerId", node.getProviderId());
+      nodeJson.addProperty("name", node.getName());
+      nodeJson.addProperty("group", node.getGroup());
+      nodeJson.addProperty("hostname", node.getHostname());
+      nodeJson.addProperty("imageId", node.getImageId());
+      nodeJson.addProperty("status", node.getStatus() == null ? null : node.getStatus().name());
+      nodeJson.addProperty("loginPort", node.getLoginPort());
+      if (node.getLocation() != null) {
+        JsonObject location = new JsonObject();
+        location.addProperty("id", node.getLocation().getId());
+        location.addProperty("scope", node.getLocation().getScope().name());
+        location.addProperty("description", node.getLocation().getDescription());
+        nodeJson.add("location", location);
+      }
+      if (node.getHardware() != null) {
+        nodeJson.add("hardware", toJson(node.getHardware()));
+      }
+      json.add("node", nodeJson);
+    }
+    return json;
+  }
+
+  private static JsonObject toJson(Hardware hardware) {
+    JsonObject json = new JsonObject();
+    json.addProperty("id", hardware.getId());
+    json.addProperty("providerId", hardware.getProviderId());
+    json.addProperty("ram", hardware.getRam());
+    JsonArray processors = new JsonArray();
+    for (Processor processor : hardware.getProcessors()) {
+      JsonObject processorJson = new JsonObject();
+      processorJson.addProperty("cores", processor.getCores());
+      processorJson.addProperty("speed", processor.getSpeed());
+      processors.add(processorJson);
+    }
+    json.add("processors", processors);
+    JsonArray volumes = new JsonArray();
+    for (Volume volume : hardware.getVolumes()) {
+      JsonObject volumeJson = new JsonObject();
+      volumeJson.addProperty("type", volume.getType().name());
+      volumeJson.addProperty("size", volume.getSize());
+      volumeJson.addProperty("device", volume.getDevice());
+      volumeJson.addProperty("bootDevice", volume.isBootDevice());
+      volumeJson.addProperty("durable", volume.isDurable());
+      volumes.add(volumeJson);
+    }
+    json.add("volumes", volumes);
+    return json;
+  }
+
+  private static NodeMetadata toNodeMetadata(StoredInstance instance, JsonObject json) {
+    NodeMetadataBuilder builder = new NodeMetadataBuilder()
+        .id(instance.id)
+        .providerId(has(json, "providerId") ? string(json, "providerId") : instance.id)
+        .name(string(json, "name"))
+        .group(string(json, "group"))
+        .hostname(string(json, "hostname"))
+        .imageId(string(json, "imageId"))
+        .status(has(json, "status") ? NodeMetadata.Status.valueOf(json.get("status").getAsString())
+            : NodeMetadata.Status.UNRECOGNIZED)
+        .loginPort(has(json, "loginPort") ? json.get("loginPort").getAsInt() : 22)
+        .publicAddresses(instance.publicIp == null ? ImmutableSet.<String>of()
+            : ImmutableSet.of(instance.publicIp))
+        .privateAddresses(instance.privateIp == null ? ImmutableSet.<String>of()
+            : ImmutableSet.of(instance.privateIp));
+    if (has(json, "location")) {
+      builder.location(toLocation(json.getAsJsonObject("location")));
+    }
+    if (has(json, "hardware")) {
+      builder.hardware(toHardware(json.getAsJsonObject("hardware")));
+    }
+    return builder.build();
+  }
+
+  private static Location toLocation(JsonObject json) {
+    String id = json.get("id").getAsString();
+    return new LocationBuilder()
+        .id(id)
+        .scope(LocationScope.valueOf(json.get("scope").getAsString()))
+        .description(has(json, "description") ? json.get("description").getAsString() : id)
+        .build();
+  }
+
+  private static Hardware toHardware(JsonObject json) {
+    List<Processor> processors = Lists.newArrayList();
+    for (JsonElement element : json.getAsJsonArray("processors")) {
+      JsonObject processor = element.getAsJsonObject();
+      processors.add(new Processor(processor.get("cores").getAsDouble(),
+          processor.get("speed").getAsDouble()));
+    }
+    List<Volume> volumes = Lists.newArrayList();
+    for (JsonElement element : json.getAsJsonArray("volumes")) {
+      JsonObject volume = element.getAsJsonObject();
+      volumes.add(new VolumeBuilder()
+          .type(Volume.Type.valueOf(volume.get("type").getAsString()))
+          .size(has(volume, "size") ? volume.get("size").getAsFloat() : null)
+          .device(string(volume, "device"))
+          .bootDevice(volume.get("bootDevice").getAsBoolean())
+          .durable(volume.get("durable").getAsBoolean())
+          .build());
+    }
+    String id = json.get("id").getAsString();
+    return new HardwareBuilder()
+        .id(id)
+        .providerId(has(json, "providerId") ? json.get("providerId").getAsString() : id)
+        .ram(json.get("ram").getAsInt())
+        .processors(processors)
+        .volumes(volumes)
+        .build();
+  }
+
+  private static boolean has(JsonObject json, String name) {
+    return json.has(name) && !json.get(name).isJsonNull();
+  }
+
+  @Nullable
+  private static String string(JsonObject json, String name) {
+    JsonElement element = json.get(name);
+    return element == null || element.isJsonNull() ? null : element.getAsString();
+  }
+
+}
@@ -21,16 +21,21 @@ package org.apache.whirr.state;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.whirr.Cluster;
 import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.net.CachingDnsResolver;
 import org.jclouds.domain.Credentials;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Joiner;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 /**
@@ -79,32 +84,95 @@ public abstract class ClusterStateStore {
    */
   public abstract void destroy() throws IOException;
 
+  /**
+   * Loads a named entry stored along with the cluster state, such as the
+   * script hashes of the last configure phase.
+   *
+   * @return the content of the entry or null if there is none
+   * @throws IOException
+   */
+  public String loadEntry(String name) throws IOException {
+    return null;
+  }
+
+  /**
+   * Saves a named entry along with the cluster state. The entry is removed
+   * when the cluster state is destroyed. Stores that do not persist anything
+   * ignore the entries.
+   *
+   * @throws IOException
+   */
+  public void saveEntry(String name, String content) throws IOException {
+  }
+
+  /**
+   * Removes a named entry, if it exists.
+   *
+   * @throws IOException
+   */
+  public void removeEntry(String name) throws IOException {
+  }
 
   /**
-   * Create parser friendly string representation for a {@link Cluster}
+   * Atomically replaces the content of a named entry with the result of
+   * applying the function to its current content, which is null if there
+   * is no entry. The entry is removed if the function returns null. The
+   * updates made through this store are serialized, stores shared by several
+   * processes also lock the entry for them.
+   *
+   * @return the new content of the entry
+   * @throws IOException
+   */
+  public String updateEntry(String name, Function<String, String> update) throws IOException {
+    synchronized (this) {
+      String content = loadEntry(name);
+      String updated = update.apply(content);
+      if (!Objects.equal(content, updated)) {
+        if (updated == null) {
+          removeEntry(name);
+        } else {
+          saveEntry(name, updated);
+        }
+      }
+      return updated;
+    }
+  }
+
+
+  /**
+   * Create parser friendly string representation for a {@link Cluster}, in
+   * the versioned JSON format of {@link ClusterStateFormat}. The public host
+   * names that are already resolved and the node details of the instances
+   * are saved as well, so that the cluster can be loaded without resolving
+   * them or listing the nodes again.
    *
    * @param cluster
    * @return String representation
    * @throws IOException
    */
   protected String serialize(Cluster cluster) throws IOException {
-    StringBuilder sb = new StringBuilder();
+    return ClusterStateFormat.write(cluster, getResolvedHostNames(cluster));
+  }
 
+  /**
+   * @return the public host names of the instances that are already
+   *         resolved, by public IP
+   */
+  protected Map<String, String> getResolvedHostNames(Cluster cluster) {
+    Map<String, String> hostNames = Maps.newHashMap();
     for (Cluster.Instance instance : cluster.getInstances()) {
-      String id = instance.getId();
-      String roles = Joiner.on(',').join(instance.getRoles());
-
-      sb.append(id).append("\t");
-      sb.append(roles).append("\t");
-      sb.append(instance.getPublicIp()).append("\t");
-      sb.append(instance.getPrivateIp()).append("\n");
+      String publicHostName = CachingDnsResolver.getDefault().getIfPresent(instance.getPublicIp());
+      if (publicHostName != null) {
+        hostNames.put(instance.getPublicIp(), publicHostName);
+      }
     }
-
-    return sb.toString();
+    return hostNames;
   }
 
   /**
-   * Rebuild the {@link Cluster} instance by using the string representation
+   * Rebuild the {@link Cluster} instance by using the string representation.
+   * Both the JSON format and the TSV format of the previous versions are
+   * read.
    *
    * @param spec
    * @param content
@@ -112,6 +180,28 @@ public abstract class ClusterStateStore {
    * @throws UnknownHostException
    */
   protected Cluster unserialize(ClusterSpec spec, String content) throws UnknownHostException {
+    if (!ClusterStateFormat.isJson(content)) {
+      return unserializeTsv(spec, content);
+    }
+    Credentials credentials = new Credentials(spec.getClusterUser(), spec.getPrivateKey());
+    Set<Cluster.Instance> instances = Sets.newLinkedHashSet();
+    for (ClusterStateFormat.StoredInstance stored : ClusterStateFormat.read(content)) {
+      if (stored.publicHostName != null) {
+        // resolved when the state was saved, no need to resolve it again
+        CachingDnsResolver.getDefault().put(stored.publicIp, stored.publicHostName);
+      }
+      instances.add(new Cluster.Instance(credentials, stored.roles, stored.publicIp,
+        stored.privateIp, stored.id, stored.nodeMetadata, CachingDnsResolver.getDefault(),
+        stored.locationId));
+    }
+    return new Cluster(instances);
+  }
+
+  /**
+   * Read the TSV format of the previous versions: id, roles, public and
+   * private IP, and optionally the location and the public host name.
+   */
+  private Cluster unserializeTsv(ClusterSpec spec, String content) {
     Credentials credentials = new Credentials(spec.getClusterUser(), spec.getPrivateKey());
     Set<Cluster.Instance> instances = Sets.newLinkedHashSet();
 
@@ -123,9 +213,13 @@ public abstract class ClusterStateStore {
       Set<String> roles = Sets.newLinkedHashSet(Splitter.on(",").split(fields.next()));
       String publicIPAddress = fields.next();
       String privateIPAddress = fields.next();
+      String locationId = fields.hasNext() ? Strings.emptyToNull(fields.next()) : null;
+      if (fields.hasNext()) {
+        CachingDnsResolver.getDefault().put(publicIPAddress, fields.next());
+      }
 
       instances.add(new Cluster.Instance(credentials, roles,
-        publicIPAddress, privateIPAddress, id, null));
+        publicIPAddress, privateIPAddress, id, null, CachingDnsResolver.getDefault(), locationId));
     }
 
     return new Cluster(instances);
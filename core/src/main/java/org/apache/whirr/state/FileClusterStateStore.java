@@ -15,12 +15,19 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+
 package org.apache.whirr.state;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.whirr.Cluster;
@@ -28,20 +35,48 @@ import org.apache.whirr.ClusterSpec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import com.google.common.base.Joiner;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
+import com.google.gson.JsonParseException;
 
 /**
  * Stores/Reads cluster state from a local file (located at:
- * "~/.whirr/cluster-name/instances")
- * 
+ * "~/.whirr/cluster-name/instances"). Named entries are stored as
+ * files in the same directory.
+ * <p>
+ * The instances file is a snapshot, replaced atomically by renaming a
+ * synced temporary file. The changes saved after it are appended to an
+ * "instances.journal" file, one delta per line, until
+ * {@link #COMPACT_AFTER} deltas are logged and a new snapshot is written.
+ * An incomplete last line left by a crash is ignored.
+ * <p>
+ * The cluster directory is locked while the state is read or written, so
+ * that concurrent invocations for the same cluster are serialized.
  */
 public class FileClusterStateStore extends ClusterStateStore {
 
   private static final Logger LOG = LoggerFactory
       .getLogger(FileClusterStateStore.class);
 
+  @VisibleForTesting
+  static final int COMPACT_AFTER = 50;
+
+  private static final String INSTANCES = "instances";
+  private static final String JOURNAL = "instances.journal";
+  private static final String LOCK = ".lock";
+
+  /* file locks are held by the JVM, threads are serialized by directory */
+  private static final Interner<String> DIRECTORIES = Interners.newWeakInterner();
+
   private ClusterSpec spec;
 
   public FileClusterStateStore(ClusterSpec spec) {
@@ -51,26 +86,290 @@ public class FileClusterStateStore extends ClusterStateStore {
 
   @Override
   public Cluster load() throws IOException {
-    File instancesFile = new File(spec.getClusterDirectory(), "instances");
-    return unserialize(spec,
-      Joiner.on("\n").join(Files.readLines(instancesFile, Charsets.UTF_8)));
+    State state;
+    synchronized (getMonitor()) {
+      FileLock lock = lock();
+      try {
+        state = read();
+      } finally {
+        release(lock);
+      }
+    }
+    if (state.instances == null) {
+      throw new FileNotFoundException(new File(spec.getClusterDirectory(), INSTANCES).getPath());
+    }
+    return unserialize(spec, ClusterStateFormat.write(state.instances.values(),
+      ImmutableSet.<String>of()));
+  }
+
+  @Override
+  public String loadEntry(String name) throws IOException {
+    synchronized (getMonitor()) {
+      FileLock lock = lock();
+      try {
+        return readEntry(name);
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  @Override
+  public void saveEntry(String name, String content) throws IOException {
+    synchronized (getMonitor()) {
+      FileLock lock = lock();
+      try {
+        writeAtomically(new File(spec.getClusterDirectory(), name), content);
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  @Override
+  public void removeEntry(String name) throws IOException {
+    synchronized (getMonitor()) {
+      FileLock lock = lock();
+      try {
+        deleteEntry(name);
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  /**
+   * The entry is read and written while the cluster directory is locked.
+   */
+  @Override
+  public String updateEntry(String name, Function<String, String> update) throws IOException {
+    synchronized (getMonitor()) {
+      FileLock lock = lock();
+      try {
+        String content = readEntry(name);
+        String updated = update.apply(content);
+        if (!Objects.equal(content, updated)) {
+          if (updated == null) {
+            deleteEntry(name);
+          } else {
+            writeAtomically(new File(spec.getClusterDirectory(), name), updated);
+          }
+        }
+        return updated;
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  private String readEntry(String name) throws IOException {
+    File entryFile = new File(spec.getClusterDirectory(), name);
+    if (!entryFile.exists()) {
+      return null;
+    }
+    return Files.toString(entryFile, Charsets.UTF_8);
+  }
+
+  private void deleteEntry(String name) throws IOException {
+    File entryFile = new File(spec.getClusterDirectory(), name);
+    if (entryFile.exists() && !entryFile.delete()) {
+      throw new IOException("Unable to delete " + entryFile);
+    }
   }
 
   @Override
   public void destroy() throws IOException {
-   FileUtils.deleteDirectory(spec.getClusterDirectory());
+    synchronized (getMonitor()) {
+      FileLock lock = lock();
+      try {
+        for (File file : spec.getClusterDirectory().listFiles()) {
+          if (!file.getName().equals(LOCK)) {
+            FileUtils.forceDelete(file);
+          }
+        }
+      } finally {
+        release(lock);
+      }
+      FileUtils.deleteDirectory(spec.getClusterDirectory());
+    }
   }
 
   @Override
   public void save(Cluster cluster) throws IOException {
-    File instancesFile = new File(spec.getClusterDirectory(), "instances");
+    Map<String, String> target = ClusterStateFormat.instanceLines(cluster,
+      getResolvedHostNames(cluster));
+    synchronized (getMonitor()) {
+      FileLock lock = lock();
+      try {
+        State current = read();
+        if (current.instances == null || current.deltas >= COMPACT_AFTER) {
+          saveSnapshot(target, current.sequence);
+        } else {
+          appendDelta(current, target);
+        }
+      } finally {
+        release(lock);
+      }
+    }
+  }
+
+  private void saveSnapshot(Map<String, String> target, long sequence) throws IOException {
+    File instancesFile = new File(spec.getClusterDirectory(), INSTANCES);
+    writeAtomically(instancesFile, ClusterStateFormat.write(target.values(),
+      ImmutableSet.<String>of(), sequence));
+
+    /* the deltas up to the sequence number are skipped if this fails */
+    File journal = new File(spec.getClusterDirectory(), JOURNAL);
+    if (journal.exists() && !journal.delete()) {
+      LOG.warn("Unable to delete the compacted journal {}", journal);
+    }
+    LOG.info("Wrote instances file {}", instancesFile);
+  }
+
+  private void appendDelta(State current, Map<String, String> target) throws IOException {
+    Map<String, String> changed = Maps.newLinkedHashMap();
+    for (Map.Entry<String, String> entry : target.entrySet()) {
+      if (!entry.getValue().equals(current.instances.get(entry.getKey()))) {
+        changed.put(entry.getKey(), entry.getValue());
+      }
+    }
+    Set<String> removed = Sets.newLinkedHashSet(
+      Sets.difference(current.instances.keySet(), target.keySet()));
+    if (changed.isEmpty() && removed.isEmpty()) {
+      LOG.debug("Cluster state is unchanged, nothing to save");
+      return;
+    }
 
+    File journal = new File(spec.getClusterDirectory(), JOURNAL);
+    String delta = CharMatcher.is('\n').removeFrom(
+      ClusterStateFormat.write(changed.values(), removed, current.sequence + 1));
+    if (!endsWithNewLine(journal)) {
+      /* keep the next record apart from an incomplete one */
+      delta = "\n" + delta;
+    }
+    FileOutputStream out = new FileOutputStream(journal, true);
     try {
-      Files.write(serialize(cluster).toString(), instancesFile, Charsets.UTF_8);
-      LOG.info("Wrote instances file {}", instancesFile);
+      out.write((delta + "\n").getBytes(Charsets.UTF_8));
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    LOG.info("Appended {} changed and {} removed instances to {}",
+      new Object[] {changed.size(), removed.size(), journal});
+  }
 
+  /**
+   * The instances of the snapshot with the deltas of the journal applied
+   */
+  private static class State {
+    /* by instance id, null if there is no state */
+    Map<String, String> instances;
+    long sequence;
+    int deltas;
+  }
+
+  private State read() throws IOException {
+    State state = new State();
+    File instancesFile = new File(spec.getClusterDirectory(), INSTANCES);
+    if (instancesFile.exists()) {
+      String content = Files.toString(instancesFile, Charsets.UTF_8);
+      if (ClusterStateFormat.isJson(content)) {
+        state.instances = ClusterStateFormat.readInstanceLines(content);
+        state.sequence = ClusterStateFormat.readSequence(content);
+      } else {
+        Cluster cluster = unserialize(spec, content);
+        state.instances = ClusterStateFormat.instanceLines(cluster,
+          getResolvedHostNames(cluster));
+      }
+    }
+
+    File journal = new File(spec.getClusterDirectory(), JOURNAL);
+    if (!journal.exists()) {
+      return state;
+    }
+    for (String line : Files.readLines(journal, Charsets.UTF_8)) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      long sequence;
+      Map<String, String> changed;
+      Set<String> removed;
+      try {
+        sequence = ClusterStateFormat.readSequence(line);
+        changed = ClusterStateFormat.readInstanceLines(line);
+        removed = ClusterStateFormat.readRemovedIds(line);
+      } catch (JsonParseException e) {
+        LOG.warn("Ignoring an incomplete record of the journal {}", journal);
+        continue;
+      } catch (IllegalStateException e) {
+        LOG.warn("Ignoring an incomplete record of the journal {}", journal);
+        continue;
+      }
+      if (sequence <= state.sequence) {
+        continue; /* already in the snapshot */
+      }
+      if (state.instances == null) {
+        state.instances = Maps.newLinkedHashMap();
+      }
+      state.instances.keySet().removeAll(removed);
+      state.instances.putAll(changed);
+      state.sequence = sequence;
+      state.deltas++;
+    }
+    return state;
+  }
+
+  private static boolean endsWithNewLine(File file) throws IOException {
+    if (!file.exists() || file.length() == 0) {
+      return true;
+    }
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      in.seek(in.length() - 1);
+      return in.read() == '\n';
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Replace the file with the content by renaming a synced temporary file
+   * over it, so that a crash leaves either the old or the new content.
+   */
+  private static void writeAtomically(File file, String content) throws IOException {
+    File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      out.write(content.getBytes(Charsets.UTF_8));
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    /* the rename does not replace an existing file on some platforms */
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+      throw new IOException("Unable to replace " + file + " with " + temp);
+    }
+  }
+
+  private Object getMonitor() throws IOException {
+    return DIRECTORIES.intern(spec.getClusterDirectory().getCanonicalPath());
+  }
+
+  private FileLock lock() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(new File(spec.getClusterDirectory(), LOCK), "rw");
+    try {
+      return file.getChannel().lock();
     } catch (IOException e) {
-      LOG.error("Problem writing instances file {}", instancesFile, e);
+      file.close();
+      throw e;
+    }
+  }
+
+  private static void release(FileLock lock) throws IOException {
+    try {
+      lock.release();
+    } finally {
+      lock.channel().close();
     }
   }
 
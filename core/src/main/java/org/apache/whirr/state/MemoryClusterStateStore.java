@@ -19,15 +19,19 @@
 package org.apache.whirr.state;
 
 import java.io.IOException;
+import java.util.Map;
 
 import org.apache.whirr.Cluster;
 
+import com.google.common.collect.Maps;
+
 /**
  * Memory only cluster state storage useful for testing
  */
 public class MemoryClusterStateStore extends ClusterStateStore {
 
   private Cluster cluster;
+  private final Map<String, String> entries = Maps.newConcurrentMap();
 
   @Override
   public Cluster load() throws IOException {
@@ -42,5 +46,21 @@ public class MemoryClusterStateStore extends ClusterStateStore {
   @Override
   public void destroy() throws IOException {
     cluster = null;
+    entries.clear();
+  }
+
+  @Override
+  public String loadEntry(String name) throws IOException {
+    return entries.get(name);
+  }
+
+  @Override
+  public void saveEntry(String name, String content) throws IOException {
+    entries.put(name, content);
+  }
+
+  @Override
+  public void removeEntry(String name) throws IOException {
+    entries.remove(name);
   }
 }
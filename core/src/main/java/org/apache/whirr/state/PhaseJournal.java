@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * The launch phases completed by each instance, kept as a named entry of the
+ * {@link ClusterStateStore} so that an interrupted launch can be resumed.
+ */
+public class PhaseJournal {
+
+  public static final String ENTRY_NAME = "launch-journal";
+
+  private PhaseJournal() {
+  }
+
+  /**
+   * Start a new, empty journal, dropping the one of any previous launch.
+   */
+  public static void begin(ClusterStateStore store) throws IOException {
+    store.saveEntry(ENTRY_NAME, "");
+  }
+
+  /**
+   * @return true if a launch was journaled for the cluster
+   */
+  public static boolean exists(ClusterStateStore store) throws IOException {
+    return store.loadEntry(ENTRY_NAME) != null;
+  }
+
+  /**
+   * @return the IDs of the instances that completed each phase, by phase
+   *         name. Empty if nothing was journaled.
+   */
+  public static SetMultimap<String, String> load(ClusterStateStore store) throws IOException {
+    return parse(store.loadEntry(ENTRY_NAME));
+  }
+
+  /**
+   * Record that the given instances completed a phase.
+   */
+  public static void record(ClusterStateStore store, final String phase,
+      final Iterable<String> instanceIds) throws IOException {
+    store.updateEntry(ENTRY_NAME, new Function<String, String>() {
+      @Override
+      public String apply(String content) {
+        SetMultimap<String, String> completed = parse(content);
+        boolean changed = false;
+        for (String id : instanceIds) {
+          changed |= completed.put(phase, id);
+        }
+        return changed ? format(completed) : content;
+      }
+    });
+  }
+
+  private static SetMultimap<String, String> parse(String content) {
+    SetMultimap<String, String> completed = LinkedHashMultimap.create();
+    if (content == null) {
+      return completed;
+    }
+    for (String line : Splitter.on('\n').omitEmptyStrings().trimResults().split(content)) {
+      Iterator<String> fields = Splitter.on('\t').split(line).iterator();
+      String phase = fields.next();
+      if (fields.hasNext()) {
+        completed.put(phase, fields.next());
+      }
+    }
+    return completed;
+  }
+
+  private static String format(SetMultimap<String, String> completed) {
+    StringBuilder sb = new StringBuilder();
+    for (String name : completed.keySet()) {
+      for (String id : completed.get(name)) {
+        sb.append(name).append('\t').append(id).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+}
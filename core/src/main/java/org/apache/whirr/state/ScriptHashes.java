@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The hashes of the configure scripts last run successfully on each
+ * instance, kept as a named entry of the {@link ClusterStateStore}.
+ */
+public class ScriptHashes {
+
+  public static final String ENTRY_NAME = "configure-script-hashes";
+
+  private ScriptHashes() {
+  }
+
+  /**
+   * @return the script hash by instance ID, empty if none was stored
+   */
+  public static Map<String, String> load(ClusterStateStore store) throws IOException {
+    return parse(store.loadEntry(ENTRY_NAME));
+  }
+
+  /**
+   * Merge the given hashes with the stored ones and save the result.
+   */
+  public static void update(ClusterStateStore store, final Map<String, String> hashes)
+      throws IOException {
+    store.updateEntry(ENTRY_NAME, new Function<String, String>() {
+      @Override
+      public String apply(String content) {
+        Map<String, String> merged = parse(content);
+        merged.putAll(hashes);
+        return format(merged);
+      }
+    });
+  }
+
+  /**
+   * Remove the hashes of the given instances, e.g. once they are destroyed.
+   */
+  public static void remove(ClusterStateStore store, Iterable<String> instanceIds)
+      throws IOException {
+    final Set<String> removed = Sets.newHashSet(instanceIds);
+    store.updateEntry(ENTRY_NAME, new Function<String, String>() {
+      @Override
+      public String apply(String content) {
+        Map<String, String> hashes = parse(content);
+        return hashes.keySet().removeAll(removed) ? format(hashes) : content;
+      }
+    });
+  }
+
+  private static Map<String, String> parse(String content) {
+    Map<String, String> hashes = Maps.newLinkedHashMap();
+    if (content == null) {
+      return hashes;
+    }
+    for (String line : Splitter.on('\n').omitEmptyStrings().trimResults().split(content)) {
+      Iterator<String> fields = Splitter.on('\t').split(line).iterator();
+      String id = fields.next();
+      if (fields.hasNext()) {
+        hashes.put(id, fields.next());
+      }
+    }
+    return hashes;
+  }
+
+  private static String format(Map<String, String> hashes) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> entry : hashes.entrySet()) {
+      sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+
+}
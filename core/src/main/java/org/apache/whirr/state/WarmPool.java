@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterSpec;
+
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
+
+/**
+ * The bootstrapped instances kept on standby for a cluster, kept as a named
+ * entry of the {@link ClusterStateStore}. The instances run in the group of
+ * the cluster, with the roles of the template they were bootstrapped for,
+ * but they are not part of the cluster until they are claimed.
+ */
+public class WarmPool {
+
+  public static final String ENTRY_NAME = "warm-pool";
+
+  private WarmPool() {
+  }
+
+  /**
+   * @return the standby instances, empty if there are none
+   */
+  public static Set<Cluster.Instance> load(ClusterStateStore store, ClusterSpec spec)
+      throws IOException {
+    return parse(store, spec, store.loadEntry(ENTRY_NAME));
+  }
+
+  /**
+   * Add bootstrapped instances to the pool.
+   */
+  public static void add(ClusterStateStore store, ClusterSpec spec,
+      final Set<Cluster.Instance> instances) throws IOException {
+    update(store, spec, new Function<Set<Cluster.Instance>, Set<Cluster.Instance>>() {
+      @Override
+      public Set<Cluster.Instance> apply(Set<Cluster.Instance> pool) {
+        return pool.addAll(instances) ? pool : null;
+      }
+    });
+  }
+
+  /**
+   * Take up to <code>count</code> instances with the given roles out of the
+   * pool.
+   *
+   * @return the claimed instances, fewer than requested if the pool is short
+   */
+  public static Set<Cluster.Instance> claim(ClusterStateStore store, ClusterSpec spec,
+      final Set<String> roles, final int count) throws IOException {
+    final Set<Cluster.Instance> claimed = Sets.newLinkedHashSet();
+    update(store, spec, new Function<Set<Cluster.Instance>, Set<Cluster.Instance>>() {
+      @Override
+      public Set<Cluster.Instance> apply(Set<Cluster.Instance> pool) {
+        claimed.clear();
+        for (Cluster.Instance instance : pool) {
+          if (claimed.size() == count) {
+            break;
+          }
+          if (instance.getRoles().equals(roles)) {
+            claimed.add(instance);
+          }
+        }
+        return pool.removeAll(claimed) ? pool : null;
+      }
+    });
+    return claimed;
+  }
+
+  /**
+   * Drop the instances that are not in the given set, e.g. because they
+   * are no longer running.
+   */
+  public static void retain(ClusterStateStore store, ClusterSpec spec,
+      final Set<String> instanceIds) throws IOException {
+    update(store, spec, new Function<Set<Cluster.Instance>, Set<Cluster.Instance>>() {
+      @Override
+      public Set<Cluster.Instance> apply(Set<Cluster.Instance> pool) {
+        Set<Cluster.Instance> retained = Sets.newLinkedHashSet();
+        for (Cluster.Instance instance : pool) {
+          if (instanceIds.contains(instance.getId())) {
+            retained.add(instance);
+          }
+        }
+        return retained.size() < pool.size() ? retained : null;
+      }
+    });
+  }
+
+  /**
+   * Atomically replace the pool with the result of the function, which
+   * returns null if the pool is unchanged.
+   */
+  private static void update(final ClusterStateStore store, final ClusterSpec spec,
+      final Function<Set<Cluster.Instance>, Set<Cluster.Instance>> update) throws IOException {
+    try {
+      store.updateEntry(ENTRY_NAME, new Function<String, String>() {
+        @Override
+        public String apply(String content) {
+          try {
+            Set<Cluster.Instance> pool = update.apply(parse(store, spec, content));
+            return pool == null ? content : store.serialize(new Cluster(pool));
+          } catch (IOException e) {
+            throw Throwables.propagate(e);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw e;
+    }
+  }
+
+  private static Set<Cluster.Instance> parse(ClusterStateStore store, ClusterSpec spec,
+      String content) throws IOException {
+    if (content == null) {
+      return Sets.newLinkedHashSet();
+    }
+    return Sets.newLinkedHashSet(store.unserialize(spec, content).getInstances());
+  }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.template;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+
+/**
+ * A process wide Velocity engine and a cache of the templates it parsed.
+ * <p>
+ * Templates are loaded through the thread context class loader, as handlers
+ * running in OSGi set it to their bundle class loader before processing
+ * them, so the parsed templates are cached by class loader and by name. The
+ * class loaders are weakly referenced and the templates of an unloaded
+ * bundle can be garbage collected.
+ */
+// singleton enum pattern
+public enum TemplateCache {
+
+  INSTANCE;
+
+  private static final Logger LOG = LoggerFactory.getLogger(TemplateCache.class);
+
+  private final VelocityEngine engine = TemplateUtils.newVelocityEngine();
+
+  private final LoadingCache<ClassLoader, ConcurrentMap<String, Template>> templates =
+    CacheBuilder.newBuilder().weakKeys().build(
+      new CacheLoader<ClassLoader, ConcurrentMap<String, Template>>() {
+        @Override
+        public ConcurrentMap<String, Template> load(ClassLoader classLoader) {
+          return Maps.newConcurrentMap();
+        }
+      });
+
+  /**
+   * @return the shared engine. Templates processed with it through
+   *         {@link TemplateUtils} are parsed only once.
+   */
+  public VelocityEngine getEngine() {
+    return engine;
+  }
+
+  /**
+   * @return the template loaded with the thread context class loader,
+   *         parsed on first use
+   */
+  public Template getTemplate(String templateName) {
+    ClassLoader classLoader = getContextClassLoader();
+    ConcurrentMap<String, Template> loaded = templates.getUnchecked(classLoader);
+    Template template = loaded.get(templateName);
+    if (template == null) {
+      LOG.debug("Parsing template {} from {}", templateName, classLoader);
+      template = engine.getTemplate(templateName);
+      Template existing = loaded.putIfAbsent(templateName, template);
+      if (existing != null) {
+        template = existing;
+      }
+    }
+    return template;
+  }
+
+  /**
+   * Parse templates ahead of their first use, e.g. when a bundle starts or
+   * in a test run by the build so that syntax errors fail it.
+   *
+   * @throws org.apache.velocity.exception.ResourceNotFoundException if a
+   *           template does not exist
+   * @throws org.apache.velocity.exception.ParseErrorException if a template
+   *           is not valid
+   */
+  public void precompile(ClassLoader classLoader, String... templateNames) {
+    ClassLoader oldTccl = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(classLoader);
+      for (String templateName : templateNames) {
+        getTemplate(templateName);
+      }
+    } finally {
+      Thread.currentThread().setContextClassLoader(oldTccl);
+    }
+  }
+
+  /**
+   * Drop all the parsed templates.
+   */
+  public void invalidateAll() {
+    templates.invalidateAll();
+  }
+
+  private static ClassLoader getContextClassLoader() {
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    return classLoader != null ? classLoader : TemplateCache.class.getClassLoader();
+  }
+
+}
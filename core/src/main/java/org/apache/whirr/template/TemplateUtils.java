@@ -46,7 +46,8 @@ public class TemplateUtils {
     context.put("cluster", cluster);
     context.put("RolePredicates", RolePredicates.class);
 
-    Template template = engine.getTemplate(templateName);
+    Template template = (engine == TemplateCache.INSTANCE.getEngine())
+        ? TemplateCache.INSTANCE.getTemplate(templateName) : engine.getTemplate(templateName);
     StringWriter writer = new StringWriter();
     
     template.merge(context, writer);
@@ -54,6 +55,10 @@ public class TemplateUtils {
     return writer.toString();
   }
   
+  /**
+   * @return a new engine. Prefer the shared engine of {@link TemplateCache},
+   *         which parses each template only once.
+   */
   public static VelocityEngine newVelocityEngine() {
     Properties defaults = new Properties();
     defaults.setProperty(RuntimeConstants.RESOURCE_LOADER, "classpath"); 
@@ -0,0 +1,52 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# Installs the hosts of the cluster in /etc/hosts.
+#
+# configure_etc_hosts FILE
+#   FILE lists the cluster hosts, one "address name" per line. They replace
+#   the block between the whirr marker lines, and the lines of the previous
+#   versions for the same addresses are dropped. /etc/hosts is only
+#   rewritten if the block changed, by renaming a complete copy over it.
+#
+function configure_etc_hosts() {
+  local block=$1
+  local begin="# BEGIN whirr cluster hosts"
+  local end="# END whirr cluster hosts"
+  local hosts=/etc/hosts
+  local tmp=/etc/hosts.whirr.$$
+
+  awk -v begin="$begin" -v end="$end" '
+    NR == FNR { wanted[$1]; next }
+    $0 == begin { skip = 1; next }
+    $0 == end { skip = 0; next }
+    !skip && !($1 in wanted) { print }
+  ' $block $hosts > $tmp
+  echo "$begin" >> $tmp
+  cat $block >> $tmp
+  echo "$end" >> $tmp
+
+  if cmp -s $tmp $hosts ; then
+    rm -f $tmp
+  else
+    echo "Updating $hosts:"
+    diff $hosts $tmp | grep '^[<>]' || true
+    chmod 644 $tmp
+    # the rename fails where /etc/hosts is a mount point, copy it over then
+    mv -f $tmp $hosts 2> /dev/null || { cat $tmp > $hosts && rm -f $tmp; }
+  fi
+}
@@ -0,0 +1,93 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# Opens the host firewall to the cluster members or to the clients.
+#
+# configure_host_firewall cluster FILE
+#   FILE lists the addresses of the cluster members, one per line. The
+#   members that joined or left since the last call are added to or removed
+#   from the whirr-members ipset, matched by a single iptables rule.
+#
+# configure_host_firewall clients FILE
+#   FILE lists the allowed sources and TCP ports, one "cidr,tcp:port" or
+#   "cidr,tcp:from-to" per line. They are added to the whirr-clients ipset,
+#   matched by a single iptables rule.
+#
+# ipset is installed during the bootstrap, see install_ipset. Without ipset 6
+# the rules are loaded one per address with iptables-restore.
+#
+function configure_host_firewall() {
+  local kind=$1
+  local file=$2
+  if [ "$kind" == "cluster" ]; then
+    configure_host_firewall_cluster $file
+  else
+    configure_host_firewall_clients $file
+  fi
+}
+
+function configure_host_firewall_cluster() {
+  local addresses=$1
+  if configure_host_firewall_ipset ; then
+    ipset -exist create whirr-members hash:ip
+    sort -u $addresses > $addresses.wanted
+    ipset save whirr-members | awk '$1 == "add" { print $3 }' | sort -u > $addresses.current
+    {
+      comm -13 $addresses.current $addresses.wanted | sed -e 's/^/add whirr-members /'
+      comm -23 $addresses.current $addresses.wanted | sed -e 's/^/del whirr-members /'
+    } | ipset restore -exist
+    rm -f $addresses.wanted $addresses.current
+    configure_host_firewall_chain whirr-cluster \
+      "-A whirr-cluster -p tcp -m set --match-set whirr-members src -j ACCEPT"
+  else
+    configure_host_firewall_chain whirr-cluster \
+      "$(sort -u $addresses | awk '{ print "-A whirr-cluster -p tcp -s " $1 " -j ACCEPT" }')"
+  fi
+}
+
+function configure_host_firewall_clients() {
+  local rules=$1
+  if configure_host_firewall_ipset ; then
+    ipset -exist create whirr-clients hash:net,port
+    sed -e 's/^/add whirr-clients /' $rules | ipset restore -exist
+    configure_host_firewall_chain whirr-clients \
+      "-A whirr-clients -p tcp -m set --match-set whirr-clients src,dst -j ACCEPT"
+  else
+    # rules are additive, keep the ones of the previous calls
+    mkdir -p /var/lib/whirr
+    cat $rules >> /var/lib/whirr/client-rules
+    sort -u -o /var/lib/whirr/client-rules /var/lib/whirr/client-rules
+    configure_host_firewall_chain whirr-clients \
+      "$(awk -F '[,:]' '{ gsub("-", ":", $3); print "-A whirr-clients -p tcp -s " $1 " --dport " $3 " -j ACCEPT" }' /var/lib/whirr/client-rules)"
+  fi
+}
+
+function configure_host_firewall_ipset() {
+  # hash:net,port sets need ipset 6
+  which ipset &> /dev/null \
+    && ipset -exist create whirr-probe hash:net,port &> /dev/null \
+    && ipset destroy whirr-probe
+}
+
+function configure_host_firewall_chain() {
+  local chain=$1
+  local rules=$2
+  # declaring the chain flushes it only, the other rules are kept
+  printf '*filter\n:%s - [0:0]\n%s\nCOMMIT\n' $chain "$rules" | iptables-restore --noflush
+  iptables -D INPUT -j $chain &> /dev/null
+  iptables -I INPUT 1 -j $chain
+}
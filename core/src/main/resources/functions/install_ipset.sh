@@ -0,0 +1,36 @@
+#
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Installs ipset, used by configure_host_firewall to match the cluster
+# members and the client rules with a single iptables rule per chain. The
+# firewall falls back to one iptables rule per address without it, so a
+# failed install only prints a warning.
+#
+function install_ipset() {
+  if ! which ipset &> /dev/null ; then
+    if which dpkg &> /dev/null; then
+      retry_apt_get update -qq
+      retry_apt_get -y install ipset
+    elif which yum &> /dev/null; then
+      retry_yum -y install ipset
+    else
+      echo "WARNING: could not install ipset, no appropriate package manager"
+    fi
+    if ! which ipset &> /dev/null ; then
+      echo "WARNING: ipset is not installed, the host firewall uses one iptables rule per address"
+    fi
+  fi
+}
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr;
+
+import static org.apache.whirr.RolePredicates.withIds;
+import static org.apache.whirr.service.ClusterActionHandler.BOOTSTRAP_ACTION;
+import static org.apache.whirr.service.ClusterActionHandler.CONFIGURE_ACTION;
+import static org.apache.whirr.service.ClusterActionHandler.START_ACTION;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.whirr.compute.BootstrapTemplate;
+import org.apache.whirr.state.ClusterStateStore;
+import org.apache.whirr.state.ClusterStateStoreFactory;
+import org.apache.whirr.state.MemoryClusterStateStore;
+import org.apache.whirr.state.PhaseJournal;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.domain.Credentials;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+public class ClusterControllerTest {
+
+  /**
+   * Records the instances each phase runs on instead of running it, and
+   * checks that the joining instances are saved before any phase runs.
+   */
+  private static class RecordingClusterController extends ClusterController {
+    private final ClusterStateStore stateStore = new MemoryClusterStateStore();
+    final SetMultimap<String, String> targets = LinkedHashMultimap.create();
+
+    RecordingClusterController() {
+      super(null, new ClusterStateStoreFactory());
+    }
+
+    @Override
+    public ClusterStateStore getClusterStateStore(ClusterSpec clusterSpec) {
+      return stateStore;
+    }
+
+    @Override
+    public Cluster configureServices(ClusterSpec clusterSpec, Cluster cluster,
+        Set<String> targetRoles, Set<String> targetInstanceIds) throws IOException {
+      assertThat(stateStore.load().getInstances(), is(cluster.getInstances()));
+      targets.putAll(CONFIGURE_ACTION, targetInstanceIds);
+      return cluster;
+    }
+
+    @Override
+    public Cluster startServices(ClusterSpec clusterSpec, Cluster cluster,
+        Set<String> targetRoles, Set<String> targetInstanceIds) {
+      targets.putAll(START_ACTION, targetInstanceIds);
+      return cluster;
+    }
+  }
+
+  /**
+   * Resumes against the nodes and the bootstrapped instances it is given
+   * instead of the provider.
+   */
+  private static class ResumingClusterController extends RecordingClusterController {
+    private Set<NodeMetadata> nodesInGroup = ImmutableSet.of();
+    private Set<Cluster.Instance> bootstrappedInstances = ImmutableSet.of();
+    private final List<InstanceTemplate> bootstrappedTemplates = Lists.newArrayList();
+
+    @Override
+    public Set<Cluster.Instance> refreshInstances(ClusterSpec spec, ClusterStateStore stateStore)
+      throws IOException {
+      return stateStore.load().getInstances();
+    }
+
+    @Override
+    Set<? extends NodeMetadata> listRunningNodesInGroup(ClusterSpec clusterSpec) {
+      return nodesInGroup;
+    }
+
+    @Override
+    Cluster bootstrapInstances(ClusterSpec clusterSpec, List<InstanceTemplate> templates,
+        ClusterStateStore stateStore) {
+      bootstrappedTemplates.addAll(templates);
+      return new Cluster(bootstrappedInstances);
+    }
+  }
+
+  private static ClusterSpec resumeSpec(InstanceTemplate... templates) throws Exception {
+    ClusterSpec spec = ClusterSpec.withNoDefaults();
+    spec.setClusterName("resume-test");
+    spec.setInstanceTemplates(Lists.newArrayList(templates));
+    return spec;
+  }
+
+  private static InstanceTemplate template(int numberOfInstances, String role) {
+    return InstanceTemplate.builder().numberOfInstance(numberOfInstances).roles(role).build();
+  }
+
+  private static NodeMetadata node(String id, String group, String roles) {
+    NodeMetadataBuilder builder = new NodeMetadataBuilder()
+        .providerId(id).name(id).id(id).group(group)
+        .status(NodeMetadata.Status.RUNNING)
+        .publicAddresses(ImmutableSet.of("127.0.0.1"))
+        .privateAddresses(ImmutableSet.of("10.0.0.1"));
+    if (roles != null) {
+      builder.userMetadata(ImmutableMap.of(BootstrapTemplate.ROLES_METADATA, roles));
+    }
+    return builder.build();
+  }
+
+  private static void journal(ClusterStateStore stateStore, String phase,
+      String... instanceIds) throws IOException {
+    PhaseJournal.record(stateStore, phase, ImmutableList.copyOf(instanceIds));
+  }
+
+  private static Cluster.Instance instance(String id, String role) {
+    return new Cluster.Instance(new Credentials("dummy", "dummy"),
+        ImmutableSet.of(role), "127.0.0.1", "10.0.0.1", id, null);
+  }
+
+  @Test
+  public void testJoinInstancesConfiguresTheClusterAndStartsTheJoiningInstances()
+    throws Exception {
+    RecordingClusterController controller = new RecordingClusterController();
+    ClusterSpec spec = ClusterSpec.withNoDefaults();
+    spec.setClusterName("join-test");
+    Cluster cluster = new Cluster(ImmutableSet.of(instance("i-1", "nn"), instance("i-2", "dn")));
+    controller.getClusterStateStore(spec).save(cluster);
+    PhaseJournal.begin(controller.getClusterStateStore(spec));
+
+    Cluster joined = controller.joinInstances(spec, cluster,
+        ImmutableSet.of(instance("i-3", "dn"), instance("i-4", "dn")));
+
+    assertThat(joined.getInstances().size(), is(4));
+    assertThat(controller.targets.get(CONFIGURE_ACTION),
+        is((Set<String>) ImmutableSet.of("i-1", "i-2", "i-3", "i-4")));
+    assertThat(controller.targets.get(START_ACTION),
+        is((Set<String>) ImmutableSet.of("i-3", "i-4")));
+
+    SetMultimap<String, String> journal =
+        PhaseJournal.load(controller.getClusterStateStore(spec));
+    assertThat(journal.get(BOOTSTRAP_ACTION), is((Set<String>) ImmutableSet.of("i-3", "i-4")));
+    assertThat(journal.get(START_ACTION), is((Set<String>) ImmutableSet.of("i-3", "i-4")));
+  }
+
+  @Test
+  public void testJoinInstancesKeepsTheChangesSavedSinceTheClusterWasLoaded()
+    throws Exception {
+    RecordingClusterController controller = new RecordingClusterController();
+    ClusterSpec spec = ClusterSpec.withNoDefaults();
+    spec.setClusterName("join-test");
+    Cluster cluster = new Cluster(ImmutableSet.of(instance("i-1", "nn"), instance("i-2", "dn")));
+
+    Cluster saved = new Cluster(Sets.newLinkedHashSet(cluster.getInstances()));
+    saved.removeInstancesMatching(withIds("i-2"));
+    saved = new Cluster(Sets.union(saved.getInstances(), ImmutableSet.of(instance("i-5", "dn"))));
+    controller.getClusterStateStore(spec).save(saved);
+
+    Cluster joined = controller.joinInstances(spec, cluster,
+        ImmutableSet.of(instance("i-3", "dn"), instance("i-5", "dn")));
+
+    assertThat(controller.getClusterStateStore(spec).load().getInstances(),
+        is(joined.getInstances()));
+    assertThat(controller.targets.get(CONFIGURE_ACTION),
+        is((Set<String>) ImmutableSet.of("i-1", "i-5", "i-3")));
+  }
+
+  @Test
+  public void testResumeClusterReattachesTheUnsavedNodesThatHoldTheirRoles()
+    throws Exception {
+    ResumingClusterController controller = new ResumingClusterController();
+    ClusterSpec spec = resumeSpec(template(1, "nn"), template(1, "dn"));
+    ClusterStateStore stateStore = controller.getClusterStateStore(spec);
+    Properties configuration = new Properties();
+    configuration.setProperty("hadoop.namenode", "127.0.0.1");
+    stateStore.save(new Cluster(ImmutableSet.of(instance("i-1", "nn")), configuration));
+    PhaseJournal.begin(stateStore);
+    journal(stateStore, BOOTSTRAP_ACTION, "i-1");
+    journal(stateStore, CONFIGURE_ACTION, "i-1");
+    journal(stateStore, START_ACTION, "i-1");
+    controller.nodesInGroup = ImmutableSet.of(
+        node("i-2", "resume-test", "dn"), node("i-3", "resume-test", null));
+
+    Cluster cluster = controller.resumeCluster(spec);
+
+    assertThat(ids(cluster), is((Set<String>) ImmutableSet.of("i-1", "i-2")));
+    assertThat(cluster.getInstanceMatching(withIds("i-2")).getRoles(),
+        is((Set<String>) ImmutableSet.of("dn")));
+    assertThat(cluster.getConfiguration().getProperty("hadoop.namenode"), is("127.0.0.1"));
+    assertThat(ids(stateStore.load()), is((Set<String>) ImmutableSet.of("i-1", "i-2")));
+    assertThat(stateStore.load().getConfiguration().getProperty("hadoop.namenode"),
+        is("127.0.0.1"));
+    assertThat(controller.bootstrappedTemplates.isEmpty(), is(true));
+    assertThat(controller.targets.get(CONFIGURE_ACTION), is((Set<String>) ImmutableSet.of("i-2")));
+    assertThat(controller.targets.get(START_ACTION), is((Set<String>) ImmutableSet.of("i-2")));
+  }
+
+  @Test
+  public void testResumeClusterTopsUpATemplateAndConfiguresTheWholeCluster()
+    throws Exception {
+    ResumingClusterController controller = new ResumingClusterController();
+    ClusterSpec spec = resumeSpec(template(1, "nn"), template(3, "dn"));
+    ClusterStateStore stateStore = controller.getClusterStateStore(spec);
+    stateStore.save(new Cluster(ImmutableSet.of(instance("i-1", "nn"), instance("i-2", "dn"))));
+    PhaseJournal.begin(stateStore);
+    journal(stateStore, BOOTSTRAP_ACTION, "i-1", "i-2");
+    journal(stateStore, CONFIGURE_ACTION, "i-1", "i-2");
+    journal(stateStore, START_ACTION, "i-1", "i-2");
+    controller.bootstrappedInstances = ImmutableSet.of(instance("i-3", "dn"), instance("i-4", "dn"));
+
+    Cluster cluster = controller.resumeCluster(spec);
+
+    assertThat(ids(cluster), is((Set<String>) ImmutableSet.of("i-1", "i-2", "i-3", "i-4")));
+    assertThat(controller.bootstrappedTemplates.size(), is(1));
+    InstanceTemplate toppedUp = controller.bootstrappedTemplates.get(0);
+    assertThat(toppedUp.getRoles(), is((Set<String>) ImmutableSet.of("dn")));
+    assertThat(toppedUp.getNumberOfInstances(), is(2));
+    assertThat(controller.targets.get(CONFIGURE_ACTION),
+        is((Set<String>) ImmutableSet.of("i-1", "i-2", "i-3", "i-4")));
+    assertThat(controller.targets.get(START_ACTION), is((Set<String>) ImmutableSet.of("i-3", "i-4")));
+
+    SetMultimap<String, String> journal = PhaseJournal.load(stateStore);
+    assertThat(journal.get(BOOTSTRAP_ACTION),
+        is((Set<String>) ImmutableSet.of("i-1", "i-2", "i-3", "i-4")));
+    assertThat(journal.get(START_ACTION),
+        is((Set<String>) ImmutableSet.of("i-1", "i-2", "i-3", "i-4")));
+  }
+
+  @Test
+  public void testResumeClusterRunsOnlyThePendingPhases() throws Exception {
+    ResumingClusterController controller = new ResumingClusterController();
+    ClusterSpec spec = resumeSpec(template(1, "nn"), template(2, "dn"));
+    ClusterStateStore stateStore = controller.getClusterStateStore(spec);
+    stateStore.save(new Cluster(ImmutableSet.of(
+        instance("i-1", "nn"), instance("i-2", "dn"), instance("i-3", "dn"))));
+    PhaseJournal.begin(stateStore);
+    journal(stateStore, BOOTSTRAP_ACTION, "i-1", "i-2", "i-3");
+    journal(stateStore, CONFIGURE_ACTION, "i-1", "i-2");
+    journal(stateStore, START_ACTION, "i-1");
+
+    controller.resumeCluster(spec);
+
+    assertThat(controller.bootstrappedTemplates.isEmpty(), is(true));
+    assertThat(controller.targets.get(CONFIGURE_ACTION), is((Set<String>) ImmutableSet.of("i-3")));
+    assertThat(controller.targets.get(START_ACTION),
+        is((Set<String>) ImmutableSet.of("i-2", "i-3")));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testResumeClusterFailsWhenNoLaunchWasRecorded() throws Exception {
+    ResumingClusterController controller = new ResumingClusterController();
+    ClusterSpec spec = resumeSpec(template(1, "nn"));
+    controller.getClusterStateStore(spec).save(new Cluster(ImmutableSet.of(instance("i-1", "nn"))));
+
+    controller.resumeCluster(spec);
+  }
+
+  @Test
+  public void testRefreshInstancesIsEmptyWhenNoStateIsSaved() throws Exception {
+    RecordingClusterController controller = new RecordingClusterController();
+    ClusterSpec spec = resumeSpec(template(1, "nn"));
+
+    assertThat(controller.refreshInstances(spec, controller.getClusterStateStore(spec)).isEmpty(),
+        is(true));
+  }
+
+  private static Set<String> ids(Cluster cluster) {
+    Set<String> ids = Sets.newLinkedHashSet();
+    for (Cluster.Instance instance : cluster.getInstances()) {
+      ids.add(instance.getId());
+    }
+    return ids;
+  }
+}
@@ -312,6 +312,59 @@ public class ClusterSpecTest {
     assertThat(t2.getMinNumberOfInstances(), is(3));
   }
 
+  @Test
+  public void testNumberOfSpeculativeInstancesPerTemplate() throws Exception {
+    Configuration conf = new PropertiesConfiguration();
+    conf.addProperty("whirr.instance-templates", "1 hadoop-namenode+hadoop-jobtracker,20 hadoop-datanode+hadoop-tasktracker");
+    List<InstanceTemplate> templates = ClusterSpec.withNoDefaults(conf).getInstanceTemplates();
+    assertThat(templates.get(0).getNumberOfSpeculativeInstances(), is(0));
+    assertThat(templates.get(1).getNumberOfSpeculativeInstances(), is(0));
+
+    conf.setProperty("whirr.instance-templates-speculative", "10%");
+    templates = ClusterSpec.withNoDefaults(conf).getInstanceTemplates();
+    assertThat(templates.get(0).getNumberOfSpeculativeInstances(), is(1));
+    assertThat(templates.get(1).getNumberOfSpeculativeInstances(), is(2));
+
+    conf.setProperty("whirr.instance-templates-speculative", "0 hadoop-namenode+hadoop-jobtracker,10%,5 hadoop-datanode+hadoop-tasktracker");
+    templates = ClusterSpec.withNoDefaults(conf).getInstanceTemplates();
+    assertThat(templates.get(0).getNumberOfSpeculativeInstances(), is(0));
+    assertThat(templates.get(1).getNumberOfSpeculativeInstances(), is(5));
+  }
+
+  @Test
+  public void testInvalidNumberOfSpeculativeInstancesNamesTheProperty() throws Exception {
+    for (String speculative : new String[] { "ten%", "1.5", "150%", "-1%", "-2" }) {
+      Configuration conf = new PropertiesConfiguration();
+      conf.addProperty("whirr.instance-templates", "20 hadoop-datanode+hadoop-tasktracker");
+      conf.addProperty("whirr.instance-templates-speculative", speculative);
+      try {
+        ClusterSpec.withNoDefaults(conf);
+        Assert.fail("Accepted " + speculative);
+      } catch (IllegalArgumentException e) {
+        assertThat(speculative,
+            e.getMessage().contains("whirr.instance-templates-speculative"), is(true));
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidMaxScriptFailuresFailsWhenTheSpecIsLoaded() throws Exception {
+    for (String maxScriptFailures : new String[] { "10 %%", "two", "-1", "150%" }) {
+      Configuration conf = new PropertiesConfiguration();
+      conf.addProperty("whirr.max-script-failures", maxScriptFailures);
+      try {
+        ClusterSpec.withNoDefaults(conf);
+        Assert.fail("Accepted " + maxScriptFailures);
+      } catch (IllegalArgumentException e) {
+        assertThat(maxScriptFailures,
+            e.getMessage().contains("whirr.max-script-failures"), is(true));
+      }
+    }
+    Configuration conf = new PropertiesConfiguration();
+    conf.addProperty("whirr.max-script-failures", "10%");
+    assertThat(ClusterSpec.withNoDefaults(conf).getMaxScriptFailures(), is("10%"));
+  }
+
   @Test
   public void testClusterUserShouldBeCurrentUser() throws Exception {
     ClusterSpec spec = ClusterSpec.withTemporaryKeys();
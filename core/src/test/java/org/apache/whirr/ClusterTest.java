@@ -18,19 +18,32 @@
 
 package org.apache.whirr;
 
+import static org.apache.whirr.RolePredicates.allRolesIn;
+import static org.apache.whirr.RolePredicates.anyRoleIn;
+import static org.apache.whirr.RolePredicates.onlyRolesIn;
 import static org.apache.whirr.RolePredicates.role;
 import static org.apache.whirr.RolePredicates.withIds;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
+import org.apache.whirr.net.CachingDnsResolver;
 import org.jclouds.domain.Credentials;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
 public class ClusterTest {
@@ -52,6 +65,20 @@ public class ClusterTest {
     this.cluster = new Cluster(instances);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void publicHostNamesArePrefetchedOnlyWhenAsked() {
+    CachingDnsResolver dnsResolver = mock(CachingDnsResolver.class);
+    Cluster.Instance instance = new Cluster.Instance(new Credentials("dummy", "dummy"),
+        Sets.newHashSet("role"), "127.0.0.1", "127.0.0.1", "id", null, dnsResolver);
+
+    Cluster cluster = new Cluster(Sets.newHashSet(instance));
+    verify(dnsResolver, never()).prefetch((Iterable<String>) anyObject());
+
+    cluster.prefetchPublicHostNames();
+    verify(dnsResolver).prefetch(ImmutableList.of("127.0.0.1"));
+  }
+
   @Test
   public void remoteInstanceById() {
     cluster.removeInstancesMatching(withIds("id-0"));
@@ -76,4 +103,38 @@ public class ClusterTest {
     assertThat(instance.getId(), is("id-0"));
   }
 
+  @Test
+  public void indexedLookupsMatchPredicates() {
+    Credentials credentials = new Credentials("dummy", "dummy");
+    Set<Cluster.Instance> instances = Sets.newLinkedHashSet();
+    instances.add(new Cluster.Instance(credentials,
+      ImmutableSet.of("nn", "jt"), "10.0.0.1", "10.1.0.1", "id-1", null));
+    instances.add(new Cluster.Instance(credentials,
+      ImmutableSet.of("dn", "tt"), "10.0.0.2", "10.1.0.2", "id-2", null));
+    instances.add(new Cluster.Instance(credentials,
+      ImmutableSet.of("dn"), "10.0.0.3", "10.1.0.3", "id-3", null));
+    instances.add(new Cluster.Instance(credentials,
+      ImmutableSet.of("dn", "tt"), "10.0.0.4", "10.1.0.4", "id-4", null));
+    Cluster indexed = new Cluster(instances);
+
+    List<Predicate<Cluster.Instance>> predicates = ImmutableList.of(
+      role("dn"), role("zk"), allRolesIn(ImmutableSet.of("tt", "dn")),
+      onlyRolesIn(ImmutableSet.of("dn")), anyRoleIn(ImmutableSet.of("tt", "nn")),
+      withIds("id-4", "id-2", "id-9"), allRolesIn(ImmutableSet.<String>of()));
+    for (Predicate<Cluster.Instance> predicate : predicates) {
+      assertThat(predicate.toString(),
+        ImmutableList.copyOf(indexed.getInstancesMatching(predicate)),
+        is(ImmutableList.copyOf(Sets.filter(instances, predicate))));
+    }
+
+    assertThat(indexed.getInstanceWithPublicIp("10.0.0.3").getId(), is("id-3"));
+    assertThat(indexed.getInstanceWithPrivateIp("10.1.0.2").getId(), is("id-2"));
+    assertThat(indexed.getInstanceWithPrivateIp("10.1.0.9"), is(nullValue()));
+
+    indexed.removeInstancesMatching(role("tt"));
+    assertThat(indexed.getInstancesMatching(role("dn")).size(), is(1));
+    assertThat(indexed.getInstanceWithPublicIp("10.0.0.4"), is(nullValue()));
+    assertThat(instances.size(), is(4));
+  }
+
 }
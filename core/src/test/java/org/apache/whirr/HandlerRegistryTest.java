@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.whirr.service.ClusterActionHandler;
+import org.apache.whirr.service.ClusterActionHandlerFactory;
+import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.junit.Test;
+
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+public class HandlerRegistryTest {
+
+  static class TestHandler extends ClusterActionHandlerSupport {
+    private final String role;
+
+    TestHandler(String role) {
+      this.role = role;
+    }
+
+    @Override
+    public String getRole() {
+      return role;
+    }
+  }
+
+  static class TestHandlerFactory extends ClusterActionHandlerFactory {
+    private final String prefix;
+
+    TestHandlerFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public String getRolePrefix() {
+      return prefix;
+    }
+
+    @Override
+    public ClusterActionHandler create(String roleName) {
+      return new TestHandler(prefix + "|" + roleName);
+    }
+  }
+
+  /**
+   * Counts the handlers taken from the list, like a lazy ServiceLoader.
+   */
+  static class CountingIterable implements Iterable<ClusterActionHandler> {
+    private final List<ClusterActionHandler> handlers;
+    private final AtomicInteger loaded = new AtomicInteger();
+
+    CountingIterable(ClusterActionHandler... handlers) {
+      this.handlers = ImmutableList.copyOf(handlers);
+    }
+
+    @Override
+    public Iterator<ClusterActionHandler> iterator() {
+      final Iterator<ClusterActionHandler> iterator = handlers.iterator();
+      return new Iterator<ClusterActionHandler>() {
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public ClusterActionHandler next() {
+          loaded.incrementAndGet();
+          return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  @Test
+  public void testLongestPrefixWins() throws Exception {
+    LoadingCache<String, ClusterActionHandler> handlerMap = new HandlerRegistry(
+        ImmutableList.<ClusterActionHandlerFactory>of(new TestHandlerFactory("puppet:"),
+            new TestHandlerFactory("puppet:apache:")),
+        ImmutableList.<ClusterActionHandler>of()).getHandlerMap();
+
+    assertThat(handlerMap.get("puppet:nginx").getRole(), is("puppet:|nginx"));
+    assertThat(handlerMap.get("puppet:apache:httpd").getRole(), is("puppet:apache:|httpd"));
+  }
+
+  @Test
+  public void testHandlersAreLoadedLazilyAndReused() throws Exception {
+    ClusterActionHandler first = new TestHandler("first");
+    CountingIterable handlers = new CountingIterable(first, new TestHandler("second"),
+        new TestHandler("third"));
+    LoadingCache<String, ClusterActionHandler> handlerMap = new HandlerRegistry(
+        ImmutableList.<ClusterActionHandlerFactory>of(), handlers).getHandlerMap();
+
+    assertSame(first, handlerMap.get("first"));
+    assertThat(handlers.loaded.get(), is(1));
+    assertThat(handlerMap.get("second").getRole(), is("second"));
+    assertThat(handlers.loaded.get(), is(2));
+    assertSame(first, handlerMap.get("first"));
+    assertThat(handlers.loaded.get(), is(2));
+  }
+
+  @Test(expected = UncheckedExecutionException.class)
+  public void testUnknownRole() throws Exception {
+    new HandlerRegistry(ImmutableList.<ClusterActionHandlerFactory>of(),
+        ImmutableList.<ClusterActionHandler>of(new TestHandler("known")))
+        .getHandlerMap().getUnchecked("unknown");
+  }
+
+  @Test
+  public void testDefaultRegistryIsSharedUntilRefreshed() {
+    HandlerRegistry registry = HandlerRegistry.getDefault();
+    assertSame(registry, HandlerRegistry.getDefault());
+    HandlerRegistry.refresh();
+    assertThat(HandlerRegistry.getDefault() == registry, is(false));
+  }
+
+  @Test
+  public void testTrieWithoutMatch() {
+    RolePrefixTrie<String> trie = new RolePrefixTrie<String>();
+    trie.put("chef:", "chef");
+    assertNull(trie.longestPrefixOf("che"));
+    assertNull(trie.longestPrefixOf("hadoop-namenode"));
+    assertThat(trie.longestPrefixOf("chef:java").getValue(), is("chef"));
+  }
+}
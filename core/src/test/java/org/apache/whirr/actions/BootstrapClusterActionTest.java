@@ -21,6 +21,7 @@ package org.apache.whirr.actions;
 import static org.apache.whirr.util.Utils.convertMapToLoadingCache;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -37,12 +38,15 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.Cluster;
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.HandlerMapFactory;
 import org.apache.whirr.compute.NodeStarter;
 import org.apache.whirr.compute.NodeStarterFactory;
 import org.apache.whirr.service.ClusterActionHandler;
 import org.apache.whirr.service.ClusterActionHandlerFactory;
+import org.apache.whirr.state.ClusterStateStore;
+import org.apache.whirr.state.MemoryClusterStateStore;
 import org.jclouds.Context;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.ComputeServiceContext;
@@ -59,6 +63,7 @@ import org.jclouds.compute.domain.TemplateBuilder;
 import org.jclouds.compute.domain.TemplateBuilderSpec;
 import org.jclouds.compute.domain.internal.TemplateImpl;
 import org.jclouds.compute.options.TemplateOptions;
+import org.jclouds.domain.Credentials;
 import org.jclouds.domain.Location;
 import org.jclouds.domain.LocationBuilder;
 import org.jclouds.domain.LocationScope;
@@ -152,6 +157,74 @@ public class BootstrapClusterActionTest {
     }
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testStartedInstancesAreAddedToTheSavedState() throws Exception {
+    Configuration conf = new PropertiesConfiguration();
+    conf.addProperty("whirr.service-name", "test-service");
+    conf.addProperty("whirr.cluster-name", "test-cluster");
+    conf.addProperty("whirr.instance-templates",
+      "1 hadoop-namenode+hadoop-jobtracker,2 hadoop-datanode+hadoop-tasktracker");
+    conf.addProperty("whirr.provider", "ec2");
+    ClusterSpec clusterSpec = ClusterSpec.withTemporaryKeys(conf);
+
+    Set<String> jtnn = ImmutableSet.of("hadoop-jobtracker", "hadoop-namenode");
+    Set<String> dntt = ImmutableSet.of("hadoop-datanode", "hadoop-tasktracker");
+
+    ClusterActionHandler handler = mock(ClusterActionHandler.class);
+    LoadingCache<String, ClusterActionHandler> handlerMap = convertMapToLoadingCache(
+      ImmutableMap.<String, ClusterActionHandler>builder()
+        .put("hadoop-jobtracker", handler)
+        .put("hadoop-namenode", handler)
+        .put("hadoop-datanode", handler)
+        .put("hadoop-tasktracker", handler).build());
+
+    Function<ClusterSpec, ComputeServiceContext> getCompute = mock(Function.class);
+    ComputeServiceContext serviceContext = mock(ComputeServiceContext.class);
+    ComputeService computeService = mock(ComputeService.class);
+    TemplateBuilder templateBuilder = mock(TemplateBuilder.class);
+    Template template = mock(Template.class);
+    TemplateOptions templateOptions = mock(TemplateOptions.class);
+
+    when(getCompute.apply(clusterSpec)).thenReturn(serviceContext);
+    when(serviceContext.getComputeService()).thenReturn(computeService);
+    when(computeService.getContext()).thenReturn(serviceContext);
+    when(serviceContext.getBackendType()).thenReturn(TypeToken.class.cast(TypeToken.of(Context.class)));
+    when(computeService.templateBuilder()).thenReturn(templateBuilder);
+    when(templateBuilder.from((TemplateBuilderSpec) any())).thenReturn(templateBuilder);
+    when(templateBuilder.options((TemplateOptions) any())).thenReturn(templateBuilder);
+    when(templateBuilder.build()).thenReturn(template);
+    when(template.getOptions()).thenReturn(templateOptions);
+
+    Map<Set<String>, Stack<Integer>> reaction = Maps.newHashMap();
+    Stack<Integer> jtnnStack = new Stack<Integer>();
+    jtnnStack.push(1);
+    reaction.put(jtnn, jtnnStack);
+    Stack<Integer> dnttStack = new Stack<Integer>();
+    dnttStack.push(2);
+    reaction.put(dntt, dnttStack);
+
+    // an instance saved by a previous launch is kept
+    ClusterStateStore stateStore = new MemoryClusterStateStore();
+    stateStore.save(new Cluster(ImmutableSet.of(new Cluster.Instance(
+        new Credentials("dummy", "dummy"), dntt, "10.0.0.2", "10.0.0.2", "saved", null))));
+
+    BootstrapClusterAction bootstrapper = new BootstrapClusterAction(getCompute, handlerMap,
+        new TestNodeStarterFactory(reaction), stateStore);
+    Cluster cluster = bootstrapper.execute(clusterSpec, null);
+
+    Set<String> savedIds = Sets.newHashSet();
+    for (Cluster.Instance instance : stateStore.load().getInstances()) {
+      savedIds.add(instance.getId());
+    }
+    assertEquals(3, cluster.getInstances().size());
+    assertEquals(4, savedIds.size());
+    assertTrue(savedIds.contains("saved"));
+    for (Cluster.Instance instance : cluster.getInstances()) {
+      assertTrue(savedIds.contains(instance.getId()));
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Test(expected = IOException.class)
   public void testDoActionRetriesExceeds() throws Exception {
@@ -18,17 +18,70 @@
 
 package org.apache.whirr.actions;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import static org.jclouds.scriptbuilder.domain.Statements.newStatementList;
+
+import java.util.Collections;
 import java.util.Set;
 
+import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.HandlerMapFactory;
 import org.apache.whirr.service.ClusterActionHandler;
+import org.apache.whirr.service.ComputeCache;
+import org.apache.whirr.service.jclouds.StatementBuilder;
+import org.apache.whirr.state.ClusterStateStore;
+import org.apache.whirr.state.MemoryClusterStateStore;
+import org.apache.whirr.state.ScriptHashes;
 import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.options.RunScriptOptions;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.junit.Test;
 
 import com.google.common.base.Function;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class ConfigureServicesActionTest extends ScriptBasedClusterActionTest<ConfigureServicesAction> {
 
+  /**
+   * Records the instances the scripts run on instead of running them. The
+   * version is added to each script, so that changing it changes the script.
+   */
+  private static class RecordingConfigureServicesAction extends ConfigureServicesAction {
+    private final Set<String> ran = Collections.synchronizedSet(Sets.<String>newLinkedHashSet());
+    private final String version;
+    private final int exitStatus;
+
+    RecordingConfigureServicesAction(ClusterStateStore stateStore, boolean force,
+        String version, int exitStatus) {
+      super(ComputeCache.INSTANCE, new HandlerMapFactory().create(),
+          ImmutableSet.<String>of(), ImmutableSet.<String>of(), stateStore, force);
+      this.version = version;
+      this.exitStatus = exitStatus;
+    }
+
+    @Override
+    protected Statement buildStatement(StatementBuilder statementBuilder, Instance instance,
+        ClusterSpec clusterSpec) {
+      return newStatementList(super.buildStatement(statementBuilder, instance, clusterSpec),
+          exec("echo " + version));
+    }
+
+    @Override
+    protected ListenableFuture<ExecResponse> runStatementOnInstance(Statement statement,
+        Instance instance, ClusterSpec clusterSpec, RunScriptOptions options) {
+      ran.add(instance.getId());
+      return Futures.immediateFuture(new ExecResponse("", "", exitStatus));
+    }
+  }
+
   @Override
   public String getActionName() {
     return ClusterActionHandler.CONFIGURE_ACTION;
@@ -42,4 +95,47 @@ public class ConfigureServicesActionTest extends ScriptBasedClusterActionTest<Co
     return new ConfigureServicesAction(getCompute, handlerMap, targetRoles, targetInstanceIds);
   }
 
+  private Set<String> configure(ClusterStateStore stateStore, boolean force, String version,
+      int exitStatus) throws Exception {
+    RecordingConfigureServicesAction action =
+        new RecordingConfigureServicesAction(stateStore, force, version, exitStatus);
+    action.execute(clusterSpec, cluster);
+    return action.ran;
+  }
+
+  @Test
+  public void testInstancesWithAnUnchangedScriptAreSkipped() throws Exception {
+    ClusterStateStore stateStore = new MemoryClusterStateStore();
+    // the instance with only the noop role has no configure script
+    assertThat(configure(stateStore, false, "v1", 0).size(), is(2));
+    assertThat(ScriptHashes.load(stateStore).size(), is(2));
+
+    assertThat(configure(stateStore, false, "v1", 0).isEmpty(), is(true));
+  }
+
+  @Test
+  public void testInstancesWithAChangedScriptRunItAgain() throws Exception {
+    ClusterStateStore stateStore = new MemoryClusterStateStore();
+    Set<String> ran = configure(stateStore, false, "v1", 0);
+
+    assertThat(configure(stateStore, false, "v2", 0), is(ran));
+  }
+
+  @Test
+  public void testScriptsExitingWithAnErrorAreNotRecorded() throws Exception {
+    ClusterStateStore stateStore = new MemoryClusterStateStore();
+    Set<String> ran = configure(stateStore, false, "v1", 1);
+
+    assertThat(ScriptHashes.load(stateStore).isEmpty(), is(true));
+    assertThat(configure(stateStore, false, "v1", 0), is(ran));
+  }
+
+  @Test
+  public void testForceRunsAllTheScripts() throws Exception {
+    ClusterStateStore stateStore = new MemoryClusterStateStore();
+    Set<String> ran = configure(stateStore, false, "v1", 0);
+
+    assertThat(configure(stateStore, true, "v1", 0), is(ran));
+  }
+
 }
@@ -0,0 +1,235 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.actions;
+
+import static org.apache.whirr.RolePredicates.withIds;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.whirr.Cluster;
+import org.apache.whirr.Cluster.Instance;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.ClusterActionEvent;
+import org.apache.whirr.service.ClusterActionHandler;
+import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.apache.whirr.service.ConcurrentClusterActionHandler;
+import org.apache.whirr.service.FirewallManager;
+import org.apache.whirr.service.FirewallManager.Rule;
+import org.apache.whirr.service.jclouds.StatementBuilder;
+import org.jclouds.domain.Credentials;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+public class HandlerHookRunnerTest {
+
+  /**
+   * Waits for the other concurrent handlers before adding its statement and
+   * a configuration property.
+   */
+  static class LatchedHandler extends ClusterActionHandlerSupport
+      implements ConcurrentClusterActionHandler {
+
+    private final String role;
+    private final CountDownLatch started;
+    private final CountDownLatch release;
+    private final CountDownLatch done;
+
+    LatchedHandler(String role, CountDownLatch started, CountDownLatch release,
+        CountDownLatch done) {
+      this.role = role;
+      this.started = started;
+      this.release = release;
+      this.done = done;
+    }
+
+    @Override
+    public String getRole() {
+      return role;
+    }
+
+    @Override
+    protected void beforeConfigure(ClusterActionEvent event)
+        throws IOException, InterruptedException {
+      started.countDown();
+      assertTrue("Hooks did not run concurrently", started.await(10, TimeUnit.SECONDS));
+      assertTrue(release.await(10, TimeUnit.SECONDS));
+      addStatement(event, exec("echo " + role));
+
+      Properties configuration = new Properties();
+      configuration.putAll(event.getCluster().getConfiguration());
+      configuration.setProperty(role, "configured");
+      configuration.setProperty("last", role);
+      event.setCluster(new Cluster(event.getCluster().getInstances(), configuration));
+      done.countDown();
+    }
+  }
+
+  private ExecutorService executor;
+  private ClusterSpec clusterSpec;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+    clusterSpec = ClusterSpec.withTemporaryKeys();
+    clusterSpec.setClusterName("test-cluster");
+    clusterSpec.setProvider("test-provider");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testConcurrentHooksAreMergedInOrder() throws Exception {
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch firstDone = new CountDownLatch(1);
+    CountDownLatch secondDone = new CountDownLatch(1);
+    // the second handler completes before the first one
+    ClusterActionHandler first = new LatchedHandler("first", started, secondDone, firstDone);
+    ClusterActionHandler second = new LatchedHandler("second", started, new CountDownLatch(0),
+        secondDone);
+
+    StatementBuilder statementBuilder = new StatementBuilder();
+    ClusterActionEvent event = newEvent(statementBuilder);
+    HandlerHookRunner runner = new HandlerHookRunner(executor, true);
+    runner.add(first, event);
+    runner.add(second, event);
+
+    Cluster cluster = runner.run(Cluster.empty());
+
+    String script = statementBuilder.name("test").build(clusterSpec).render(OsFamily.UNIX);
+    assertThat(script.indexOf("echo second"), greaterThan(script.indexOf("echo first")));
+    assertThat(script.indexOf("echo first"), greaterThan(-1));
+
+    assertThat(cluster.getConfiguration().getProperty("first"), is("configured"));
+    assertThat(cluster.getConfiguration().getProperty("second"), is("configured"));
+    assertThat(cluster.getConfiguration().getProperty("last"), is("second"));
+    assertTrue(event.getCluster() == cluster);
+  }
+
+  /**
+   * Waits for the other concurrent handlers, then opens a port to a source
+   * and changes the instances of the cluster.
+   */
+  abstract static class ChangingHandler extends ClusterActionHandlerSupport
+      implements ConcurrentClusterActionHandler {
+
+    private final String role;
+    private final CountDownLatch started;
+
+    ChangingHandler(String role, CountDownLatch started) {
+      this.role = role;
+      this.started = started;
+    }
+
+    @Override
+    public String getRole() {
+      return role;
+    }
+
+    @Override
+    protected void beforeConfigure(ClusterActionEvent event)
+        throws IOException, InterruptedException {
+      started.countDown();
+      assertTrue("Hooks did not run concurrently", started.await(10, TimeUnit.SECONDS));
+      event.getFirewallManager().addRule(Rule.create().source(getSource()).port(80));
+      Set<Instance> instances = Sets.newLinkedHashSet(event.getCluster().getInstances());
+      change(instances);
+      event.setCluster(new Cluster(instances, event.getCluster().getConfiguration()));
+    }
+
+    abstract String getSource();
+
+    abstract void change(Set<Instance> instances);
+  }
+
+  @Test
+  public void testConcurrentClusterChangesAndFirewallRulesAreMergedById() throws Exception {
+    CountDownLatch started = new CountDownLatch(2);
+    ClusterActionHandler adding = new ChangingHandler("adding", started) {
+      @Override
+      String getSource() {
+        return "10.1.0.1";
+      }
+      @Override
+      void change(Set<Instance> instances) {
+        instances.add(instance("i-3"));
+      }
+    };
+    ClusterActionHandler dropping = new ChangingHandler("dropping", started) {
+      @Override
+      String getSource() {
+        return "10.1.0.2";
+      }
+      @Override
+      void change(Set<Instance> instances) {
+        instances.remove(Iterables.find(instances, withIds("i-2")));
+      }
+    };
+
+    Cluster cluster = new Cluster(ImmutableSet.of(instance("i-1"), instance("i-2")));
+    FirewallManager firewallManager = new FirewallManager(null, clusterSpec, cluster);
+    ClusterActionEvent event = new ClusterActionEvent(ClusterActionHandler.CONFIGURE_ACTION,
+        clusterSpec, null, cluster, new StatementBuilder(), null, firewallManager, null);
+    HandlerHookRunner runner = new HandlerHookRunner(executor, true);
+    runner.add(adding, event);
+    runner.add(dropping, event);
+
+    Cluster merged = runner.run(cluster);
+
+    Set<String> ids = Sets.newLinkedHashSet();
+    for (Instance instance : merged.getInstances()) {
+      ids.add(instance.getId());
+    }
+    assertThat(ids, is((Set<String>) ImmutableSet.of("i-1", "i-3")));
+
+    String rules = firewallManager.getRulesAsStatements().get(0).render(OsFamily.UNIX);
+    assertThat(rules, containsString("10.1.0.1/32,tcp:80"));
+    assertThat(rules, containsString("10.1.0.2/32,tcp:80"));
+  }
+
+  private static Instance instance(String id) {
+    return new Instance(new Credentials("dummy", "dummy"), ImmutableSet.of("role"),
+        "127.0.0.1", "127.0.0.1", id, null);
+  }
+
+  private ClusterActionEvent newEvent(StatementBuilder statementBuilder) {
+    return new ClusterActionEvent(ClusterActionHandler.CONFIGURE_ACTION, clusterSpec,
+        null, Cluster.empty(), statementBuilder, null, null, null);
+  }
+}
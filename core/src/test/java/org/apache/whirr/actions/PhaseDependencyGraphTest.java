@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.actions;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.InstanceTemplate;
+import org.apache.whirr.service.ClusterActionHandler;
+import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.apache.whirr.service.RoleDependencies;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+public class PhaseDependencyGraphTest {
+
+  private static final InstanceTemplate MASTER = template("master");
+  private static final InstanceTemplate WORKER = template("worker");
+  private static final InstanceTemplate CLIENT = template("client");
+
+  private static InstanceTemplate template(String... roles) {
+    return InstanceTemplate.builder().numberOfInstance(1).roles(roles).build();
+  }
+
+  private static Function<String, Set<String>> dependencies(Map<String, Set<String>> map) {
+    final Map<String, Set<String>> copy = Maps.newHashMap(map);
+    return new Function<String, Set<String>>() {
+      @Override
+      public Set<String> apply(String role) {
+        return copy.containsKey(role) ? copy.get(role) : null;
+      }
+    };
+  }
+
+  @Test
+  public void testUndeclaredDependenciesAreABarrier() {
+    PhaseDependencyGraph graph = new PhaseDependencyGraph(
+        ImmutableList.of(MASTER, WORKER),
+        dependencies(ImmutableMap.<String, Set<String>>of()));
+
+    assertTrue(graph.isBarrier());
+    assertThat(graph.getDependencies(WORKER), is((List<InstanceTemplate>) ImmutableList.of(MASTER)));
+    assertThat(graph.getDependencies(MASTER), is((List<InstanceTemplate>) ImmutableList.of(WORKER)));
+  }
+
+  @Test
+  public void testSingleTemplateIsABarrier() {
+    PhaseDependencyGraph graph = new PhaseDependencyGraph(
+        ImmutableList.of(MASTER),
+        dependencies(ImmutableMap.<String, Set<String>>of("master", ImmutableSet.<String>of())));
+    assertTrue(graph.isBarrier());
+  }
+
+  @Test
+  public void testDeclaredDependencies() {
+    PhaseDependencyGraph graph = new PhaseDependencyGraph(
+        ImmutableList.of(MASTER, WORKER, CLIENT),
+        dependencies(ImmutableMap.<String, Set<String>>of(
+            "master", ImmutableSet.<String>of(),
+            "worker", ImmutableSet.of("master"),
+            "client", ImmutableSet.of("worker", "unknown"))));
+
+    assertFalse(graph.isBarrier());
+    assertTrue(graph.getDependencies(MASTER).isEmpty());
+    assertThat(graph.getDependencies(WORKER), is((List<InstanceTemplate>) ImmutableList.of(MASTER)));
+    assertThat(graph.getDependencies(CLIENT), is((List<InstanceTemplate>) ImmutableList.of(WORKER)));
+  }
+
+  @Test
+  public void testRolesInTheSameTemplateAreMerged() {
+    InstanceTemplate masterAndClient = template("master", "client");
+    PhaseDependencyGraph graph = new PhaseDependencyGraph(
+        ImmutableList.of(masterAndClient, WORKER),
+        dependencies(ImmutableMap.<String, Set<String>>of(
+            "master", ImmutableSet.<String>of(),
+            "client", ImmutableSet.of("master"),
+            "worker", ImmutableSet.of("master"))));
+
+    assertFalse(graph.isBarrier());
+    assertTrue(graph.getDependencies(masterAndClient).isEmpty());
+    assertThat(graph.getDependencies(WORKER), is((List<InstanceTemplate>) ImmutableList.of(masterAndClient)));
+  }
+
+  @Test
+  public void testCycleIsABarrier() {
+    PhaseDependencyGraph graph = new PhaseDependencyGraph(
+        ImmutableList.of(MASTER, WORKER, CLIENT),
+        dependencies(ImmutableMap.<String, Set<String>>of(
+            "master", ImmutableSet.of("client"),
+            "worker", ImmutableSet.of("master"),
+            "client", ImmutableSet.of("worker"))));
+
+    assertTrue(graph.hasCycle());
+    assertTrue(graph.isBarrier());
+  }
+
+  public static class WorkerActionHandler extends ClusterActionHandlerSupport
+      implements RoleDependencies {
+
+    @Override
+    public String getRole() {
+      return "worker";
+    }
+
+    @Override
+    public Set<String> getRoleDependencies(ClusterSpec clusterSpec) {
+      return ImmutableSet.of("master");
+    }
+  }
+
+  @Test
+  public void testDependenciesFromHandlersAndConfiguration() throws Exception {
+    PropertiesConfiguration conf = new PropertiesConfiguration();
+    conf.setProperty("whirr.instance-templates", "1 master, 1 worker, 1 client");
+    conf.setProperty("whirr.master.depends-on", "");
+    conf.setProperty("whirr.client.depends-on", "*");
+    ClusterSpec spec = ClusterSpec.withNoDefaults(conf);
+
+    Map<String, ClusterActionHandler> handlers = ImmutableMap.<String, ClusterActionHandler>of(
+        "master", new ClusterActionHandlerSupport() {
+          @Override
+          public String getRole() {
+            return "master";
+          }
+        },
+        "worker", new WorkerActionHandler(),
+        "client", new WorkerActionHandler());
+
+    PhaseDependencyGraph graph = PhaseDependencyGraph.build(spec, Functions.forMap(handlers));
+    List<InstanceTemplate> templates = spec.getInstanceTemplates();
+
+    assertFalse(graph.isBarrier());
+    assertTrue(graph.getDependencies(templates.get(0)).isEmpty());
+    assertThat(graph.getDependencies(templates.get(1)),
+        is((List<InstanceTemplate>) ImmutableList.of(templates.get(0))));
+    assertThat(graph.getDependencies(templates.get(2)),
+        is((List<InstanceTemplate>) ImmutableList.of(templates.get(0), templates.get(1))));
+  }
+
+}
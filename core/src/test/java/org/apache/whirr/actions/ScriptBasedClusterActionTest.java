@@ -91,8 +91,8 @@ public abstract class ScriptBasedClusterActionTest<T extends ScriptBasedClusterA
   private final static LoadingCache<String, ClusterActionHandler> HANDLERMAP = HANDLER_MAP_FACTORY.create();
   private final static Set<String> EMPTYSET = ImmutableSet.of();
 
-  private ClusterSpec clusterSpec;
-  private Cluster cluster;
+  protected ClusterSpec clusterSpec;
+  protected Cluster cluster;
 
   @Before
   public void setUp() throws Exception {
@@ -128,6 +128,13 @@ public abstract class ScriptBasedClusterActionTest<T extends ScriptBasedClusterA
 
     // only 2 out of 3 because one instance has only noop
     assertThat(executions.size(), is(2));
+
+    List<NodeScriptResult> results = action.getScriptResults();
+    assertThat(results.size(), is(2));
+    for (NodeScriptResult result : results) {
+      assertTrue(result.isSuccess());
+      assertEquals(getActionName(), result.getPhase());
+    }
   }
 
   public DryRun getDryRunForAction(T action) {
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.actions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ScriptFailurePolicyTest {
+
+  @Test
+  public void testDefaultAbortsOnFirstFailure() {
+    ScriptFailurePolicy policy = ScriptFailurePolicy.parse(null);
+    assertEquals(ScriptFailurePolicy.ABORT_ON_FIRST_FAILURE, policy);
+    assertFalse(policy.isTripped(0, 10));
+    assertTrue(policy.isTripped(1, 10));
+  }
+
+  @Test
+  public void testTolerateNumberOfFailures() {
+    ScriptFailurePolicy policy = ScriptFailurePolicy.parse(" 2 ");
+    assertFalse(policy.isTripped(2, 10));
+    assertTrue(policy.isTripped(3, 10));
+    assertEquals("2", policy.toString());
+  }
+
+  @Test
+  public void testToleratePercentageOfFailures() {
+    ScriptFailurePolicy policy = ScriptFailurePolicy.parse("10%");
+    assertFalse(policy.isTripped(10, 100));
+    assertTrue(policy.isTripped(11, 100));
+    assertTrue(policy.isTripped(1, 5));
+    assertEquals("10%", policy.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPolicy() {
+    ScriptFailurePolicy.parse("some");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPercentageOverOneHundred() {
+    ScriptFailurePolicy.parse("150%");
+  }
+
+}
@@ -21,9 +21,12 @@ package org.apache.whirr.actions.integration;
 import static java.lang.Integer.parseInt;
 import static org.apache.commons.lang.StringUtils.deleteWhitespace;
 import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.configuration.Configuration;
@@ -33,9 +36,12 @@ import org.apache.commons.ssl.asn1.Strings;
 import org.apache.whirr.ClusterController;
 import org.apache.whirr.ClusterControllerFactory;
 import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.HandlerMapFactory;
 import org.apache.whirr.TestConstants;
+import org.apache.whirr.actions.PhaseDependencyGraph;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.apache.whirr.service.RoleDependencies;
 import org.jclouds.compute.domain.ExecResponse;
 import org.jclouds.compute.domain.NodeMetadata;
 import org.jclouds.scriptbuilder.domain.Statements;
@@ -44,6 +50,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 
@@ -86,6 +93,7 @@ public class PhaseExecutionBarrierTest {
       ));
 
       recordTime("before-bootstrap");
+      recordTemplates(event);
     }
 
     @Override
@@ -122,6 +130,58 @@ public class PhaseExecutionBarrierTest {
     }
   }
 
+  /**
+   * Record how many instance templates the bootstrap action of the event
+   * covers: one when the launch phases are pipelined by template, all of them
+   * behind the global barrier
+   */
+  private static void recordTemplates(ClusterActionEvent event) {
+    STEP_TIMES.put("bootstrap-templates",
+      (long) event.getClusterSpec().getInstanceTemplates().size());
+  }
+
+  /**
+   * A role that declares a dependency on phase-barrier-test: it is
+   * bootstrapped at the same time but must only be configured after the
+   * phase-barrier-test instances are bootstrapped, and started after they are
+   * started
+   */
+  static public class PhaseDependentTestActionHandler
+    extends ClusterActionHandlerSupport implements RoleDependencies {
+
+    @Override
+    public String getRole() {
+      return "phase-dependent-test";
+    }
+
+    @Override
+    public Set<String> getRoleDependencies(ClusterSpec clusterSpec) {
+      return ImmutableSet.of("phase-barrier-test");
+    }
+
+    @Override
+    public void beforeBootstrap(ClusterActionEvent event) {
+      addStatement(event, exec("sleep 60"));
+      recordTime("dependent-before-bootstrap");
+      recordTemplates(event);
+    }
+
+    @Override
+    public void afterBootstrap(ClusterActionEvent event) {
+      recordTime("dependent-after-bootstrap");
+    }
+
+    @Override
+    public void beforeConfigure(ClusterActionEvent event) {
+      recordTime("dependent-before-configure");
+    }
+
+    @Override
+    public void beforeStart(ClusterActionEvent event) {
+      recordTime("dependent-before-start");
+    }
+  }
+
   private Configuration getTestConfiguration() throws ConfigurationException {
     return new PropertiesConfiguration("whirr-core-phase-barrier-test.properties");
   }
@@ -162,6 +222,37 @@ public class PhaseExecutionBarrierTest {
     assertNoOverlapOnLocalMachine();
   }
 
+  @Test(timeout = TestConstants.ITEST_TIMEOUT)
+  public void testDeclaredDependenciesAreRespected() throws Exception {
+    Configuration config = getTestConfiguration();
+    config.setProperty(ClusterSpec.Property.INSTANCE_TEMPLATES.getConfigName(),
+      "1 phase-barrier-test, 1 phase-dependent-test");
+    // phase-barrier-test depends on no other role, so the graph has no cycle
+    config.setProperty("whirr.phase-barrier-test" + PhaseDependencyGraph.DEPENDS_ON_SUFFIX, "");
+    ClusterSpec spec = ClusterSpec.withTemporaryKeys(config);
+    ClusterController controller =
+      (new ClusterControllerFactory()).create(spec.getServiceName());
+
+    assertFalse("Launch phases would run behind the global barrier",
+      PhaseDependencyGraph.build(spec, new HandlerMapFactory().create()).isBarrier());
+
+    try {
+      controller.launchCluster(spec);
+    } finally {
+      controller.destroyCluster(spec);
+    }
+
+    assertEquals("Templates were not bootstrapped by the phase pipeline",
+      1L, STEP_TIMES.get("bootstrap-templates").longValue());
+    assertTrue("Independent templates were not bootstrapped concurrently",
+      STEP_TIMES.get("dependent-before-bootstrap") < STEP_TIMES.get("after-bootstrap")
+        && STEP_TIMES.get("before-bootstrap") < STEP_TIMES.get("dependent-after-bootstrap"));
+    assertTrue("Dependent role configured before its dependency was bootstrapped",
+      STEP_TIMES.get("after-bootstrap") <= STEP_TIMES.get("dependent-before-configure"));
+    assertTrue("Dependent role started before its dependency was configured",
+      STEP_TIMES.get("after-configure") <= STEP_TIMES.get("dependent-before-start"));
+  }
+
   private void assertNoOverlapOnLocalMachine() {
     String[] listOfSteps = new String[] {"bootstrap", "configure", "destroy"};
 
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.jclouds.domain.Location;
+import org.jclouds.domain.LocationBuilder;
+import org.jclouds.domain.LocationScope;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class BakedImagesTest {
+
+  @Test
+  public void testImagesAreRecordedByProviderRegionAndHash() throws Exception {
+    File file = new File(Files.createTempDir(), "baked-images");
+    BakedImages images = new BakedImages(file);
+    assertNull(images.get("aws-ec2", "us-east-1", "abc"));
+
+    images.put("aws-ec2", "us-east-1", "abc", "us-east-1/ami-1");
+    images.put("cloudservers-us", null, "abc", "42");
+    images.put("aws-ec2", "us-east-1", "abc", "us-east-1/ami-2");
+    images.put("aws-ec2", "eu-west-1", "abc", "eu-west-1/ami-3");
+
+    BakedImages reloaded = new BakedImages(file);
+    assertEquals("us-east-1/ami-2", reloaded.get("aws-ec2", "us-east-1", "abc"));
+    assertEquals("eu-west-1/ami-3", reloaded.get("aws-ec2", "eu-west-1", "abc"));
+    assertEquals("42", reloaded.get("cloudservers-us", null, "abc"));
+    assertNull(reloaded.get("aws-ec2", "us-west-1", "abc"));
+    assertNull(reloaded.get("aws-ec2", "us-east-1", "def"));
+  }
+
+  @Test
+  public void testImagesAreLookedUpByTheRegionOfTheLocation() {
+    Location region = new LocationBuilder().scope(LocationScope.REGION)
+        .id("us-east-1").description("us-east-1").build();
+    Location zone = new LocationBuilder().scope(LocationScope.ZONE)
+        .id("us-east-1a").description("us-east-1a").parent(region).build();
+    Location provider = new LocationBuilder().scope(LocationScope.PROVIDER)
+        .id("cloudservers-us").description("cloudservers-us").build();
+
+    assertEquals("us-east-1", BakedImages.regionOf(zone));
+    assertEquals("us-east-1", BakedImages.regionOf(region));
+    assertEquals("cloudservers-us", BakedImages.regionOf(provider));
+    assertNull(BakedImages.regionOf(null));
+  }
+
+}
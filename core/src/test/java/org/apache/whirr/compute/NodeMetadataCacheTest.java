@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class NodeMetadataCacheTest {
+
+  private ProviderExecutor executor;
+  private ComputeService computeService;
+  private final AtomicLong now = new AtomicLong();
+  private NodeMetadataCache cache;
+
+  @Before
+  public void setUp() {
+    executor = new ProviderExecutor("test", 2, 0);
+    computeService = mock(ComputeService.class);
+    cache = new NodeMetadataCache(computeService, executor, new Ticker() {
+      @Override
+      public long read() {
+        return now.get();
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void testNodesAreFetchedByIdOnce() throws Exception {
+    List<String> ids = Lists.newArrayList();
+    for (int i = 0; i < NodeMetadataCache.BATCH_SIZE + 5; i++) {
+      String id = "node-" + i;
+      ids.add(id);
+      NodeMetadata node = mock(NodeMetadata.class);
+      when(computeService.getNodeMetadata(id)).thenReturn(node);
+    }
+    ids.add("gone");
+
+    Map<String, NodeMetadata> nodes = cache.getNodes(ids);
+    assertEquals(NodeMetadataCache.BATCH_SIZE + 5, nodes.size());
+    assertSame(nodes.get("node-3"), cache.getNodes(ImmutableList.of("node-3")).get("node-3"));
+    assertEquals(0, cache.getNodes(ImmutableList.of("gone")).size());
+    verify(computeService, times(ids.size())).getNodeMetadata(anyString());
+    verify(computeService, never()).listNodes();
+    assertEquals(ids.size(), executor.getApiRequests());
+  }
+
+  @Test
+  public void testCachedNodesExpire() throws Exception {
+    when(computeService.getNodeMetadata("node-1")).thenReturn(mock(NodeMetadata.class));
+    cache.getNodes(ImmutableList.of("node-1"));
+    now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    cache.getNodes(ImmutableList.of("node-1"));
+    verify(computeService, times(1)).getNodeMetadata("node-1");
+
+    now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+    cache.getNodes(ImmutableList.of("node-1"));
+    cache.refresh(ImmutableList.of("node-1"));
+    verify(computeService, times(3)).getNodeMetadata("node-1");
+  }
+}
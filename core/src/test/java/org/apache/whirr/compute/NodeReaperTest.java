@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+
+public class NodeReaperTest {
+
+  private ProviderExecutor executor;
+  private ComputeService computeService;
+
+  @Before
+  public void setUp() {
+    executor = new ProviderExecutor("test", 2, 0);
+    computeService = mock(ComputeService.class);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testFailedTerminationsAreRetried() throws Exception {
+    NodeMetadata node = mock(NodeMetadata.class);
+    when(node.getId()).thenReturn("node-1");
+    when(computeService.destroyNodesMatching(any(Predicate.class)))
+      .thenThrow(new IllegalStateException("Simulated provider error"))
+      .thenReturn((Set) ImmutableSet.of(node));
+
+    NodeReaper reaper = new NodeReaper(computeService, executor, 1);
+    reaper.reap(ImmutableSet.of(node));
+
+    assertTrue(executor.awaitBackgroundTasks(5, TimeUnit.SECONDS));
+    assertTrue(reaper.getPending().isEmpty());
+    verify(computeService, times(2)).destroyNodesMatching(any(Predicate.class));
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testNodesAreDestroyedInTheCallerOnceTheExecutorIsShutDown() throws Exception {
+    NodeMetadata node = mock(NodeMetadata.class);
+    when(node.getId()).thenReturn("node-1");
+    when(computeService.destroyNodesMatching(any(Predicate.class)))
+      .thenReturn((Set) ImmutableSet.of(node));
+
+    executor.shutdown();
+    NodeReaper reaper = new NodeReaper(computeService, executor, 1);
+    reaper.reap(ImmutableSet.of(node));
+
+    assertTrue(reaper.getPending().isEmpty());
+    verify(computeService).destroyNodesMatching(any(Predicate.class));
+  }
+
+}
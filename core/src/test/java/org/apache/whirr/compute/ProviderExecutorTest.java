@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.ClusterSpec;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class ProviderExecutorTest {
+
+  private ProviderExecutor executor;
+
+  @After
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testSshSessionsAreBounded() throws Exception {
+    executor = new ProviderExecutor("test", 2, 0);
+
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+
+    List<ListenableFuture<Integer>> futures = Lists.newArrayList();
+    for (int i = 0; i < 6; i++) {
+      futures.add(executor.submitSsh(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          int current = running.incrementAndGet();
+          synchronized (maxRunning) {
+            maxRunning.set(Math.max(maxRunning.get(), current));
+          }
+          release.await();
+          running.decrementAndGet();
+          return current;
+        }
+      }));
+    }
+
+    while (executor.getInFlight() < 2) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, executor.getInFlight());
+    assertEquals(4, executor.getQueueDepth());
+
+    release.countDown();
+    Futures.allAsList(futures).get(5, TimeUnit.SECONDS);
+
+    assertEquals(2, maxRunning.get());
+    assertEquals(0, executor.getInFlight());
+    assertEquals(0, executor.getQueueDepth());
+  }
+
+  @Test(timeout = 10000)
+  public void testApiRequestsAreRateLimited() {
+    executor = new ProviderExecutor("test", 1, 10);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 6; i++) {
+      executor.acquireApiPermit();
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertEquals(6, executor.getApiRequests());
+    assertTrue("Expected at least 400ms for 6 requests at 10/s but was " + elapsed,
+        elapsed >= 400);
+  }
+
+  @Test
+  public void testExecutorsAreKeptPerCluster() throws Exception {
+    PropertiesConfiguration conf = new PropertiesConfiguration();
+    conf.setProperty("whirr.provider", "stub");
+    conf.setProperty("whirr.identity", "id");
+    ClusterSpec first = ClusterSpec.withNoDefaults(conf);
+    first.setClusterName("first");
+    ClusterSpec copy = ClusterSpec.withNoDefaults(conf);
+    copy.setClusterName("first");
+    ClusterSpec second = ClusterSpec.withNoDefaults(conf);
+    second.setClusterName("second");
+
+    assertTrue(ProviderExecutors.INSTANCE.apply(first) == ProviderExecutors.INSTANCE.apply(copy));
+    assertTrue(ProviderExecutors.INSTANCE.apply(first) != ProviderExecutors.INSTANCE.apply(second));
+  }
+
+  @Test
+  public void testTheSshLimitIsPerClusterAndTheApiRateIsPerAccount() throws Exception {
+    PropertiesConfiguration conf = new PropertiesConfiguration();
+    conf.setProperty("whirr.provider", "stub");
+    conf.setProperty("whirr.identity", "limits");
+    ClusterSpec first = ClusterSpec.withNoDefaults(conf);
+    first.setClusterName("first");
+    first.setMaxConcurrentSshSessions(8);
+    first.setProviderApiRequestsPerSecond(0);
+    ClusterSpec second = ClusterSpec.withNoDefaults(conf);
+    second.setClusterName("second");
+    second.setMaxConcurrentSshSessions(4);
+    second.setProviderApiRequestsPerSecond(5);
+
+    ProviderExecutor firstExecutor = ProviderExecutors.INSTANCE.apply(first);
+    assertEquals(8, firstExecutor.getMaxConcurrentSshSessions());
+    assertEquals(0, firstExecutor.getApiRequestsPerSecond(), 0);
+
+    ProviderExecutor secondExecutor = ProviderExecutors.INSTANCE.apply(second);
+    assertEquals(4, secondExecutor.getMaxConcurrentSshSessions());
+    assertEquals(8, firstExecutor.getMaxConcurrentSshSessions());
+    assertEquals(5, secondExecutor.getApiRequestsPerSecond(), 0.001);
+    assertEquals(5, firstExecutor.getApiRequestsPerSecond(), 0.001);
+
+    // the limits follow the changes of the specs, in both directions
+    first.setMaxConcurrentSshSessions(16);
+    first.setProviderApiRequestsPerSecond(2);
+    assertEquals(16, ProviderExecutors.INSTANCE.apply(first).getMaxConcurrentSshSessions());
+    assertEquals(2, secondExecutor.getApiRequestsPerSecond(), 0.001);
+
+    first.setProviderApiRequestsPerSecond(10);
+    second.setProviderApiRequestsPerSecond(0);
+    ProviderExecutors.INSTANCE.apply(first);
+    ProviderExecutors.INSTANCE.apply(second);
+    assertEquals(10, secondExecutor.getApiRequestsPerSecond(), 0.001);
+  }
+
+  @Test
+  public void testClustersOfOtherAccountsDoNotShareTheApiRate() throws Exception {
+    PropertiesConfiguration conf = new PropertiesConfiguration();
+    conf.setProperty("whirr.provider", "stub");
+    conf.setProperty("whirr.identity", "rate");
+    conf.setProperty("whirr.cluster-name", "rate-test");
+    ClusterSpec first = ClusterSpec.withNoDefaults(conf);
+    first.setProviderApiRequestsPerSecond(5);
+    ClusterSpec other = ClusterSpec.withNoDefaults(conf);
+    other.setIdentity("other-rate");
+    other.setProviderApiRequestsPerSecond(1);
+
+    ProviderExecutor executor = ProviderExecutors.INSTANCE.apply(first);
+    ProviderExecutors.INSTANCE.apply(other);
+    assertEquals(5, executor.getApiRequestsPerSecond(), 0.001);
+  }
+
+}
@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.compute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.Template;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class StartupProcessTest {
+
+  private static final Set<String> ROLES = ImmutableSet.of("role");
+
+  private ProviderExecutor executor;
+  private ComputeService computeService;
+  private CountDownLatch release;
+
+  @Before
+  public void setUp() {
+    executor = new ProviderExecutor("test", 2, 0);
+    computeService = mock(ComputeService.class);
+    release = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testSpeculativeNodesAreDestroyed() throws Exception {
+    StartupProcess process = new StartupProcess("test", 3, 3, 1, false, 0, 0, ROLES,
+        computeService, ImmutableList.of(mock(Template.class)), executor, new SlowLastNodeStarterFactory(4));
+
+    assertEquals(3, process.call().size());
+
+    release.countDown();
+    assertTrue(executor.awaitBackgroundTasks(5, TimeUnit.SECONDS));
+    assertTrue(process.getLateNodes().get().isEmpty());
+    verify(computeService).destroyNodesMatching(any(Predicate.class));
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testSpeculativeNodesAreStartedInBatches() throws Exception {
+    SlowLastNodeStarterFactory factory = new SlowLastNodeStarterFactory(6);
+    StartupProcess process = new StartupProcess("test", 10, 10, 2, false, 0, 0, ROLES,
+        computeService, ImmutableList.of(mock(Template.class)), executor, factory);
+
+    assertEquals(10, process.call().size());
+    assertEquals(ImmutableList.of(2, 2, 2, 2, 2, 2), factory.requested);
+
+    release.countDown();
+    assertTrue(executor.awaitBackgroundTasks(5, TimeUnit.SECONDS));
+    assertTrue(process.getLateNodes().get().isEmpty());
+    verify(computeService).destroyNodesMatching(any(Predicate.class));
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testSpeculativeBatchesAreLimitedByTheLaunchBatchSize() throws Exception {
+    SlowLastNodeStarterFactory factory = new SlowLastNodeStarterFactory(5);
+    StartupProcess process = new StartupProcess("test", 10, 10, 4, false, 3, 0, ROLES,
+        computeService, ImmutableList.of(mock(Template.class)), executor, factory);
+
+    assertEquals(10, process.call().size());
+    assertEquals(ImmutableList.of(3, 3, 3, 3, 2), factory.requested);
+
+    release.countDown();
+    assertTrue(executor.awaitBackgroundTasks(5, TimeUnit.SECONDS));
+    assertTrue(process.getLateNodes().get().isEmpty());
+    verify(computeService).destroyNodesMatching(any(Predicate.class));
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testLateNodesJoinWhenProceedingAtMinimum() throws Exception {
+    StartupProcess process = new StartupProcess("test", 3, 2, 0, true, 0, 0, ROLES,
+        computeService, ImmutableList.of(mock(Template.class)), executor, new SlowLastNodeStarterFactory(3));
+
+    assertEquals(2, process.call().size());
+    assertFalse(process.getLateNodes().isDone());
+
+    release.countDown();
+    assertEquals(1, process.getLateNodes().get().size());
+    assertTrue(executor.awaitBackgroundTasks(5, TimeUnit.SECONDS));
+    verify(computeService, never()).destroyNodesMatching(any(Predicate.class));
+  }
+
+  @Test(timeout = 10000)
+  public void testOnlyFailedBatchesAreRetried() throws Exception {
+    final List<Integer> requested = Collections.synchronizedList(Lists.<Integer>newArrayList());
+    NodeStarterFactory firstBatchFails = new NodeStarterFactory() {
+      @Override
+      public NodeStarter create(ComputeService computeService, String clusterName,
+          Set<String> roles, final int num, Template template) {
+        final boolean fail = requested.isEmpty();
+        requested.add(num);
+        return new NodeStarter(computeService, clusterName, roles, num, template) {
+          @Override
+          public Set<NodeMetadata> call() throws Exception {
+            if (fail) {
+              throw new IllegalStateException("Simulated provider error");
+            }
+            Set<NodeMetadata> nodes = Sets.newHashSet();
+            for (int i = 0; i < num; i++) {
+              nodes.add(node());
+            }
+            return nodes;
+          }
+        };
+      }
+    };
+    StartupProcess process = new StartupProcess("test", 5, 5, 0, false, 2, 1, ROLES,
+        computeService, ImmutableList.of(mock(Template.class)), executor, firstBatchFails);
+
+    assertEquals(5, process.call().size());
+    assertEquals(ImmutableList.of(2, 2, 1, 2), requested);
+  }
+
+  @Test(timeout = 10000)
+  public void testFailedLocationOverflowsToTheOthers() throws Exception {
+    final Template full = mock(Template.class);
+    final Template available = mock(Template.class);
+    final AtomicInteger requestedFromAvailable = new AtomicInteger();
+    NodeStarterFactory factory = new NodeStarterFactory() {
+      @Override
+      public NodeStarter create(ComputeService computeService, String clusterName,
+          Set<String> roles, final int num, final Template template) {
+        if (template == available) {
+          requestedFromAvailable.addAndGet(num);
+        }
+        return new NodeStarter(computeService, clusterName, roles, num, template) {
+          @Override
+          public Set<NodeMetadata> call() throws Exception {
+            if (template == full) {
+              throw new IllegalStateException("Simulated insufficient capacity");
+            }
+            Set<NodeMetadata> nodes = Sets.newHashSet();
+            for (int i = 0; i < num; i++) {
+              nodes.add(node());
+            }
+            return nodes;
+          }
+        };
+      }
+    };
+    StartupProcess process = new StartupProcess("test", 4, 4, 0, false, 0, 0, ROLES,
+        computeService, ImmutableList.of(full, available), executor, factory);
+
+    assertEquals(4, process.call().size());
+    assertEquals(4, requestedFromAvailable.get());
+  }
+
+  private final AtomicInteger nodeIds = new AtomicInteger();
+
+  private NodeMetadata node() {
+    NodeMetadata node = mock(NodeMetadata.class);
+    when(node.getId()).thenReturn("node-" + nodeIds.incrementAndGet());
+    return node;
+  }
+
+  /**
+   * Starts the requested nodes, those of the last starter only once released.
+   */
+  private class SlowLastNodeStarterFactory extends NodeStarterFactory {
+
+    private final int total;
+    private final AtomicInteger created = new AtomicInteger();
+    private final List<Integer> requested =
+      Collections.synchronizedList(Lists.<Integer>newArrayList());
+
+    SlowLastNodeStarterFactory(int total) {
+      this.total = total;
+    }
+
+    @Override
+    public NodeStarter create(ComputeService computeService, String clusterName,
+        Set<String> roles, final int num, Template template) {
+      final boolean slow = created.incrementAndGet() == total;
+      requested.add(num);
+      return new NodeStarter(computeService, clusterName, roles, num, template) {
+        @Override
+        public Set<NodeMetadata> call() throws Exception {
+          if (slow) {
+            release.await();
+          }
+          Set<NodeMetadata> nodes = Sets.newHashSet();
+          for (int i = 0; i < num; i++) {
+            nodes.add(node());
+          }
+          return nodes;
+        }
+      };
+    }
+  }
+
+}
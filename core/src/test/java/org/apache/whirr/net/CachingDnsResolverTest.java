@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.PTRRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.ReverseMap;
+import org.xbill.DNS.Section;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class CachingDnsResolverTest {
+
+  private ListeningExecutorService executor;
+  private StandInDnsServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    server = new StandInDnsServer(ImmutableMap.of(
+        "10.0.0.1", "ip-10-0-0-1.example.com",
+        "10.0.0.2", "ip-10-0-0-2.example.com"));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    executor.shutdownNow();
+    server.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testLookupsAreQueriedOnceInParallel() throws Exception {
+    CachingDnsResolver resolver = new CachingDnsResolver(
+        new FastDnsResolver(2, server.getAddress()),
+        1, TimeUnit.HOURS, 1, TimeUnit.MINUTES, executor);
+
+    Map<String, String> names = resolver.resolveAll(
+        ImmutableList.of("10.0.0.1", "10.0.0.2", "10.0.0.1"));
+    assertEquals(ImmutableMap.of(
+        "10.0.0.1", "ip-10-0-0-1.example.com",
+        "10.0.0.2", "ip-10-0-0-2.example.com"), names);
+    assertEquals(2, server.getQueries());
+
+    assertEquals("ip-10-0-0-2.example.com", resolver.apply("10.0.0.2"));
+    assertEquals("ip-10-0-0-1.example.com", resolver.getIfPresent("10.0.0.1"));
+    assertEquals(2, server.getQueries());
+  }
+
+  @Test
+  public void testUnresolvedAddressesExpireFirst() throws Exception {
+    final AtomicInteger lookups = new AtomicInteger();
+    DnsResolver delegate = new DnsResolver() {
+      @Override
+      public String apply(String hostIp) {
+        lookups.incrementAndGet();
+        return hostIp.startsWith("10.") ? "resolved-" + hostIp : hostIp;
+      }
+    };
+    final AtomicLong now = new AtomicLong();
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return now.get();
+      }
+    };
+    CachingDnsResolver resolver = new CachingDnsResolver(delegate,
+        10, TimeUnit.NANOSECONDS, 2, TimeUnit.NANOSECONDS,
+        MoreExecutors.sameThreadExecutor(), ticker);
+
+    resolver.apply("10.0.0.1");
+    resolver.apply("192.168.0.1");
+    assertNull(resolver.getIfPresent("192.168.0.1"));
+    assertEquals(2, lookups.get());
+
+    now.set(5);
+    resolver.apply("10.0.0.1");
+    resolver.apply("192.168.0.1");
+    assertEquals(3, lookups.get());
+
+    resolver.put("172.16.0.1", "loaded.example.com");
+    now.set(12);
+    assertEquals("loaded.example.com", resolver.apply("172.16.0.1"));
+    resolver.apply("10.0.0.1");
+    assertEquals(4, lookups.get());
+  }
+
+  @Test
+  public void testExpiredEntriesArePurgedWhenNewOnesAreAdded() throws Exception {
+    DnsResolver delegate = new DnsResolver() {
+      @Override
+      public String apply(String hostIp) {
+        return "resolved-" + hostIp;
+      }
+    };
+    final AtomicLong now = new AtomicLong();
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return now.get();
+      }
+    };
+    CachingDnsResolver resolver = new CachingDnsResolver(delegate,
+        10, TimeUnit.NANOSECONDS, 2, TimeUnit.NANOSECONDS,
+        MoreExecutors.sameThreadExecutor(), ticker);
+
+    for (int i = 1; i <= 100; i++) {
+      resolver.apply("10.0.0." + i);
+    }
+    assertEquals(100, resolver.size());
+
+    now.set(20);
+    resolver.apply("10.0.1.1");
+    assertEquals(1, resolver.size());
+    assertEquals("resolved-10.0.1.1", resolver.getIfPresent("10.0.1.1"));
+  }
+
+  /**
+   * Answers the PTR queries of the given addresses over TCP, and nothing
+   * else.
+   */
+  private static class StandInDnsServer implements Runnable {
+
+    private final ServerSocket socket;
+    private final Map<Name, String> names = Maps.newHashMap();
+    private final AtomicInteger queries = new AtomicInteger();
+
+    StandInDnsServer(Map<String, String> hostNames) throws IOException {
+      for (Map.Entry<String, String> entry : hostNames.entrySet()) {
+        names.put(ReverseMap.fromAddress(entry.getKey()), entry.getValue());
+      }
+      socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      Thread thread = new Thread(this, "stand-in-dns");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    InetSocketAddress getAddress() {
+      return new InetSocketAddress(socket.getInetAddress(), socket.getLocalPort());
+    }
+
+    int getQueries() {
+      return queries.get();
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+
+    @Override
+    public void run() {
+      while (!socket.isClosed()) {
+        try {
+          Socket connection = socket.accept();
+          try {
+            answer(connection);
+          } finally {
+            connection.close();
+          }
+        } catch (IOException e) {
+          // closed
+        }
+      }
+    }
+
+    private void answer(Socket connection) throws IOException {
+      DataInputStream in = new DataInputStream(connection.getInputStream());
+      byte[] wire = new byte[in.readUnsignedShort()];
+      in.readFully(wire);
+      Message query = new Message(wire);
+      queries.incrementAndGet();
+
+      Record question = query.getQuestion();
+      Message response = new Message(query.getHeader().getID());
+      response.getHeader().setFlag(Flags.QR);
+      response.addRecord(question, Section.QUESTION);
+      String hostName = names.get(question.getName());
+      if (hostName != null) {
+        response.addRecord(new PTRRecord(question.getName(), DClass.IN, 60,
+            Name.fromString(hostName + ".")), Section.ANSWER);
+      }
+
+      byte[] answer = response.toWire();
+      DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+      out.writeShort(answer.length);
+      out.write(answer);
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.FirewallManager.Rule;
+import org.apache.whirr.service.jclouds.StatementBuilder;
+import org.jclouds.domain.Credentials;
+import org.jclouds.ec2.domain.IpPermission;
+import org.jclouds.ec2.domain.IpProtocol;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Range;
+import com.google.common.collect.Ranges;
+
+public class FirewallManagerTest {
+
+  @Test
+  public void testAdjacentPortsAreMergedInRanges() {
+    List<Range<Integer>> ranges = FirewallManager.toRanges(
+        ImmutableSortedSet.of(50070, 8020, 50030, 8021, 8022, 50075));
+    assertThat(ranges, is((List<Range<Integer>>) ImmutableList.of(Ranges.closed(8020, 8022),
+        Ranges.closed(50030, 50030), Ranges.closed(50070, 50070), Ranges.closed(50075, 50075))));
+  }
+
+  @Test
+  public void testOnlyMissingPermissionsAreGranted() {
+    Set<IpPermission> existing = ImmutableSet.of(
+        IpPermission.builder().ipProtocol(IpProtocol.TCP).fromPort(22).toPort(22)
+            .ipRange("1.2.3.4/32").build(),
+        IpPermission.builder().ipProtocol(IpProtocol.TCP).fromPort(8020).toPort(8021)
+            .ipRange("1.2.3.4/32").build());
+
+    Set<IpPermission> missing = FirewallManager.getMissingPermissions(existing,
+        ImmutableSetMultimap.<String, Integer>builder()
+            .putAll("1.2.3.4/32", 22, 8020, 8021, 8022, 8023)
+            .putAll("5.6.7.8/32", 8022, 8023)
+            .build());
+
+    IpPermission permission = Iterables.getOnlyElement(missing);
+    assertThat(permission.getFromPort(), is(8022));
+    assertThat(permission.getToPort(), is(8023));
+    assertThat(permission.getIpRanges(),
+        is((Set<String>) ImmutableSet.of("1.2.3.4/32", "5.6.7.8/32")));
+  }
+
+  @Test
+  public void testNothingIsMissingWhenAllTrafficIsGranted() {
+    Set<IpPermission> existing = ImmutableSet.of(
+        IpPermission.builder().ipProtocol(IpProtocol.ALL).fromPort(-1).toPort(-1)
+            .ipRange("1.2.3.4/32").build());
+    assertTrue(FirewallManager.getMissingPermissions(existing,
+        ImmutableSetMultimap.of("1.2.3.4/32", 8020)).isEmpty());
+  }
+
+  @Test
+  public void testClientRulesAreLoadedAsOneIpset() throws Exception {
+    Cluster.Instance instance = new Cluster.Instance(new Credentials("dummy", "dummy"),
+        ImmutableSet.of("role"), "50.0.0.1", "10.0.0.1", "region/i-1", null);
+    FirewallManager manager = new FirewallManager(null,
+        ClusterSpec.withTemporaryKeys(new PropertiesConfiguration()),
+        new Cluster(ImmutableSet.of(instance)));
+    manager.addRule(Rule.create().source("1.2.3.4").destination(instance).ports(8021, 8020, 50070));
+
+    String script = render(manager.getRulesAsStatements());
+    assertThat(script, containsString("1.2.3.4/32,tcp:8020-8021\n1.2.3.4/32,tcp:50070\n"));
+    assertThat(script, containsString("configure_host_firewall clients"));
+    assertThat(script, not(containsString("iptables")));
+  }
+
+  @Test
+  public void testTheWholeAddressSpaceIsLoadedAsTwoHalves() throws Exception {
+    Cluster.Instance instance = new Cluster.Instance(new Credentials("dummy", "dummy"),
+        ImmutableSet.of("role"), "50.0.0.1", "10.0.0.1", "region/i-1", null);
+    PropertiesConfiguration conf = new PropertiesConfiguration();
+    conf.setProperty("whirr.client-cidrs", "0.0.0.0/0");
+    FirewallManager manager = new FirewallManager(null,
+        ClusterSpec.withTemporaryKeys(conf), new Cluster(ImmutableSet.of(instance)));
+    manager.addRule(Rule.create().destination(instance).ports(8020));
+
+    String script = render(manager.getRulesAsStatements());
+    assertThat(script, containsString("0.0.0.0/1,tcp:8020\n128.0.0.0/1,tcp:8020\n"));
+    assertThat(script, not(containsString("/0")));
+  }
+
+  @Test
+  public void testClusterRulesListTheMemberAddresses() throws Exception {
+    Set<Cluster.Instance> instances = ImmutableSet.of(
+        new Cluster.Instance(new Credentials("dummy", "dummy"), ImmutableSet.of("role"),
+            "50.0.0.2", "10.0.0.2", "region/i-2", null),
+        new Cluster.Instance(new Credentials("dummy", "dummy"), ImmutableSet.of("role"),
+            "50.0.0.1", "10.0.0.1", "region/i-1", null));
+
+    String script = render(FirewallManager.getClusterRulesAsStatements(instances));
+    assertThat(script, containsString("10.0.0.1\n10.0.0.2\n50.0.0.1\n50.0.0.2\n"));
+    assertThat(script, containsString("configure_host_firewall cluster"));
+  }
+
+  @Test
+  public void testIpsetIsInstalledDuringTheBootstrap() throws Exception {
+    ClusterActionEvent event = new ClusterActionEvent(ClusterActionHandler.BOOTSTRAP_ACTION,
+        ClusterSpec.withTemporaryKeys(new PropertiesConfiguration()), null, null,
+        new StatementBuilder(), null, null, null);
+    ClusterActionHandlerSupport.addHostFirewallInstall(event);
+
+    Statement install = event.getStatementBuilder().buildInstallScript();
+    assertThat(install, notNullValue());
+    assertThat(install.render(OsFamily.UNIX), containsString("install_ipset"));
+  }
+
+  private static String render(List<Statement> statements) {
+    StringBuilder script = new StringBuilder();
+    for (Statement statement : statements) {
+      script.append(statement.render(OsFamily.UNIX));
+    }
+    return script.toString();
+  }
+}
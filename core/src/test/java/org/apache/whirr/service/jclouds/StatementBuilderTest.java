@@ -24,12 +24,19 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertThat;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
+import org.jclouds.domain.Credentials;
 import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
 import org.jclouds.scriptbuilder.domain.Statements;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableSet;
+
 public class StatementBuilderTest {
   
   @Test
@@ -98,4 +105,52 @@ public class StatementBuilderTest {
     assertThat(script, not(containsString("ignored")));
   }
 
+  @Test
+  public void testSharedBodyIsRenderedOnce() throws Exception {
+    ClusterSpec clusterSpec = ClusterSpec.withTemporaryKeys();
+    clusterSpec.setClusterName("test-cluster");
+    clusterSpec.setProvider("stub");
+
+    final AtomicInteger renderCount = new AtomicInteger();
+    StatementBuilder builder = new StatementBuilder();
+    builder.addStatement(new Statement() {
+      @Override
+      public Iterable<String> functionDependencies(OsFamily family) {
+        return ImmutableSet.of();
+      }
+
+      @Override
+      public String render(OsFamily family) {
+        renderCount.incrementAndGet();
+        return "echo shared body\n";
+      }
+    });
+    builder.addExportPerInstance("id-1", "TOKEN", "first");
+    builder.addExportPerInstance("id-2", "TOKEN", "second");
+
+    String first = builder.name("foo").build(clusterSpec, newInstance("id-1", "10.0.0.1"))
+        .render(OsFamily.UNIX);
+    String second = builder.name("foo").build(clusterSpec, newInstance("id-2", "10.0.0.2"))
+        .render(OsFamily.UNIX);
+
+    assertThat(renderCount.get(), is(1));
+    assertThat(first, containsString("echo shared body"));
+    assertThat(second, containsString("echo shared body"));
+    assertThat(first, containsString("first"));
+    assertThat(first, not(containsString("second")));
+    assertThat(second, containsString("10.0.0.2"));
+    assertThat(second, not(containsString("10.0.0.1")));
+
+    builder.addStatement(Statements.exec("echo added"));
+    String third = builder.name("foo").build(clusterSpec, newInstance("id-1", "10.0.0.1"))
+        .render(OsFamily.UNIX);
+    assertThat(renderCount.get(), is(2));
+    assertThat(third, containsString("echo added"));
+  }
+
+  private Instance newInstance(String id, String ip) {
+    return new Instance(new Credentials("dummy", "dummy"), ImmutableSet.of("role"),
+        ip, ip, id, null);
+  }
+
 }
@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import static org.apache.whirr.RolePredicates.withIds;
+import static org.hamcrest.Matchers.is;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.inDirectory;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.RandomStringUtils;
+import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.service.BlobStoreContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.domain.Credentials;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+/**
+ * Checks the delta log of {@link BlobClusterStateStore} against the
+ * in-memory blob store of jclouds.
+ */
+public class BlobClusterStateLogTest {
+
+  private ClusterSpec spec;
+  private BlobStore blobStore;
+
+  @Before
+  public void setUp() throws Exception {
+    spec = ClusterSpec.withTemporaryKeys(new PropertiesConfiguration());
+    spec.setClusterName("test-cluster");
+    spec.setBlobStoreProvider("transient");
+    spec.setBlobStoreIdentity("dummy");
+    spec.setBlobStoreCredential("dummy");
+    spec.setStateStore("blob");
+    spec.setStateStoreContainer("whirr-" + RandomStringUtils.randomAlphanumeric(8).toLowerCase());
+    blobStore = BlobStoreContextBuilder.build(spec).getBlobStore();
+  }
+
+  @Test
+  public void testSavesOnlyTheChangesAfterTheSnapshot() throws Exception {
+    BlobClusterStateStore store = new BlobClusterStateStore(spec);
+    store.save(cluster("i-1", "i-2"));
+    store.save(cluster("i-1", "i-2", "i-3"));
+    store.save(cluster("i-2", "i-3"));
+
+    assertThat(snapshotIds(), is((Set<String>) ImmutableSet.of("i-1", "i-2")));
+    assertThat(logSize(), is(2));
+    assertThat(ids(new BlobClusterStateStore(spec).load()),
+        is((Set<String>) ImmutableSet.of("i-2", "i-3")));
+  }
+
+  @Test
+  public void testConcurrentUpdatesAreMerged() throws Exception {
+    new BlobClusterStateStore(spec).save(cluster("i-1", "i-2"));
+
+    BlobClusterStateStore grow = new BlobClusterStateStore(spec);
+    BlobClusterStateStore shrink = new BlobClusterStateStore(spec);
+    Cluster grown = new Cluster(Sets.union(grow.load().getInstances(),
+        cluster("i-3").getInstances()));
+    Cluster shrunk = shrink.load();
+    shrunk.removeInstancesMatching(withIds("i-1"));
+    grow.save(grown);
+    shrink.save(shrunk);
+
+    assertThat(ids(new BlobClusterStateStore(spec).load()),
+        is((Set<String>) ImmutableSet.of("i-2", "i-3")));
+    assertThat(ids(grow.load()), is((Set<String>) ImmutableSet.of("i-2", "i-3")));
+  }
+
+  @Test
+  public void testLogIsCompacted() throws Exception {
+    BlobClusterStateStore store = new BlobClusterStateStore(spec);
+    store.save(cluster("i-0"));
+    for (int i = 1; i <= BlobClusterStateStore.COMPACT_AFTER; i++) {
+      store.save(cluster("i-" + i));
+    }
+
+    assertThat(logSize(), is(0));
+    assertThat(snapshotIds(), is((Set<String>) ImmutableSet.of(
+        "i-" + BlobClusterStateStore.COMPACT_AFTER)));
+
+    store.save(cluster("i-a"));
+    assertThat(logSize(), is(1));
+    assertThat(ids(new BlobClusterStateStore(spec).load()),
+        is((Set<String>) ImmutableSet.of("i-a")));
+  }
+
+  @Test
+  public void testDestroyRemovesTheLog() throws Exception {
+    BlobClusterStateStore store = new BlobClusterStateStore(spec);
+    store.save(cluster("i-1"));
+    store.save(cluster("i-1", "i-2"));
+    store.destroy();
+
+    assertFalse(blobStore.blobExists(spec.getStateStoreContainer(), spec.getStateStoreBlob()));
+    assertThat(logSize(), is(0));
+    assertTrue(new BlobClusterStateStore(spec).load() == null);
+  }
+
+  private Set<String> snapshotIds() throws Exception {
+    String content = IOUtils.toString(blobStore.getBlob(spec.getStateStoreContainer(),
+        spec.getStateStoreBlob()).getPayload().getInput(), "utf-8");
+    return ClusterStateFormat.readInstanceLines(content).keySet();
+  }
+
+  private int logSize() {
+    String directory = spec.getStateStoreBlob() + ".log";
+    if (!blobStore.directoryExists(spec.getStateStoreContainer(), directory)) {
+      return 0;
+    }
+    return Iterables.size(blobStore.list(spec.getStateStoreContainer(), inDirectory(directory)));
+  }
+
+  private static Cluster cluster(String... ids) {
+    Set<Cluster.Instance> instances = Sets.newLinkedHashSet();
+    for (String id : ids) {
+      instances.add(new Cluster.Instance(new Credentials("dummy", "dummy"),
+          ImmutableSet.of("role"), "127.0.0.1", "127.0.0.1", id, null));
+    }
+    return new Cluster(instances);
+  }
+
+  private static Set<String> ids(Cluster cluster) {
+    Set<String> ids = Sets.newLinkedHashSet();
+    for (Cluster.Instance instance : cluster.getInstances()) {
+      ids.add(instance.getId());
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterSpec;
+import org.jclouds.compute.domain.HardwareBuilder;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.compute.domain.Processor;
+import org.jclouds.compute.domain.Volume;
+import org.jclouds.compute.domain.VolumeBuilder;
+import org.jclouds.domain.Credentials;
+import org.jclouds.domain.LocationBuilder;
+import org.jclouds.domain.LocationScope;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+
+public class ClusterStateFormatTest {
+
+  @Test
+  public void testNodeDetailsAreSaved() throws Exception {
+    ClusterSpec spec = ClusterSpec.withTemporaryKeys(new PropertiesConfiguration());
+    NodeMetadata node = new NodeMetadataBuilder()
+        .id("us-east-1/i-1").providerId("i-1").name("node-1").group("test-cluster")
+        .imageId("us-east-1/ami-1").status(NodeMetadata.Status.RUNNING)
+        .location(new LocationBuilder().scope(LocationScope.ZONE)
+            .id("us-east-1a").description("us-east-1a").build())
+        .hardware(new HardwareBuilder().id("m1.large").ram(7680)
+            .processors(ImmutableList.of(new Processor(2, 2)))
+            .volumes(ImmutableList.<Volume>of(new VolumeBuilder().type(Volume.Type.LOCAL)
+                .size(420f).device("/dev/sdb").bootDevice(false).durable(false).build()))
+            .build())
+        .publicAddresses(ImmutableSet.of("10.0.0.1"))
+        .privateAddresses(ImmutableSet.of("10.1.0.1"))
+        .build();
+    Cluster cluster = new Cluster(ImmutableSet.of(
+        new Cluster.Instance(new Credentials("dummy", "dummy"), ImmutableSet.of("nn", "jt"),
+            "10.0.0.1", "10.1.0.1", "us-east-1/i-1", node),
+        new Cluster.Instance(new Credentials("dummy", "dummy"), ImmutableSet.of("dn"),
+            "10.0.0.2", null, "us-east-1/i-2", null)));
+
+    ClusterStateStore store = new MemoryClusterStateStore();
+    String content = store.serialize(cluster);
+    assertThat(ClusterStateFormat.isJson(content), is(true));
+
+    Cluster loaded = store.unserialize(spec, content);
+    Cluster.Instance first = loaded.getInstances().iterator().next();
+    assertThat(first.getRoles(), is((Object) ImmutableSet.of("nn", "jt")));
+    assertThat(first.getLocationId(), is("us-east-1a"));
+    NodeMetadata loadedNode = first.getNodeMetadata();
+    assertThat(loadedNode.getGroup(), is("test-cluster"));
+    assertThat(loadedNode.getImageId(), is("us-east-1/ami-1"));
+    assertThat(loadedNode.getStatus(), is(NodeMetadata.Status.RUNNING));
+    assertThat(loadedNode.getHardware().getRam(), is(7680));
+    assertThat(loadedNode.getHardware().getProcessors().get(0).getCores(), is(2.0));
+    assertThat(loadedNode.getHardware().getVolumes().get(0).getSize(), is(420f));
+
+    Cluster.Instance second = Iterables.get(loaded.getInstances(), 1);
+    assertThat(second.getPrivateIp(), is(nullValue()));
+    assertThat(second.getNodeMetadata(), is(nullValue()));
+  }
+
+  @Test
+  public void testTsvStateStillLoads() throws Exception {
+    ClusterSpec spec = ClusterSpec.withTemporaryKeys(new PropertiesConfiguration());
+    Cluster loaded = new MemoryClusterStateStore().unserialize(spec,
+        "id-1\tnn,jt\t10.0.0.1\t10.1.0.1\n" +
+        "id-2\tdn\t10.0.0.2\t10.1.0.2\tus-east-1b\n");
+
+    assertThat(loaded.getInstances().size(), is(2));
+    Cluster.Instance second = Iterables.get(loaded.getInstances(), 1);
+    assertThat(second.getId(), is("id-2"));
+    assertThat(second.getLocationId(), is("us-east-1b"));
+    assertThat(second.getNodeMetadata(), is(nullValue()));
+  }
+}
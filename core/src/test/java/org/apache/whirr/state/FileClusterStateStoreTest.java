@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterSpec;
+import org.jclouds.domain.Credentials;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+public class FileClusterStateStoreTest {
+
+  private String userHome;
+  private File home;
+  private ClusterSpec spec;
+
+  @Before
+  public void setUp() throws Exception {
+    userHome = System.getProperty("user.home");
+    home = Files.createTempDir();
+    System.setProperty("user.home", home.getPath());
+    spec = ClusterSpec.withTemporaryKeys(new PropertiesConfiguration());
+    spec.setClusterName("test-cluster");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    System.setProperty("user.home", userHome);
+    FileUtils.deleteDirectory(home);
+  }
+
+  @Test
+  public void testChangesAreAppendedToTheJournal() throws Exception {
+    FileClusterStateStore store = new FileClusterStateStore(spec);
+    store.save(cluster("i-1", "i-2"));
+    String snapshot = Files.toString(file("instances"), Charsets.UTF_8);
+
+    store.save(cluster("i-1", "i-2", "i-3"));
+    store.save(cluster("i-2", "i-3"));
+    store.save(cluster("i-2", "i-3"));
+
+    assertThat(Files.toString(file("instances"), Charsets.UTF_8), is(snapshot));
+    assertThat(Files.readLines(file("instances.journal"), Charsets.UTF_8).size(), is(2));
+    assertThat(ids(new FileClusterStateStore(spec).load()),
+        is((Set<String>) ImmutableSet.of("i-2", "i-3")));
+  }
+
+  @Test
+  public void testIncompleteJournalRecordIsIgnored() throws Exception {
+    FileClusterStateStore store = new FileClusterStateStore(spec);
+    store.save(cluster("i-1"));
+    store.save(cluster("i-1", "i-2"));
+    Files.append("{\"version\":2,\"sequence\":2,\"instances\":[{\"id\":\"i-",
+        file("instances.journal"), Charsets.UTF_8);
+
+    assertThat(ids(store.load()), is((Set<String>) ImmutableSet.of("i-1", "i-2")));
+    store.save(cluster("i-2"));
+    assertThat(ids(store.load()), is((Set<String>) ImmutableSet.of("i-2")));
+  }
+
+  @Test
+  public void testJournalIsCompacted() throws Exception {
+    FileClusterStateStore store = new FileClusterStateStore(spec);
+    store.save(cluster("i-0"));
+    for (int i = 1; i <= FileClusterStateStore.COMPACT_AFTER + 1; i++) {
+      store.save(cluster("i-" + i));
+    }
+
+    assertFalse(file("instances.journal").exists());
+    assertThat(ids(store.load()), is((Set<String>) ImmutableSet.of(
+        "i-" + (FileClusterStateStore.COMPACT_AFTER + 1))));
+    assertFalse(file("instances.tmp").exists());
+  }
+
+  @Test
+  public void testConcurrentEntryUpdatesAreNotLost() throws Exception {
+    final Function<String, String> increment = new Function<String, String>() {
+      @Override
+      public String apply(String content) {
+        return String.valueOf(content == null ? 1 : Integer.parseInt(content) + 1);
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Void>> futures = Lists.newArrayList();
+      for (int i = 0; i < 4; i++) {
+        // a store per thread, as for concurrent invocations
+        final FileClusterStateStore store = new FileClusterStateStore(spec);
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int j = 0; j < 25; j++) {
+              store.updateEntry("counter", increment);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(new FileClusterStateStore(spec).loadEntry("counter"), is("100"));
+  }
+
+  @Test
+  public void testUpdateEntryRemovesTheEntryWhenTheResultIsNull() throws Exception {
+    FileClusterStateStore store = new FileClusterStateStore(spec);
+    store.saveEntry("entry", "content");
+
+    store.updateEntry("entry", new Function<String, String>() {
+      @Override
+      public String apply(String content) {
+        return null;
+      }
+    });
+
+    assertFalse(file("entry").exists());
+    assertThat(store.loadEntry("entry"), is((String) null));
+  }
+
+  private File file(String name) {
+    return new File(spec.getClusterDirectory(), name);
+  }
+
+  private static Cluster cluster(String... ids) {
+    Set<Cluster.Instance> instances = Sets.newLinkedHashSet();
+    for (String id : ids) {
+      instances.add(new Cluster.Instance(new Credentials("dummy", "dummy"),
+          ImmutableSet.of("role"), "127.0.0.1", "127.0.0.1", id, null));
+    }
+    return new Cluster(instances);
+  }
+
+  private static Set<String> ids(Cluster cluster) {
+    Set<String> ids = Sets.newLinkedHashSet();
+    for (Cluster.Instance instance : cluster.getInstances()) {
+      ids.add(instance.getId());
+    }
+    return ids;
+  }
+}
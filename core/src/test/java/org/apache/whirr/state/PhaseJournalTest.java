@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+
+public class PhaseJournalTest {
+
+  @Test
+  public void testRecordsCompletedPhasesByInstance() throws Exception {
+    ClusterStateStore store = new MemoryClusterStateStore();
+    assertFalse(PhaseJournal.exists(store));
+
+    PhaseJournal.begin(store);
+    assertTrue(PhaseJournal.exists(store));
+    assertTrue(PhaseJournal.load(store).isEmpty());
+
+    PhaseJournal.record(store, "bootstrap", ImmutableList.of("i-1", "i-2"));
+    PhaseJournal.record(store, "configure", ImmutableList.of("i-2"));
+    PhaseJournal.record(store, "configure", ImmutableList.of("i-1", "i-2"));
+
+    SetMultimap<String, String> journal = PhaseJournal.load(store);
+    assertThat(journal.get("bootstrap"), is((Object) ImmutableSet.of("i-1", "i-2")));
+    assertThat(journal.get("configure"), is((Object) ImmutableSet.of("i-2", "i-1")));
+    assertTrue(journal.get("start").isEmpty());
+  }
+
+  @Test
+  public void testBeginDropsThePreviousLaunch() throws Exception {
+    ClusterStateStore store = new MemoryClusterStateStore();
+    PhaseJournal.begin(store);
+    PhaseJournal.record(store, "bootstrap", ImmutableList.of("i-1"));
+
+    PhaseJournal.begin(store);
+    assertTrue(PhaseJournal.load(store).isEmpty());
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class ScriptHashesTest {
+
+  @Test
+  public void testEmptyWhenNothingStored() throws Exception {
+    assertTrue(ScriptHashes.load(new MemoryClusterStateStore()).isEmpty());
+  }
+
+  @Test
+  public void testUpdateMergesWithStoredHashes() throws Exception {
+    ClusterStateStore store = new MemoryClusterStateStore();
+    ScriptHashes.update(store, ImmutableMap.of("i-1", "aaa", "i-2", "bbb"));
+    ScriptHashes.update(store, ImmutableMap.of("i-2", "ccc"));
+
+    Map<String, String> hashes = ScriptHashes.load(store);
+    assertThat(hashes.size(), is(2));
+    assertThat(hashes.get("i-1"), is("aaa"));
+    assertThat(hashes.get("i-2"), is("ccc"));
+  }
+
+  @Test
+  public void testRemoveDropsOnlyTheGivenInstances() throws Exception {
+    ClusterStateStore store = new MemoryClusterStateStore();
+    ScriptHashes.update(store, ImmutableMap.of("i-1", "aaa", "i-2", "bbb"));
+    ScriptHashes.remove(store, ImmutableList.of("i-1", "i-3"));
+
+    Map<String, String> hashes = ScriptHashes.load(store);
+    assertThat(hashes.size(), is(1));
+    assertThat(hashes.get("i-2"), is("bbb"));
+  }
+
+  @Test
+  public void testDestroyRemovesHashes() throws Exception {
+    ClusterStateStore store = new MemoryClusterStateStore();
+    ScriptHashes.update(store, ImmutableMap.of("i-1", "aaa"));
+    store.destroy();
+    assertTrue(ScriptHashes.load(store).isEmpty());
+  }
+}
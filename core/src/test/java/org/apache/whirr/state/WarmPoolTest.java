@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.state;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.whirr.Cluster;
+import org.apache.whirr.ClusterSpec;
+import org.jclouds.domain.Credentials;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+public class WarmPoolTest {
+
+  @Test
+  public void testClaimTakesInstancesWithTheRolesOutOfThePool() throws Exception {
+    ClusterSpec spec = ClusterSpec.withTemporaryKeys(new PropertiesConfiguration());
+    ClusterStateStore store = new MemoryClusterStateStore();
+    assertTrue(WarmPool.load(store, spec).isEmpty());
+
+    WarmPool.add(store, spec, ImmutableSet.of(
+        instance("i-1", "tt"), instance("i-2", "dn"), instance("i-3", "tt")));
+    WarmPool.add(store, spec, ImmutableSet.of(instance("i-4", "tt")));
+
+    assertThat(ids(WarmPool.claim(store, spec, ImmutableSet.of("tt"), 2)),
+        is((Set<String>) ImmutableSet.of("i-1", "i-3")));
+    assertThat(ids(WarmPool.claim(store, spec, ImmutableSet.of("tt"), 2)),
+        is((Set<String>) ImmutableSet.of("i-4")));
+    assertTrue(WarmPool.claim(store, spec, ImmutableSet.of("tt"), 1).isEmpty());
+    assertThat(ids(WarmPool.load(store, spec)), is((Set<String>) ImmutableSet.of("i-2")));
+  }
+
+  @Test
+  public void testRetainDropsTheInstancesThatAreGone() throws Exception {
+    ClusterSpec spec = ClusterSpec.withTemporaryKeys(new PropertiesConfiguration());
+    ClusterStateStore store = new MemoryClusterStateStore();
+    WarmPool.add(store, spec, ImmutableSet.of(instance("i-1", "tt"), instance("i-2", "tt")));
+
+    WarmPool.retain(store, spec, ImmutableSet.of("i-2", "i-5"));
+    assertThat(ids(WarmPool.load(store, spec)), is((Set<String>) ImmutableSet.of("i-2")));
+  }
+
+  private static Cluster.Instance instance(String id, String role) {
+    return new Cluster.Instance(new Credentials("dummy", "dummy"), ImmutableSet.of(role),
+        "127.0.0.1", "127.0.0.1", id, null);
+  }
+
+  private static Set<String> ids(Set<Cluster.Instance> instances) {
+    Set<String> ids = Sets.newLinkedHashSet();
+    for (Cluster.Instance instance : instances) {
+      ids.add(instance.getId());
+    }
+    return ids;
+  }
+}
@@ -20,6 +20,7 @@ package org.apache.whirr.template;
 
 import com.google.common.collect.Sets;
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.velocity.Template;
 import org.apache.velocity.app.VelocityEngine;
 import org.apache.whirr.Cluster;
 import org.apache.whirr.ClusterSpec;
@@ -44,5 +45,23 @@ public class TemplateUtilsTest {
     
     Assert.assertEquals("instance ip: 127.0.0.1", result);
   }
+
+  @Test
+  public void testSharedEngineParsesTemplatesOnce() throws Exception {
+    Credentials credentials = new Credentials("dummy", "dummy");
+    Cluster.Instance instance = new Cluster.Instance(credentials,
+        Sets.newHashSet("foo"), "127.0.0.1", "127.0.0.1", "id-0", null);
+
+    ClusterSpec clusterSpec = ClusterSpec.withTemporaryKeys(new PropertiesConfiguration("whirr-core-test.properties"));
+    Cluster cluster = new Cluster(Sets.newHashSet(instance));
+    VelocityEngine ve = TemplateCache.INSTANCE.getEngine();
+
+    TemplateCache.INSTANCE.precompile(getClass().getClassLoader(), "template-test.txt.vm");
+    Template template = TemplateCache.INSTANCE.getTemplate("template-test.txt.vm");
+    Assert.assertSame(template, TemplateCache.INSTANCE.getTemplate("template-test.txt.vm"));
+
+    String result = TemplateUtils.processTemplate(ve, "template-test.txt.vm", clusterSpec, cluster);
+    Assert.assertEquals("instance ip: 127.0.0.1", result);
+  }
   
 }
@@ -39,9 +39,11 @@ import org.apache.whirr.Cluster;
 import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.apache.whirr.service.ConcurrentClusterActionHandler;
 import org.apache.whirr.service.jclouds.StatementBuilder;
 
-public class CassandraClusterActionHandler extends ClusterActionHandlerSupport {
+public class CassandraClusterActionHandler extends ClusterActionHandlerSupport
+    implements ConcurrentClusterActionHandler {
 
   public static final String CASSANDRA_ROLE = "cassandra";
   public static final int CLIENT_PORT = 9160;
@@ -42,7 +42,6 @@ public class ChefClusterActionHandler extends ClusterActionHandlerSupport {
   private String role;
   private String cookbook;
   private String recipe;
-  private long sleepAfterConfigure;
 
   public ChefClusterActionHandler(String role) {
     this.role = role;
@@ -60,14 +59,6 @@ public class ChefClusterActionHandler extends ClusterActionHandlerSupport {
     addStatement(event, call("retry_helpers"));
     if (isFirstChefRoleIn(event.getInstanceTemplate().getRoles()).apply(role)) {
       addInstallChefStatements(event);
-      // for some reason even non-running recipes like ant are sometimes not
-      // immediately available after install. Jclouds seems to be behaving fine
-      // and file system stores should be atomic wrt to visibility, but there
-      // might be refresh or memory visibility issues wrt to how path context is
-      // built or maintained. Until the issue is dug up a small sleep time
-      // should take care of it
-      sleepAfterConfigure = event.getClusterSpec().getConfiguration()
-          .getLong(CHEF_SLEEP_AFTER_RECIPE, CHEF_SLEEP_AFTER_RECIPE_DEFAULT);
     }
   }
 
@@ -98,7 +89,17 @@ public class ChefClusterActionHandler extends ClusterActionHandlerSupport {
   @Override
   protected void afterConfigure(ClusterActionEvent event) throws IOException,
       InterruptedException {
-    Thread.sleep(sleepAfterConfigure);
+    // for some reason even non-running recipes like ant are sometimes not
+    // immediately available after install. Jclouds seems to be behaving fine
+    // and file system stores should be atomic wrt to visibility, but there
+    // might be refresh or memory visibility issues wrt to how path context is
+    // built or maintained. Until the issue is dug up a small sleep time
+    // should take care of it. The handler is shared by the clusters of the
+    // JVM, so the setting is read from the event rather than kept.
+    if (isFirstChefRoleIn(event.getInstanceTemplate().getRoles()).apply(role)) {
+      Thread.sleep(event.getClusterSpec().getConfiguration()
+          .getLong(CHEF_SLEEP_AFTER_RECIPE, CHEF_SLEEP_AFTER_RECIPE_DEFAULT));
+    }
   }
 
   private void parseCookbookAndRecipe() {
@@ -29,8 +29,10 @@ import org.apache.whirr.Cluster;
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.apache.whirr.service.ConcurrentClusterActionHandler;
 
-public class ElasticSearchHandler extends ClusterActionHandlerSupport {
+public class ElasticSearchHandler extends ClusterActionHandlerSupport
+    implements ConcurrentClusterActionHandler {
 
   public static final String ROLE = "elasticsearch";
 
@@ -31,6 +31,7 @@ import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.apache.whirr.service.ConcurrentClusterActionHandler;
 import org.apache.whirr.service.FirewallManager.Rule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +40,8 @@ import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 
-public class GangliaMonitorClusterActionHandler extends ClusterActionHandlerSupport {
+public class GangliaMonitorClusterActionHandler extends ClusterActionHandlerSupport
+    implements ConcurrentClusterActionHandler {
   
   private static final Logger LOG =
     LoggerFactory.getLogger(GangliaMonitorClusterActionHandler.class);
@@ -25,12 +25,14 @@ import static org.jclouds.scriptbuilder.domain.Statements.call;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.whirr.Cluster;
@@ -38,13 +40,17 @@ import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.FirewallManager.Rule;
+import org.apache.whirr.service.RoleDependencies;
+import org.apache.whirr.service.hadoop.HadoopNameNodeClusterActionHandler;
 import org.apache.whirr.service.hadoop.HadoopProxy;
 import org.apache.whirr.service.zookeeper.ZooKeeperCluster;
+import org.apache.whirr.service.zookeeper.ZooKeeperClusterActionHandler;
 import org.apache.whirr.template.TemplateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class HBaseMasterClusterActionHandler extends HBaseClusterActionHandler {
+public class HBaseMasterClusterActionHandler extends HBaseClusterActionHandler
+    implements RoleDependencies {
 
   private static final Logger LOG =
     LoggerFactory.getLogger(HBaseMasterClusterActionHandler.class);
@@ -59,6 +65,16 @@ public class HBaseMasterClusterActionHandler extends HBaseClusterActionHandler {
     return ROLE;
   }
 
+  /**
+   * The master is configured with the ZooKeeper quorum and stores its data
+   * in HDFS.
+   */
+  @Override
+  public Set<String> getRoleDependencies(ClusterSpec clusterSpec) {
+    return ImmutableSet.of(ZooKeeperClusterActionHandler.ZOOKEEPER_ROLE,
+        HadoopNameNodeClusterActionHandler.ROLE);
+  }
+
   @Override
   protected void beforeBootstrap(ClusterActionEvent event) throws IOException {
     ClusterSpec clusterSpec = event.getClusterSpec();    
@@ -28,6 +28,7 @@ import org.apache.whirr.template.TemplateUtils;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Set;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
@@ -35,9 +36,14 @@ import org.apache.whirr.Cluster;
 import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.service.ClusterActionEvent;
+import org.apache.whirr.service.RoleDependencies;
 import org.apache.whirr.service.zookeeper.ZooKeeperCluster;
+import org.apache.whirr.service.zookeeper.ZooKeeperClusterActionHandler;
 
-public class HBaseRegionServerClusterActionHandler extends HBaseClusterActionHandler {
+import com.google.common.collect.ImmutableSet;
+
+public class HBaseRegionServerClusterActionHandler extends HBaseClusterActionHandler
+    implements RoleDependencies {
 
   public static final String ROLE = "hbase-regionserver";
 
@@ -49,6 +55,16 @@ public class HBaseRegionServerClusterActionHandler extends HBaseClusterActionHan
     return ROLE;
   }
 
+  /**
+   * The region servers are configured with the master and the ZooKeeper
+   * quorum, and register with the master when they start.
+   */
+  @Override
+  public Set<String> getRoleDependencies(ClusterSpec clusterSpec) {
+    return ImmutableSet.of(HBaseMasterClusterActionHandler.ROLE,
+        ZooKeeperClusterActionHandler.ZOOKEEPER_ROLE);
+  }
+
   @Override
   protected void beforeBootstrap(ClusterActionEvent event) throws IOException {
     ClusterSpec clusterSpec = event.getClusterSpec();
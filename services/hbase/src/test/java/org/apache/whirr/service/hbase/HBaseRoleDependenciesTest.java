@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.whirr.service.hbase;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.whirr.ClusterSpec;
+import org.apache.whirr.HandlerMapFactory;
+import org.apache.whirr.InstanceTemplate;
+import org.apache.whirr.actions.PhaseDependencyGraph;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class HBaseRoleDependenciesTest {
+
+  private static InstanceTemplate template(int numberOfInstances, String... roles) {
+    return InstanceTemplate.builder().numberOfInstance(numberOfInstances).roles(roles).build();
+  }
+
+  @Test
+  public void testTheRegionServersWaitForTheMasterWhichWaitsForZooKeeper() throws Exception {
+    InstanceTemplate zookeeper = template(3, "zookeeper");
+    InstanceTemplate master = template(1, "hbase-master");
+    InstanceTemplate regionServers = template(5, "hbase-regionserver");
+    ClusterSpec spec = ClusterSpec.withTemporaryKeys();
+    spec.setInstanceTemplates(ImmutableList.of(regionServers, master, zookeeper));
+
+    PhaseDependencyGraph graph = PhaseDependencyGraph.build(spec, new HandlerMapFactory().create());
+
+    assertFalse(graph.isBarrier());
+    assertTrue(graph.getDependencies(zookeeper).isEmpty());
+    assertThat(graph.getDependencies(master), is((List<InstanceTemplate>) ImmutableList.of(zookeeper)));
+    assertThat(graph.getDependencies(regionServers),
+        is((List<InstanceTemplate>) ImmutableList.of(master, zookeeper)));
+  }
+
+  @Test
+  public void testTheHadoopRolesStillWaitForTheWholeCluster() throws Exception {
+    InstanceTemplate zookeeper = template(1, "zookeeper");
+    InstanceTemplate master = template(1, "hadoop-namenode", "hbase-master");
+    InstanceTemplate regionServers = template(2, "hadoop-datanode", "hbase-regionserver");
+    ClusterSpec spec = ClusterSpec.withTemporaryKeys();
+    spec.setInstanceTemplates(ImmutableList.of(zookeeper, master, regionServers));
+
+    PhaseDependencyGraph graph = PhaseDependencyGraph.build(spec, new HandlerMapFactory().create());
+
+    assertTrue(graph.getDependencies(zookeeper).isEmpty());
+    assertThat(graph.getDependencies(master),
+        is((List<InstanceTemplate>) ImmutableList.of(zookeeper, regionServers)));
+    assertTrue(graph.isBarrier());
+  }
+
+}
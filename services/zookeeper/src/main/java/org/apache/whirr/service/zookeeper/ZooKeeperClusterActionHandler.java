@@ -22,6 +22,7 @@ import static org.jclouds.scriptbuilder.domain.Statements.call;
 
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
 import java.io.IOException;
@@ -34,11 +35,14 @@ import org.apache.whirr.Cluster.Instance;
 import org.apache.whirr.ClusterSpec;
 import org.apache.whirr.service.ClusterActionEvent;
 import org.apache.whirr.service.ClusterActionHandlerSupport;
+import org.apache.whirr.service.ConcurrentClusterActionHandler;
 import org.apache.whirr.service.FirewallManager.Rule;
+import org.apache.whirr.service.RoleDependencies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ZooKeeperClusterActionHandler extends ClusterActionHandlerSupport {
+public class ZooKeeperClusterActionHandler extends ClusterActionHandlerSupport
+    implements ConcurrentClusterActionHandler, RoleDependencies {
 
   private static final Logger LOG =
     LoggerFactory.getLogger(ZooKeeperClusterActionHandler.class);
@@ -51,6 +55,14 @@ public class ZooKeeperClusterActionHandler extends ClusterActionHandlerSupport {
     return ZOOKEEPER_ROLE;
   }
 
+  /**
+   * The ensemble is only configured with the addresses of its own members.
+   */
+  @Override
+  public Set<String> getRoleDependencies(ClusterSpec clusterSpec) {
+    return ImmutableSet.of();
+  }
+
   protected Configuration getConfiguration(ClusterSpec spec)
       throws IOException {
     return getConfiguration(spec, "whirr-zookeeper-default.properties");